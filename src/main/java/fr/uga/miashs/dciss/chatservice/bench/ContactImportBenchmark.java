@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.gui.ContactDAO;
+import fr.uga.miashs.dciss.chatservice.gui.ContactListGUI.Contact;
+
+/**
+ * Contacts imported per second in the client database (ContactDAO) :
+ * a new connection and statement per contact (as before the cached connection),
+ * one insertContact per contact on the kept connection (one transaction each),
+ * and insertContacts (one transaction for all).
+ * Usage : ContactImportBenchmark [contacts]
+ */
+public class ContactImportBenchmark {
+
+	public static void main(String[] args) throws IOException, SQLException {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		List<Contact> contacts = new ArrayList<>(n);
+		for (int i = 1; i <= n; i++) contacts.add(new Contact(i, "contact " + i));
+
+		System.out.println("import\tcontacts/s");
+		System.out.printf("connection per contact\t%.0f%n", run(contacts, ContactImportBenchmark::perConnection));
+		System.out.printf("insertContact\t%.0f%n", run(contacts, (dao, url, c) -> {
+			for (Contact contact : c) dao.insertContact(contact);
+		}));
+		System.out.printf("insertContacts\t%.0f%n", run(contacts, (dao, url, c) -> dao.insertContacts(c)));
+	}
+
+	private interface Import {
+		void run(ContactDAO dao, String url, List<Contact> contacts) throws SQLException;
+	}
+
+	private static double run(List<Contact> contacts, Import i) throws IOException, SQLException {
+		Path dir = Files.createTempDirectory("chatservice-contacts");
+		String url = "jdbc:sqlite:" + dir.resolve("database.db");
+		try (ContactDAO dao = new ContactDAO(url)) {
+			dao.createContactsTable();
+			long t = System.nanoTime();
+			i.run(dao, url, contacts);
+			double seconds = (System.nanoTime() - t) / 1e9;
+			if (dao.getAllContacts().size() != contacts.size()) throw new IllegalStateException("contacts missing");
+			return contacts.size() / seconds;
+		} finally {
+			delete(dir);
+		}
+	}
+
+	// ancienne façon de faire : une connexion et une requête préparée par contact
+	private static void perConnection(ContactDAO dao, String url, List<Contact> contacts) throws SQLException {
+		for (Contact contact : contacts) {
+			try (Connection connection = DriverManager.getConnection(url);
+					PreparedStatement statement = connection.prepareStatement("INSERT INTO contacts (contactId, name) VALUES (?, ?)")) {
+				statement.setInt(1, contact.getContactId());
+				statement.setString(2, contact.getName());
+				statement.executeUpdate();
+			}
+		}
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+
+import fr.uga.miashs.dciss.chatservice.common.ControlResponse;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.ControlEncoder;
+
+/**
+ * Bytes allocated and time per response to an addMember request : text response built
+ * by concatenation (former format of ServerPacketProcessor) compared to the numeric codes
+ * of ControlEncoder, packet included.
+ * Usage : ControlCodecBenchmark [nbOps]
+ */
+public class ControlCodecBenchmark {
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+		// deux passes, la première sert de chauffe
+		for (int pass = 0; pass < 2; pass++) {
+			long[] text = run(n, ControlCodecBenchmark::text);
+			long[] codec = run(n, ControlCodecBenchmark::codec);
+			if (pass == 1) {
+				System.out.printf("text  : %.1f bytes/op, %.1f ns/op%n", text[0] / (double) n, text[1] / (double) n);
+				System.out.printf("codec : %.1f bytes/op, %.1f ns/op%n", codec[0] / (double) n, codec[1] / (double) n);
+			}
+		}
+	}
+
+	private static Packet text(int userId) {
+		int groupId = -1 - (userId & 0xFF);
+		String msg = "User " + userId + " has been added to group " + groupId;
+		byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
+		int length = msg.getBytes().length;
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + length);
+		buffer.put((byte) 3);
+		buffer.putInt(length);
+		buffer.put(msgBytes);
+		return new Packet(0, userId, buffer.array());
+	}
+
+	private static Packet codec(int userId) {
+		int groupId = -1 - (userId & 0xFF);
+		return new Packet(0, userId, ControlEncoder.status(ControlResponse.ADD_MEMBER, ControlResponse.OK, groupId, userId));
+	}
+
+	// octets alloués par le thread et durée, en nanosecondes
+	private static long[] run(int n, IntFunction<Packet> encode) {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		long sink = 0;
+		long allocated = mx.getThreadAllocatedBytes(tid);
+		long t = System.nanoTime();
+		for (int i = 1; i <= n; i++) sink += encode.apply(i).data.length;
+		long elapsed = System.nanoTime() - t;
+		allocated = mx.getThreadAllocatedBytes(tid) - allocated;
+		if (sink == 0) throw new IllegalStateException();
+		return new long[] { allocated, elapsed };
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.*;
+
+/**
+ * Cost per member of the delivery of a group message : fan-out in the send queues
+ * then encoding by the send loops, with a frame encoded for each member
+ * ("per member") or a SharedFrame encoded once for the whole group, as GroupMsg.process does.
+ * Both variants iterate over the same member list, so only the encoding differs.
+ * Usage : GroupFanOutBenchmark [payloadSize]
+ */
+public class GroupFanOutBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int payload = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		ServerConfig config = new ServerConfig();
+		config.setOverflowPolicy(SendQueue.OverflowPolicy.DROP_OLDEST);
+		// les membres ne sont pas connectés : on garde leurs paquets en mémoire
+		config.setOfflineSpoolDirectory(null);
+		config.setStateDirectory(null);
+		ServerMsg server = new ServerMsg(0, config);
+		// même pile de flux que sendLoop, sans la socket
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 64 * 1024));
+		byte[] data = new byte[payload];
+
+		System.out.println("members\tper member (ns/member)\tencode once (ns/member)");
+		for (int size : new int[] { 10, 100, 2000, 10000 }) {
+			int owner = server.registerIfNew(0, "pw");
+			GroupMsg g = server.createGroup(owner);
+			List<UserMsg> members = new ArrayList<>();
+			for (int i = 1; i < size; i++) {
+				UserMsg u = server.getUser(server.registerIfNew(0, "pw"));
+				g.addMember(u);
+				members.add(u);
+			}
+			Packet p = new Packet(owner, g.getId(), data);
+			int rounds = Math.max(200, 1000000 / size);
+			double perMember = 0, once = 0;
+			// deux passes, la première sert de chauffe
+			for (int pass = 0; pass < 2; pass++) {
+				perMember = run(rounds, members, out, () -> members.forEach(m -> m.process(p)));
+				once = run(rounds, members, out, () -> {
+					SharedFrame frame = SharedFrame.encode(p);
+					FramedPacket fp = new FramedPacket(p, frame);
+					members.forEach(m -> {
+						frame.retain();
+						m.process(fp);
+					});
+					frame.release();
+				});
+			}
+			System.out.printf("%d\t%.1f\t%.1f%n", size, perMember, once);
+			server.removeGroup(g.getId());
+		}
+		server.stop();
+	}
+
+	private static double run(int rounds, List<UserMsg> members, DataOutputStream out, Runnable fanOut) throws IOException {
+		List<Packet> batch = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			fanOut.run();
+			// ce que font les send loops
+			for (UserMsg m : members) {
+				m.getSendQueue().drainTo(batch, Integer.MAX_VALUE);
+				for (Packet q : batch) {
+					SharedFrame.write(out, q);
+					SharedFrame.release(q);
+				}
+				batch.clear();
+			}
+		}
+		return (System.nanoTime() - start) / (double) rounds / members.size();
+	}
+}
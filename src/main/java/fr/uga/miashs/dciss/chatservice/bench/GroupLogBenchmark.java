@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.*;
+
+/**
+ * Bytes written to disk and time to send messages to a group whose members are not
+ * connected : without history, each message is copied in the OfflineSpool of each member,
+ * with the history, it is written once in the log of the group and each member only keeps
+ * its position (HistoryStore cursors).
+ * Usage : GroupLogBenchmark [messages] [payloadSize]
+ */
+public class GroupLogBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int payload = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		byte[] data = new byte[payload];
+
+		System.out.println("members\tspool per member (KB, ms)\tgroup log (KB, ms)");
+		for (int size : new int[] { 10, 100, 1000 }) {
+			long[] spool = run(false, size, messages, data);
+			long[] log = run(true, size, messages, data);
+			System.out.printf("%d\t%d KB, %d ms\t%d KB, %d ms%n", size, spool[0] / 1024, spool[1], log[0] / 1024, log[1]);
+		}
+	}
+
+	// octets écrits et durée de l'envoi des messages
+	private static long[] run(boolean groupLog, int size, int messages, byte[] data) throws IOException {
+		Path dir = Files.createTempDirectory("chatservice-grouplog");
+		ServerConfig config = new ServerConfig();
+		config.setStateDirectory(null);
+		config.setTransferDirectory(null);
+		config.setOfflineSpoolDirectory(dir.resolve("spool"));
+		// segments du spool à la taille des données, pour ne compter que les octets écrits
+		config.setOfflineSpoolSegmentSize(64 * 1024);
+		config.setHistoryDirectory(groupLog ? dir.resolve("history") : null);
+		ServerMsg server = new ServerMsg(0, config);
+		int owner = server.registerIfNew(0, "pw");
+		GroupMsg g = server.createGroup(owner);
+		for (int i = 1; i < size; i++) g.addMember(server.getUser(server.registerIfNew(0, "pw")));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) server.processPacket(new Packet(owner, g.getId(), data));
+		long ms = (System.nanoTime() - start) / 1000000;
+		server.stop();
+		long bytes = size(dir);
+		delete(dir);
+		return new long[] { bytes, ms };
+	}
+
+	private static long size(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+		}
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+}
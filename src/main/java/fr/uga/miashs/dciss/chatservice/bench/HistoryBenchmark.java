@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.*;
+
+/**
+ * Time to read a page of the history of conversations of increasing lengths (HistoryStore) :
+ * the latest page and a page in the middle of the conversation should take the same time
+ * whatever the length, only the first access to a conversation (loading of its index) grows with it.
+ * Usage : HistoryBenchmark [pageSize] [messageSize]
+ */
+public class HistoryBenchmark {
+	private final static int[] SIZES = { 10_000, 100_000, 1_000_000 };
+	private final static int REQUESTS = 2000;
+
+	public static void main(String[] args) throws IOException {
+		int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int messageSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		Path dir = Files.createTempDirectory("chatservice-history");
+		ServerConfig config = new ServerConfig();
+		config.setStateDirectory(null);
+		config.setOfflineSpoolDirectory(null);
+		config.setTransferDirectory(null);
+		config.setHistoryDirectory(dir);
+		config.setHistoryMaxPage(pageSize);
+		ServerMsg server = new ServerMsg(0, config);
+		HistoryStore history = server.getHistory();
+
+		byte[] data = new byte[messageSize];
+		for (int c = 0; c < SIZES.length; c++) {
+			long t = System.nanoTime();
+			for (int i = 0; i < SIZES[c]; i++) history.append(new Packet(1, c + 2, data));
+			System.out.printf("%,d messages appended in %d ms%n", SIZES[c], (System.nanoTime() - t) / 1000000);
+		}
+		history.close();
+
+		System.out.println("messages  first access(ms)  latest page(us)  middle page(us)");
+		for (int c = 0; c < SIZES.length; c++) {
+			// nouvel historique : l'index de la conversation est chargé au premier accès
+			history = new HistoryStore(dir, server, config);
+			long t = System.nanoTime();
+			history.page(1, c + 2, 0, 0, pageSize);
+			double first = (System.nanoTime() - t) / 1e6;
+			double latest = pages(history, c + 2, 0, pageSize);
+			double middle = pages(history, c + 2, SIZES[c] / 2, pageSize);
+			System.out.printf("%,9d  %16.2f  %15.1f  %15.1f%n", SIZES[c], first, latest, middle);
+			history.close();
+		}
+		server.stop();
+		delete(dir);
+	}
+
+	// durée moyenne d'une page, en microsecondes, après un échauffement
+	private static double pages(HistoryStore history, int conversation, long before, int pageSize) throws IOException {
+		for (int i = 0; i < REQUESTS; i++) history.page(1, conversation, before, 0, pageSize);
+		long t = System.nanoTime();
+		for (int i = 0; i < REQUESTS; i++) history.page(1, conversation, before, 0, pageSize);
+		return (System.nanoTime() - t) / 1e3 / REQUESTS;
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+}
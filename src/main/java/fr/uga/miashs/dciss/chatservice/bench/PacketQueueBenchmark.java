@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.PacketQueue;
+
+/**
+ * Throughput of a send queue under contention : several producers offer packets
+ * (as the group fan-outs and the replies of the server do) while a single consumer takes
+ * them by batches, as sendLoop does. Compares the LinkedBlockingQueue of entries (packet +
+ * enqueue time) used by default by SendQueue with PacketQueue (ServerConfig.setLockFreeSendQueue).
+ * A full queue makes the producers retry.
+ * Usage : PacketQueueBenchmark [packetsPerProducer] [capacity]
+ */
+public class PacketQueueBenchmark {
+
+	// interface commune aux deux files comparées
+	private interface Queue {
+		boolean offer(Packet p);
+
+		Packet take() throws InterruptedException;
+
+		int drainTo(List<Packet> c, int max);
+	}
+
+	// entrée de l'ancienne SendQueue
+	private static class Entry {
+		final Packet packet;
+		final long queuedAt;
+
+		Entry(Packet packet) {
+			this.packet = packet;
+			queuedAt = System.currentTimeMillis();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int perProducer = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		Packet p = new Packet(1, 2, new byte[16]);
+
+		System.out.println("producers\tLinkedBlockingQueue (Mpackets/s)\tPacketQueue (Mpackets/s)");
+		for (int producers : new int[] { 1, 2, 4, 8 }) {
+			double linked = 0, array = 0;
+			// deux passes, la première sert de chauffe
+			for (int pass = 0; pass < 2; pass++) {
+				BlockingQueue<Entry> lbq = new LinkedBlockingQueue<>(capacity);
+				List<Entry> drained = new ArrayList<>();
+				linked = run(producers, perProducer, p, new Queue() {
+					public boolean offer(Packet x) { return lbq.offer(new Entry(x)); }
+					public Packet take() throws InterruptedException { return lbq.take().packet; }
+					public int drainTo(List<Packet> c, int max) {
+						int n = lbq.drainTo(drained, max);
+						for (Entry e : drained) c.add(e.packet);
+						drained.clear();
+						return n;
+					}
+				});
+				PacketQueue pq = new PacketQueue(capacity);
+				array = run(producers, perProducer, p, new Queue() {
+					public boolean offer(Packet x) { return pq.offer(x); }
+					public Packet take() throws InterruptedException { return pq.take(); }
+					public int drainTo(List<Packet> c, int max) { return pq.drainTo(c, max); }
+				});
+			}
+			System.out.printf("%d\t%.2f\t%.2f%n", producers, linked, array);
+		}
+	}
+
+	private static double run(int producers, int perProducer, Packet p, Queue q) throws InterruptedException {
+		long total = (long) producers * perProducer;
+		AtomicBoolean go = new AtomicBoolean();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < producers; i++) {
+			Thread t = new Thread(() -> {
+				while (!go.get()) Thread.onSpinWait();
+				for (int n = 0; n < perProducer; n++) {
+					while (!q.offer(p)) Thread.yield();
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		List<Packet> batch = new ArrayList<>();
+		long start = System.nanoTime();
+		go.set(true);
+		long received = 0;
+		while (received < total) {
+			batch.add(q.take());
+			q.drainTo(batch, 1024);
+			received += batch.size();
+			batch.clear();
+		}
+		long elapsed = System.nanoTime() - start;
+		for (Thread t : threads) t.join();
+		return total * 1000.0 / elapsed;
+	}
+}
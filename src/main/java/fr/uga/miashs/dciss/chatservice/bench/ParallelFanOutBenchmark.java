@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.*;
+
+/**
+ * Time to deliver a group message to its last member with GroupMsg.process(), by group
+ * size : sequential delivery compared to the parallel fan-out (fork/join by partitions
+ * of ServerConfig.getFanOutPartition() members). process() returns once every member has
+ * the packet in its send queue ; the queues are emptied between two messages.
+ * Usage : ParallelFanOutBenchmark [payloadSize] [partition]
+ */
+public class ParallelFanOutBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int payload = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		ServerConfig config = new ServerConfig();
+		config.setOverflowPolicy(SendQueue.OverflowPolicy.DROP_OLDEST);
+		// les membres ne sont pas connectés : on garde leurs paquets en mémoire
+		config.setOfflineSpoolDirectory(null);
+		config.setStateDirectory(null);
+		if (args.length > 1) config.setFanOutPartition(Integer.parseInt(args[1]));
+		ServerMsg server = new ServerMsg(0, config);
+		byte[] data = new byte[payload];
+
+		System.out.println("members\tsequential (ms)\tparallel (ms)\t" + config.getFanOutParallelism() + " threads");
+		for (int size : new int[] { 1000, 5000, 20000, 50000 }) {
+			int owner = server.registerIfNew(0, "pw");
+			GroupMsg g = server.createGroup(owner);
+			List<UserMsg> members = new ArrayList<>();
+			for (int i = 1; i < size; i++) {
+				UserMsg u = server.getUser(server.registerIfNew(0, "pw"));
+				g.addMember(u);
+				members.add(u);
+			}
+			Packet p = new Packet(owner, g.getId(), data);
+			int rounds = Math.max(20, 2000000 / size);
+			double sequential = 0, parallel = 0;
+			// deux passes, la première sert de chauffe
+			for (int pass = 0; pass < 2; pass++) {
+				config.setParallelFanOutThreshold(Integer.MAX_VALUE);
+				sequential = run(rounds, g, p, members);
+				config.setParallelFanOutThreshold(1);
+				parallel = run(rounds, g, p, members);
+			}
+			System.out.printf("%d\t%.3f\t%.3f%n", size, sequential, parallel);
+			server.removeGroup(g.getId());
+		}
+		server.stop();
+	}
+
+	// durée moyenne de process(), en millisecondes
+	private static double run(int rounds, GroupMsg g, Packet p, List<UserMsg> members) {
+		List<Packet> batch = new ArrayList<>();
+		long total = 0;
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			g.process(p);
+			total += System.nanoTime() - start;
+			for (UserMsg m : members) {
+				m.getSendQueue().drainTo(batch, Integer.MAX_VALUE);
+				batch.forEach(SharedFrame::release);
+				batch.clear();
+			}
+		}
+		return total / 1e6 / rounds;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+
+import fr.uga.miashs.dciss.chatservice.server.IdRegistry;
+
+/**
+ * Lookup cost of the IdRegistry used by ServerMsg compared to the
+ * ConcurrentHashMap&lt;Integer, ...&gt; it replaces, with dense ids and
+ * several reader threads.
+ * Usage : RegistryBenchmark [nbIds] [nbThreads]
+ */
+public class RegistryBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		Map<Integer, Object> map = new ConcurrentHashMap<>();
+		IdRegistry<Object> registry = new IdRegistry<>();
+		long t = System.nanoTime();
+		for (int i = 1; i <= n; i++) map.put(i, "u" + i);
+		long mapPut = System.nanoTime() - t;
+		t = System.nanoTime();
+		for (int i = 1; i <= n; i++) registry.put(i, "u" + i);
+		long registryPut = System.nanoTime() - t;
+		System.out.printf("put : ConcurrentHashMap %.1f ns/op, IdRegistry %.1f ns/op%n",
+				mapPut / (double) n, registryPut / (double) n);
+
+		// deux passes, la première sert de chauffe
+		for (int pass = 0; pass < 2; pass++) {
+			double m = lookups(threads, n, map::get);
+			double r = lookups(threads, n, registry::get);
+			if (pass == 1) System.out.printf("get (%d threads) : ConcurrentHashMap %.1f ns/op, IdRegistry %.1f ns/op%n", threads, m, r);
+		}
+	}
+
+	private static double lookups(int threads, int n, IntFunction<Object> get) throws InterruptedException {
+		int ops = 5_000_000;
+		Thread[] ts = new Thread[threads];
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread(() -> {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				int found = 0;
+				for (int k = 0; k < ops; k++) {
+					if (get.apply(rnd.nextInt(1, n + 1)) != null) found++;
+				}
+				if (found != ops) throw new IllegalStateException("missing ids");
+			});
+			ts[i].start();
+		}
+		for (Thread x : ts) x.join();
+		return (System.nanoTime() - start) / (double) ops;
+	}
+}
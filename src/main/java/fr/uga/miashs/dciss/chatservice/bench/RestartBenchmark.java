@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.server.*;
+
+/**
+ * Restart time of a ServerMsg with a large state : recovery by replaying the whole
+ * journal, then recovery from a snapshot followed by a short journal tail.
+ * A user takes about 5 KB of heap, mostly its delivery window (1024 slots) : the default
+ * million users need java -Xmx8g, 100000 users fit in -Xmx1g. The heap used after the
+ * last restart is printed.
+ * Usage : RestartBenchmark [nbUsers] [nbGroups] [membersPerGroup]
+ */
+public class RestartBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int nbUsers = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int nbGroups = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+		int members = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		Path dir = Files.createTempDirectory("chatservice-state");
+		ServerConfig config = new ServerConfig();
+		config.setOverflowPolicy(SendQueue.OverflowPolicy.DROP_OLDEST);
+		// seul l'état est persistant, rien n'est écrit dans le répertoire courant
+		config.setOfflineSpoolDirectory(null);
+		config.setTransferDirectory(null);
+		config.setHistoryDirectory(null);
+		config.setSearchDirectory(null);
+		config.setStateDirectory(dir);
+		// le coût mesuré est celui du redémarrage, pas celui des fsync
+		config.setWalSync(false);
+		config.setSnapshotInterval(Long.MAX_VALUE);
+		// chaque serveur est arrêté, sans snapshot : le redémarrage suivant relit le journal mesuré
+		config.setSnapshotOnStop(false);
+
+		long t = System.nanoTime();
+		ServerMsg server = new ServerMsg(0, config);
+		for (int i = 0; i < nbUsers; i++) server.registerIfNew(0, "pw");
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		for (int i = 0; i < nbGroups; i++) {
+			GroupMsg g = server.createGroup(rnd.nextInt(1, nbUsers + 1));
+			for (int j = 1; j < members; j++) server.addMember(g, server.getUser(rnd.nextInt(1, nbUsers + 1)));
+		}
+		server.stop();
+		System.out.printf("state built in %d ms, journal %d KB%n", ms(t), size(dir) / 1024);
+		server = null;
+		System.gc();
+
+		t = System.nanoTime();
+		server = new ServerMsg(0, config);
+		System.out.printf("restart from the journal only : %d ms%n", ms(t));
+		t = System.nanoTime();
+		server.getJournal().snapshot();
+		System.out.printf("snapshot written in %d ms, %d KB%n", ms(t), size(dir) / 1024);
+		// queue de journal après le snapshot : 1% de nouveaux utilisateurs
+		for (int i = 0; i < nbUsers / 100; i++) server.registerIfNew(0, "pw");
+		server.stop();
+		server = null;
+		System.gc();
+
+		t = System.nanoTime();
+		server = new ServerMsg(0, config);
+		long restart = ms(t);
+		if (server.getUser(nbUsers + nbUsers / 100) == null) throw new IllegalStateException("journal tail not replayed");
+		System.out.printf("restart from the snapshot + tail : %d ms%n", restart);
+		System.gc();
+		Runtime rt = Runtime.getRuntime();
+		System.out.printf("heap used after restart : %d MB%n", (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024));
+		server.stop();
+		delete(dir);
+	}
+
+	private static long ms(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long size(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.mapToLong(f -> f.toFile().length()).sum();
+		}
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+}
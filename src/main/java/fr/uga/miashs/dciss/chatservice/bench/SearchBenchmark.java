@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.*;
+
+/**
+ * Indexing rate and query latency of the full-text index (SearchIndex) over a synthetic
+ * history : messages of 10 words drawn from a Zipf distribution over a vocabulary of
+ * 50000 words, between each user and 20 contacts or in groups of 10 members.
+ * Latencies include the reading of the messages found in the history for the snippets.
+ * Usage : SearchBenchmark [messages] [users]
+ */
+public class SearchBenchmark {
+	private final static int VOCABULARY = 50_000;
+	private final static int WORDS = 10;
+	private final static int GROUP_SIZE = 10;
+	private final static int CONTACTS = 20;
+	private final static int QUERIES = 200;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		int nbUsers = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		Path dir = Files.createTempDirectory("chatservice-search");
+		ServerConfig config = new ServerConfig();
+		config.setStateDirectory(null);
+		config.setOfflineSpoolDirectory(null);
+		config.setTransferDirectory(null);
+		config.setHistoryDirectory(dir.resolve("history"));
+		config.setSearchDirectory(dir.resolve("search"));
+		config.setHistoryOpenConversations(4096);
+		ServerMsg server = new ServerMsg(0, config);
+		HistoryStore history = server.getHistory();
+		SearchIndex index = server.getSearchIndex();
+		for (int i = 0; i < nbUsers; i++) server.registerIfNew(0, "pw");
+		Random rnd = new Random(1);
+		GroupMsg[] groups = new GroupMsg[nbUsers / GROUP_SIZE];
+		for (int i = 0; i < groups.length; i++) {
+			groups[i] = server.createGroup(1 + rnd.nextInt(nbUsers));
+			for (int j = 1; j < GROUP_SIZE; j++) server.addMember(groups[i], server.getUser(1 + rnd.nextInt(nbUsers)));
+		}
+
+		// loi de Zipf : probabilité du mot de rang r proportionnelle à 1/r
+		double[] cumulative = new double[VOCABULARY];
+		double sum = 0;
+		for (int r = 0; r < VOCABULARY; r++) cumulative[r] = sum += 1.0 / (r + 1);
+		long t = System.nanoTime();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < messages; i++) {
+			sb.setLength(0);
+			for (int w = 0; w < WORDS; w++) sb.append(word(zipf(rnd, cumulative))).append(' ');
+			int src = 1 + rnd.nextInt(nbUsers);
+			int dest = rnd.nextInt(5) == 0 ? groups[rnd.nextInt(groups.length)].getId()
+					: 1 + (src + rnd.nextInt(CONTACTS)) % nbUsers;
+			history.append(new Packet(src, dest, sb.toString().getBytes(StandardCharsets.UTF_8)));
+			if ((i + 1) % 500_000 == 0) System.out.printf("%,d messages indexed, %d segments%n", i + 1, index.getSegmentCount());
+		}
+		double seconds = (System.nanoTime() - t) / 1e9;
+		System.out.printf("%,d messages appended and indexed in %.1f s (%.0f messages/s)%n", messages, seconds, messages / seconds);
+		// fin des écritures et fusions en cours
+		Thread.sleep(2000);
+		System.out.printf("%d segments, index %d MB%n", index.getSegmentCount(), size(dir.resolve("search")) / (1024 * 1024));
+
+		System.out.println("query\tp50 (ms)\tp99 (ms)\tmax (ms)");
+		run("frequent word", () -> index.search(1 + rnd.nextInt(nbUsers), 0, word(rnd.nextInt(10)), 20));
+		run("rare word", () -> index.search(1 + rnd.nextInt(nbUsers), 0, word(1000 + rnd.nextInt(VOCABULARY - 1000)), 20));
+		run("two words", () -> index.search(1 + rnd.nextInt(nbUsers), 0, word(rnd.nextInt(100)) + " " + word(rnd.nextInt(100)), 20));
+		run("in a group", () -> {
+			GroupMsg g = groups[rnd.nextInt(groups.length)];
+			return index.search(g.getOwner().getId(), g.getId(), word(rnd.nextInt(1000)), 20);
+		});
+		server.stop();
+		delete(dir);
+	}
+
+	private interface Query {
+		Object run() throws IOException;
+	}
+
+	private static void run(String name, Query q) throws IOException {
+		for (int i = 0; i < QUERIES; i++) q.run();
+		long[] times = new long[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			long t = System.nanoTime();
+			q.run();
+			times[i] = System.nanoTime() - t;
+		}
+		Arrays.sort(times);
+		System.out.printf("%s\t%.2f\t%.2f\t%.2f%n", name, times[QUERIES / 2] / 1e6, times[QUERIES * 99 / 100] / 1e6, times[QUERIES - 1] / 1e6);
+	}
+
+	private static int zipf(Random rnd, double[] cumulative) {
+		int i = Arrays.binarySearch(cumulative, rnd.nextDouble() * cumulative[cumulative.length - 1]);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	private static String word(int rank) {
+		return "w" + Integer.toString(rank, 36);
+	}
+
+	private static long size(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+		}
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+		}
+	}
+}
@@ -16,13 +16,24 @@ import java.io.*;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import fr.uga.miashs.dciss.chatservice.common.ControlResponse;
+import fr.uga.miashs.dciss.chatservice.common.Delivery;
+import fr.uga.miashs.dciss.chatservice.common.FileTransfer;
+import fr.uga.miashs.dciss.chatservice.common.History;
+import fr.uga.miashs.dciss.chatservice.common.Search;
+import fr.uga.miashs.dciss.chatservice.common.FrameLimits;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 import fr.uga.miashs.dciss.chatservice.server.ServerMsg;
 
@@ -53,6 +64,24 @@ public class ClientMsg {
 
 	private List<MessageListener> mListeners;
 	private List<ConnectionListener> cListeners;
+	private List<HistoryListener> hListeners;
+	private List<SearchListener> sListeners;
+
+	// transferts de fichiers en cours (voir FileTransfer), par id et par clé expéditeur + id
+	private final Map<Long, FileUpload> uploads = new ConcurrentHashMap<>();
+	private final Map<String, FileDownload> downloads = new ConcurrentHashMap<>();
+	// id tiré pour chaque fichier pas encore envoyé en entier (destinataire, chemin, taille, date) :
+	// un nouvel appel de sendFile() reprend le même transfert sur le serveur
+	private final Map<String, Long> unfinishedUploads = new ConcurrentHashMap<>();
+	// tailles maximales des trames, annoncées par le serveur à la connexion
+	private volatile FrameLimits limits = FrameLimits.DEFAULT;
+	// tampon de la boucle de réception pour écrire le contenu des fichiers
+	private final byte[] fileBuffer = new byte[FileTransfer.CHUNK_SIZE];
+	// livraison (voir Delivery) : démarrage du serveur, dernier paquet reçu et dernier acquitté,
+	// gardés d'une session à l'autre pour ignorer les paquets renvoyés déjà reçus
+	private long epoch;
+	private long lastSeq;
+	private long lastAcked;
 
 	/**
 	 * Create a client with an existing id, that will connect to the server at the
@@ -72,6 +101,8 @@ public class ClientMsg {
 		identifier = id;
 		mListeners = new ArrayList<>();
 		cListeners = new ArrayList<>();
+		hListeners = new ArrayList<>();
+		sListeners = new ArrayList<>();
 		this.username = username;
 		this.password = password;
 	}
@@ -114,6 +145,32 @@ public class ClientMsg {
 		cListeners.forEach(x -> x.connectionEvent(active));
 	}
 
+	/**
+	 * Register a HistoryListener to the client. It will be notified of each history page received.
+	 *
+	 * @param l
+	 */
+	public void addHistoryListener(HistoryListener l) {
+		if (l != null)
+			hListeners.add(l);
+	}
+	protected void notifyHistoryListeners(History page) {
+		hListeners.forEach(x -> x.historyReceived(page));
+	}
+
+	/**
+	 * Register a SearchListener to the client. It will be notified of the results of each search.
+	 *
+	 * @param l
+	 */
+	public void addSearchListener(SearchListener l) {
+		if (l != null)
+			sListeners.add(l);
+	}
+	protected void notifySearchListeners(Search results) {
+		sListeners.forEach(x -> x.searchResults(results));
+	}
+
 
 	public int getIdentifier() {
 		return identifier;
@@ -192,6 +249,18 @@ public class ClientMsg {
 				if (identifier == 0) {
 					identifier = dis.readInt();
 				}
+				limits = FrameLimits.read(dis);
+				Delivery delivery = Delivery.read(dis);
+				if (delivery.epoch != epoch) {
+					// serveur redémarré (ou première session) : numérotation nouvelle
+					epoch = delivery.epoch;
+					lastSeq = delivery.acked;
+				} else {
+					lastSeq = Math.max(lastSeq, delivery.acked);
+				}
+				lastAcked = delivery.acked;
+				// reprise des téléchargements interrompus par une déconnexion
+				downloads.values().forEach(this::fetchMore);
 				// start the receive loop
 				new Thread(() -> {
                     try {
@@ -217,11 +286,19 @@ public class ClientMsg {
 	 * @param data   the data to be sent
 	 */
 	public void sendPacket(int destId, byte[] data) {
+		sendPacket(destId, data, data.length);
+	}
+
+	// envoie les length premiers octets de data
+	private void sendPacket(int destId, byte[] data, int length) {
+		if (length > 0 && length > limits.limit(destId, data[0])) {
+			throw new IllegalArgumentException("packet of " + length + " bytes larger than the limit of the server");
+		}
 		try {
 			synchronized (dos) {
 				dos.writeInt(destId);
-				dos.writeInt(data.length);
-				dos.write(data);
+				dos.writeInt(length);
+				dos.write(data, 0, length);
 				dos.flush();
 			}
 		} catch (IOException e) {
@@ -231,30 +308,151 @@ public class ClientMsg {
     }
 
 	/**
-	 * Method to send files with their name and extension
+	 * Method to send files with their name and extension.
+	 * The file is uploaded to the server by chunks (see FileTransfer), then offered to the
+	 * recipient. This method blocks until the server has confirmed the whole file, waiting
+	 * for its credits : it must not be called by a MessageListener.
+	 * If the connection is lost, calling it again on this ClientMsg with the same file and
+	 * recipient after reconnecting resumes the upload from the last offset confirmed by the server.
 	 */
 	public void sendFile(int destId, Path filePath, String filename) {
-		try {
-			byte[] data = Files.readAllBytes(filePath);
-			System.out.println("File read successfully, size: " + data.length + " bytes");
-			String fileExtension = getFileExtension(filePath);
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			DataOutputStream dos = new DataOutputStream(bos);
-			dos.writeByte(12); // send file
-			//dos.writeInt(filename.length()); // send size of filename
-			dos.writeUTF(filename);
-			//dos.writeInt(fileExtension.length()); // send size of file extension
-			dos.writeUTF(fileExtension);
-			dos.writeInt(data.length); // send size of file content
-			dos.write(data);
-			dos.flush();
-			sendPacket(destId, bos.toByteArray());
-			System.out.println("File sent successfully");
+		try (FileChannel ch = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			long size = ch.size();
+			// id aléatoire sur 64 bits, gardé jusqu'à la fin de l'envoi : même fichier pour le même
+			// destinataire, même id, pour que le serveur reprenne l'envoi
+			String upload = destId + "|" + size + "|" + Files.getLastModifiedTime(filePath).toMillis()
+					+ "|" + filePath.toAbsolutePath();
+			long id = unfinishedUploads.computeIfAbsent(upload, k -> new SecureRandom().nextLong());
+			FileUpload t = new FileUpload(id);
+			uploads.put(id, t);
+			try {
+				System.out.println("File opened successfully, size: " + size + " bytes");
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				DataOutputStream dos = new DataOutputStream(bos);
+				dos.writeByte(FileTransfer.TYPE); // send file
+				dos.writeByte(FileTransfer.START);
+				dos.writeLong(id);
+				dos.writeInt(destId);
+				dos.writeUTF(filename);
+				dos.writeUTF(getFileExtension(filePath));
+				dos.writeLong(size); // send size of file content
+				dos.flush();
+				sendPacket(0, bos.toByteArray());
+				long offset = t.awaitResume();
+				if (offset > 0) System.out.println("Resuming upload at " + offset + " bytes");
+
+				// un seul tampon pour tous les morceaux : le fichier n'est jamais entier en mémoire
+				ByteBuffer chunk = FileTransfer.header(8 + FileTransfer.CHUNK_SIZE, FileTransfer.CHUNK, id);
+				while (true) {
+					while (offset < size) {
+						if (!t.acquire()) {
+							offset = t.awaitResume();
+							continue;
+						}
+						chunk.position(FileTransfer.HEADER);
+						chunk.putLong(offset);
+						int start = chunk.position();
+						while (chunk.hasRemaining() && ch.read(chunk, offset + chunk.position() - start) > 0);
+						sendPacket(0, chunk.array(), chunk.position());
+						offset += chunk.position() - start;
+					}
+					sendPacket(0, FileTransfer.header(8, FileTransfer.END, id).putLong(size).array());
+					// le serveur confirme la réception complète, ou indique ce qui manque
+					offset = t.awaitResume();
+					if (offset >= size) break;
+				}
+				unfinishedUploads.remove(upload);
+				System.out.println("File sent successfully");
+			} finally {
+				uploads.remove(id);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Fetch the byte range [offset, offset+length) of a file sent by senderId and write it
+	 * to target. The range must be within the file. Only one range of a given transfer
+	 * can be fetched at a time. If target.part exists, the download resumes after its content.
+	 * The transfer id is the one given when the file was offered.
+	 */
+	public void fetchFile(int senderId, long transferId, long offset, long length, Path target) throws IOException {
+		FileDownload d = new FileDownload(senderId, transferId, target, offset, offset + length);
+		downloads.put(FileTransfer.key(senderId, transferId), d);
+		if (d.isComplete()) {
+			completeDownload(d);
+		} else {
+			fetchMore(d);
+		}
+	}
+
+	/**
+	 * Send a file received from senderId to destId (a user or a group) without uploading
+	 * it again : the server offers its copy to the new recipients.
+	 */
+	public void forwardFile(int senderId, long transferId, int destId) {
+		sendPacket(0, FileTransfer.header(4 + 4, FileTransfer.FORWARD, transferId).putInt(senderId).putInt(destId).array());
+	}
+
+	/**
+	 * Ask the server for a page of at most max messages of the conversation with conversation
+	 * (a user or a group), sent before the message before (0 for the latest messages) and
+	 * before the time beforeTime in milliseconds (0 to ignore it). The page is given to the
+	 * HistoryListeners ; its next field is the before of the previous page.
+	 */
+	public void requestHistory(int conversation, long before, long beforeTime, int max) {
+		sendPacket(0, History.request(conversation, before, beforeTime, max));
+	}
+
+	/**
+	 * Ask the server for the messages containing all the words of the query, in the conversation
+	 * with conversation (a user or a group) or in all the conversations if it is 0, at most max,
+	 * the most recent first. The results are given to the SearchListeners.
+	 */
+	public void search(int conversation, String query, int max) {
+		sendPacket(0, Search.request(conversation, query, max));
+	}
+
+	/*
+	 * Demande la suite du fichier au serveur, pour garder au plus FETCH_SIZE octets en cours.
+	 */
+	private void fetchMore(FileDownload d) {
+		while (d.requested < d.end && d.requested - d.next <= FileTransfer.FETCH_SIZE / 2) {
+			long length = Math.min(FileTransfer.FETCH_SIZE / 2, d.end - d.requested);
+			sendPacket(0, FileTransfer.header(4 + 8 + 8, FileTransfer.FETCH, d.id)
+					.putInt(d.senderId).putLong(d.requested).putLong(length).array());
+			d.requested += length;
+		}
+	}
+
+	private void completeDownload(FileDownload d) throws IOException {
+		downloads.remove(FileTransfer.key(d.senderId, d.id));
+		Path file = d.complete();
+		System.out.println("File received successfully in " + file + ", size: " + (d.end - d.start) + " bytes");
+	}
+
+	/*
+	 * Fichier du dossier courant où enregistrer un fichier proposé. Le nom est choisi par
+	 * l'expéditeur : seul son dernier élément est gardé, les chemins absolus et les ".."
+	 * sont refusés (retourne null) et un fichier existant n'est pas remplacé.
+	 */
+	static Path offeredTarget(String filename) {
+		Path p;
+		try {
+			p = Paths.get(filename);
+		} catch (InvalidPathException e) {
+			return null;
+		}
+		if (filename.isEmpty() || p.isAbsolute() || p.getRoot() != null) return null;
+		for (Path element : p) {
+			if (element.toString().equals("..")) return null;
+		}
+		Path name = p.getFileName();
+		if (name == null || name.toString().equals(".")) return null;
+		return FileDownload.freeName(Paths.get(name.toString()));
+	}
+
 	/**
 	 * Method to get the file extension
 	 */
@@ -265,31 +463,102 @@ public class ClientMsg {
 	}
 
 	/**
-	 * Method to handle file packets
+	 * Method to handle file packets : answers of the server to the uploads, offers of
+	 * files sent by other users, and content of the downloads, written to disk as it arrives.
 	 */
-	private void handleFilePacket(byte[] data/*, String filePath*/) throws IOException {
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+	private void handleFilePacket(int sender, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		byte type = buf.get();
+		if (type != FileTransfer.TYPE) {
+			throw new IllegalArgumentException("Invalid file packet type: " + type);
+		}
+		byte kind = buf.get();
+		long id = buf.getLong();
+		FileUpload u = uploads.get(id);
+
+		if (kind == FileTransfer.RESUME) {
+			if (u != null) u.resume(buf.getLong());
+		} else if (kind == FileTransfer.CREDIT) {
+			if (u != null) u.grant(buf.getInt());
+		} else if (kind == FileTransfer.OFFER) {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, buf.position(), buf.remaining()));
+			int senderId = dis.readInt();
+			String filename = dis.readUTF();
+			// Pour détecter le type d un fichier : Files.probeContentType(...)
+			String fileExtension = dis.readUTF();
+			long size = dis.readLong();
+			System.out.println("File " + filename + " (transfer " + Long.toUnsignedString(id) + ") sent by " + senderId + ", size: " + size + " bytes");
+			// VERSION avec envoi du fichier dans le dossier courant
+			Path target = offeredTarget(filename);
+			if (target == null) {
+				System.out.println("File " + filename + " refused : invalid file name");
+				return;
+			}
+			fetchFile(senderId, id, 0, size, target);
+		} else if (kind == FileTransfer.CANCEL) {
+			if (u != null) u.cancel();
+			downloads.values().removeIf(d -> {
+				if (d.id != id) return false;
+				d.close();
+				System.out.println("Download of " + d.target + " refused by the server");
+				return true;
+			});
+		}
+	}
 
+	/*
+	 * Lit le contenu d'une trame, dont la taille est vérifiée selon son type avant l'allocation.
+	 * Le contenu des fichiers (DATA) est écrit dans le fichier au fil de la lecture : retourne null.
+	 */
+	private byte[] readFrame(int sender, int length) throws IOException {
+		if (length < 0) throw new IOException("negative frame length");
+		if (length == 0) return new byte[0];
 		byte type = dis.readByte();
-		if (type != 12) {
-			throw new IllegalArgumentException("Invalid file packet type: " + type);
+		byte kind = 0;
+		int read = 1;
+		if (sender == ServerMsg.SERVER_CLIENTID && type == FileTransfer.TYPE && length > 1) {
+			kind = dis.readByte();
+			read = 2;
+			if (kind == FileTransfer.DATA) {
+				receiveData(length - 2);
+				return null;
+			}
+		}
+		if (length > limits.limit(sender, type)) {
+			throw new IOException("frame of " + length + " bytes (type " + type + ") refused");
 		}
-		String filename = dis.readUTF();
-		// Pour détecter le type d un fichier : Files.probeContentType(...)
-		String fileExtension = dis.readUTF();
-		int fileContentLength = dis.readInt(); // read the size of the file content for syso
+		byte[] data = new byte[length];
+		data[0] = type;
+		if (read == 2) data[1] = kind;
+		dis.readFully(data, read, length - read);
+		return data;
+	}
 
-		//if (filePath == null) {
-			// VERSION avec envoi du fichier dans le dossier courant
-			Files.copy(dis, Paths.get(filename)); // write the file content to the file
-			System.out.println("File received successfully in current folder, size: " + fileContentLength + " bytes");
-		/*}
-		else {
-			// VERSION avec envoi du fichier dans un dossier spécifique
-			Path path = Path.of(filePath + "/" + filename + "." + fileExtension);
-			Files.copy(dis, path); // write the file content to the file
-			System.out.println("File received successfully in folder " + filePath +  ", size: " + fileContentLength + " bytes");
-		}*/
+	// trame DATA : id, expéditeur, offset puis le contenu, lu directement dans le fichier
+	private void receiveData(int length) throws IOException {
+		if (length < 20 || length - 20 > FileTransfer.FETCH_SIZE) throw new IOException("invalid file data of " + length + " bytes");
+		long id = dis.readLong();
+		FileDownload d = downloads.get(FileTransfer.key(dis.readInt(), id));
+		long offset = dis.readLong();
+		int len = length - 20;
+		if (d == null) {
+			// téléchargement annulé : contenu ignoré
+			while (len > 0) {
+				int n = dis.skipBytes(len);
+				if (n <= 0) {
+					dis.readByte();
+					n = 1;
+				}
+				len -= n;
+			}
+			return;
+		}
+		d.write(offset, dis, len, fileBuffer);
+		if (d.isComplete()) {
+			completeDownload(d);
+		} else {
+			fetchMore(d);
+		}
 	}
 
 		/**
@@ -298,65 +567,97 @@ public class ClientMsg {
 	private void receiveLoop() throws IOException {
 		try {
 			while (s != null && !s.isClosed()) {
+				long seq = dis.readLong();
 				int sender = dis.readInt();
 				int dest = dis.readInt();
 				int length = dis.readInt();
-				byte[] data = new byte[length];
-				dis.readFully(data);
-
-				if (sender == ServerMsg.SERVER_CLIENTID && dest == this.identifier) {
-					ByteBuffer buffer = ByteBuffer.wrap(data);
-					// Suppose que le serveur envoie un byte pour définir le type de réponse.
-					byte responseType = buffer.get();
-
-					if (responseType == 1) { //création de groupe
-						int groupId = buffer.getInt();
-						int lengthMsg = buffer.getInt();
-						byte[] msgBytes = new byte[lengthMsg];
-						buffer.get(msgBytes);
-						String msg = new String(msgBytes, StandardCharsets.UTF_8);
-						System.out.println(msg);
-
-					} else if (responseType == 2 || responseType == 3 || responseType == 4) { //handle group deletion, whether it worked or not
-						int lengthMsg = buffer.getInt();
-						byte[] msgBytes = new byte[lengthMsg];
-						buffer.get(msgBytes);
-						String msg = new String(msgBytes, StandardCharsets.UTF_8);
-						System.out.println(msg);
-					} else if (responseType == 9) { //info retrieval upon authentication
-						int usernameLength = buffer.getInt();
-						byte[] usernameBytes = new byte[usernameLength];
-						buffer.get(usernameBytes);
-						String username = new String(usernameBytes, StandardCharsets.UTF_8); //retrieve the username
-						this.username = username; //set the username
-
-						int passwordLength = buffer.getInt();
-						byte[] passwordBytes = new byte[passwordLength];
-						buffer.get(passwordBytes);
-						String password = new String(passwordBytes, StandardCharsets.UTF_8); //retrieve the password
-						this.password = password; //set the password
-					}
-					// if packet comes from another user
-					// if it's a file
-				} else if (data[0] == 12) {
-					// prompt the user for a file path
-					/*System.out.println("Someone wants to send you a file. Enter the path where you want to save it: ");
-					Scanner scanner = new Scanner(System.in);
-					String filePath = scanner.nextLine();
-					handleFilePacket(data, filePath);*/
-					handleFilePacket(data);
-					// if it's a message
-				} else {
-					notifyMessageListeners(new Packet(sender, dest, data));
+				if (seq <= lastSeq) {
+					// renvoyé après une reconnexion mais déjà reçu
+					skip(length);
+					acknowledge();
+					continue;
 				}
+				byte[] data = readFrame(sender, length);
+				// null : contenu de fichier déjà écrit
+				if (data != null) receivePacket(sender, dest, data);
+				// reçu seulement une fois traité : sinon renvoyé après la reconnexion
+				lastSeq = seq;
+				acknowledge();
 			}
 		} catch (IOException e) {
 			// En cas d'erreur, fermer la connexion
 			e.printStackTrace();
 		}
+		// les envois en cours échouent ; les téléchargements reprendront à la reconnexion
+		uploads.values().forEach(FileUpload::cancel);
+		downloads.values().forEach(d -> d.requested = d.next);
 		closeSession();
 	}
 
+	private void skip(int length) throws IOException {
+		if (length < 0) throw new IOException("negative frame length");
+		while (length > 0) {
+			int n = Math.min(length, fileBuffer.length);
+			dis.readFully(fileBuffer, 0, n);
+			length -= n;
+		}
+	}
+
+	/*
+	 * Acquittement cumulatif des paquets reçus, tous les ACK_EVERY paquets
+	 * ou dès qu'il n'y a plus rien à lire.
+	 */
+	private void acknowledge() throws IOException {
+		if (lastSeq > lastAcked && (lastSeq - lastAcked >= Delivery.ACK_EVERY || dis.available() == 0)) {
+			lastAcked = lastSeq;
+			sendPacket(0, Delivery.ack(lastSeq));
+		}
+	}
+
+	// traitement d'un paquet reçu : réponse du serveur, fichier ou message
+	private void receivePacket(int sender, int dest, byte[] data) throws IOException {
+		if (sender == ServerMsg.SERVER_CLIENTID && dest == this.identifier) {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			// Suppose que le serveur envoie un byte pour définir le type de réponse.
+			byte responseType = buffer.get();
+
+			if (responseType >= ControlResponse.GROUP_CREATED && responseType <= ControlResponse.REMOVE_MEMBER) {
+				// réponses sur les groupes : codes numériques, texte construit ici
+				System.out.println(ControlResponse.render(identifier, responseType, buffer));
+			} else if (responseType == FileTransfer.TYPE) { //file transfer
+				handleFilePacket(sender, data);
+			} else if (responseType == History.TYPE) {
+				notifyHistoryListeners(History.read(buffer));
+			} else if (responseType == Search.TYPE) {
+				notifySearchListeners(Search.read(buffer));
+			} else if (responseType == 9) { //info retrieval upon authentication
+				int usernameLength = buffer.getInt();
+				byte[] usernameBytes = new byte[usernameLength];
+				buffer.get(usernameBytes);
+				String username = new String(usernameBytes, StandardCharsets.UTF_8); //retrieve the username
+				this.username = username; //set the username
+
+				int passwordLength = buffer.getInt();
+				byte[] passwordBytes = new byte[passwordLength];
+				buffer.get(passwordBytes);
+				String password = new String(passwordBytes, StandardCharsets.UTF_8); //retrieve the password
+				this.password = password; //set the password
+			}
+			// if packet comes from another user
+			// if it's a file
+		} else if (data.length > 0 && data[0] == FileTransfer.TYPE) {
+			// prompt the user for a file path
+			/*System.out.println("Someone wants to send you a file. Enter the path where you want to save it: ");
+			Scanner scanner = new Scanner(System.in);
+			String filePath = scanner.nextLine();
+			handleFilePacket(data, filePath);*/
+			handleFilePacket(sender, data);
+			// if it's a message
+		} else {
+			notifyMessageListeners(new Packet(sender, dest, data));
+		}
+	}
+
 	public void closeSession() {
 		try {
 			if (s != null)
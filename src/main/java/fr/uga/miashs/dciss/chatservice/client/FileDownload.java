@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Receiving side of a file transfer : the byte range [start, end) of a file fetched
+ * from the server, written to a .part file renamed once complete. An existing file is
+ * never replaced : the download then gets a free name next to it.
+ * Only used by the receive loop of ClientMsg.
+ */
+class FileDownload {
+	final int senderId;
+	final long id;
+	final Path target;
+	final long start;
+	final long end;
+	private final Path part;
+	private final FileChannel ch;
+	// prochain octet attendu et fin de la zone déjà demandée au serveur
+	long next;
+	long requested;
+
+	/**
+	 * Open the .part file of the target. If it already exists (interrupted download),
+	 * the download resumes after its content.
+	 */
+	FileDownload(int senderId, long id, Path target, long start, long end) throws IOException {
+		this.senderId = senderId;
+		this.id = id;
+		this.target = target;
+		this.start = start;
+		this.end = end;
+		part = target.resolveSibling(target.getFileName() + ".part");
+		ch = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		next = start + Math.min(ch.size(), end - start);
+		requested = next;
+	}
+
+	/*
+	 * Écrit len octets lus dans le flux de la socket, par morceaux de la taille de buf :
+	 * le contenu d'une trame DATA n'est jamais entièrement en mémoire.
+	 */
+	void write(long offset, DataInputStream in, int len, byte[] buf) throws IOException {
+		if (offset != next || offset + len > end) throw new IOException("unexpected range for transfer " + id);
+		long pos = offset - start;
+		while (len > 0) {
+			int n = Math.min(len, buf.length);
+			in.readFully(buf, 0, n);
+			ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+			while (b.hasRemaining()) {
+				pos += ch.write(b, pos);
+			}
+			next += n;
+			len -= n;
+		}
+	}
+
+	boolean isComplete() {
+		return next == end;
+	}
+
+	/**
+	 * @return the file where the download has been stored
+	 */
+	Path complete() throws IOException {
+		ch.truncate(end - start);
+		ch.close();
+		Path dest = freeName(target);
+		while (true) {
+			try {
+				// sans REPLACE_EXISTING : échoue si le fichier a été créé entre-temps
+				Files.move(part, dest);
+				return dest;
+			} catch (FileAlreadyExistsException e) {
+				dest = freeName(dest);
+			}
+		}
+	}
+
+	/**
+	 * @return target if it does not exist, otherwise the first "name (n).ext" next to it that does not exist
+	 */
+	static Path freeName(Path target) {
+		if (!Files.exists(target)) return target;
+		String name = target.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String ext = dot > 0 ? name.substring(dot) : "";
+		for (int i = 1; ; i++) {
+			Path p = target.resolveSibling(base + " (" + i + ")" + ext);
+			if (!Files.exists(p)) return p;
+		}
+	}
+
+	void close() {
+		try {
+			ch.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
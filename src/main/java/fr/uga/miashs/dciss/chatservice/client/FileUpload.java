@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+import fr.uga.miashs.dciss.chatservice.common.FileTransfer;
+
+/**
+ * Sending side of a file transfer : the offset confirmed by the server and the credits it gave.
+ * Used by the thread calling ClientMsg.sendFile() and updated by the receive loop.
+ */
+class FileUpload {
+	final long id;
+	private int credits;
+	private long confirmed;
+	private boolean cancelled;
+
+	FileUpload(long id) {
+		this.id = id;
+		confirmed = -1;
+	}
+
+	synchronized void grant(int n) {
+		credits += n;
+		notifyAll();
+	}
+
+	/*
+	 * Le serveur indique où reprendre l'envoi : la fenêtre repart de zéro.
+	 */
+	synchronized void resume(long offset) {
+		confirmed = offset;
+		credits = FileTransfer.WINDOW;
+		notifyAll();
+	}
+
+	synchronized void cancel() {
+		cancelled = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the next RESUME of the server.
+	 * @return the offset from which the file has to be sent
+	 */
+	synchronized long awaitResume() throws IOException {
+		await(() -> confirmed >= 0);
+		long res = confirmed;
+		confirmed = -1;
+		return res;
+	}
+
+	/**
+	 * Wait for a credit to send the next chunk.
+	 * @return false if the server asked to resume from another offset
+	 */
+	synchronized boolean acquire() throws IOException {
+		await(() -> credits > 0 || confirmed >= 0);
+		if (confirmed >= 0) return false;
+		credits--;
+		return true;
+	}
+
+	private void await(BooleanSupplier c) throws IOException {
+		long deadline = System.currentTimeMillis() + FileTransfer.TIMEOUT;
+		while (!c.getAsBoolean() && !cancelled) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) throw new IOException("no answer from the server for transfer " + id);
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("transfer interrupted");
+			}
+		}
+		if (cancelled) throw new IOException("transfer " + Long.toUnsignedString(id) + " cancelled");
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Responses of the server to the control packets of the groups : numeric codes and ids,
+ * the client renders the text with render().
+ * Every response starts with the type of the request (1 byte) and a code (1 byte) :
+ * GROUP_CREATED (1) : OK + groupId (4 bytes) + ownerId (4 bytes) + number of members (4 bytes) + member ids
+ * REMOVE_GROUP (2) : OK, NO_GROUP or NOT_OWNER + groupId
+ * ADD_MEMBER (3) and REMOVE_MEMBER (4) : OK, NO_GROUP or NO_USER + groupId + userId
+ * The answer to an information request (type 9) is not coded : username length (4 bytes) +
+ * username (UTF-8) + password length (4 bytes) + password (UTF-8).
+ */
+public class ControlResponse {
+	public final static byte GROUP_CREATED = 1;
+	public final static byte REMOVE_GROUP = 2;
+	public final static byte ADD_MEMBER = 3;
+	public final static byte REMOVE_MEMBER = 4;
+	public final static byte INFOS = 9;
+
+	public final static byte OK = 0;
+	public final static byte NO_GROUP = 1;
+	public final static byte NO_USER = 2;
+	public final static byte NOT_OWNER = 3;
+
+	private ControlResponse() {
+	}
+
+	/**
+	 * @param userId the user receiving the response
+	 * @param buf the data of the response, after its type byte
+	 * @return the text of the response, or null if the type is not a group response
+	 */
+	public static String render(int userId, byte type, ByteBuffer buf) {
+		if (type < GROUP_CREATED || type > REMOVE_MEMBER) return null;
+		byte code = buf.get();
+		int groupId = buf.getInt();
+		if (type == GROUP_CREATED) {
+			int ownerId = buf.getInt();
+			if (ownerId == userId) return "Vous avez créé le groupe " + groupId;
+			StringBuilder sb = new StringBuilder("Le groupe ").append(groupId).append(" a été créé par le user ")
+					.append(ownerId).append(". Les membres sont : ");
+			int nb = buf.getInt();
+			for (int i = 0; i < nb; i++) {
+				if (i > 0) sb.append(", ");
+				sb.append(buf.getInt());
+			}
+			return sb.toString();
+		} else if (type == REMOVE_GROUP) {
+			if (code == NO_GROUP) return "Le groupe " + groupId + " n'existe pas";
+			if (code == NOT_OWNER) return "Vous n'avez pas les droits pour supprimer le groupe " + groupId;
+			return "Le groupe " + groupId + " a été supprimé";
+		} else {
+			int member = buf.getInt();
+			if (code == NO_GROUP) return "Group " + groupId + " does not exist";
+			if (code == NO_USER) {
+				return type == ADD_MEMBER ? "User " + member + " does not exist"
+						: "User " + member + " does not exist or isn't in this group";
+			}
+			return "User " + member + (type == ADD_MEMBER ? " has been added to group " : " has been removed from group ") + groupId;
+		}
+	}
+}
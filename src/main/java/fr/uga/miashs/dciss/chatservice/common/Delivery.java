@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Acknowledged delivery of the frames sent by the server to a client.
+ * Each frame sent to a client is preceded by its sequence number (8 bytes) : 1, 2, 3...
+ * for each recipient, since the start of the server. The server keeps the frames written
+ * but not yet acknowledged, at most a window of them, and sends them again, in order,
+ * when the client reconnects. The client acknowledges cumulatively the last sequence
+ * number received and ignores the frames it has already received.
+ *
+ * At the connection, after the FrameLimits, the server sends its epoch (8 bytes), which
+ * changes at each start of the server, and the last sequence number acknowledged by the
+ * client (8 bytes). Client to server (destId 0) :
+ * ACK : type 13 (1 byte) + last sequence number received (8 bytes)
+ */
+public class Delivery {
+	public final static byte ACK = 13;
+	public final static int WIRE_SIZE = 16;
+	// le client acquitte au plus tard tous les ACK_EVERY paquets, et dès qu'il n'a plus rien à lire
+	public final static int ACK_EVERY = 128;
+
+	public final long epoch;
+	public final long acked;
+
+	public Delivery(long epoch, long acked) {
+		this.epoch = epoch;
+		this.acked = acked;
+	}
+
+	public ByteBuffer encode() {
+		ByteBuffer b = ByteBuffer.allocate(WIRE_SIZE);
+		b.putLong(epoch).putLong(acked).flip();
+		return b;
+	}
+
+	public static Delivery read(DataInputStream dis) throws IOException {
+		long epoch = dis.readLong();
+		return new Delivery(epoch, dis.readLong());
+	}
+
+	public static byte[] ack(long seq) {
+		return ByteBuffer.allocate(9).put(ACK).putLong(seq).array();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Protocol of the file transfers (packet type 12).
+ * A file is uploaded to the server by chunks of CHUNK_SIZE bytes, with at most WINDOW
+ * chunks not yet written by the server : the server gives credits back as it writes
+ * them to disk. The server keeps the received byte ranges of each transfer, so an
+ * interrupted upload is resumed from the last confirmed offset. Once complete, the
+ * recipients are offered the file and fetch it, or only a byte range of it, from the server.
+ *
+ * Every packet starts with type 12 (1 byte), kind (1 byte) and the transfer id (8 bytes),
+ * drawn at random by the sender : the ids of a sender do not collide with its earlier
+ * transfers still kept by the server. Client to server (destId 0) :
+ * START : destId (4 bytes) + filename (UTF) + extension (UTF) + file size (8 bytes)
+ * CHUNK : offset (8 bytes) + content
+ * END : file size (8 bytes)
+ * FETCH : senderId (4 bytes) + offset (8 bytes) + length (8 bytes), at most FETCH_SIZE bytes
+ * FORWARD : senderId (4 bytes) + destId (4 bytes), offers a received file to another user or group
+ * Server to client :
+ * RESUME : confirmed offset (8 bytes), the sender continues from there
+ * CREDIT : number of chunks (4 bytes)
+ * OFFER : senderId (4 bytes) + filename (UTF) + extension (UTF) + file size (8 bytes)
+ * DATA : senderId (4 bytes) + offset (8 bytes) + content
+ * CANCEL : nothing, the transfer is unknown or refused
+ */
+public class FileTransfer {
+	public final static byte TYPE = 12;
+	public final static byte START = 1;
+	public final static byte CHUNK = 2;
+	public final static byte CREDIT = 3;
+	public final static byte END = 4;
+	public final static byte CANCEL = 5;
+	public final static byte RESUME = 6;
+	public final static byte OFFER = 7;
+	public final static byte FETCH = 8;
+	public final static byte DATA = 9;
+	public final static byte FORWARD = 10;
+
+	public final static int HEADER = 10;
+	public final static int CHUNK_SIZE = 64 * 1024;
+	public final static int WINDOW = 8;
+	public final static int FETCH_SIZE = WINDOW * CHUNK_SIZE;
+	// au-delà, le serveur est considéré comme absent
+	public final static long TIMEOUT = 30000;
+
+	private FileTransfer() {
+	}
+
+	/**
+	 * @return a buffer with the header of a packet and size bytes of room for its content
+	 */
+	public static ByteBuffer header(int size, byte kind, long transferId) {
+		return ByteBuffer.allocate(HEADER + size).put(TYPE).put(kind).putLong(transferId);
+	}
+
+	// clé d'un transfert : expéditeur + id du transfert, aussi le nom de ses fichiers sur le serveur
+	public static String key(int senderId, long transferId) {
+		return senderId + "-" + Long.toUnsignedString(transferId);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Maximum size of the data of a frame, by kind of packet : messages between users,
+ * control packets (destId 0) and file packets (type 12, see FileTransfer).
+ * The server sends its limits at the end of the handshake (3 ints, after the id of a
+ * new user) : the client does not send larger packets, and both sides close the
+ * connection on a larger frame before allocating its data.
+ * The file content fetched from the server (DATA) is not bounded by these limits, the
+ * client writes it to the file while reading it.
+ */
+public class FrameLimits {
+	public final static int WIRE_SIZE = 12;
+	/** the smallest file limit : a CHUNK of CHUNK_SIZE bytes */
+	public final static int MIN_FILE = FileTransfer.HEADER + 8 + FileTransfer.CHUNK_SIZE;
+	public final static FrameLimits DEFAULT = new FrameLimits(1024 * 1024, 256 * 1024, MIN_FILE);
+
+	public final int message;
+	public final int control;
+	public final int file;
+
+	public FrameLimits(int message, int control, int file) {
+		if (message < 1 || control < 1) throw new IllegalArgumentException("frame limits must be positive");
+		if (file < MIN_FILE) throw new IllegalArgumentException("file frame limit must be at least " + MIN_FILE);
+		this.message = message;
+		this.control = control;
+		this.file = file;
+	}
+
+	/**
+	 * @param peerId destination of a packet sent by a client, or source of a packet sent by the server
+	 * @param type first byte of the data
+	 * @return the maximum length of the data
+	 */
+	public int limit(int peerId, byte type) {
+		if (type == FileTransfer.TYPE) return file;
+		return peerId == 0 ? control : message;
+	}
+
+	/**
+	 * @return the largest of the limits, frames above are rejected before reading their type
+	 */
+	public int max() {
+		return Math.max(message, Math.max(control, file));
+	}
+
+	public ByteBuffer encode() {
+		ByteBuffer b = ByteBuffer.allocate(WIRE_SIZE);
+		b.putInt(message).putInt(control).putInt(file).flip();
+		return b;
+	}
+
+	public static FrameLimits read(DataInputStream in) throws IOException {
+		try {
+			return new FrameLimits(in.readInt(), in.readInt(), in.readInt());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("invalid frame limits : " + e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "message " + message + ", control " + control + ", file " + file;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * History of the conversations kept by the server (packet type 14).
+ * The messages of each conversation, between two users or in a group, are numbered
+ * 1, 2, 3... in the order the server received them. A client reads the history by pages,
+ * backwards : the latest page, then the page before its oldest message, and so on.
+ *
+ * Client to server (destId 0) :
+ * type 14 (1 byte) + conversation (4 bytes : the other user, or the group id)
+ * + before (8 bytes : sequence number, 0 for the latest messages)
+ * + beforeTime (8 bytes : the page ends before the first message received at this time
+ * in milliseconds, 0 to ignore it) + max number of messages (4 bytes)
+ * Server to client :
+ * type 14 (1 byte) + conversation (4 bytes) + next cursor (8 bytes : the before of the previous
+ * page, 0 if the start of the conversation has been reached) + number of messages (4 bytes),
+ * then for each message, oldest first : seq (8 bytes), time (8 bytes), srcId (4 bytes),
+ * destId (4 bytes), length (4 bytes), data
+ */
+public class History {
+	public final static byte TYPE = 14;
+	public final static int REQUEST_SIZE = 25;
+	public final static int PAGE_HEADER = 17;
+	public final static int MESSAGE_HEADER = 28;
+
+	/**
+	 * A message of the history.
+	 */
+	public static class Message {
+		public final long seq;
+		public final long time;
+		public final Packet packet;
+
+		public Message(long seq, long time, Packet packet) {
+			this.seq = seq;
+			this.time = time;
+			this.packet = packet;
+		}
+	}
+
+	public final int conversation;
+	// curseur de la page précédente, 0 si le début de la conversation est atteint
+	public final long next;
+	public final List<Message> messages;
+
+	public History(int conversation, long next, List<Message> messages) {
+		this.conversation = conversation;
+		this.next = next;
+		this.messages = Collections.unmodifiableList(messages);
+	}
+
+	public static byte[] request(int conversation, long before, long beforeTime, int max) {
+		return ByteBuffer.allocate(REQUEST_SIZE).put(TYPE).putInt(conversation).putLong(before)
+				.putLong(beforeTime).putInt(max).array();
+	}
+
+	/**
+	 * Read a page, buf being positioned after the type.
+	 */
+	public static History read(ByteBuffer buf) {
+		int conversation = buf.getInt();
+		long next = buf.getLong();
+		int count = buf.getInt();
+		List<Message> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			long seq = buf.getLong();
+			long time = buf.getLong();
+			int srcId = buf.getInt();
+			int destId = buf.getInt();
+			byte[] data = new byte[buf.getInt()];
+			buf.get(data);
+			messages.add(new Message(seq, time, new Packet(srcId, destId, data)));
+		}
+		return new History(conversation, next, messages);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Full-text search in the history of the conversations of a user (packet type 15).
+ * The messages matching all the words of the query are returned, the most recent first,
+ * identified by their conversation and their sequence number in it (see History).
+ * Words are compared without case nor accents.
+ *
+ * Client to server (destId 0) :
+ * type 15 (1 byte) + conversation (4 bytes : the other user or the group id, 0 for all the
+ * conversations of the user) + max number of results (4 bytes) + query length (4 bytes) + query (UTF-8)
+ * Server to client :
+ * type 15 (1 byte) + number of results (4 bytes), then for each result : conversation (4 bytes),
+ * seq (8 bytes), time (8 bytes), srcId (4 bytes), snippet length (4 bytes) + snippet (UTF-8)
+ */
+public class Search {
+	public final static byte TYPE = 15;
+	public final static int REQUEST_HEADER = 13;
+
+	/**
+	 * A message matching the query, with an extract of its text around the first word found.
+	 */
+	public static class Hit {
+		public final int conversation;
+		public final long seq;
+		public final long time;
+		public final int srcId;
+		public final String snippet;
+
+		public Hit(int conversation, long seq, long time, int srcId, String snippet) {
+			this.conversation = conversation;
+			this.seq = seq;
+			this.time = time;
+			this.srcId = srcId;
+			this.snippet = snippet;
+		}
+	}
+
+	public final List<Hit> hits;
+
+	public Search(List<Hit> hits) {
+		this.hits = Collections.unmodifiableList(hits);
+	}
+
+	public static byte[] request(int conversation, String query, int max) {
+		byte[] q = query.getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(REQUEST_HEADER + q.length).put(TYPE).putInt(conversation).putInt(max)
+				.putInt(q.length).put(q).array();
+	}
+
+	public static byte[] encode(List<Hit> hits) {
+		List<byte[]> snippets = new ArrayList<>(hits.size());
+		int size = 5;
+		for (Hit h : hits) {
+			byte[] s = h.snippet.getBytes(StandardCharsets.UTF_8);
+			snippets.add(s);
+			size += 28 + s.length;
+		}
+		ByteBuffer b = ByteBuffer.allocate(size).put(TYPE).putInt(hits.size());
+		for (int i = 0; i < hits.size(); i++) {
+			Hit h = hits.get(i);
+			b.putInt(h.conversation).putLong(h.seq).putLong(h.time).putInt(h.srcId)
+					.putInt(snippets.get(i).length).put(snippets.get(i));
+		}
+		return b.array();
+	}
+
+	/**
+	 * Read the results, buf being positioned after the type.
+	 */
+	public static Search read(ByteBuffer buf) {
+		int count = buf.getInt();
+		List<Hit> hits = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int conversation = buf.getInt();
+			long seq = buf.getLong();
+			long time = buf.getLong();
+			int srcId = buf.getInt();
+			byte[] snippet = new byte[buf.getInt()];
+			buf.get(snippet);
+			hits.add(new Hit(conversation, seq, time, srcId, new String(snippet, StandardCharsets.UTF_8)));
+		}
+		return new Search(hits);
+	}
+}
@@ -2,6 +2,7 @@ package fr.uga.miashs.dciss.chatservice.gui;
 import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
 import fr.uga.miashs.dciss.chatservice.client.ConnectionListener;
 import fr.uga.miashs.dciss.chatservice.client.MessageListener;
+import fr.uga.miashs.dciss.chatservice.common.ControlResponse;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 import fr.uga.miashs.dciss.chatservice.server.ServerMsg;
@@ -576,6 +577,7 @@ public class Chat implements MessageListener, ConnectionListener{
         DataInputStream dis = new DataInputStream(s.getInputStream());
 
             while (s != null && !s.isClosed()) {
+                dis.readLong(); // numéro du paquet (voir Delivery)
                 int sender = dis.readInt();
                 int dest = dis.readInt();
                 int length = dis.readInt();
@@ -589,21 +591,9 @@ public class Chat implements MessageListener, ConnectionListener{
                     // Suppose que le serveur envoie un byte pour définir le type de réponse.
                     byte responseType = buffer.get();
 
-                    if (responseType == 1) { //création de groupe
-                        int groupId = buffer.getInt();
-                        int lengthMsg = buffer.getInt();
-                        byte[] msgBytes = new byte[lengthMsg];
-                        buffer.get(msgBytes);
-                        String msg = new String(msgBytes, StandardCharsets.UTF_8);
-                        System.out.println(msg);
-
-                    }
-                    else if (responseType == 2 || responseType == 3 || responseType == 4) { //handle group deletion, whether it worked or not
-                        int lengthMsg = buffer.getInt();
-                        byte[] msgBytes = new byte[lengthMsg];
-                        buffer.get(msgBytes);
-                        String msg = new String(msgBytes, StandardCharsets.UTF_8);
-                        System.out.println(msg);
+                    if (responseType >= ControlResponse.GROUP_CREATED && responseType <= ControlResponse.REMOVE_MEMBER) {
+                        // réponses sur les groupes : codes numériques, texte construit par ControlResponse
+                        System.out.println(ControlResponse.render(clientMsg.getIdentifier(), responseType, buffer));
                     }
 
                     else if (responseType == 9) { //info retrieval upon authentication
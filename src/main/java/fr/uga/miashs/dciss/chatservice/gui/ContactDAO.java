@@ -5,10 +5,20 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-public class ContactDAO {
+/**
+ * Access to the contacts stored in the local SQLite database.
+ * A single connection is opened on first use and kept until close(), in WAL journal mode,
+ * and the prepared statements are cached on it : a call only binds its parameters.
+ * The connection is not shared between threads, so the methods are synchronized.
+ */
+public class ContactDAO implements AutoCloseable {
     // Chargement du pilote JDBC SQLite dans un bloc statique
     static {
         try {
@@ -21,15 +31,53 @@ public class ContactDAO {
     //path to my database
      private static final String URL = "jdbc:sqlite:./database.db";
 
+    private static final String SELECT_ALL = "SELECT * FROM contacts";
+    private static final String INSERT = "INSERT INTO contacts (contactId, name) VALUES (?, ?)";
+
+    private final String url;
+    private Connection connection;
+    // requêtes préparées, par texte SQL, valables tant que la connexion reste ouverte
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    public ContactDAO() {
+        this(URL);
+    }
+
+    public ContactDAO(String url) {
+        this.url = url;
+    }
+
+    // Ouverture de la connexion au premier usage, ou après une fermeture
+    private Connection connection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            statements.clear();
+            connection = DriverManager.getConnection(url);
+            try (Statement s = connection.createStatement()) {
+                // WAL : les lectures ne bloquent pas les écritures et un commit n'écrit qu'une
+                // fois dans le journal ; synchronous NORMAL suffit dans ce mode
+                s.execute("PRAGMA journal_mode=WAL");
+                s.execute("PRAGMA synchronous=NORMAL");
+                s.execute("PRAGMA busy_timeout=5000");
+            }
+        }
+        return connection;
+    }
+
+    private PreparedStatement statement(String sql) throws SQLException {
+        Connection c = connection();
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = c.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
 
     // Méthode pour récupérer tous les contacts depuis la base de données
-    public List<ContactListGUI.Contact> getAllContacts() {
+    public synchronized List<ContactListGUI.Contact> getAllContacts() {
         List<ContactListGUI.Contact> contacts = new ArrayList<>();
 
-        try (Connection connection = DriverManager.getConnection(URL)) {
-            PreparedStatement statement = connection.prepareStatement("SELECT * FROM contacts");
-            ResultSet resultSet = statement.executeQuery();
-
+        try (ResultSet resultSet = statement(SELECT_ALL).executeQuery()) {
             while (resultSet.next()) {
                 int contactId = resultSet.getInt("contactId");
                 String name = resultSet.getString("name");
@@ -43,24 +91,23 @@ public class ContactDAO {
         return contacts;
     }
 
-    public void createContactsTable() {
-        try (Connection connection = DriverManager.getConnection(URL)) {
-            PreparedStatement statement = connection.prepareStatement(
+    public synchronized void createContactsTable() {
+        try (Statement statement = connection().createStatement()) {
+            statement.execute(
                     "CREATE TABLE IF NOT EXISTS contacts (" +
                             "contactId INTEGER PRIMARY KEY," +
                             "name TEXT" +
                             ")"
             );
-            statement.execute();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
     // Méthode pour insérer un nouveau contact dans la base de données
-    public boolean insertContact(ContactListGUI.Contact contact) {
-        try (Connection connection = DriverManager.getConnection(URL)) {
-            PreparedStatement statement = connection.prepareStatement("INSERT INTO contacts (contactId, name) VALUES (?, ?)");
+    public synchronized boolean insertContact(ContactListGUI.Contact contact) {
+        try {
+            PreparedStatement statement = statement(INSERT);
             statement.setInt(1, contact.getContactId());
             statement.setString(2, contact.getName());
             int rowsInserted = statement.executeUpdate();
@@ -70,4 +117,51 @@ public class ContactDAO {
             return false;
         }
     }
+
+    /**
+     * Insert all the contacts in a single transaction : either all of them are inserted,
+     * or none if one fails (e.g. a contactId already present).
+     * @return the number of contacts inserted
+     */
+    public synchronized int insertContacts(Collection<ContactListGUI.Contact> contacts) {
+        if (contacts.isEmpty()) return 0;
+        try {
+            PreparedStatement statement = statement(INSERT);
+            Connection c = connection();
+            c.setAutoCommit(false);
+            try {
+                for (ContactListGUI.Contact contact : contacts) {
+                    statement.setInt(1, contact.getContactId());
+                    statement.setString(2, contact.getName());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                c.commit();
+                return contacts.size();
+            } catch (SQLException e) {
+                statement.clearBatch();
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) return;
+        try {
+            for (PreparedStatement statement : statements.values()) statement.close();
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            statements.clear();
+            connection = null;
+        }
+    }
 }
@@ -2,6 +2,8 @@ package fr.uga.miashs.dciss.chatservice.gui;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.util.List;
 
 
@@ -40,6 +42,12 @@ public class ContactListGUI {
         initializeUI();
         contactDAO = new ContactDAO(); // Initialize ContactDAO
         contactDAO.createContactsTable(); // Create the contacts table if it doesn't exist
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                contactDAO.close(); // Close the database connection kept by the DAO
+            }
+        });
         populateContactList(); // Populate the contact list when the GUI is initialized
     }
 
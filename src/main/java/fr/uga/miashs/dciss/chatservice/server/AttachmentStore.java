@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Files received by the server, stored once by content : each file is named after the
+ * SHA-256 of its content (in a sub directory named after the first two hex digits).
+ * A file uploaded several times, or forwarded to other users, takes the room of one copy.
+ */
+public class AttachmentStore {
+	private final static Logger LOG = Logger.getLogger(AttachmentStore.class.getName());
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path dir;
+
+	public AttachmentStore(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * Move a complete file into the store, or delete it if the store already has the same content.
+	 * @return the hash identifying the content
+	 */
+	public String add(Path file) throws IOException {
+		String hash = hash(file);
+		Path target = path(hash);
+		if (Files.exists(target)) {
+			Files.delete(file);
+			// date de modification rafraîchie : le contenu est de nouveau utilisé
+			Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+			LOG.info("Attachment " + hash + " already stored");
+		} else {
+			Files.createDirectories(target.getParent());
+			Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return hash;
+	}
+
+	public Path path(String hash) {
+		return dir.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private static String hash(Path file) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (ch.read(buf) >= 0 || buf.position() > 0) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		}
+		byte[] digest = md.digest();
+		char[] res = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			res[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+			res[2 * i + 1] = HEX[digest[i] & 0xF];
+		}
+		return new String(res);
+	}
+
+	/**
+	 * Delete the contents that are not referenced any more and were not used since limit.
+	 */
+	public void purge(Set<String> referenced, long limit) {
+		try (Stream<Path> files = Files.walk(dir, 2)) {
+			files.filter(Files::isRegularFile).forEach(f -> {
+				try {
+					String hash = f.getFileName().toString();
+					if (referenced.contains(hash) || Files.getLastModifiedTime(f).toMillis() >= limit) return;
+					Files.delete(f);
+					LOG.info("Attachment " + hash + " deleted");
+				} catch (IOException e) {
+					LOG.warning("Unable to purge attachment " + f + " : " + e.getMessage());
+				}
+			});
+		} catch (IOException e) {
+			LOG.warning("Unable to purge attachments : " + e.getMessage());
+		}
+	}
+}
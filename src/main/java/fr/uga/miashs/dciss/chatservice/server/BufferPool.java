@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of reusable buffers for the frames of the messages (SharedFrame), by size classes :
+ * powers of two from MIN_BUFFER to the max pooled buffer of the configuration. A buffer
+ * is taken from the smallest class that fits and given back to it when its frame is
+ * released by its last holder. Each class keeps at most bufferPoolClassBytes bytes of
+ * free buffers, larger frames are allocated each time.
+ * The buffers are on the heap, or off-heap (direct) if the configuration asks for it.
+ * With leak detection, each frame records where it was allocated and a frame garbage
+ * collected without having been released is logged.
+ */
+public class BufferPool {
+	private final static Logger LOG = Logger.getLogger(BufferPool.class.getName());
+	public final static int MIN_BUFFER = 256;
+
+	// un seul thread de nettoyage pour tous les pools
+	private final static Cleaner CLEANER = Cleaner.create();
+
+	private static class SizeClass {
+		final int size;
+		final ArrayBlockingQueue<ByteBuffer> free;
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+
+		SizeClass(int size, int maxFree) {
+			this.size = size;
+			free = new ArrayBlockingQueue<>(Math.max(1, maxFree));
+		}
+	}
+
+	/*
+	 * Suivi d'un tampon emprunté, pour la détection des fuites.
+	 * Ne référence pas la trame, sinon elle ne serait jamais récupérée par le GC.
+	 */
+	static class Leak implements Runnable {
+		private final Throwable origin;
+		private final int size;
+		private final LongAdder leaks;
+		private volatile boolean released;
+		private Cleaner.Cleanable cleanable;
+
+		private Leak(int size, LongAdder leaks) {
+			origin = new Throwable("frame of " + size + " bytes allocated here");
+			this.size = size;
+			this.leaks = leaks;
+		}
+
+		void released() {
+			released = true;
+			cleanable.clean();
+		}
+
+		@Override
+		public void run() {
+			if (released) return;
+			leaks.increment();
+			LOG.log(Level.WARNING, "Frame of " + size + " bytes garbage collected without having been released", origin);
+		}
+	}
+
+	private final boolean direct;
+	private final SizeClass[] classes;
+	private final boolean leakDetection;
+	private final LongAdder unpooled = new LongAdder();
+	private final LongAdder leaks = new LongAdder();
+
+	public BufferPool(ServerConfig config) {
+		this(config.isDirectBuffers(), config.getMaxPooledBuffer(), config.getBufferPoolClassBytes(), config.isBufferLeakDetection());
+	}
+
+	public BufferPool(boolean direct, int maxPooledBuffer, int classBytes, boolean leakDetection) {
+		this.direct = direct;
+		this.leakDetection = leakDetection;
+		int n = classIndex(maxPooledBuffer);
+		// la plus grande classe ne doit pas dépasser maxPooledBuffer
+		if (MIN_BUFFER << n > maxPooledBuffer) n--;
+		classes = new SizeClass[n + 1];
+		for (int i = 0; i <= n; i++) {
+			int size = MIN_BUFFER << i;
+			classes[i] = new SizeClass(size, classBytes / size);
+		}
+	}
+
+	// plus petite classe de taille >= size
+	private static int classIndex(int size) {
+		if (size <= MIN_BUFFER) return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER);
+	}
+
+	/**
+	 * @return a buffer with position 0 and limit size, possibly larger
+	 */
+	public ByteBuffer acquire(int size) {
+		int i = classIndex(size);
+		if (i >= classes.length) {
+			unpooled.increment();
+			return allocate(size);
+		}
+		SizeClass c = classes[i];
+		ByteBuffer b = c.free.poll();
+		if (b == null) {
+			c.misses.increment();
+			b = allocate(c.size);
+		} else {
+			c.hits.increment();
+		}
+		b.clear().limit(size);
+		return b;
+	}
+
+	private ByteBuffer allocate(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Give a buffer back to its size class. It must not be used any more by the caller.
+	 */
+	public void release(ByteBuffer b) {
+		int i = classIndex(b.capacity());
+		// les tampons hors classe (alloués à la demande) sont laissés au GC
+		if (i < classes.length && classes[i].size == b.capacity() && b.isDirect() == direct) {
+			classes[i].free.offer(b);
+		}
+	}
+
+	/**
+	 * @return the leak tracker of a new frame, null if the leak detection is disabled
+	 */
+	Leak track(Object frame, int size) {
+		if (!leakDetection) return null;
+		Leak l = new Leak(size, leaks);
+		l.cleanable = CLEANER.register(frame, l);
+		return l;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return the number of frames garbage collected without having been released
+	 * (always 0 without leak detection)
+	 */
+	public long getLeaks() {
+		return leaks.sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(direct ? "direct buffers :" : "heap buffers :");
+		for (SizeClass c : classes) {
+			long hits = c.hits.sum();
+			long misses = c.misses.sum();
+			if (hits + misses == 0) continue;
+			sb.append(String.format(" %d=%d/%d (free %d)", c.size, hits, hits + misses, c.free.size()));
+		}
+		sb.append(", unpooled=").append(unpooled.sum());
+		if (leakDetection) sb.append(", leaks=").append(leaks.sum());
+		return sb.toString();
+	}
+}
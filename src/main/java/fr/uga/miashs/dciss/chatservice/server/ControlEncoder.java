@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import fr.uga.miashs.dciss.chatservice.common.ControlResponse;
+
+/**
+ * Encoding of the responses to the control packets (see ControlResponse).
+ * The size of each response is known before writing it : the fields are written directly
+ * into the data of the packet, allocated at this size and shared by all the recipients
+ * of the response. No buffer is kept per thread (there can be one thread per user).
+ */
+public final class ControlEncoder {
+
+	private ControlEncoder() {
+	}
+
+	/**
+	 * @return the response to a request on a group or one of its members
+	 */
+	public static byte[] status(byte type, byte code, int groupId, int userId) {
+		boolean withUser = type != ControlResponse.REMOVE_GROUP;
+		ByteBuffer b = begin(type, withUser ? 9 : 5);
+		b.put(code).putInt(groupId);
+		if (withUser) b.putInt(userId);
+		return end(b);
+	}
+
+	/**
+	 * @return the notification of the creation of a group, sent to all its members
+	 */
+	public static byte[] groupCreated(int groupId, int ownerId, MemberSnapshot members) {
+		ByteBuffer b = begin(ControlResponse.GROUP_CREATED, 13 + 4 * members.size());
+		b.put(ControlResponse.OK).putInt(groupId).putInt(ownerId).putInt(members.size());
+		for (int i = 0; i < members.size(); i++) b.putInt(members.getId(i));
+		return end(b);
+	}
+
+	/**
+	 * @return the username (UTF-8 form cached by the UserMsg) and password of a user
+	 */
+	public static byte[] infos(byte[] username, byte[] password) {
+		ByteBuffer b = begin(ControlResponse.INFOS, 8 + username.length + password.length);
+		b.putInt(username.length).put(username).putInt(password.length).put(password);
+		return end(b);
+	}
+
+	// données de la réponse : le type écrit et la place pour exactement size octets
+	private static ByteBuffer begin(byte type, int size) {
+		return ByteBuffer.allocate(1 + size).put(type);
+	}
+
+	private static byte[] end(ByteBuffer b) {
+		// taille annoncée par begin() fausse : seule la partie écrite est gardée
+		return b.hasRemaining() ? Arrays.copyOf(b.array(), b.position()) : b.array();
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the control packets (destId 0) handled by the ServerPacketProcessor,
+ * by type : number of packets and time spent in their handler.
+ */
+public class ControlStats {
+
+	private final LongAdder[] counts = new LongAdder[256];
+	private final LongAdder[] nanos = new LongAdder[256];
+
+	public ControlStats() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+			nanos[i] = new LongAdder();
+		}
+	}
+
+	public void record(int type, long elapsedNanos) {
+		counts[type & 0xFF].increment();
+		nanos[type & 0xFF].add(elapsedNanos);
+	}
+
+	public long getCount(int type) {
+		return counts[type & 0xFF].sum();
+	}
+
+	/**
+	 * @return the time spent in the handler of the type, in nanoseconds
+	 */
+	public long getNanos(int type) {
+		return nanos[type & 0xFF].sum();
+	}
+
+	public double getMeanMicros(int type) {
+		long c = getCount(type);
+		return c == 0 ? 0 : getNanos(type) / 1000.0 / c;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int type = 0; type < counts.length; type++) {
+			long c = getCount(type);
+			if (c == 0) continue;
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(String.format("type %d: count=%d, total=%.1fms, mean=%.1fus",
+					type, c, getNanos(type) / 1e6, getMeanMicros(type)));
+		}
+		return sb.toString();
+	}
+}
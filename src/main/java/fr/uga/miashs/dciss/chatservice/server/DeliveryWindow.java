@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Packets taken from the send queue of a user and not yet acknowledged by its client
+ * (see common.Delivery), numbered 1, 2, 3... in the order they are sent.
+ * The writer of the connection (sendLoop or NioConnection) moves the packets of the
+ * send queue to the window with push(), then writes those returned by next() ; after a
+ * reconnection, rewind() makes next() return again all the packets not acknowledged.
+ * When the window is full, the writer waits for acknowledgements : the following
+ * packets stay in the send queue, with its overflow policy.
+ * The window owns a reference to each packet (SharedFrame), released when acknowledged.
+ * Its slots are allocated with the first packet and doubled as needed up to the capacity :
+ * most clients acknowledge quickly and never fill a large window.
+ * It is guarded by a ReentrantLock rather than by its monitor : a sendLoop running on a
+ * virtual thread releases its carrier thread while it waits for acknowledgements.
+ */
+public class DeliveryWindow {
+	final static int INITIAL_SLOTS = 16;
+	private final static Packet[] NO_SLOTS = new Packet[0];
+
+	private final int capacity;
+	// cases allouées, agrandies jusqu'à capacity
+	private Packet[] packets;
+	private final ReentrantLock lock;
+	// signalée par ack() quand de la place se libère
+	private final Condition roomAvailable;
+	// dernier numéro acquitté par le client
+	private long acked;
+	// dernier numéro attribué
+	private long last;
+	// dernier numéro écrit sur la connexion courante
+	private long sent;
+
+	public DeliveryWindow(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("window must hold at least 1 packet");
+		this.capacity = capacity;
+		packets = NO_SLOTS;
+		lock = new ReentrantLock();
+		roomAvailable = lock.newCondition();
+	}
+
+	private int index(long seq) {
+		return (int) (seq % packets.length);
+	}
+
+	// double le nombre de cases ; les paquets non acquittés changent de case
+	private void grow() {
+		Packet[] old = packets;
+		int n = old.length == 0 ? Math.min(INITIAL_SLOTS, capacity) : (int) Math.min(2L * old.length, capacity);
+		packets = new Packet[n];
+		for (long s = acked + 1; s <= last; s++) packets[index(s)] = old[(int) (s % old.length)];
+	}
+
+	// nombre de cases allouées
+	int slots() {
+		lock.lock();
+		try {
+			return packets.length;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of packets that can still be pushed
+	 */
+	public int room() {
+		lock.lock();
+		try {
+			return capacity - (int) (last - acked);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until at least one packet can be pushed.
+	 * @return the number of packets that can be pushed
+	 */
+	public int awaitRoom() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (last - acked == capacity) roomAvailable.await();
+			return capacity - (int) (last - acked);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Give a packet a sequence number. The window takes the reference of the caller.
+	 * @return the sequence number of the packet
+	 */
+	public long push(Packet p) {
+		lock.lock();
+		try {
+			if (last - acked == capacity) throw new IllegalStateException("delivery window full");
+			if (last - acked == packets.length) grow();
+			last++;
+			packets[index(last)] = p;
+			return last;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the sequence number of the next packet to write on the connection, 0 if there is none
+	 */
+	public long next() {
+		lock.lock();
+		try {
+			if (sent >= last) return 0;
+			return ++sent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if some packets of the window have not been written on the connection
+	 */
+	public boolean hasUnsent() {
+		lock.lock();
+		try {
+			return sent < last;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the packet of a sequence number, with a reference for the caller,
+	 * or null if it has been acknowledged in the meantime
+	 */
+	public Packet get(long seq) {
+		lock.lock();
+		try {
+			if (seq <= acked || seq > last) return null;
+			Packet p = packets[index(seq)];
+			SharedFrame.retain(p);
+			return p;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start a new connection : the packets not acknowledged will be written again.
+	 */
+	public void rewind() {
+		lock.lock();
+		try {
+			sent = acked;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cumulative acknowledgement of the packets up to seq, whose references are released.
+	 */
+	public void ack(long seq) {
+		lock.lock();
+		try {
+			seq = Math.min(seq, last);
+			if (seq <= acked) return;
+			for (long s = acked + 1; s <= seq; s++) {
+				int i = index(s);
+				SharedFrame.release(packets[i]);
+				packets[i] = null;
+			}
+			acked = seq;
+			if (sent < acked) sent = acked;
+			roomAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getAcked() {
+		lock.lock();
+		try {
+			return acked;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of packets not acknowledged
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return (int) (last - acked);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
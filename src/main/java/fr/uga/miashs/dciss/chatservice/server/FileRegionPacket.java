@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * A packet whose data is data (a header) followed by count bytes of a file, from position.
+ * The file content is copied from the file to the socket with FileChannel.transferTo,
+ * without going through the heap.
+ */
+public class FileRegionPacket extends Packet {
+	public final Path file;
+	public final long position;
+	public final int count;
+
+	public FileRegionPacket(int srcId, int destId, byte[] header, Path file, long position, int count) {
+		super(srcId, destId, header);
+		this.file = file;
+		this.position = position;
+		this.count = count;
+	}
+
+	/**
+	 * @return the header of the frame : srcId, destId, length, then the header of the data
+	 */
+	public ByteBuffer frameHeader() {
+		ByteBuffer b = ByteBuffer.allocate(12 + data.length);
+		b.putInt(srcId).putInt(destId).putInt(data.length + count).put(data).flip();
+		return b;
+	}
+
+	public FileChannel open() throws IOException {
+		return FileChannel.open(file, StandardOpenOption.READ);
+	}
+
+	/**
+	 * Write the frame : the header through the buffered stream (flushed), then the file
+	 * content directly to the channel of the socket.
+	 * @return the number of bytes written
+	 */
+	public long write(DataOutputStream dos, WritableByteChannel out) throws IOException {
+		ByteBuffer header = frameHeader();
+		dos.write(header.array(), 0, header.limit());
+		dos.flush();
+		try (FileChannel ch = open()) {
+			long pos = position;
+			long end = position + count;
+			while (pos < end) {
+				long n = ch.transferTo(pos, end - pos, out);
+				if (n <= 0 && pos >= ch.size()) throw new IOException("file region beyond the end of " + file);
+				pos += n;
+			}
+		}
+		return header.limit() + count;
+	}
+
+	/**
+	 * @return the same packet with the file content in its data, for the queues that
+	 * store the packets (spill file, offline spool), or p itself if it is not a file region.
+	 * The data of a packet read directly into its frame is copied the same way.
+	 */
+	public static Packet inline(Packet p) throws IOException {
+		if (p.data == null) {
+			// trame lue directement dans un tampon du pool, qui sera rendu par l'appelant
+			return new Packet(p.srcId, p.destId, SharedFrame.data(p));
+		}
+		if (!(p instanceof FileRegionPacket)) return p;
+		FileRegionPacket r = (FileRegionPacket) p;
+		ByteBuffer b = ByteBuffer.allocate(r.data.length + r.count).put(r.data);
+		try (FileChannel ch = r.open()) {
+			while (b.hasRemaining()) {
+				if (ch.read(b, r.position + b.position() - r.data.length) < 0) {
+					throw new IOException("file region beyond the end of " + r.file);
+				}
+			}
+		}
+		return new Packet(r.srcId, r.destId, b.array());
+	}
+}
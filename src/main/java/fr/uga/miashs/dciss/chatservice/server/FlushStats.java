@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the writes done by the send loops of the users.
+ * One flush corresponds to one batch of packets written to a socket.
+ */
+public class FlushStats {
+
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder packets = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	public void record(int nbPackets, long nbBytes) {
+		flushes.increment();
+		packets.add(nbPackets);
+		bytes.add(nbBytes);
+	}
+
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	public long getPackets() {
+		return packets.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public double getPacketsPerFlush() {
+		long f = getFlushes();
+		return f == 0 ? 0 : (double) getPackets() / f;
+	}
+
+	public double getBytesPerFlush() {
+		long f = getFlushes();
+		return f == 0 ? 0 : (double) getBytes() / f;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("flushes=%d, packets/flush=%.2f, bytes/flush=%.1f",
+				getFlushes(), getPacketsPerFlush(), getBytesPerFlush());
+	}
+}
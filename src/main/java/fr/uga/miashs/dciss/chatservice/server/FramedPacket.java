@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/*
+ * Packet carrying its already encoded SharedFrame, queued for several users.
+ * Its data is null when it has been read directly into its frame (SharedFrame.data(p)).
+ */
+public class FramedPacket extends Packet {
+
+	public final SharedFrame frame;
+
+	public FramedPacket(Packet p, SharedFrame frame) {
+		super(p.srcId, p.destId, p.data);
+		this.frame = frame;
+	}
+
+	public FramedPacket(SharedFrame frame) {
+		super(frame.srcId(), frame.destId(), null);
+		this.frame = frame;
+	}
+}
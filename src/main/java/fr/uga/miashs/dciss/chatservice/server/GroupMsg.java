@@ -12,7 +12,7 @@
 package fr.uga.miashs.dciss.chatservice.server;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RecursiveAction;
 
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 
@@ -20,14 +20,15 @@ public class GroupMsg implements PacketProcessor {
 
 	private int groupId;
 	private UserMsg owner;
-	private Set<UserMsg> members;
+	// remplacé à chaque modification (copy-on-write), lu sans verrou
+	private volatile MemberSnapshot members;
 	
 	public GroupMsg(int groupId, UserMsg owner) {
 		if (groupId>-1) throw new IllegalArgumentException("id must not be less than 0");
 		if (owner==null) throw new IllegalArgumentException("owner cannot be null");
 		this.groupId=groupId;
 		this.owner=owner;
-		members=Collections.synchronizedSet(new HashSet<>());
+		members=MemberSnapshot.EMPTY;
 		addMember(owner);
 	}
 	
@@ -45,9 +46,36 @@ public class GroupMsg implements PacketProcessor {
 	 * @return
 	 */
 	public boolean addMember(UserMsg s) {
-		return s!=null && members.add(s) && s.getGroups().add(this);
+		if (s==null) return false;
+		synchronized (this) {
+			MemberSnapshot old = members;
+			members = old.with(s);
+			if (members == old) return false;
+		}
+		return s.getGroups().add(this);
 	}
 	
+	/**
+	 * Add several members at once, the snapshot of the members is built only once.
+	 * As addMember(), the group is also added to each user.
+	 * @return the users added, without those already members
+	 */
+	public List<UserMsg> addMembers(Collection<UserMsg> users) {
+		MemberSnapshot old, res;
+		synchronized (this) {
+			old = members;
+			members = res = old.withAll(users);
+		}
+		// withAll garde l'ordre : les nouveaux membres sont à la fin
+		List<UserMsg> added = new ArrayList<>(res.size() - old.size());
+		for (int i = old.size(); i < res.size(); i++) {
+			UserMsg u = res.get(i);
+			u.getGroups().add(this);
+			added.add(u);
+		}
+		return added;
+	}
+
 	/**
 	 * This method has to be used to remove a member from the group.
 	 * It update the bidirectional relationship, i.e. the user is removed from the group and the the group is removed from the user.
@@ -56,21 +84,104 @@ public class GroupMsg implements PacketProcessor {
 	 */
 	public boolean removeMember(UserMsg s) {
 		if (s.equals(owner)) return false;
-		if (members.remove(s)) {
+		if (dropMember(s)) {
 			s.removeGroup(this);
 			return true;
 		}
 		return false;
 	}
+
+	/*
+	 * Retire le membre sans mettre à jour la relation inverse.
+	 */
+	boolean dropMember(UserMsg s) {
+		synchronized (this) {
+			MemberSnapshot old = members;
+			members = old.without(s);
+			return members != old;
+		}
+	}
+
+	/**
+	 * Lock free membership check, used to route the messages sent to the group.
+	 */
+	public boolean isMember(int userId) {
+		return members.contains(userId);
+	}
 	
 	@Override
 	public void process(Packet p) {
+		ServerMsg server = owner.getServer();
+		// the frame is encoded once and shared by the send queues of all the members,
+		// a message read directly into its frame is shared as is
+		FramedPacket fp = p instanceof FramedPacket ? (FramedPacket) p
+				: new FramedPacket(p, SharedFrame.encode(server.getBufferPool(), p));
+		SharedFrame frame = fp.frame;
+		// stocké une seule fois dans le journal du groupe : les membres non connectés n'en
+		// gardent que leur position, les autres reçoivent la trame partagée
+		HistoryStore history = server.getHistory();
+		long seq = history == null ? 0 : history.append(fp);
 		// send packet to members except the sender.
-		members.stream().filter(m->m.getId()!=p.srcId).forEach( m -> m.process(p));
+		MemberSnapshot snapshot = members;
+		ServerConfig config = server.getConfig();
+		// une boucle NIO ne doit jamais attendre : distribution séquentielle
+		if (snapshot.size() < config.getParallelFanOutThreshold() || NioEventLoop.inAnyEventLoop()) {
+			deliver(snapshot, fp, seq, 0, snapshot.size());
+		} else {
+			// grand groupe : tranches de membres distribuées en parallèle. invoke() attend la fin
+			// de toutes les tranches, le message suivant de l'expéditeur passe donc après celui-ci
+			server.getFanOutPool().invoke(new FanOut(snapshot, fp, seq, 0, snapshot.size(), config.getFanOutPartition()));
+		}
+		frame.release();
+	}
+
+	private static void deliver(MemberSnapshot snapshot, FramedPacket fp, long seq, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (snapshot.getId(i) != fp.srcId) {
+				fp.frame.retain();
+				snapshot.get(i).processGroup(fp, seq);
+			}
+		}
+	}
+
+	/*
+	 * Distribution aux membres [from, to), découpée en deux tant qu'elle dépasse partition membres.
+	 */
+	private static class FanOut extends RecursiveAction {
+		private final static long serialVersionUID = 1L;
+		private final MemberSnapshot snapshot;
+		private final FramedPacket fp;
+		private final long seq;
+		private final int from;
+		private final int to;
+		private final int partition;
+
+		FanOut(MemberSnapshot snapshot, FramedPacket fp, long seq, int from, int to, int partition) {
+			this.snapshot = snapshot;
+			this.fp = fp;
+			this.seq = seq;
+			this.from = from;
+			this.to = to;
+			this.partition = partition;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= partition) {
+				deliver(snapshot, fp, seq, from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new FanOut(snapshot, fp, seq, from, mid, partition), new FanOut(snapshot, fp, seq, mid, to, partition));
+			}
+		}
 	}
 	
-	// to be used carefully, because it does not update birectional relationship in case of addition or removal.
-	protected Set<UserMsg> getMembers() {
+	// read only view of the current members
+	protected List<UserMsg> getMembers() {
+		return members.asList();
+	}
+
+	public MemberSnapshot getMemberSnapshot() {
 		return members;
 	}
 	
@@ -78,7 +189,7 @@ public class GroupMsg implements PacketProcessor {
 	 * This method has to be called when removing a group in order to clean bidirectional membership.
 	 */
 	public void beforeDelete() {
-		members.forEach(m->m.getGroups().remove(this));
+		members.asList().forEach(m->m.getGroups().remove(this));
 		//TODO : notifier les membres de la suppression du groupe
 	}
 
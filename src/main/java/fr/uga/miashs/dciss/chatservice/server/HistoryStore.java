@@ -0,0 +1,864 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.common.History;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Persistent history of the conversations, between two users or in a group
+ * (see common.History for the protocol).
+ * Each conversation has its directory of append-only segment files, named after the
+ * sequence number of their first message. Every indexInterval messages of a segment,
+ * the sequence number, time and position of a message are added to the index file
+ * of the segment : this sparse index is kept in the heap while the conversation is open,
+ * so a page is read by a binary search in the index then a scan of at most
+ * indexInterval + page messages, whatever the length of the history.
+ * At most maxOpen conversations are open, the least recently used one is closed ; the files
+ * are opened and closed outside the lock of the open conversations.
+ *
+ * The log of a group is also the only copy of its messages for the members who are not
+ * connected : the store keeps the position of each of them in the group (cursors file),
+ * from which the messages are replayed when the member reconnects.
+ *
+ * Record format : seq (long), time (long), srcId (int), destId (int), length (int), data,
+ * the same as the messages of a page. Index entry : seq (long), time (long), position (int).
+ * Cursor entry : userId (int), groupId (int), seq (long, -1 once the messages have been replayed).
+ */
+public class HistoryStore implements PacketProcessor {
+	private final static Logger LOG = Logger.getLogger(HistoryStore.class.getName());
+	private final static int HEADER = History.MESSAGE_HEADER;
+	private final static int INDEX_ENTRY = 20;
+	private final static int READ_BUFFER = 64 * 1024;
+	private final static int CURSOR_ENTRY = 16;
+	private final static String CURSORS = "cursors";
+
+	private final Path dir;
+	private final ServerMsg server;
+	private final int segmentSize;
+	private final int indexInterval;
+	private final int maxPage;
+	// la réponse doit tenir dans une trame de contrôle
+	private final int controlLimit;
+	// conversations ouvertes, de la moins récemment utilisée à la plus récente
+	private final LinkedHashMap<String, Log> open;
+	// conversations en cours d'ouverture ou de fermeture : log() attend qu'elles soient prêtes
+	private final Set<String> busy = new HashSet<>();
+	// conversations retirées de open, à fermer hors de son verrou
+	private final List<Log> evicted = new ArrayList<>();
+	// position des utilisateurs non connectés dans les groupes : utilisateur -> groupe -> dernier
+	// message reçu, sauvegardée dans le journal cursorLog
+	private final Map<Integer, Map<Integer, Long>> cursors = new HashMap<>();
+	private final FileChannel cursorLog;
+	// index des messages pour la recherche, null si désactivé
+	private volatile SearchIndex search;
+
+	public HistoryStore(Path dir, ServerMsg server, ServerConfig config) throws IOException {
+		this.dir = dir;
+		this.server = server;
+		segmentSize = config.getHistorySegmentSize();
+		indexInterval = config.getHistoryIndexInterval();
+		maxPage = config.getHistoryMaxPage();
+		controlLimit = config.getFrameLimits().control;
+		int maxOpen = config.getHistoryOpenConversations();
+		open = new LinkedHashMap<String, Log>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Log> eldest) {
+				if (size() <= maxOpen) return false;
+				evicted.add(eldest.getValue());
+				busy.add(eldest.getKey());
+				return true;
+			}
+		};
+		Files.createDirectories(dir);
+		cursorLog = openCursors();
+	}
+
+	// deux utilisateurs (dans l'ordre des id) ou un groupe
+	private static String key(int srcId, int destId) {
+		if (destId < 0) return "g" + (-destId);
+		return "u" + Math.min(srcId, destId) + "-" + Math.max(srcId, destId);
+	}
+
+	private Log log(String key) throws IOException {
+		Log l = reserve(key);
+		if (l != null) return l;
+		try {
+			l = new Log(key);
+		} finally {
+			done(key, l);
+		}
+		return l;
+	}
+
+	/*
+	 * Conversation ouverte, ou null si elle ne l'est pas : elle est alors réservée à l'appelant,
+	 * qui l'ouvre hors du verrou de open puis appelle done().
+	 */
+	private Log reserve(String key) throws IOException {
+		synchronized (open) {
+			Log l;
+			while ((l = open.get(key)) == null && busy.contains(key)) {
+				try {
+					open.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while opening history " + key);
+				}
+			}
+			if (l == null) busy.add(key);
+			return l;
+		}
+	}
+
+	// fin d'une réservation : l est gardée ouverte (null si elle ne doit pas l'être), les
+	// conversations qu'elle remplace sont fermées
+	private void done(String key, Log l) {
+		List<Log> closing;
+		synchronized (open) {
+			if (l != null) open.put(key, l);
+			busy.remove(key);
+			closing = new ArrayList<>(evicted);
+			evicted.clear();
+			open.notifyAll();
+		}
+		for (Log c : closing) {
+			c.close();
+			synchronized (open) {
+				busy.remove(c.key);
+				open.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Append a message (between users or to a group) to the history of its conversation.
+	 * @return the sequence number of the message in its conversation, 0 if it could not be written
+	 */
+	public long append(Packet p) {
+		String key = key(p.srcId, p.destId);
+		try {
+			// une conversation fermée entre-temps (la moins récemment utilisée) est rouverte
+			while (true) {
+				Log l = log(key);
+				synchronized (l) {
+					if (l.channel != null) {
+						long seq = l.append(p.srcId, p.destId, SharedFrame.content(p));
+						// indexé dans l'ordre des numéros de la conversation (cf. SearchIndex.reindex)
+						SearchIndex index = search;
+						if (index != null) index.add(p.srcId, p.destId, seq, SharedFrame.content(p));
+						return seq;
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOG.warning("Unable to append to history " + key + " : " + e.getMessage());
+			return 0;
+		}
+	}
+
+	void setSearchIndex(SearchIndex search) {
+		this.search = search;
+	}
+
+	/**
+	 * @return the message seq of the conversation of userId with conversation (the other user
+	 * or a group), null if there is none
+	 */
+	public History.Message message(int userId, int conversation, long seq) throws IOException {
+		return messages(userId, conversation, new long[] { seq })[0];
+	}
+
+	/**
+	 * Read several messages of a conversation, in the order of seqs. A conversation which
+	 * is not open is read without being kept open : the search does not close the
+	 * conversations in use.
+	 * @return the messages, null for a sequence number without message
+	 */
+	public History.Message[] messages(int userId, int conversation, long[] seqs) throws IOException {
+		String key = key(userId, conversation);
+		while (true) {
+			Log l = reserve(key);
+			if (l == null) {
+				Log read = null;
+				try {
+					read = new Log(key);
+					return read.messages(seqs);
+				} finally {
+					if (read != null) read.close();
+					done(key, null);
+				}
+			}
+			synchronized (l) {
+				if (l.channel != null) return l.messages(seqs);
+			}
+		}
+	}
+
+	/**
+	 * Give to the consumer at most max messages of the conversation between srcId and destId
+	 * (or of group destId) from the sequence number from, in order.
+	 * @return the sequence number of the last message read, from - 1 if there is none
+	 */
+	long messages(int srcId, int destId, long from, int max, Consumer<History.Message> consumer) throws IOException {
+		String key = key(srcId, destId);
+		while (true) {
+			Log l = log(key);
+			synchronized (l) {
+				if (l.channel != null) return l.messages(from, max, consumer);
+			}
+		}
+	}
+
+	/**
+	 * @return the conversations of the history, as the srcId and destId of a message :
+	 * two users, or 0 and a group
+	 */
+	List<int[]> conversations() throws IOException {
+		List<int[]> conversations = new ArrayList<>();
+		try (Stream<Path> files = Files.list(dir)) {
+			files.filter(Files::isDirectory).map(f -> f.getFileName().toString()).forEach(name -> {
+				if (name.startsWith("g")) {
+					conversations.add(new int[] { 0, -Integer.parseInt(name.substring(1)) });
+				} else if (name.startsWith("u")) {
+					int dash = name.indexOf('-');
+					conversations.add(new int[] { Integer.parseInt(name.substring(1, dash)), Integer.parseInt(name.substring(dash + 1)) });
+				}
+			});
+		}
+		return conversations;
+	}
+
+	/**
+	 * Give to the consumer at most max messages of a group from the sequence number from,
+	 * in order, except those sent by skipSrc (they are counted in max).
+	 * @return the sequence number of the last message read, from - 1 if there is none :
+	 * less than max messages read means the end of the log has been reached
+	 */
+	public long replay(int groupId, long from, int skipSrc, int max, Consumer<Packet> consumer) throws IOException {
+		String key = key(0, groupId);
+		while (true) {
+			Log l = log(key);
+			synchronized (l) {
+				if (l.channel != null) return l.replay(from, skipSrc, max, consumer);
+			}
+		}
+	}
+
+	/**
+	 * Remember that the user, not connected, has received the messages of the group
+	 * up to the sequence number seq, unless an older position is already remembered
+	 * (the messages of a group can reach its members out of order).
+	 * The following messages are not stored for the user : they are replayed from the
+	 * log of the group when it reconnects.
+	 */
+	public void markBehind(int userId, int groupId, long seq) {
+		synchronized (cursors) {
+			Map<Integer, Long> user = cursors.computeIfAbsent(userId, k -> new HashMap<>());
+			Long old = user.get(groupId);
+			long cursor = user.merge(groupId, seq, Math::min);
+			if (old == null || cursor < old) writeCursor(userId, groupId, cursor);
+		}
+	}
+
+	/**
+	 * @return the groups whose messages have to be replayed for the user, with the sequence
+	 * number of the last message it has received
+	 */
+	public Map<Integer, Long> getCursors(int userId) {
+		synchronized (cursors) {
+			Map<Integer, Long> user = cursors.get(userId);
+			return user == null ? Collections.emptyMap() : new HashMap<>(user);
+		}
+	}
+
+	/**
+	 * Forget the position of the user in the group, once the messages have been replayed.
+	 */
+	public void clearCursor(int userId, int groupId) {
+		synchronized (cursors) {
+			Map<Integer, Long> user = cursors.get(userId);
+			if (user == null || user.remove(groupId) == null) return;
+			if (user.isEmpty()) cursors.remove(userId);
+			writeCursor(userId, groupId, -1);
+		}
+	}
+
+	// appelée en tenant le verrou de cursors
+	private void writeCursor(int userId, int groupId, long seq) {
+		ByteBuffer b = ByteBuffer.allocate(CURSOR_ENTRY);
+		b.putInt(userId).putInt(groupId).putLong(seq).flip();
+		try {
+			while (b.hasRemaining()) cursorLog.write(b);
+		} catch (IOException e) {
+			LOG.warning("Unable to save the position of user " + userId + " in group " + groupId + " : " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Relit le journal des positions (la dernière entrée de chaque utilisateur et groupe l'emporte,
+	 * -1 pour une position oubliée) et le réécrit avec les seules positions en cours.
+	 */
+	private FileChannel openCursors() throws IOException {
+		Path path = dir.resolve(CURSORS);
+		if (Files.exists(path)) {
+			ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(path));
+			while (b.remaining() >= CURSOR_ENTRY) {
+				int userId = b.getInt();
+				int groupId = b.getInt();
+				long seq = b.getLong();
+				if (seq < 0) {
+					Map<Integer, Long> user = cursors.get(userId);
+					if (user != null) user.remove(groupId);
+				} else {
+					cursors.computeIfAbsent(userId, k -> new HashMap<>()).put(groupId, seq);
+				}
+			}
+		}
+		ByteBuffer b = ByteBuffer.allocate(cursors.values().stream().mapToInt(Map::size).sum() * CURSOR_ENTRY);
+		cursors.forEach((userId, user) -> user.forEach((groupId, seq) -> b.putInt(userId).putInt(groupId).putLong(seq)));
+		b.flip();
+		Path tmp = dir.resolve(CURSORS + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (b.hasRemaining()) ch.write(b);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Page request of a user, answered with a page of at most maxPage messages.
+	 * A conversation the user is not part of gives an empty page.
+	 */
+	@Override
+	public void process(Packet p) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(p.data);
+		if (buf.remaining() < History.REQUEST_SIZE) return;
+		buf.get();
+		int conversation = buf.getInt();
+		long before = buf.getLong();
+		long beforeTime = buf.getLong();
+		int max = Math.max(1, Math.min(maxPage, buf.getInt()));
+		UserMsg user = server.getUser(p.srcId);
+		if (user == null) return;
+		byte[] page = allowed(p.srcId, conversation) ? page(p.srcId, conversation, before, beforeTime, max)
+				: emptyPage(conversation);
+		user.process(new Packet(0, p.srcId, page));
+	}
+
+	/**
+	 * @return the page of the conversation of userId with conversation (the other user or a group),
+	 * in the format of the answer to a request, without checking the user is part of it
+	 */
+	public byte[] page(int userId, int conversation, long before, long beforeTime, int max) throws IOException {
+		String key = key(userId, conversation);
+		while (true) {
+			Log l = log(key);
+			synchronized (l) {
+				if (l.channel != null) return l.page(conversation, before, beforeTime, max, controlLimit);
+			}
+		}
+	}
+
+	private boolean allowed(int userId, int conversation) {
+		if (conversation < 0) {
+			GroupMsg g = server.getGroup(conversation);
+			return g != null && g.isMember(userId);
+		}
+		return conversation > 0 && server.getUser(conversation) != null;
+	}
+
+	private static byte[] emptyPage(int conversation) {
+		return ByteBuffer.allocate(History.PAGE_HEADER).put(History.TYPE).putInt(conversation).putLong(0).putInt(0).array();
+	}
+
+	/**
+	 * @return the number of messages of the conversation between srcId and destId (or in group destId)
+	 */
+	public long size(int srcId, int destId) throws IOException {
+		Log l = log(key(srcId, destId));
+		synchronized (l) {
+			return l.lastSeq;
+		}
+	}
+
+	public void close() {
+		synchronized (open) {
+			open.values().forEach(Log::close);
+			open.clear();
+		}
+		synchronized (cursors) {
+			try {
+				cursorLog.close();
+			} catch (IOException e) {
+				LOG.warning("Unable to close the group positions : " + e.getMessage());
+			}
+		}
+	}
+
+	// message rencontré par Log.scan() ; false pour arrêter le parcours
+	private interface Visitor {
+		boolean visit(long seq, long time, int segment, long pos, int length) throws IOException;
+	}
+
+	// message lu en entier par Log.scan() : l'enregistrement est dans record à partir de off
+	private interface RecordVisitor {
+		boolean visit(long seq, long time, ByteBuffer record, int off, int length) throws IOException;
+	}
+
+	private static class Segment {
+		final long base;
+		final Path path;
+		final Path indexPath;
+		long size;
+
+		Segment(Path dir, long base) {
+			this.base = base;
+			String name = String.format("%020d", base);
+			path = dir.resolve(name + ".seg");
+			indexPath = dir.resolve(name + ".idx");
+		}
+	}
+
+	/*
+	 * Historique d'une conversation. Toutes les méthodes sont appelées en tenant le verrou du Log.
+	 */
+	private class Log {
+		final String key;
+		final Path dir;
+		final List<Segment> segments;
+		// index creux : numéro, date, segment et position d'un message sur indexInterval
+		long[] idxSeq = new long[16];
+		long[] idxTime = new long[16];
+		int[] idxSegment = new int[16];
+		int[] idxPos = new int[16];
+		int idxSize;
+		long lastSeq;
+		long lastTime;
+		// segment actif, null une fois la conversation fermée
+		FileChannel channel;
+		FileChannel indexChannel;
+		// dernier segment complet lu, gardé ouvert pour les lectures suivantes
+		FileChannel reader;
+		int readerSegment = -1;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+		Log(String key) throws IOException {
+			this.key = key;
+			dir = HistoryStore.this.dir.resolve(key);
+			segments = new ArrayList<>();
+			Files.createDirectories(dir);
+			List<Long> bases = new ArrayList<>();
+			try (Stream<Path> files = Files.list(dir)) {
+				files.map(f -> f.getFileName().toString())
+						.filter(n -> n.endsWith(".seg"))
+						.forEach(n -> bases.add(Long.parseLong(n.substring(0, n.length() - 4))));
+			}
+			Collections.sort(bases);
+			for (long base : bases) {
+				Segment s = new Segment(dir, base);
+				s.size = Files.size(s.path);
+				segments.add(s);
+				loadIndex(segments.size() - 1);
+			}
+			if (segments.isEmpty()) {
+				segments.add(new Segment(dir, 1));
+			}
+			Segment last = segments.get(segments.size() - 1);
+			channel = FileChannel.open(last.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			indexChannel = FileChannel.open(last.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			recoverTail();
+		}
+
+		private void loadIndex(int segment) throws IOException {
+			Segment s = segments.get(segment);
+			if (!Files.exists(s.indexPath)) return;
+			ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(s.indexPath));
+			// une entrée incomplète (arrêt pendant l'écriture) est ignorée
+			while (b.remaining() >= INDEX_ENTRY) {
+				long seq = b.getLong();
+				long time = b.getLong();
+				int pos = b.getInt();
+				if (pos >= s.size) break;
+				addIndex(seq, time, segment, pos);
+			}
+		}
+
+		private void addIndex(long seq, long time, int segment, int pos) {
+			if (idxSize == idxSeq.length) {
+				int n = idxSize * 2;
+				idxSeq = Arrays.copyOf(idxSeq, n);
+				idxTime = Arrays.copyOf(idxTime, n);
+				idxSegment = Arrays.copyOf(idxSegment, n);
+				idxPos = Arrays.copyOf(idxPos, n);
+			}
+			idxSeq[idxSize] = seq;
+			idxTime[idxSize] = time;
+			idxSegment[idxSize] = segment;
+			idxPos[idxSize] = pos;
+			idxSize++;
+		}
+
+		/*
+		 * Relit la fin du segment actif depuis sa dernière entrée d'index, pour retrouver le dernier
+		 * message et tronquer un enregistrement incomplet.
+		 */
+		private void recoverTail() throws IOException {
+			int segment = segments.size() - 1;
+			Segment s = segments.get(segment);
+			long pos = 0;
+			lastSeq = s.base - 1;
+			if (idxSize > 0 && idxSegment[idxSize - 1] == segment) {
+				pos = idxPos[idxSize - 1];
+				lastSeq = idxSeq[idxSize - 1] - 1;
+			}
+			if (segment > 0 && lastSeq == s.base - 1) lastTime = lastTimeOf(segment - 1);
+			ByteBuffer h = ByteBuffer.allocate(HEADER);
+			while (pos + HEADER <= s.size) {
+				h.clear();
+				readFully(channel, h, pos);
+				long seq = h.getLong(0);
+				int length = h.getInt(24);
+				if (seq != lastSeq + 1 || length < 0 || pos + HEADER + length > s.size) break;
+				lastSeq = seq;
+				lastTime = h.getLong(8);
+				pos += HEADER + length;
+			}
+			if (pos < s.size) {
+				LOG.warning("History " + dir.getFileName() + " truncated from " + s.size + " to " + pos + " bytes");
+				channel.truncate(pos);
+				s.size = pos;
+			}
+			// entrées d'index au-delà de la fin valide
+			while (idxSize > 0 && idxSegment[idxSize - 1] == segment && idxPos[idxSize - 1] >= pos) idxSize--;
+			int entries = 0;
+			for (int i = idxSize - 1; i >= 0 && idxSegment[i] == segment; i--) entries++;
+			indexChannel.truncate((long) entries * INDEX_ENTRY);
+			channel.position(pos);
+			indexChannel.position((long) entries * INDEX_ENTRY);
+		}
+
+		// date du dernier message d'un segment complet
+		private long lastTimeOf(int segment) throws IOException {
+			long[] time = new long[1];
+			int i = lastIndexEntry(segment);
+			if (i < 0) return 0;
+			scan(i, Long.MAX_VALUE, (seq, t, seg, pos, length) -> {
+				if (seg != segment) return false;
+				time[0] = t;
+				return true;
+			});
+			return time[0];
+		}
+
+		private int lastIndexEntry(int segment) {
+			for (int i = idxSize - 1; i >= 0; i--) {
+				if (idxSegment[i] <= segment) return i;
+			}
+			return -1;
+		}
+
+		long append(int srcId, int destId, ByteBuffer data) throws IOException {
+			int length = data.remaining();
+			Segment s = segments.get(segments.size() - 1);
+			if (s.size > 0 && s.size + HEADER + length > segmentSize) s = roll();
+			long seq = lastSeq + 1;
+			// dates croissantes, pour la recherche par date dans l'index
+			long time = Math.max(System.currentTimeMillis(), lastTime);
+			header.clear();
+			header.putLong(seq).putLong(time).putInt(srcId).putInt(destId).putInt(length).flip();
+			long pos = s.size;
+			ByteBuffer[] record = { header, data.duplicate() };
+			long written = 0;
+			while (written < HEADER + length) written += channel.write(record);
+			if ((seq - s.base) % indexInterval == 0) {
+				ByteBuffer e = ByteBuffer.allocate(INDEX_ENTRY);
+				e.putLong(seq).putLong(time).putInt((int) pos).flip();
+				while (e.hasRemaining()) indexChannel.write(e);
+				addIndex(seq, time, segments.size() - 1, (int) pos);
+			}
+			s.size += HEADER + length;
+			lastSeq = seq;
+			lastTime = time;
+			return seq;
+		}
+
+		private Segment roll() throws IOException {
+			channel.close();
+			indexChannel.close();
+			Segment s = new Segment(dir, lastSeq + 1);
+			segments.add(s);
+			channel = FileChannel.open(s.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			indexChannel = FileChannel.open(s.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			return s;
+		}
+
+		// dernière entrée d'index de numéro <= seq, -1 si aucune
+		private int floorEntry(long seq) {
+			int lo = 0, hi = idxSize - 1, r = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (idxSeq[mid] <= seq) {
+					r = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return r;
+		}
+
+		// numéro du premier message reçu à la date time ou après, lastSeq + 1 s'il n'y en a pas
+		private long seqAt(long time) throws IOException {
+			int lo = 0, hi = idxSize - 1, r = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (idxTime[mid] < time) {
+					r = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			if (r < 0) return idxSize == 0 ? lastSeq + 1 : idxSeq[0];
+			long[] found = { lastSeq + 1 };
+			scan(r, lastSeq + 1, (seq, t, seg, pos, length) -> {
+				if (t < time) return true;
+				found[0] = seq;
+				return false;
+			});
+			return found[0];
+		}
+
+		/**
+		 * Page of the messages [start, end) with end = min(before, first message at beforeTime),
+		 * at most max messages and maxBytes bytes, oldest first.
+		 */
+		byte[] page(int conversation, long before, long beforeTime, int max, int maxBytes) throws IOException {
+			long end = lastSeq + 1;
+			if (before > 0) end = Math.min(end, before);
+			if (beforeTime > 0) end = Math.min(end, seqAt(beforeTime));
+			long start = Math.max(1, end - max);
+			int i = floorEntry(start);
+			if (start >= end || i < 0) return emptyPage(conversation);
+			// positions des messages de la page
+			int[] segment = new int[(int) (end - start)];
+			long[] position = new long[segment.length];
+			int[] size = new int[segment.length];
+			int[] n = { 0 };
+			scan(i, end, (seq, t, seg, pos, length) -> {
+				if (seq >= start) {
+					segment[n[0]] = seg;
+					position[n[0]] = pos;
+					size[n[0]] = HEADER + length;
+					n[0]++;
+				}
+				return true;
+			});
+			// les plus récents d'abord s'ils ne tiennent pas tous dans la trame
+			int first = n[0];
+			int bytes = History.PAGE_HEADER;
+			while (first > 0 && bytes + size[first - 1] <= maxBytes) bytes += size[--first];
+			// un message plus grand qu'une trame de contrôle est sauté
+			long firstSeq = first == n[0] && n[0] > 0 ? end - 1 : start + first;
+			ByteBuffer page = ByteBuffer.allocate(bytes);
+			page.put(History.TYPE).putInt(conversation).putLong(firstSeq > 1 ? firstSeq : 0).putInt(n[0] - first);
+			// lecture par suites contiguës dans un même segment
+			int k = first;
+			while (k < n[0]) {
+				int seg = segment[k];
+				long from = position[k];
+				int length = 0;
+				while (k < n[0] && segment[k] == seg) length += size[k++];
+				page.limit(page.position() + length);
+				read(seg, page, from);
+				page.limit(page.capacity());
+			}
+			return page.array();
+		}
+
+		/*
+		 * Parcourt les messages depuis l'entrée d'index entry, dans l'ordre, jusqu'au numéro end (exclu).
+		 * Les entêtes sont lus par blocs de READ_BUFFER octets.
+		 */
+		private void scan(int entry, long end, Visitor v) throws IOException {
+			scan(entry, end, v, null);
+		}
+
+		/*
+		 * Parcours qui lit aussi le contenu des messages, dans les mêmes blocs : les messages de
+		 * numéro >= from sont donnés à rv, entête compris.
+		 */
+		private void scan(int entry, long end, long from, RecordVisitor rv) throws IOException {
+			scan(entry, end, null, (seq, t, record, off, length) -> seq < from || rv.visit(seq, t, record, off, length));
+		}
+
+		private void scan(int entry, long end, Visitor v, RecordVisitor rv) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER);
+			int seg = idxSegment[entry];
+			long pos = idxPos[entry];
+			long expected = idxSeq[entry];
+			while (expected < end && seg < segments.size()) {
+				Segment s = segments.get(seg);
+				FileChannel in = channel(seg);
+				long bufStart = pos;
+				buf.clear().limit(0);
+				while (expected < end && pos + HEADER <= s.size) {
+					if (pos + HEADER > bufStart + buf.limit()) {
+						bufStart = pos;
+						fill(in, buf, pos, s.size);
+					}
+					int off = (int) (pos - bufStart);
+					long seq = buf.getLong(off);
+					long time = buf.getLong(off + 8);
+					int length = buf.getInt(off + 24);
+					if (rv != null) {
+						if (pos + HEADER + length > bufStart + buf.limit()) {
+							// un message plus grand que le bloc a son propre tampon
+							if (HEADER + length > buf.capacity()) buf = ByteBuffer.allocate(HEADER + length);
+							bufStart = pos;
+							fill(in, buf, pos, s.size);
+							off = 0;
+						}
+						if (!rv.visit(seq, time, buf, off, length)) return;
+					} else if (!v.visit(seq, time, seg, pos, length)) {
+						return;
+					}
+					pos += HEADER + length;
+					expected = seq + 1;
+				}
+				seg++;
+				pos = 0;
+			}
+		}
+
+		// lit à partir de pos autant que buf peut contenir, sans dépasser la fin du segment
+		private void fill(FileChannel in, ByteBuffer buf, long pos, long size) throws IOException {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), size - pos));
+			readFully(in, buf, pos);
+		}
+
+		History.Message message(long seq) throws IOException {
+			int i = floorEntry(seq);
+			if (i < 0 || seq > lastSeq) return null;
+			History.Message[] found = { null };
+			scan(i, seq + 1, seq, (s, t, record, off, length) -> {
+				found[0] = message(s, t, record, off, length);
+				return false;
+			});
+			return found[0];
+		}
+
+		History.Message[] messages(long[] seqs) throws IOException {
+			History.Message[] messages = new History.Message[seqs.length];
+			for (int i = 0; i < seqs.length; i++) messages[i] = message(seqs[i]);
+			return messages;
+		}
+
+		long messages(long from, int max, Consumer<History.Message> consumer) throws IOException {
+			from = Math.max(1, from);
+			int i = floorEntry(from);
+			if (i < 0 || from > lastSeq) return from - 1;
+			long last = Math.min(lastSeq, from + max - 1);
+			scan(i, last + 1, from, (seq, t, record, off, length) -> {
+				consumer.accept(message(seq, t, record, off, length));
+				return true;
+			});
+			return last;
+		}
+
+		private History.Message message(long seq, long time, ByteBuffer record, int off, int length) {
+			byte[] data = new byte[length];
+			record.position(off + HEADER);
+			record.get(data);
+			return new History.Message(seq, time, new Packet(record.getInt(off + 16), record.getInt(off + 20), data));
+		}
+
+		long replay(long from, int skipSrc, int max, Consumer<Packet> consumer) throws IOException {
+			from = Math.max(1, from);
+			int i = floorEntry(from);
+			if (i < 0 || from > lastSeq) return from - 1;
+			long last = Math.min(lastSeq, from + max - 1);
+			scan(i, last + 1, from, (seq, t, record, off, length) -> {
+				int srcId = record.getInt(off + 16);
+				if (srcId != skipSrc) consumer.accept(message(seq, t, record, off, length).packet);
+				return true;
+			});
+			return last;
+		}
+
+		private void read(int segment, ByteBuffer dst, long pos) throws IOException {
+			readFully(channel(segment), dst, pos);
+		}
+
+		// canal du segment actif, ou du segment complet lu en dernier
+		private FileChannel channel(int segment) throws IOException {
+			if (segment == segments.size() - 1) return channel;
+			if (segment != readerSegment) {
+				closeReader();
+				reader = FileChannel.open(segments.get(segment).path, StandardOpenOption.READ);
+				readerSegment = segment;
+			}
+			return reader;
+		}
+
+		private void closeReader() throws IOException {
+			if (reader != null) reader.close();
+			reader = null;
+			readerSegment = -1;
+		}
+
+		void close() {
+			synchronized (this) {
+				try {
+					if (channel != null) channel.close();
+					if (indexChannel != null) indexChannel.close();
+					closeReader();
+				} catch (IOException e) {
+					LOG.warning("Unable to close history " + dir.getFileName() + " : " + e.getMessage());
+				}
+				channel = null;
+				indexChannel = null;
+			}
+		}
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer dst, long pos) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = ch.read(dst, pos);
+			if (n < 0) throw new IOException("end of history segment");
+			pos += n;
+		}
+	}
+}
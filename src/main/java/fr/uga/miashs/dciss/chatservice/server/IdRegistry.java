@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent map from a dense, non negative int id to an object, without boxing.
+ * Entries are stored in segments of SEGMENT_SIZE slots, allocated on demand, so
+ * the memory used follows the highest id. Reads never lock; writes only lock
+ * when a segment has to be allocated.
+ */
+public class IdRegistry<T> {
+
+	private final static int SHIFT = 12;
+	private final static int SEGMENT_SIZE = 1 << SHIFT;
+	private final static int MASK = SEGMENT_SIZE - 1;
+
+	private volatile AtomicReferenceArray<T>[] segments;
+	private final AtomicInteger size;
+
+	@SuppressWarnings("unchecked")
+	public IdRegistry() {
+		segments = (AtomicReferenceArray<T>[]) new AtomicReferenceArray<?>[0];
+		size = new AtomicInteger();
+	}
+
+	public T get(int id) {
+		if (id < 0) return null;
+		AtomicReferenceArray<T>[] segs = segments;
+		int s = id >>> SHIFT;
+		if (s >= segs.length || segs[s] == null) return null;
+		return segs[s].get(id & MASK);
+	}
+
+	/**
+	 * @return the previous value associated with the id, or null
+	 */
+	public T put(int id, T value) {
+		if (id < 0) throw new IllegalArgumentException("id must not be less than 0");
+		if (value == null) throw new IllegalArgumentException("value cannot be null");
+		T old = segment(id).getAndSet(id & MASK, value);
+		if (old == null) size.incrementAndGet();
+		return old;
+	}
+
+	/**
+	 * @return the removed value, or null if there was none
+	 */
+	public T remove(int id) {
+		if (id < 0) return null;
+		AtomicReferenceArray<T>[] segs = segments;
+		int s = id >>> SHIFT;
+		if (s >= segs.length || segs[s] == null) return null;
+		T old = segs[s].getAndSet(id & MASK, null);
+		if (old != null) size.decrementAndGet();
+		return old;
+	}
+
+	private AtomicReferenceArray<T> segment(int id) {
+		int s = id >>> SHIFT;
+		AtomicReferenceArray<T>[] segs = segments;
+		if (s < segs.length && segs[s] != null) return segs[s];
+		synchronized (this) {
+			segs = segments;
+			if (s >= segs.length) {
+				segs = Arrays.copyOf(segs, Math.max(s + 1, segs.length * 2));
+			} else {
+				segs = segs.clone();
+			}
+			if (segs[s] == null) segs[s] = new AtomicReferenceArray<>(SEGMENT_SIZE);
+			segments = segs;
+			return segs[s];
+		}
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Weakly consistent iteration, in id order.
+	 */
+	public void forEach(Consumer<? super T> action) {
+		for (AtomicReferenceArray<T> seg : segments) {
+			if (seg == null) continue;
+			for (int i = 0; i < SEGMENT_SIZE; i++) {
+				T v = seg.get(i);
+				if (v != null) action.accept(v);
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the current values
+	 */
+	public List<T> values() {
+		List<T> res = new ArrayList<>(size());
+		forEach(res::add);
+		return res;
+	}
+}
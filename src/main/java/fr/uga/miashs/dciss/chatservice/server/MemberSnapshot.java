@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable set of the members of a group. The ids are kept in a primitive
+ * array, with an open addressing hash table for the membership checks.
+ * A GroupMsg replaces its snapshot on each change, so readers never lock.
+ */
+public final class MemberSnapshot {
+
+	public static final MemberSnapshot EMPTY = new MemberSnapshot(new UserMsg[0]);
+
+	private final UserMsg[] users;
+	private final int[] ids;
+	// table de hachage des identifiants (0 = case vide, les id utilisateurs sont > 0)
+	private final int[] table;
+	private final int mask;
+
+	private MemberSnapshot(UserMsg[] users) {
+		this(users, users.length);
+	}
+
+	/*
+	 * Table dimensionnée pour tout le tableau, mais seuls les n premiers utilisateurs y sont :
+	 * les suivants sont ajoutés par add() (construction de withAll).
+	 */
+	private MemberSnapshot(UserMsg[] users, int n) {
+		this.users = users;
+		ids = new int[users.length];
+		int capacity = Integer.highestOneBit(Math.max(4, users.length * 2 - 1)) << 1;
+		table = new int[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < n; i++) {
+			ids[i] = users[i].getId();
+			int slot = slot(ids[i]);
+			while (table[slot] != 0) slot = (slot + 1) & mask;
+			table[slot] = ids[i];
+		}
+	}
+
+	// seulement pendant la construction, avant toute publication
+	private boolean add(UserMsg u) {
+		int id = u.getId();
+		if (id <= 0) return false;
+		int slot = slot(id);
+		int v;
+		while ((v = table[slot]) != 0) {
+			if (v == id) return false;
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = id;
+		return true;
+	}
+
+	private int slot(int id) {
+		int h = id * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	public boolean contains(int userId) {
+		if (userId <= 0) return false;
+		int slot = slot(userId);
+		int v;
+		while ((v = table[slot]) != 0) {
+			if (v == userId) return true;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return users.length;
+	}
+
+	public UserMsg get(int i) {
+		return users[i];
+	}
+
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * @return a new snapshot with the user added, or this one if it is already a member
+	 */
+	public MemberSnapshot with(UserMsg u) {
+		if (contains(u.getId())) return this;
+		UserMsg[] res = Arrays.copyOf(users, users.length + 1);
+		res[users.length] = u;
+		return new MemberSnapshot(res);
+	}
+
+	/**
+	 * @return a new snapshot with the users added, built once whatever their number ;
+	 * the null users, those already members and the duplicates are skipped.
+	 * This one if no user is added.
+	 */
+	public MemberSnapshot withAll(Collection<UserMsg> added) {
+		UserMsg[] res = Arrays.copyOf(users, users.length + added.size());
+		int n = users.length;
+		// ajoutés au fur et à mesure dans une table de travail : les doublons de la liste y sont vus
+		MemberSnapshot seen = new MemberSnapshot(res, n);
+		for (UserMsg u : added) {
+			if (u != null && seen.add(u)) res[n++] = u;
+		}
+		return n == users.length ? this : new MemberSnapshot(Arrays.copyOf(res, n));
+	}
+
+	/**
+	 * @return a new snapshot without the user, or this one if it is not a member
+	 */
+	public MemberSnapshot without(UserMsg u) {
+		if (!contains(u.getId())) return this;
+		UserMsg[] res = new UserMsg[users.length - 1];
+		int j = 0;
+		for (UserMsg m : users) {
+			if (m.getId() != u.getId()) res[j++] = m;
+		}
+		return new MemberSnapshot(res);
+	}
+
+	/**
+	 * @return a read only list view of the members
+	 */
+	public List<UserMsg> asList() {
+		return Collections.unmodifiableList(Arrays.asList(users));
+	}
+}
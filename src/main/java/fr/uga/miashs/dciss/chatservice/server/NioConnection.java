@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.Delivery;
+import fr.uga.miashs.dciss.chatservice.common.FrameLimits;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * State of a non blocking connection. All the methods except requestWrite() and authenticate()
+ * are called by the owning NioEventLoop thread.
+ * The loop only decodes and encodes frames : the authentication (journal write, offline spool
+ * and group history replay) runs on the handshake pool of the ServerMsg, with the reading
+ * suspended, and the packets are handed over with ServerMsg.offerPacket. When the queue of a
+ * stage is full, the reading is suspended until the loop manages to hand the packet over.
+ * The wire format is the same as in blocking mode : the handshake (int userId + UTF password),
+ * then frames destId/length/data from the client and seq/srcId/destId/length/data to the client
+ * (see common.Delivery).
+ * The length of a frame is checked against the FrameLimits before its data is allocated.
+ */
+public class NioConnection {
+	private final static Logger LOG = Logger.getLogger(NioConnection.class.getName());
+	private final static int READ_BUFFER_SIZE = 16 * 1024;
+
+	private final SocketChannel ch;
+	private final NioEventLoop loop;
+	private final ServerMsg server;
+	private SelectionKey key;
+
+	private final ByteBuffer in;
+	// corps de trame en cours de lecture (null si on attend un entête)
+	private byte[] body;
+	private int bodyPos;
+	private int bodyDest;
+	// message en cours de lecture, directement dans sa trame (tampon du pool)
+	private SharedFrame frame;
+	private ByteBuffer frameBody;
+
+	private UserMsg user;
+	// authentification en cours dans le pool des handshakes
+	private boolean authenticating;
+	// paquet refusé par une file pleine, la lecture reprend une fois qu'il est accepté
+	private Packet stalled;
+	// numéro, entête + données du paquet en cours d'envoi
+	private ByteBuffer[] pending;
+	private final ByteBuffer seqBuf;
+	private Packet pendingPacket;
+	// contenu de fichier envoyé après pending (FileRegionPacket), sans copie
+	private FileChannel region;
+	private long regionPos;
+	private long regionEnd;
+	private final AtomicBoolean writeRequested;
+	private final long handshakeDeadline;
+
+	public NioConnection(SocketChannel ch, NioEventLoop loop, ServerMsg server, long handshakeDeadline) {
+		this.ch = ch;
+		this.handshakeDeadline = handshakeDeadline;
+		this.loop = loop;
+		this.server = server;
+		in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		seqBuf = ByteBuffer.allocate(8);
+		writeRequested = new AtomicBoolean();
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	long getHandshakeDeadline() {
+		return handshakeDeadline;
+	}
+
+	boolean isAuthenticated() {
+		return user != null;
+	}
+
+	boolean isAuthenticating() {
+		return authenticating;
+	}
+
+	public Socket socket() {
+		return ch.socket();
+	}
+
+	void onReadable() throws IOException {
+		int n = ch.read(in);
+		if (n < 0) throw new IOException("end of stream");
+		decodeBuffered();
+	}
+
+	private void decodeBuffered() throws IOException {
+		in.flip();
+		try {
+			decode();
+		} finally {
+			in.compact();
+		}
+	}
+
+	// opérations à surveiller : pas de lecture pendant l'authentification ou un paquet en attente
+	private int readOps() {
+		return authenticating || stalled != null ? 0 : SelectionKey.OP_READ;
+	}
+
+	/*
+	 * Confie le paquet à ServerMsg. Si la file de son étage est pleine, la lecture est
+	 * suspendue et la boucle le représente plus tard (resume) : retourne false.
+	 */
+	private boolean dispatch(Packet p) throws IOException {
+		if (server.offerPacket(user, p)) return true;
+		stalled = p;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		loop.stall(this);
+		return false;
+	}
+
+	/**
+	 * Called by the loop to hand over again the packet refused by a full queue.
+	 */
+	void resume() throws IOException {
+		if (stalled == null || !key.isValid()) return;
+		if (!server.offerPacket(user, stalled)) {
+			loop.stall(this);
+			return;
+		}
+		stalled = null;
+		key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		decodeBuffered();
+	}
+
+	private void decode() throws IOException {
+		while (true) {
+			if (frameBody != null) {
+				int n = Math.min(in.remaining(), frameBody.remaining());
+				ByteBuffer src = in.duplicate();
+				src.limit(src.position() + n);
+				frameBody.put(src);
+				in.position(in.position() + n);
+				if (frameBody.hasRemaining()) return;
+				SharedFrame f = frame;
+				frame = null;
+				frameBody = null;
+				if (!dispatch(new FramedPacket(f))) return;
+			} else if (body != null) {
+				int n = Math.min(in.remaining(), body.length - bodyPos);
+				in.get(body, bodyPos, n);
+				bodyPos += n;
+				if (bodyPos < body.length) return;
+				byte[] content = body;
+				body = null;
+				// on envoie le paquet à ServerMsg pour qu'il le gère
+				if (!dispatch(new Packet(user.getId(), bodyDest, content))) return;
+			} else if (user == null) {
+				// la suite est décodée une fois l'utilisateur authentifié
+				if (authenticating || !handshake()) return;
+			} else {
+				// entête et type du paquet, pour vérifier la taille avant d'allouer
+				if (in.remaining() < 8) return;
+				int length = in.getInt(in.position() + 4);
+				if (length > 0 && in.remaining() < 9) return;
+				int dest = in.getInt(in.position());
+				checkLength(dest, length, length > 0 ? in.get(in.position() + 8) : 0);
+				in.position(in.position() + 8);
+				if (dest != 0) {
+					frame = SharedFrame.allocate(server.getBufferPool(), user.getId(), dest, length);
+					frameBody = frame.body();
+				} else {
+					bodyDest = dest;
+					body = new byte[length];
+					bodyPos = 0;
+				}
+			}
+		}
+	}
+
+	private void checkLength(int dest, int length, byte type) throws IOException {
+		FrameLimits limits = server.getFrameLimits();
+		if (length < 0 || length > limits.limit(dest, type)) {
+			throw new IOException("frame of " + length + " bytes (type " + type + ") refused for " + user.getId());
+		}
+	}
+
+	/*
+	 * Lecture de l'identifiant (int) et du mot de passe (writeUTF) du client, puis
+	 * authentification dans le pool des handshakes. Retourne false tant que toutes les
+	 * données ne sont pas arrivées.
+	 */
+	private boolean handshake() throws IOException {
+		if (in.remaining() < 6) return false;
+		int start = in.position();
+		int utfLength = in.getShort(start + 4) & 0xFFFF;
+		if (in.remaining() < 6 + utfLength) return false;
+		int userId = in.getInt();
+		byte[] utf = new byte[2 + utfLength];
+		in.get(utf);
+		String password = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+
+		authenticating = true;
+		key.interestOps(0);
+		try {
+			server.getHandshakes().execute(() -> authenticate(userId, password));
+		} catch (RejectedExecutionException e) {
+			throw new IOException("too many pending logins, connection refused");
+		}
+		return true;
+	}
+
+	/*
+	 * Exécutée dans le pool des handshakes : l'enregistrement d'un nouvel utilisateur attend
+	 * le journal et l'ouverture de la session relit le spool et l'historique des groupes.
+	 */
+	private void authenticate(int requested, String password) {
+		try {
+			int userId = server.registerIfNew(requested, password);
+			UserMsg x = server.authenticate(userId, password);
+			if (x == null || !x.open(this, x.getUsername())) {
+				throw new IOException("authentication failed for " + userId);
+			}
+			loop.execute(() -> authenticated(x, requested == 0));
+		} catch (IOException | RuntimeException e) {
+			LOG.warning("Handshake failed for " + socket().getRemoteSocketAddress() + " : " + e.getMessage());
+			loop.execute(this::close);
+		}
+	}
+
+	/*
+	 * Retour dans la boucle une fois la session ouverte : envoi de l'identifiant attribué puis
+	 * des limites des trames et de l'état de la livraison, avant tout autre paquet, et
+	 * décodage des trames arrivées avec le handshake.
+	 */
+	private void authenticated(UserMsg x, boolean created) {
+		authenticating = false;
+		user = x;
+		if (!key.isValid()) {
+			// connexion fermée pendant l'authentification
+			close();
+			return;
+		}
+		ByteBuffer limits = server.getFrameLimits().encode();
+		ByteBuffer delivery = new Delivery(server.getEpoch(), x.getDeliveryWindow().getAcked()).encode();
+		if (created) {
+			ByteBuffer idBuf = ByteBuffer.allocate(4);
+			idBuf.putInt(0, x.getId());
+			pending = new ByteBuffer[] { idBuf, limits, delivery };
+		} else {
+			pending = new ByteBuffer[] { limits, delivery };
+		}
+		LOG.info(x.getId() + " connected");
+		try {
+			writeRequested.set(true);
+			onWritable();
+			decodeBuffered();
+		} catch (IOException | RuntimeException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Called by UserMsg (from any thread) when a packet has been queued for this connection.
+	 */
+	void requestWrite() {
+		if (writeRequested.compareAndSet(false, true)) {
+			loop.execute(() -> {
+				try {
+					onWritable();
+				} catch (IOException e) {
+					close();
+				}
+			});
+		}
+	}
+
+	void onWritable() throws IOException {
+		// avant la fin de l'authentification, authenticated() lancera l'écriture
+		if (!key.isValid() || user == null) return;
+		while (true) {
+			if (pending == null) {
+				long seq = user.nextOutgoing();
+				if (seq == 0) {
+					key.interestOps(readOps());
+					writeRequested.set(false);
+					// un paquet a pu arriver entre le poll et le reset du drapeau
+					if (!user.hasOutgoing() || !writeRequested.compareAndSet(false, true)) return;
+					continue;
+				}
+				// référence gardée jusqu'à la fin de l'écriture, la fenêtre garde la sienne
+				Packet p = user.getDeliveryWindow().get(seq);
+				if (p == null) continue;
+				seqBuf.clear();
+				seqBuf.putLong(seq).flip();
+				if (p instanceof FramedPacket) {
+					// trame partagée déjà encodée : écrite sans copie
+					pending = new ByteBuffer[] { seqBuf, ((FramedPacket) p).frame.view() };
+				} else if (p instanceof FileRegionPacket) {
+					FileRegionPacket r = (FileRegionPacket) p;
+					try {
+						region = r.open();
+					} catch (IOException e) {
+						LOG.warning("File region for " + user.getId() + " not sent : " + e.getMessage());
+						continue;
+					}
+					regionPos = r.position;
+					regionEnd = r.position + r.count;
+					pending = new ByteBuffer[] { seqBuf, r.frameHeader() };
+				} else {
+					ByteBuffer header = ByteBuffer.allocate(12);
+					header.putInt(p.srcId).putInt(p.destId).putInt(p.data.length).flip();
+					pending = new ByteBuffer[] { seqBuf, header, ByteBuffer.wrap(p.data) };
+				}
+				pendingPacket = p;
+			}
+			boolean headerDone;
+			try {
+				ch.write(pending);
+				headerDone = !pending[pending.length - 1].hasRemaining();
+				if (headerDone && region != null && regionPos < regionEnd) {
+					long n = region.transferTo(regionPos, regionEnd - regionPos, ch);
+					if (n == 0 && regionPos >= region.size()) throw new IOException("file region beyond the end of the file");
+					regionPos += n;
+				}
+			} catch (IOException e) {
+				// le paquet reste dans la fenêtre, il sera renvoyé à la reconnexion
+				closeRegion();
+				if (pendingPacket != null) SharedFrame.release(pendingPacket);
+				pendingPacket = null;
+				pending = null;
+				throw e;
+			}
+			if (!headerDone || (region != null && regionPos < regionEnd)) {
+				// socket pleine : on attend qu'elle soit de nouveau inscriptible
+				key.interestOps(readOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			closeRegion();
+			pending = null;
+			if (pendingPacket != null) SharedFrame.release(pendingPacket);
+			pendingPacket = null;
+		}
+	}
+
+	private void closeRegion() {
+		if (region == null) return;
+		try {
+			region.close();
+		} catch (IOException ignored) {
+		}
+		region = null;
+	}
+
+	void close() {
+		closeRegion();
+		if (stalled != null) {
+			SharedFrame.release(stalled);
+			stalled = null;
+		}
+		if (pendingPacket != null) {
+			SharedFrame.release(pendingPacket);
+			pendingPacket = null;
+		}
+		if (frame != null) {
+			frame.release();
+			frame = null;
+			frameBody = null;
+		}
+		if (key != null) key.cancel();
+		if (user != null && user.isAttachedTo(this)) {
+			LOG.warning("Connection with client " + user.getId() + " is broken...close it.");
+			user.close();
+		} else {
+			try {
+				ch.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
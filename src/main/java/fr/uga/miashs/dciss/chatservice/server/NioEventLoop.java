@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A selector thread that multiplexes the connections assigned to it.
+ * Other threads never touch the selector directly : they submit tasks with
+ * execute(), which are run by the loop between two select().
+ * The loop never blocks but in select() : no wait for the journal nor disk read (the
+ * authentication and the control packets run on other threads), and a connection whose
+ * packet is refused by a full queue stops reading until the loop manages to hand it over.
+ */
+public class NioEventLoop implements Runnable {
+	private final static Logger LOG = Logger.getLogger(NioEventLoop.class.getName());
+	// délai en millisecondes avant de représenter un paquet refusé par une file pleine
+	private final static int STALL_RETRY = 1;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final ServerMsg server;
+	private final Thread thread;
+	private volatile boolean running;
+	// connexions en attente d'authentification, par ordre d'échéance
+	private final Queue<NioConnection> handshaking;
+	private final int handshakeTimeout;
+	// connexions dont un paquet attend de la place dans une file de traitement
+	private final Queue<NioConnection> stalled;
+
+	public NioEventLoop(ServerMsg server, int index, int handshakeTimeout) throws IOException {
+		this.server = server;
+		this.handshakeTimeout = handshakeTimeout;
+		handshaking = new ArrayDeque<>();
+		stalled = new ArrayDeque<>();
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		thread = new LoopThread(this, "nio-loop-" + index);
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		running = true;
+		thread.start();
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	// threads des boucles, reconnus par inAnyEventLoop()
+	private static class LoopThread extends Thread {
+		LoopThread(Runnable loop, String name) {
+			super(loop, name);
+		}
+	}
+
+	/**
+	 * @return true if the current thread is the thread of an event loop, which must never block
+	 */
+	public static boolean inAnyEventLoop() {
+		return Thread.currentThread() instanceof LoopThread;
+	}
+
+	/**
+	 * Run the task on the loop thread (immediately if already on it).
+	 */
+	public void execute(Runnable task) {
+		if (inEventLoop()) {
+			task.run();
+		} else {
+			tasks.offer(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Hand over a freshly accepted channel to this loop.
+	 */
+	public void register(SocketChannel ch) {
+		execute(() -> {
+			try {
+				ch.configureBlocking(false);
+				NioConnection c = new NioConnection(ch, this, server, System.currentTimeMillis() + handshakeTimeout);
+				c.setKey(ch.register(selector, SelectionKey.OP_READ, c));
+				handshaking.offer(c);
+			} catch (IOException e) {
+				LOG.warning("Unable to register connection : " + e.getMessage());
+				try {
+					ch.close();
+				} catch (IOException ignored) {
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select(!stalled.isEmpty() ? STALL_RETRY : handshaking.isEmpty() ? 0 : handshakeTimeout);
+				runTasks();
+				expireHandshakes();
+				retryStalled();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey k = it.next();
+					it.remove();
+					NioConnection c = (NioConnection) k.attachment();
+					try {
+						if (k.isReadable()) c.onReadable();
+						if (k.isValid() && k.isWritable()) c.onWritable();
+					} catch (IOException | RuntimeException e) {
+						// même comportement que receiveLoop : la connexion est fermée
+						if (!(e instanceof IOException || e instanceof CancelledKeyException))
+							LOG.warning("Error while handling connection : " + e);
+						c.close();
+					}
+				}
+			} catch (IOException e) {
+				LOG.warning("Selector failure in " + thread.getName() + " : " + e.getMessage());
+			}
+		}
+		selector.keys().forEach(k -> ((NioConnection) k.attachment()).close());
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/*
+	 * Ferme les connexions qui ne se sont pas authentifiées à temps.
+	 */
+	private void expireHandshakes() {
+		long now = System.currentTimeMillis();
+		NioConnection c;
+		while ((c = handshaking.peek()) != null
+				&& (c.isAuthenticated() || c.isAuthenticating() || c.getHandshakeDeadline() <= now)) {
+			handshaking.poll();
+			// une authentification commencée se termine dans le pool des handshakes
+			if (!c.isAuthenticated() && !c.isAuthenticating()) {
+				LOG.warning("Handshake timeout for " + c.socket().getRemoteSocketAddress());
+				c.close();
+			}
+		}
+	}
+
+	/*
+	 * Suspend la lecture de la connexion jusqu'à ce que son paquet soit accepté.
+	 */
+	void stall(NioConnection c) {
+		stalled.offer(c);
+	}
+
+	private void retryStalled() {
+		for (int n = stalled.size(); n > 0; n--) {
+			NioConnection c = stalled.poll();
+			try {
+				// se réinscrit dans stalled si la file est toujours pleine
+				c.resume();
+			} catch (IOException | RuntimeException e) {
+				c.close();
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable r;
+		while ((r = tasks.poll()) != null) {
+			try {
+				r.run();
+			} catch (RuntimeException e) {
+				LOG.warning("Task failed in " + thread.getName() + " : " + e);
+			}
+		}
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+}
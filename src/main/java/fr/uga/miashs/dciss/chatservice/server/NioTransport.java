@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Non blocking transport of ServerMsg : connections are accepted by the thread
+ * calling acceptLoop() and dispatched in round robin to a fixed number of NioEventLoops.
+ * The handshake is decoded by the event loops and the authentication runs on the handshake
+ * pool of the ServerMsg, so the accept loop does nothing but accept.
+ */
+public class NioTransport {
+	private final static Logger LOG = Logger.getLogger(NioTransport.class.getName());
+
+	private final ServerSocketChannel serverChannel;
+	private final NioEventLoop[] loops;
+	private volatile boolean started;
+
+	public NioTransport(ServerMsg server, int port, ServerConfig config) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+		loops = new NioEventLoop[config.getEventLoops()];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new NioEventLoop(server, i, config.getHandshakeTimeout());
+		}
+	}
+
+	public void acceptLoop() {
+		started = true;
+		for (NioEventLoop l : loops) l.start();
+		LOG.info("NIO transport started with " + loops.length + " event loops");
+		int next = 0;
+		while (started) {
+			try {
+				SocketChannel ch = serverChannel.accept();
+				loops[next].register(ch);
+				next = (next + 1) % loops.length;
+			} catch (IOException e) {
+				if (started) LOG.warning("Accept failed : " + e.getMessage());
+				else LOG.info("Close server");
+			}
+		}
+	}
+
+	public void stop() throws IOException {
+		started = false;
+		serverChannel.close();
+		for (NioEventLoop l : loops) l.stop();
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Persistent store of the packets sent to users who are not connected.
+ * Users are spread over shards (userId modulo the number of shards). Each shard
+ * appends its packets to memory mapped segment files and keeps, for each recipient,
+ * the position of its pending records. Only these positions stay in the heap.
+ *
+ * Record format : recipient (int), srcId (int), destId (int), length (int), data.
+ * A record with a negative recipient and no data marks that records of -recipient
+ * have been delivered : all the previous ones if its second field is 0, otherwise those
+ * up to the record at (segment = second field - 1, offset = third field). Segments are
+ * deleted, oldest first, once all their records have been delivered. The index is rebuilt
+ * from the segments when the spool is opened, so the backlogs survive a restart.
+ *
+ * close() forces the segments to disk and unmaps them; the spool can not be used afterwards.
+ */
+public class OfflineSpool {
+	private final static Logger LOG = Logger.getLogger(OfflineSpool.class.getName());
+	private final static int HEADER = 16;
+	// sun.misc.Unsafe.invokeCleaner(ByteBuffer), pour libérer les segments sans attendre le GC
+	private final static Object UNSAFE;
+	private final static Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+			invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.fine("Mapped segments will be released by the GC : " + e);
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final Shard[] shards;
+
+	public OfflineSpool(Path dir, int nbShards, int segmentSize) throws IOException {
+		shards = new Shard[nbShards];
+		for (int i = 0; i < nbShards; i++) {
+			shards[i] = new Shard(dir.resolve("shard-" + i), segmentSize);
+		}
+	}
+
+	private Shard shard(int userId) {
+		return shards[userId % shards.length];
+	}
+
+	/**
+	 * Store a packet for an offline user.
+	 * @return false if the packet could not be written
+	 */
+	public boolean append(int userId, Packet p) {
+		try {
+			shard(userId).append(userId, p);
+			return true;
+		} catch (IOException e) {
+			LOG.warning("Unable to spool packet for user " + userId + " : " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Give the pending packets of the user to the consumer, in the order they were
+	 * appended, and forget them.
+	 * @return the number of packets
+	 */
+	public int drain(int userId, Consumer<Packet> consumer) {
+		return drain(userId, Integer.MAX_VALUE, consumer);
+	}
+
+	/**
+	 * Give at most max of the oldest pending packets of the user to the consumer, in the order
+	 * they were appended, and forget them. The following ones stay in the spool.
+	 * @return the number of packets
+	 */
+	public int drain(int userId, int max, Consumer<Packet> consumer) {
+		try {
+			return shard(userId).drain(userId, max, consumer);
+		} catch (IOException e) {
+			LOG.warning("Unable to read the spool of user " + userId + " : " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the number of packets waiting for the user
+	 */
+	public int pending(int userId) {
+		return shard(userId).pending(userId);
+	}
+
+	/**
+	 * Force the segments to disk and release them. The packets not yet delivered are
+	 * found again when the spool is reopened.
+	 */
+	public void close() {
+		for (Shard s : shards) s.close();
+	}
+
+	private static void unmap(MappedByteBuffer buf) {
+		if (INVOKE_CLEANER == null) return;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buf);
+		} catch (ReflectiveOperationException e) {
+			LOG.fine("Unable to unmap a spool segment : " + e);
+		}
+	}
+
+	// position d'un enregistrement : numéro de segment (32 bits forts) + offset
+	private static long position(int segment, int offset) {
+		return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	private static class Segment {
+		final int seq;
+		final Path path;
+		final MappedByteBuffer buf;
+		int writePos;
+		int live;
+
+		Segment(int seq, Path path, int size) throws IOException {
+			this.seq = seq;
+			this.path = path;
+			try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, ch.size()));
+			}
+		}
+
+		int remaining() {
+			return buf.capacity() - writePos;
+		}
+	}
+
+	// liste de positions sans boxing, les positions remises (avant first) sont oubliées
+	private static class Positions {
+		long[] values = new long[8];
+		int first;
+		int size;
+
+		void add(long v) {
+			if (size == values.length) {
+				if (first >= size / 2) {
+					System.arraycopy(values, first, values, 0, size - first);
+					size -= first;
+					first = 0;
+				} else {
+					values = Arrays.copyOf(values, size * 2);
+				}
+			}
+			values[size++] = v;
+		}
+
+		int remaining() {
+			return size - first;
+		}
+	}
+
+	private static class Shard {
+		final Path dir;
+		final int segmentSize;
+		final ArrayDeque<Segment> segments;
+		final Map<Integer, Segment> bySeq;
+		final Map<Integer, Positions> index;
+		Segment active;
+		boolean closed;
+
+		Shard(Path dir, int segmentSize) throws IOException {
+			this.dir = dir;
+			this.segmentSize = segmentSize;
+			segments = new ArrayDeque<>();
+			bySeq = new HashMap<>();
+			index = new HashMap<>();
+			Files.createDirectories(dir);
+			recover();
+		}
+
+		private void recover() throws IOException {
+			List<Integer> seqs = new ArrayList<>();
+			try (Stream<Path> files = Files.list(dir)) {
+				files.map(f -> f.getFileName().toString())
+						.filter(n -> n.endsWith(".seg"))
+						.forEach(n -> seqs.add(Integer.parseInt(n.substring(0, n.length() - 4))));
+			}
+			Collections.sort(seqs);
+			for (int seq : seqs) {
+				Segment s = open(seq, 0);
+				int pos = 0;
+				while (pos + HEADER <= s.buf.capacity()) {
+					int recipient = s.buf.getInt(pos);
+					if (recipient == 0) break;
+					if (recipient > 0) {
+						index.computeIfAbsent(recipient, k -> new Positions()).add(position(seq, pos));
+						s.live++;
+						pos += HEADER + s.buf.getInt(pos + 12);
+					} else {
+						int seg = s.buf.getInt(pos + 4);
+						forget(-recipient, seg == 0 ? Long.MAX_VALUE : position(seg - 1, s.buf.getInt(pos + 8)));
+						pos += HEADER;
+					}
+				}
+				s.writePos = pos;
+			}
+			deleteDelivered();
+		}
+
+		private Segment open(int seq, int minSize) throws IOException {
+			Segment s = new Segment(seq, dir.resolve(seq + ".seg"), Math.max(segmentSize, minSize));
+			segments.addLast(s);
+			bySeq.put(seq, s);
+			active = s;
+			return s;
+		}
+
+		private Segment room(int size) throws IOException {
+			if (active == null || active.remaining() < size) {
+				open(active == null ? 0 : active.seq + 1, size);
+			}
+			return active;
+		}
+
+		synchronized void append(int userId, Packet p) throws IOException {
+			if (closed) throw new IOException("spool closed");
+			Segment s = room(HEADER + p.data.length);
+			int pos = s.writePos;
+			s.buf.putInt(pos + 4, p.srcId);
+			s.buf.putInt(pos + 8, p.destId);
+			s.buf.putInt(pos + 12, p.data.length);
+			s.buf.duplicate().position(pos + HEADER).put(p.data);
+			// le destinataire en dernier : un enregistrement incomplet est ignoré à la relecture
+			s.buf.putInt(pos, userId);
+			s.writePos = pos + HEADER + p.data.length;
+			s.live++;
+			index.computeIfAbsent(userId, k -> new Positions()).add(position(s.seq, pos));
+		}
+
+		synchronized int drain(int userId, int max, Consumer<Packet> consumer) throws IOException {
+			if (closed) throw new IOException("spool closed");
+			Positions list = index.get(userId);
+			if (list == null || max <= 0) return 0;
+			int n = Math.min(max, list.remaining());
+			int end = list.first + n;
+			for (int i = list.first; i < end; i++) {
+				Segment s = bySeq.get((int) (list.values[i] >>> 32));
+				int pos = (int) list.values[i];
+				byte[] data = new byte[s.buf.getInt(pos + 12)];
+				s.buf.duplicate().position(pos + HEADER).get(data);
+				consumer.accept(new Packet(s.buf.getInt(pos + 4), s.buf.getInt(pos + 8), data));
+			}
+			// marque de remise (jusqu'au dernier enregistrement remis si d'autres restent),
+			// puis oubli des enregistrements
+			long last = end == list.size ? Long.MAX_VALUE : list.values[end - 1];
+			Segment s = room(HEADER);
+			s.buf.putInt(s.writePos + 4, last == Long.MAX_VALUE ? 0 : (int) (last >>> 32) + 1);
+			s.buf.putInt(s.writePos + 8, (int) last);
+			s.buf.putInt(s.writePos, -userId);
+			s.writePos += HEADER;
+			forget(userId, last);
+			deleteDelivered();
+			return n;
+		}
+
+		// oublie les enregistrements de l'utilisateur jusqu'à la position last (incluse)
+		private void forget(int userId, long last) {
+			Positions list = index.get(userId);
+			if (list == null) return;
+			while (list.first < list.size && list.values[list.first] <= last) {
+				bySeq.get((int) (list.values[list.first] >>> 32)).live--;
+				list.first++;
+			}
+			if (list.remaining() == 0) index.remove(userId);
+		}
+
+		// les segments sont supprimés dans l'ordre, pour que les marques de remise
+		// survivent aux enregistrements qu'elles annulent
+		private void deleteDelivered() throws IOException {
+			Segment s;
+			while ((s = segments.peekFirst()) != null && s != active && s.live == 0) {
+				segments.pollFirst();
+				bySeq.remove(s.seq);
+				unmap(s.buf);
+				Files.deleteIfExists(s.path);
+			}
+		}
+
+		synchronized int pending(int userId) {
+			Positions list = index.get(userId);
+			return list == null ? 0 : list.remaining();
+		}
+
+		synchronized void close() {
+			if (closed) return;
+			closed = true;
+			for (Segment s : segments) {
+				try {
+					s.buf.force();
+				} catch (UncheckedIOException e) {
+					LOG.warning("Unable to force spool segment " + s.path + " : " + e.getMessage());
+				}
+				unmap(s.buf);
+			}
+			segments.clear();
+			bySeq.clear();
+			index.clear();
+			active = null;
+		}
+	}
+}
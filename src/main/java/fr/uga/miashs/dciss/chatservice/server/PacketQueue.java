@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Bounded lock free queue of packets. Any thread can offer packets, a single consumer takes them.
+ * The packets are kept in rings of slots : nothing is allocated before the first offer, the
+ * first ring has INITIAL_CAPACITY slots and, when it is full, a ring twice as large is chained
+ * after it, up to the capacity of the queue. Once the ring of full capacity is reached, offering
+ * a packet allocates nothing.
+ * Positions are numbered across the rings. Each slot has a sequence number telling whether it
+ * is free for the producer of a given position or holds the packet of a given position, so
+ * producers only compete on a CAS of the tail of the last ring. A full ring is closed by
+ * replacing its tail by a negative value before chaining the next one, and the consumer moves
+ * to the next ring once it has taken the last position of a closed ring.
+ * The head is also advanced by CAS, so that a producer can exceptionally remove the oldest
+ * packet (SendQueue.OverflowPolicy.DROP_OLDEST); the consumer is otherwise alone on it and its
+ * CAS never fails.
+ * When the queue is empty, the consumer parks and registers itself as waiter : a producer
+ * unparks it only in this case, and only one producer does.
+ */
+public class PacketQueue implements SendQueue.Buffer {
+	final static int INITIAL_CAPACITY = 16;
+
+	private final static class Ring {
+		private final int capacity;
+		private final Packet[] packets;
+		// date de mise en file de chaque paquet, pour connaître l'âge du plus ancien
+		private final long[] queuedAt;
+		// position + 1 si la case contient le paquet de cette position,
+		// position si elle est libre pour le producteur de cette position
+		private final AtomicLongArray sequences;
+		// prochaine position à produire, -(dernière position + 1) - 1 une fois l'anneau fermé
+		private final AtomicLong tail;
+		private volatile Ring next;
+
+		private Ring(int capacity, long start) {
+			this.capacity = capacity;
+			packets = new Packet[capacity];
+			queuedAt = new long[capacity];
+			sequences = new AtomicLongArray(capacity);
+			// première position à partir de start qui tombe dans chaque case
+			for (long pos = start; pos < start + capacity; pos++) sequences.set(index(pos), pos);
+			tail = new AtomicLong(start);
+		}
+
+		private int index(long pos) {
+			return (int) (pos % capacity);
+		}
+	}
+
+	private final int capacity;
+	// anneau du consommateur, null avant le premier paquet
+	private final AtomicReference<Ring> first;
+	// dernier anneau connu des producteurs : un indice, les suivants sont retrouvés par next
+	private volatile Ring last;
+	private final AtomicLong head;
+	// consommateur endormi, null s'il est actif
+	private final AtomicReference<Thread> waiter;
+
+	public PacketQueue(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+		this.capacity = capacity;
+		first = new AtomicReference<>();
+		head = new AtomicLong();
+		waiter = new AtomicReference<>();
+	}
+
+	private static long end(long closedTail) {
+		return -closedTail - 1;
+	}
+
+	private Ring producerRing() {
+		Ring r = last;
+		if (r != null) return r;
+		r = first.get();
+		if (r == null) {
+			Ring created = new Ring(Math.min(INITIAL_CAPACITY, capacity), 0);
+			r = first.compareAndSet(null, created) ? created : first.get();
+		}
+		last = r;
+		return r;
+	}
+
+	// anneau suivant d'un anneau fermé : son producteur l'accroche juste après la fermeture
+	private static Ring next(Ring r) {
+		Ring n;
+		while ((n = r.next) == null) Thread.onSpinWait();
+		return n;
+	}
+
+	/**
+	 * Add a packet at the end of the queue.
+	 * @return false if the queue is full
+	 */
+	public boolean offer(Packet p) {
+		Ring r = producerRing();
+		while (true) {
+			long pos = r.tail.get();
+			if (pos < 0) {
+				r = next(r);
+				last = r;
+				continue;
+			}
+			int i = r.index(pos);
+			long dif = r.sequences.get(i) - pos;
+			if (dif == 0) {
+				// les anneaux précédents peuvent encore contenir des paquets
+				if (pos - head.get() >= capacity) return false;
+				if (r.tail.compareAndSet(pos, pos + 1)) {
+					r.packets[i] = p;
+					r.queuedAt[i] = System.currentTimeMillis();
+					// publie le paquet (écriture volatile après les deux précédentes)
+					r.sequences.set(i, pos + 1);
+					signal();
+					return true;
+				}
+			} else if (dif < 0) {
+				// la case contient encore le paquet d'il y a un tour : anneau plein
+				if (r.capacity == capacity || pos - head.get() >= capacity) return false;
+				if (r.tail.compareAndSet(pos, -pos - 1)) {
+					Ring n = new Ring(Math.min(capacity, 2 * r.capacity), pos);
+					r.next = n;
+					last = n;
+					r = n;
+				}
+			}
+			// sinon un autre producteur a pris cette position
+		}
+	}
+
+	private void signal() {
+		Thread w = waiter.get();
+		if (w != null && waiter.compareAndSet(w, null)) LockSupport.unpark(w);
+	}
+
+	/*
+	 * Anneau contenant la position pos, lue sur la tête avant l'appel, en passant les
+	 * anneaux fermés et vidés. Si la tête a avancé depuis, la case de pos dans l'anneau
+	 * rendu ne contient pas son paquet et l'appelant relit la tête.
+	 */
+	private Ring ring(long pos) {
+		Ring r = first.get();
+		while (r != null) {
+			long t = r.tail.get();
+			if (t >= 0 || pos < end(t)) return r;
+			Ring n = next(r);
+			first.compareAndSet(r, n);
+			r = n;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the oldest packet, or null if the queue is empty
+	 */
+	public Packet poll() {
+		while (true) {
+			long pos = head.get();
+			Ring r = ring(pos);
+			if (r == null) return null;
+			int i = r.index(pos);
+			long dif = r.sequences.get(i) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					Packet p = r.packets[i];
+					r.packets[i] = null;
+					// libère la case pour le producteur du tour suivant
+					r.sequences.set(i, pos + r.capacity);
+					return p;
+				}
+			} else if (dif < 0) {
+				// vide, ou le producteur de cette position n'a pas encore publié son paquet :
+				// il réveillera le consommateur en le publiant
+				if (head.get() == pos) return null;
+			}
+		}
+	}
+
+	/**
+	 * Wait for a packet, parking the consumer thread while the queue is empty.
+	 */
+	public Packet take() throws InterruptedException {
+		Packet p;
+		while ((p = poll()) == null) {
+			park(0);
+		}
+		return p;
+	}
+
+	/**
+	 * @return the oldest packet, or null if none has arrived before the timeout
+	 */
+	public Packet poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Packet p;
+		while ((p = poll()) == null) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) return null;
+			park(left);
+		}
+		return p;
+	}
+
+	/*
+	 * Endort le consommateur, après s'être déclaré et avoir vérifié une dernière fois
+	 * la file : un paquet publié avant la déclaration serait sinon attendu pour rien.
+	 */
+	private void park(long nanos) throws InterruptedException {
+		Thread me = Thread.currentThread();
+		waiter.set(me);
+		if (isEmpty()) {
+			if (nanos > 0) LockSupport.parkNanos(this, nanos);
+			else LockSupport.park(this);
+		}
+		waiter.compareAndSet(me, null);
+		if (Thread.interrupted()) throw new InterruptedException();
+	}
+
+	/**
+	 * Move at most maxElements packets to c.
+	 * @return the number of packets moved
+	 */
+	public int drainTo(List<Packet> c, int maxElements) {
+		int n = 0;
+		Packet p;
+		while (n < maxElements && (p = poll()) != null) {
+			c.add(p);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if no packet can be polled
+	 */
+	public boolean isEmpty() {
+		long pos = head.get();
+		Ring r = ring(pos);
+		if (r == null) return true;
+		return r.sequences.get(r.index(pos)) != pos + 1;
+	}
+
+	public int size() {
+		Ring r = last;
+		if (r == null) return 0;
+		long t;
+		while ((t = r.tail.get()) < 0) r = next(r);
+		long n = t - head.get();
+		return (int) Math.max(0, Math.min(capacity, n));
+	}
+
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	/**
+	 * @return the time at which the oldest packet was queued, 0 if the queue is empty.
+	 * Can be called from any thread, the value is then approximate.
+	 */
+	public long oldestQueuedAt() {
+		long pos = head.get();
+		Ring r = ring(pos);
+		if (r == null) return 0;
+		int i = r.index(pos);
+		if (r.sequences.get(i) != pos + 1) return 0;
+		long t = r.queuedAt[i];
+		// la case a pu être consommée pendant la lecture
+		return head.get() == pos ? t : 0;
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Immutable segment of the full-text index (SearchIndex), in one memory mapped file.
+ * The documents (indexed messages) of a segment are numbered from its base, the postings
+ * use the number of the document in the segment (local number, from 0).
+ *
+ * File format :
+ * documents : for each document, conversation (long) + sequence number in the conversation (long)
+ * postings : for each term, number of documents n (varint), number of skip entries (varint),
+ * skip entries (local number of the document before the block (int), offset of the block in the
+ * data (int)), data : gaps between the local numbers + 1, as varints. A skip entry starts each
+ * block of SKIP_BLOCK documents but the first one, a cursor can jump to it without decoding the
+ * previous blocks.
+ * terms : UTF-8 bytes of the terms, in unsigned byte order, concatenated
+ * term table : for each term, offset of its bytes (int) + offset of its postings in the file (long)
+ * footer : base (long), documents (int), terms (int), postings offset (long), terms offset (long),
+ * table offset (long), MAGIC (int)
+ */
+class SearchSegment {
+	final static int SKIP_BLOCK = 128;
+	final static int NO_MORE = Integer.MAX_VALUE;
+	private final static int MAGIC = 0x53524348;
+	private final static int FOOTER = 44;
+	private final static int TABLE_ENTRY = 12;
+	private final static int DOC = 16;
+
+	/**
+	 * Iteration over the local numbers of the documents containing a term, in order.
+	 */
+	interface Cursor {
+		/**
+		 * @return the next document, NO_MORE at the end
+		 */
+		int next();
+
+		/**
+		 * @return the first document >= target after the current one, NO_MORE if there is none
+		 */
+		int advance(int target);
+
+		/**
+		 * @return the number of documents of the cursor
+		 */
+		int size();
+	}
+
+	final Path path;
+	final long base;
+	final int docs;
+	private final int terms;
+	private final MappedByteBuffer buf;
+	private final long termsOffset;
+	private final long tableOffset;
+
+	SearchSegment(Path path) throws IOException {
+		this.path = path;
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = ch.size();
+			if (size < FOOTER || size > Integer.MAX_VALUE) throw new IOException("invalid search segment " + path);
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		int f = buf.capacity() - FOOTER;
+		if (buf.getInt(f + 40) != MAGIC) throw new IOException("incomplete search segment " + path);
+		base = buf.getLong(f);
+		docs = buf.getInt(f + 8);
+		terms = buf.getInt(f + 12);
+		termsOffset = buf.getLong(f + 24);
+		tableOffset = buf.getLong(f + 32);
+	}
+
+	long conversation(int doc) {
+		return buf.getLong(doc * DOC);
+	}
+
+	long seq(int doc) {
+		return buf.getLong(doc * DOC + 8);
+	}
+
+	int termCount() {
+		return terms;
+	}
+
+	private int termStart(int i) {
+		return (int) termsOffset + buf.getInt((int) tableOffset + i * TABLE_ENTRY);
+	}
+
+	private int termEnd(int i) {
+		return i + 1 < terms ? termStart(i + 1) : (int) tableOffset;
+	}
+
+	byte[] term(int i) {
+		byte[] t = new byte[termEnd(i) - termStart(i)];
+		buf.duplicate().position(termStart(i)).get(t);
+		return t;
+	}
+
+	/**
+	 * @return the index of the term in the table, -1 if it is not in the segment
+	 */
+	int find(byte[] term) {
+		int lo = 0, hi = terms - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(mid, term);
+			if (c == 0) return mid;
+			if (c < 0) lo = mid + 1;
+			else hi = mid - 1;
+		}
+		return -1;
+	}
+
+	// comparaison non signée du terme i avec term
+	private int compare(int i, byte[] term) {
+		int start = termStart(i), length = termEnd(i) - start;
+		int n = Math.min(length, term.length);
+		for (int k = 0; k < n; k++) {
+			int c = Integer.compare(buf.get(start + k) & 0xFF, term[k] & 0xFF);
+			if (c != 0) return c;
+		}
+		return Integer.compare(length, term.length);
+	}
+
+	Cursor cursor(int term) {
+		return new DiskCursor(buf, (int) buf.getLong((int) tableOffset + term * TABLE_ENTRY + 4));
+	}
+
+	/*
+	 * Décodage des postings d'un terme directement dans le fichier projeté.
+	 */
+	private static class DiskCursor implements Cursor {
+		private final ByteBuffer buf;
+		private final int n;
+		private final int skips;
+		private final int skipStart;
+		private final int dataStart;
+		private int pos;
+		private int index;
+		private int doc = -1;
+
+		DiskCursor(ByteBuffer buf, int offset) {
+			this.buf = buf;
+			pos = offset;
+			n = readVarint();
+			skips = readVarint();
+			skipStart = pos;
+			dataStart = pos + skips * 8;
+			pos = dataStart;
+		}
+
+		private int readVarint() {
+			int v = 0, shift = 0;
+			byte b;
+			do {
+				b = buf.get(pos++);
+				v |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			return v;
+		}
+
+		@Override
+		public int next() {
+			if (index >= n) return doc = NO_MORE;
+			index++;
+			return doc += readVarint();
+		}
+
+		@Override
+		public int size() {
+			return n;
+		}
+
+		@Override
+		public int advance(int target) {
+			if (doc >= target) return doc;
+			// dernier bloc dont le document précédent est < target
+			int lo = 0, hi = skips - 1, block = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (buf.getInt(skipStart + mid * 8) < target) {
+					block = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			if (block >= 0 && (block + 1) * SKIP_BLOCK > index) {
+				doc = buf.getInt(skipStart + block * 8);
+				pos = dataStart + buf.getInt(skipStart + block * 8 + 4);
+				index = (block + 1) * SKIP_BLOCK;
+			}
+			while (doc < target) next();
+			return doc;
+		}
+	}
+
+	/**
+	 * Cursor over a sorted array of local numbers (segment in memory, merges).
+	 */
+	static class ArrayCursor implements Cursor {
+		private final int[] docs;
+		private final int n;
+		private int index = -1;
+
+		ArrayCursor(int[] docs, int n) {
+			this.docs = docs;
+			this.n = n;
+		}
+
+		@Override
+		public int next() {
+			if (index < n) index++;
+			return index < n ? docs[index] : NO_MORE;
+		}
+
+		@Override
+		public int advance(int target) {
+			if (index >= 0 && (index >= n || docs[index] >= target)) return index < n ? docs[index] : NO_MORE;
+			int i = Arrays.binarySearch(docs, Math.max(index, 0), n, target);
+			index = i >= 0 ? i : -i - 1;
+			return index < n ? docs[index] : NO_MORE;
+		}
+
+		@Override
+		public int size() {
+			return n;
+		}
+	}
+
+	/**
+	 * Sequential writing of a segment : all the documents, then the terms in unsigned byte
+	 * order with their postings. The file is written under a temporary name and renamed by finish().
+	 */
+	static class Writer implements Closeable {
+		private final Path path;
+		private final Path tmp;
+		private final long base;
+		private final DataOutputStream out;
+		private long position;
+		private int docs;
+		private long postingsOffset = -1;
+		private final ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+		private int[] termOffsets = new int[1024];
+		private long[] postingOffsets = new long[1024];
+		private int terms;
+		// encodage des postings d'un terme
+		private byte[] data = new byte[1024];
+		private int[] skips = new int[64];
+
+		Writer(Path path, long base) throws IOException {
+			this.path = path;
+			this.base = base;
+			tmp = path.resolveSibling(path.getFileName() + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024));
+		}
+
+		void addDoc(long conversation, long seq) throws IOException {
+			out.writeLong(conversation);
+			out.writeLong(seq);
+			position += DOC;
+			docs++;
+		}
+
+		/**
+		 * Copy documents of another segment.
+		 */
+		void addDocs(SearchSegment s) throws IOException {
+			ByteBuffer b = s.buf.duplicate().position(0).limit(s.docs * DOC);
+			byte[] chunk = new byte[64 * 1024];
+			while (b.hasRemaining()) {
+				int n = Math.min(chunk.length, b.remaining());
+				b.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+			position += (long) s.docs * DOC;
+			docs += s.docs;
+		}
+
+		/**
+		 * Add a term, after those before it in unsigned byte order, with its n first documents.
+		 */
+		void addTerm(byte[] term, int[] termDocs, int n) throws IOException {
+			if (postingsOffset < 0) postingsOffset = position;
+			if (terms == termOffsets.length) {
+				termOffsets = Arrays.copyOf(termOffsets, terms * 2);
+				postingOffsets = Arrays.copyOf(postingOffsets, terms * 2);
+			}
+			termOffsets[terms] = termBytes.size();
+			postingOffsets[terms] = position;
+			terms++;
+			termBytes.write(term);
+
+			// écarts, puis entrées de saut une fois les offsets des blocs connus
+			int size = 0, nbSkips = 0, prev = -1;
+			for (int i = 0; i < n; i++) {
+				if (i > 0 && i % SKIP_BLOCK == 0) {
+					if (2 * nbSkips + 2 > skips.length) skips = Arrays.copyOf(skips, skips.length * 2);
+					skips[2 * nbSkips] = prev;
+					skips[2 * nbSkips + 1] = size;
+					nbSkips++;
+				}
+				if (size + 5 > data.length) data = Arrays.copyOf(data, data.length * 2);
+				size = putVarint(data, size, termDocs[i] - prev);
+				prev = termDocs[i];
+			}
+			writeVarint(n);
+			writeVarint(nbSkips);
+			for (int i = 0; i < nbSkips; i++) {
+				out.writeInt(skips[2 * i]);
+				out.writeInt(skips[2 * i + 1]);
+			}
+			out.write(data, 0, size);
+			position += nbSkips * 8L + size;
+		}
+
+		private void writeVarint(int v) throws IOException {
+			byte[] b = new byte[5];
+			int n = putVarint(b, 0, v);
+			out.write(b, 0, n);
+			position += n;
+		}
+
+		private static int putVarint(byte[] b, int pos, int v) {
+			while ((v & ~0x7F) != 0) {
+				b[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			b[pos++] = (byte) v;
+			return pos;
+		}
+
+		/**
+		 * Write the terms and the footer, and give the segment its final name.
+		 */
+		SearchSegment finish() throws IOException {
+			if (postingsOffset < 0) postingsOffset = position;
+			long termsOffset = position;
+			termBytes.writeTo(out);
+			position += termBytes.size();
+			long tableOffset = position;
+			for (int i = 0; i < terms; i++) {
+				out.writeInt(termOffsets[i]);
+				out.writeLong(postingOffsets[i]);
+			}
+			position += (long) terms * TABLE_ENTRY;
+			if (position + FOOTER > Integer.MAX_VALUE) throw new IOException("search segment larger than 2 GB");
+			out.writeLong(base);
+			out.writeInt(docs);
+			out.writeInt(terms);
+			out.writeLong(postingsOffset);
+			out.writeLong(termsOffset);
+			out.writeLong(tableOffset);
+			out.writeInt(MAGIC);
+			out.close();
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+			return new SearchSegment(path);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Bounded queue of the packets waiting to be sent to a user.
+ * When it is full, the OverflowPolicy of the server configuration is applied.
+ * Several threads can offer packets, a single one (sendLoop or the NioConnection) consumes them.
+ * The packets are kept in a LinkedBlockingQueue, or with ServerConfig.setLockFreeSendQueue in
+ * a PacketQueue, without lock nor allocation per packet (no faster in PacketQueueBenchmark on
+ * the machines measured so far). With SPILL_TO_DISK, the lock of the SendQueue is only taken
+ * once the queue is full, to append to the SpillFile, and by the consumer to bring the spilled
+ * packets back while some remain.
+ */
+public class SendQueue {
+	private final static Logger LOG = Logger.getLogger(SendQueue.class.getName());
+
+	/**
+	 * What to do with a packet offered to a full queue.
+	 */
+	public enum OverflowPolicy {
+		/** the oldest queued packet is discarded to make room */
+		DROP_OLDEST,
+		/** packets are appended to a file until the queue has room again */
+		SPILL_TO_DISK,
+		/** the user is disconnected and the packet discarded */
+		DISCONNECT
+	}
+
+	/**
+	 * Bounded queue in memory : any thread offers, a single consumer takes.
+	 */
+	interface Buffer {
+		boolean offer(Packet p);
+
+		Packet poll();
+
+		Packet take() throws InterruptedException;
+
+		Packet poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+		int drainTo(List<Packet> c, int maxElements);
+
+		boolean isEmpty();
+
+		int size();
+
+		int remainingCapacity();
+
+		/**
+		 * @return the time at which the oldest packet was queued, 0 if the queue is empty
+		 */
+		long oldestQueuedAt();
+	}
+
+	// file par défaut : un noeud et une entrée par paquet
+	static class LinkedBuffer implements Buffer {
+		// paquet + date de mise en file, pour connaître l'âge du plus ancien message
+		private static class Entry {
+			final Packet packet;
+			final long queuedAt;
+
+			Entry(Packet packet) {
+				this.packet = packet;
+				queuedAt = System.currentTimeMillis();
+			}
+		}
+
+		private final BlockingQueue<Entry> queue;
+		// utilisée uniquement par le consommateur
+		private final List<Entry> drained;
+
+		LinkedBuffer(int capacity) {
+			queue = new LinkedBlockingQueue<>(capacity);
+			drained = new ArrayList<>();
+		}
+
+		public boolean offer(Packet p) {
+			return queue.offer(new Entry(p));
+		}
+
+		public Packet poll() {
+			Entry e = queue.poll();
+			return e == null ? null : e.packet;
+		}
+
+		public Packet take() throws InterruptedException {
+			return queue.take().packet;
+		}
+
+		public Packet poll(long timeout, TimeUnit unit) throws InterruptedException {
+			Entry e = queue.poll(timeout, unit);
+			return e == null ? null : e.packet;
+		}
+
+		public int drainTo(List<Packet> c, int maxElements) {
+			int n = queue.drainTo(drained, maxElements);
+			for (Entry e : drained) c.add(e.packet);
+			drained.clear();
+			return n;
+		}
+
+		public boolean isEmpty() {
+			return queue.isEmpty();
+		}
+
+		public int size() {
+			return queue.size();
+		}
+
+		public int remainingCapacity() {
+			return queue.remainingCapacity();
+		}
+
+		public long oldestQueuedAt() {
+			Entry e = queue.peek();
+			return e == null ? 0 : e.queuedAt;
+		}
+	}
+
+	private final UserMsg user;
+	private final Buffer queue;
+	private final OverflowPolicy policy;
+	private final SpillFile spill;
+	// vrai tant que des paquets sont dans le SpillFile, modifié sous le verrou
+	private volatile boolean spilled;
+	private final AtomicLong dropped;
+
+	/**
+	 * @param lockFree true to keep the packets in a PacketQueue instead of a LinkedBlockingQueue
+	 */
+	public SendQueue(UserMsg user, int capacity, OverflowPolicy policy, Path spillDir, boolean lockFree) {
+		this.user = user;
+		this.policy = policy;
+		queue = lockFree ? new PacketQueue(capacity) : new LinkedBuffer(capacity);
+		spill = policy == OverflowPolicy.SPILL_TO_DISK ? new SpillFile(spillDir.resolve("user-" + user.getId() + ".spill")) : null;
+		dropped = new AtomicLong();
+	}
+
+	/**
+	 * Add a packet at the end of the queue, applying the overflow policy if it is full.
+	 * @return false if the packet has been discarded
+	 */
+	public boolean offer(Packet p) {
+		if (spill != null) {
+			if (!spilled && queue.offer(p)) return true;
+			synchronized (this) {
+				// tant que des paquets sont sur disque, les suivants y vont aussi pour garder l'ordre
+				if (!spilled && queue.offer(p)) return true;
+				try {
+					spill.append(FileRegionPacket.inline(p));
+					spilled = true;
+					return true;
+				} catch (IOException ex) {
+					LOG.warning("Unable to spill packet for user " + user.getId() + " : " + ex.getMessage());
+					dropped.incrementAndGet();
+					return false;
+				} finally {
+					// la copie sur disque ne référence pas la trame partagée
+					SharedFrame.release(p);
+				}
+			}
+		}
+		if (queue.offer(p)) return true;
+		if (policy == OverflowPolicy.DROP_OLDEST) {
+			while (!queue.offer(p)) {
+				// seul cas où un producteur retire un paquet (cf. PacketQueue)
+				Packet old = queue.poll();
+				if (old != null) {
+					dropped.incrementAndGet();
+					SharedFrame.release(old);
+				}
+			}
+			return true;
+		}
+		// DISCONNECT
+		dropped.incrementAndGet();
+		SharedFrame.release(p);
+		if (user.isConnected()) {
+			LOG.warning("Send queue of user " + user.getId() + " is full, slow consumer disconnected");
+			user.close();
+		}
+		return false;
+	}
+
+	public Packet take() throws InterruptedException {
+		Packet p = queue.take();
+		refill();
+		return p;
+	}
+
+	public Packet poll() {
+		Packet p = queue.poll();
+		if (p == null) return null;
+		refill();
+		return p;
+	}
+
+	public Packet poll(long timeout, TimeUnit unit) throws InterruptedException {
+		Packet p = queue.poll(timeout, unit);
+		if (p == null) return null;
+		refill();
+		return p;
+	}
+
+	public int drainTo(List<Packet> c, int maxElements) {
+		int n = queue.drainTo(c, maxElements);
+		if (n > 0) refill();
+		return n;
+	}
+
+	/*
+	 * Remonte en mémoire les paquets écrits sur disque, dans la place libérée.
+	 */
+	private void refill() {
+		if (!spilled) return;
+		synchronized (this) {
+			try {
+				while (spill.hasData() && queue.remainingCapacity() > 0) {
+					Packet p = spill.next();
+					if (!queue.offer(p)) {
+						// place reprise par un producteur passé avant le verrou : le paquet reste en tête
+						spill.pushBack(p);
+						break;
+					}
+				}
+			} catch (IOException ex) {
+				LOG.warning("Unable to read spilled packets of user " + user.getId() + " : " + ex.getMessage());
+				dropped.addAndGet(spill.size());
+				try {
+					spill.clear();
+				} catch (IOException ignored) {
+				}
+			}
+			spilled = spill.hasData();
+		}
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return the number of packets that can still be queued in memory
+	 */
+	public int remainingCapacity() {
+		return queue.remainingCapacity();
+	}
+
+	/**
+	 * @return the number of packets waiting, including those spilled to disk
+	 */
+	public int size() {
+		return queue.size() + (spilled ? spill.size() : 0);
+	}
+
+	/**
+	 * @return the time in milliseconds the oldest packet has been waiting, 0 if the queue is empty
+	 */
+	public long oldestAge() {
+		long queuedAt = queue.oldestQueuedAt();
+		return queuedAt == 0 ? 0 : System.currentTimeMillis() - queuedAt;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+}
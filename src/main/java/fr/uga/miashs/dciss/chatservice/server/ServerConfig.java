@@ -0,0 +1,832 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import fr.uga.miashs.dciss.chatservice.common.FrameLimits;
+
+/**
+ * Tuning parameters of a ServerMsg. By default the connections are handled as historically
+ * (blocking sockets, two threads per user), but the server is durable : it stores its state
+ * and data in directories relative to the working directory,
+ * <ul>
+ * <li>state : journal and snapshots of the users and groups (StateJournal)</li>
+ * <li>spool : packets spilled by full send queues (SendQueue), spool/offline : packets
+ * for the users not connected (OfflineSpool)</li>
+ * <li>transfers : files being transferred (TransferStore)</li>
+ * <li>history : message history of the conversations (HistoryStore)</li>
+ * <li>search : full-text index of this history (SearchIndex)</li>
+ * </ul>
+ * Setting one of these directories to null (or its system property to an empty string)
+ * disables the store, except the spill directory which is only used with SPILL_TO_DISK.
+ * Every parameter can be overridden with a system property "chatservice.xxx",
+ * see fromSystemProperties().
+ */
+public class ServerConfig {
+
+	/**
+	 * How the connections of the users are handled.
+	 */
+	public enum TransportMode {
+		/** one socket, one receive thread and one send thread per user */
+		BLOCKING,
+		/** same blocking loops as BLOCKING, but run on virtual threads (JDK 21+) */
+		VIRTUAL_THREADS,
+		/** a few selector threads multiplex every connection */
+		NIO
+	}
+
+	/**
+	 * When the send loop of a user flushes its socket.
+	 */
+	public enum FlushPolicy {
+		/** flush as soon as the packets already queued have been written */
+		LATENCY,
+		/** wait up to flushLinger microseconds for more packets before flushing */
+		THROUGHPUT
+	}
+
+	private TransportMode transportMode;
+	private int eventLoops;
+	private int acceptBacklog;
+	private int handshakeThreads;
+	private int handshakeQueueSize;
+	private int handshakeTimeout;
+	private FlushPolicy flushPolicy;
+	private int flushLinger;
+	private int maxBatchPackets;
+	private int sendQueueCapacity;
+	private boolean lockFreeSendQueue;
+	private SendQueue.OverflowPolicy overflowPolicy;
+	private Path spillDirectory;
+	private int slowConsumerDepth;
+	private long slowConsumerAge;
+	private long slowConsumerPeriod;
+	private Path offlineSpoolDirectory;
+	private int offlineSpoolShards;
+	private int offlineSpoolSegmentSize;
+	private Path stateDirectory;
+	private boolean walSync;
+	private long snapshotInterval;
+	private boolean snapshotOnStop;
+	private Path transferDirectory;
+	private long transferRetention;
+	private int maxMessageFrame;
+	private int maxControlFrame;
+	private int maxFileFrame;
+	private int processingStripes;
+	private int processingQueueSize;
+	private int controlStripes;
+	private int controlQueueSize;
+	private int parallelFanOutThreshold;
+	private int fanOutPartition;
+	private int fanOutParallelism;
+	private boolean directBuffers;
+	private int maxPooledBuffer;
+	private int bufferPoolClassBytes;
+	private boolean bufferLeakDetection;
+	private int deliveryWindow;
+	private Path historyDirectory;
+	private int historySegmentSize;
+	private int historyIndexInterval;
+	private int historyMaxPage;
+	private int historyOpenConversations;
+	private Path searchDirectory;
+	private int searchSegmentDocs;
+	private int searchMergeFactor;
+	private int searchMaxResults;
+
+	public ServerConfig() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		transportMode = TransportMode.BLOCKING;
+		eventLoops = cores;
+		acceptBacklog = 1024;
+		handshakeThreads = cores;
+		handshakeQueueSize = 4096;
+		handshakeTimeout = 5000;
+		flushPolicy = FlushPolicy.LATENCY;
+		flushLinger = 200;
+		maxBatchPackets = 256;
+		sendQueueCapacity = 10000;
+		lockFreeSendQueue = false;
+		overflowPolicy = SendQueue.OverflowPolicy.SPILL_TO_DISK;
+		spillDirectory = Paths.get("spool");
+		slowConsumerDepth = 1000;
+		slowConsumerAge = 30000;
+		slowConsumerPeriod = 10000;
+		offlineSpoolDirectory = Paths.get("spool", "offline");
+		offlineSpoolShards = 8;
+		offlineSpoolSegmentSize = 16 * 1024 * 1024;
+		stateDirectory = Paths.get("state");
+		walSync = true;
+		snapshotInterval = 100000;
+		snapshotOnStop = true;
+		transferDirectory = Paths.get("transfers");
+		transferRetention = 7L * 24 * 3600 * 1000;
+		maxMessageFrame = FrameLimits.DEFAULT.message;
+		maxControlFrame = FrameLimits.DEFAULT.control;
+		maxFileFrame = FrameLimits.DEFAULT.file;
+		processingStripes = 0;
+		processingQueueSize = 10000;
+		controlStripes = 2;
+		controlQueueSize = 1000;
+		parallelFanOutThreshold = Integer.MAX_VALUE;
+		fanOutPartition = 1024;
+		fanOutParallelism = cores;
+		directBuffers = false;
+		maxPooledBuffer = 64 * 1024;
+		bufferPoolClassBytes = 4 * 1024 * 1024;
+		bufferLeakDetection = false;
+		deliveryWindow = 1024;
+		historyDirectory = Paths.get("history");
+		historySegmentSize = 8 * 1024 * 1024;
+		historyIndexInterval = 64;
+		historyMaxPage = 100;
+		historyOpenConversations = 256;
+		searchDirectory = Paths.get("search");
+		searchSegmentDocs = 256 * 1024;
+		searchMergeFactor = 8;
+		searchMaxResults = 50;
+	}
+
+	/**
+	 * Build a configuration from the system properties, e.g.
+	 * -Dchatservice.transport=nio -Dchatservice.eventLoops=4
+	 */
+	public static ServerConfig fromSystemProperties() {
+		ServerConfig c = new ServerConfig();
+		String transport = System.getProperty("chatservice.transport");
+		if (transport != null) c.setTransportMode(TransportMode.valueOf(transport.trim().toUpperCase()));
+		c.setEventLoops(Integer.getInteger("chatservice.eventLoops", c.getEventLoops()));
+		c.setAcceptBacklog(Integer.getInteger("chatservice.acceptBacklog", c.getAcceptBacklog()));
+		c.setHandshakeThreads(Integer.getInteger("chatservice.handshakeThreads", c.getHandshakeThreads()));
+		c.setHandshakeQueueSize(Integer.getInteger("chatservice.handshakeQueueSize", c.getHandshakeQueueSize()));
+		c.setHandshakeTimeout(Integer.getInteger("chatservice.handshakeTimeout", c.getHandshakeTimeout()));
+		String flush = System.getProperty("chatservice.flushPolicy");
+		if (flush != null) c.setFlushPolicy(FlushPolicy.valueOf(flush.trim().toUpperCase()));
+		c.setFlushLinger(Integer.getInteger("chatservice.flushLinger", c.getFlushLinger()));
+		c.setMaxBatchPackets(Integer.getInteger("chatservice.maxBatchPackets", c.getMaxBatchPackets()));
+		c.setSendQueueCapacity(Integer.getInteger("chatservice.sendQueueCapacity", c.getSendQueueCapacity()));
+		String lockFree = System.getProperty("chatservice.lockFreeSendQueue");
+		if (lockFree != null) c.setLockFreeSendQueue(Boolean.parseBoolean(lockFree.trim()));
+		String overflow = System.getProperty("chatservice.overflowPolicy");
+		if (overflow != null) c.setOverflowPolicy(SendQueue.OverflowPolicy.valueOf(overflow.trim().toUpperCase()));
+		c.setSpillDirectory(Paths.get(System.getProperty("chatservice.spillDirectory", c.getSpillDirectory().toString())));
+		c.setSlowConsumerDepth(Integer.getInteger("chatservice.slowConsumerDepth", c.getSlowConsumerDepth()));
+		c.setSlowConsumerAge(Long.getLong("chatservice.slowConsumerAge", c.getSlowConsumerAge()));
+		c.setSlowConsumerPeriod(Long.getLong("chatservice.slowConsumerPeriod", c.getSlowConsumerPeriod()));
+		String spool = System.getProperty("chatservice.offlineSpoolDirectory");
+		if (spool != null) c.setOfflineSpoolDirectory(spool.isEmpty() ? null : Paths.get(spool));
+		c.setOfflineSpoolShards(Integer.getInteger("chatservice.offlineSpoolShards", c.getOfflineSpoolShards()));
+		c.setOfflineSpoolSegmentSize(Integer.getInteger("chatservice.offlineSpoolSegmentSize", c.getOfflineSpoolSegmentSize()));
+		String state = System.getProperty("chatservice.stateDirectory");
+		if (state != null) c.setStateDirectory(state.isEmpty() ? null : Paths.get(state));
+		String walSync = System.getProperty("chatservice.walSync");
+		if (walSync != null) c.setWalSync(Boolean.parseBoolean(walSync.trim()));
+		c.setSnapshotInterval(Long.getLong("chatservice.snapshotInterval", c.getSnapshotInterval()));
+		String snapshotOnStop = System.getProperty("chatservice.snapshotOnStop");
+		if (snapshotOnStop != null) c.setSnapshotOnStop(Boolean.parseBoolean(snapshotOnStop.trim()));
+		String transfers = System.getProperty("chatservice.transferDirectory");
+		if (transfers != null) c.setTransferDirectory(transfers.isEmpty() ? null : Paths.get(transfers));
+		c.setTransferRetention(Long.getLong("chatservice.transferRetention", c.getTransferRetention()));
+		c.setMaxMessageFrame(Integer.getInteger("chatservice.maxMessageFrame", c.getMaxMessageFrame()));
+		c.setMaxControlFrame(Integer.getInteger("chatservice.maxControlFrame", c.getMaxControlFrame()));
+		c.setMaxFileFrame(Integer.getInteger("chatservice.maxFileFrame", c.getMaxFileFrame()));
+		c.setProcessingStripes(Integer.getInteger("chatservice.processingStripes", c.getProcessingStripes()));
+		c.setProcessingQueueSize(Integer.getInteger("chatservice.processingQueueSize", c.getProcessingQueueSize()));
+		c.setControlStripes(Integer.getInteger("chatservice.controlStripes", c.getControlStripes()));
+		c.setControlQueueSize(Integer.getInteger("chatservice.controlQueueSize", c.getControlQueueSize()));
+		c.setParallelFanOutThreshold(Integer.getInteger("chatservice.parallelFanOutThreshold", c.getParallelFanOutThreshold()));
+		c.setFanOutPartition(Integer.getInteger("chatservice.fanOutPartition", c.getFanOutPartition()));
+		c.setFanOutParallelism(Integer.getInteger("chatservice.fanOutParallelism", c.getFanOutParallelism()));
+		String direct = System.getProperty("chatservice.directBuffers");
+		if (direct != null) c.setDirectBuffers(Boolean.parseBoolean(direct.trim()));
+		c.setMaxPooledBuffer(Integer.getInteger("chatservice.maxPooledBuffer", c.getMaxPooledBuffer()));
+		c.setBufferPoolClassBytes(Integer.getInteger("chatservice.bufferPoolClassBytes", c.getBufferPoolClassBytes()));
+		String leaks = System.getProperty("chatservice.bufferLeakDetection");
+		if (leaks != null) c.setBufferLeakDetection(Boolean.parseBoolean(leaks.trim()));
+		c.setDeliveryWindow(Integer.getInteger("chatservice.deliveryWindow", c.getDeliveryWindow()));
+		String history = System.getProperty("chatservice.historyDirectory");
+		if (history != null) c.setHistoryDirectory(history.isEmpty() ? null : Paths.get(history));
+		c.setHistorySegmentSize(Integer.getInteger("chatservice.historySegmentSize", c.getHistorySegmentSize()));
+		c.setHistoryIndexInterval(Integer.getInteger("chatservice.historyIndexInterval", c.getHistoryIndexInterval()));
+		c.setHistoryMaxPage(Integer.getInteger("chatservice.historyMaxPage", c.getHistoryMaxPage()));
+		c.setHistoryOpenConversations(Integer.getInteger("chatservice.historyOpenConversations", c.getHistoryOpenConversations()));
+		String search = System.getProperty("chatservice.searchDirectory");
+		if (search != null) c.setSearchDirectory(search.isEmpty() ? null : Paths.get(search));
+		c.setSearchSegmentDocs(Integer.getInteger("chatservice.searchSegmentDocs", c.getSearchSegmentDocs()));
+		c.setSearchMergeFactor(Integer.getInteger("chatservice.searchMergeFactor", c.getSearchMergeFactor()));
+		c.setSearchMaxResults(Integer.getInteger("chatservice.searchMaxResults", c.getSearchMaxResults()));
+		return c;
+	}
+
+	public TransportMode getTransportMode() {
+		return transportMode;
+	}
+
+	public void setTransportMode(TransportMode transportMode) {
+		if (transportMode == null) throw new IllegalArgumentException("transport mode cannot be null");
+		this.transportMode = transportMode;
+	}
+
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	/**
+	 * @param eventLoops number of selector threads used in NIO mode (one per core by default)
+	 */
+	public void setEventLoops(int eventLoops) {
+		if (eventLoops < 1) throw new IllegalArgumentException("at least one event loop is needed");
+		this.eventLoops = eventLoops;
+	}
+
+	public int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+
+	/**
+	 * @param acceptBacklog maximum number of connections waiting to be accepted by the system
+	 */
+	public void setAcceptBacklog(int acceptBacklog) {
+		if (acceptBacklog < 1) throw new IllegalArgumentException("accept backlog must be greater than 0");
+		this.acceptBacklog = acceptBacklog;
+	}
+
+	public int getHandshakeThreads() {
+		return handshakeThreads;
+	}
+
+	/**
+	 * @param handshakeThreads number of threads authenticating new connections (one per core by default)
+	 */
+	public void setHandshakeThreads(int handshakeThreads) {
+		if (handshakeThreads < 1) throw new IllegalArgumentException("at least one handshake thread is needed");
+		this.handshakeThreads = handshakeThreads;
+	}
+
+	public int getHandshakeQueueSize() {
+		return handshakeQueueSize;
+	}
+
+	/**
+	 * @param handshakeQueueSize maximum number of accepted connections waiting for their handshake,
+	 *                           further connections are closed
+	 */
+	public void setHandshakeQueueSize(int handshakeQueueSize) {
+		if (handshakeQueueSize < 1) throw new IllegalArgumentException("handshake queue size must be greater than 0");
+		this.handshakeQueueSize = handshakeQueueSize;
+	}
+
+	public int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	/**
+	 * @param handshakeTimeout time in milliseconds given to a client to send its id and password
+	 */
+	public void setHandshakeTimeout(int handshakeTimeout) {
+		if (handshakeTimeout < 1) throw new IllegalArgumentException("handshake timeout must be greater than 0");
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		if (flushPolicy == null) throw new IllegalArgumentException("flush policy cannot be null");
+		this.flushPolicy = flushPolicy;
+	}
+
+	public int getFlushLinger() {
+		return flushLinger;
+	}
+
+	/**
+	 * @param flushLinger maximum time in microseconds a batch waits for more packets (THROUGHPUT policy only)
+	 */
+	public void setFlushLinger(int flushLinger) {
+		if (flushLinger < 0) throw new IllegalArgumentException("flush linger must not be negative");
+		this.flushLinger = flushLinger;
+	}
+
+	public int getMaxBatchPackets() {
+		return maxBatchPackets;
+	}
+
+	/**
+	 * @param maxBatchPackets maximum number of packets written between two flushes
+	 */
+	public void setMaxBatchPackets(int maxBatchPackets) {
+		if (maxBatchPackets < 1) throw new IllegalArgumentException("max batch must be greater than 0");
+		this.maxBatchPackets = maxBatchPackets;
+	}
+
+	public int getSendQueueCapacity() {
+		return sendQueueCapacity;
+	}
+
+	/**
+	 * @param sendQueueCapacity maximum number of packets kept in memory for a user
+	 */
+	public void setSendQueueCapacity(int sendQueueCapacity) {
+		if (sendQueueCapacity < 1) throw new IllegalArgumentException("send queue capacity must be greater than 0");
+		this.sendQueueCapacity = sendQueueCapacity;
+	}
+
+	public boolean isLockFreeSendQueue() {
+		return lockFreeSendQueue;
+	}
+
+	/**
+	 * @param lockFreeSendQueue true to keep the packets of the send queues in a PacketQueue
+	 *                          (lock free, no allocation per packet) instead of a LinkedBlockingQueue
+	 */
+	public void setLockFreeSendQueue(boolean lockFreeSendQueue) {
+		this.lockFreeSendQueue = lockFreeSendQueue;
+	}
+
+	public SendQueue.OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(SendQueue.OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null) throw new IllegalArgumentException("overflow policy cannot be null");
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public Path getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * @param spillDirectory where full send queues are spilled (SPILL_TO_DISK policy)
+	 */
+	public void setSpillDirectory(Path spillDirectory) {
+		if (spillDirectory == null) throw new IllegalArgumentException("spill directory cannot be null");
+		this.spillDirectory = spillDirectory;
+	}
+
+	public int getSlowConsumerDepth() {
+		return slowConsumerDepth;
+	}
+
+	/**
+	 * @param slowConsumerDepth number of queued packets from which a user is reported as a slow consumer
+	 */
+	public void setSlowConsumerDepth(int slowConsumerDepth) {
+		if (slowConsumerDepth < 1) throw new IllegalArgumentException("slow consumer depth must be greater than 0");
+		this.slowConsumerDepth = slowConsumerDepth;
+	}
+
+	public long getSlowConsumerAge() {
+		return slowConsumerAge;
+	}
+
+	/**
+	 * @param slowConsumerAge age in milliseconds of the oldest queued packet from which a user is reported
+	 */
+	public void setSlowConsumerAge(long slowConsumerAge) {
+		if (slowConsumerAge < 1) throw new IllegalArgumentException("slow consumer age must be greater than 0");
+		this.slowConsumerAge = slowConsumerAge;
+	}
+
+	public long getSlowConsumerPeriod() {
+		return slowConsumerPeriod;
+	}
+
+	/**
+	 * @param slowConsumerPeriod time in milliseconds between two checks of the send queues
+	 */
+	public void setSlowConsumerPeriod(long slowConsumerPeriod) {
+		if (slowConsumerPeriod < 1) throw new IllegalArgumentException("slow consumer period must be greater than 0");
+		this.slowConsumerPeriod = slowConsumerPeriod;
+	}
+
+	public Path getOfflineSpoolDirectory() {
+		return offlineSpoolDirectory;
+	}
+
+	/**
+	 * @param offlineSpoolDirectory where the packets for offline users are stored,
+	 *                              null to keep them in the send queues
+	 */
+	public void setOfflineSpoolDirectory(Path offlineSpoolDirectory) {
+		this.offlineSpoolDirectory = offlineSpoolDirectory;
+	}
+
+	public int getOfflineSpoolShards() {
+		return offlineSpoolShards;
+	}
+
+	public void setOfflineSpoolShards(int offlineSpoolShards) {
+		if (offlineSpoolShards < 1) throw new IllegalArgumentException("at least one spool shard is needed");
+		this.offlineSpoolShards = offlineSpoolShards;
+	}
+
+	public int getOfflineSpoolSegmentSize() {
+		return offlineSpoolSegmentSize;
+	}
+
+	/**
+	 * @param offlineSpoolSegmentSize size in bytes of the memory mapped segment files of the spool
+	 */
+	public void setOfflineSpoolSegmentSize(int offlineSpoolSegmentSize) {
+		if (offlineSpoolSegmentSize < 1024) throw new IllegalArgumentException("spool segments must be at least 1 KB");
+		this.offlineSpoolSegmentSize = offlineSpoolSegmentSize;
+	}
+
+	public Path getStateDirectory() {
+		return stateDirectory;
+	}
+
+	/**
+	 * @param stateDirectory where the journal and the snapshots of the users and groups are written,
+	 *                       null to keep them in memory only
+	 */
+	public void setStateDirectory(Path stateDirectory) {
+		this.stateDirectory = stateDirectory;
+	}
+
+	public boolean isWalSync() {
+		return walSync;
+	}
+
+	/**
+	 * @param walSync if true, a command is acknowledged only once its journal record is on disk
+	 */
+	public void setWalSync(boolean walSync) {
+		this.walSync = walSync;
+	}
+
+	public long getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	/**
+	 * @param snapshotInterval number of journal records between two snapshots of the state
+	 */
+	public void setSnapshotInterval(long snapshotInterval) {
+		if (snapshotInterval < 1) throw new IllegalArgumentException("snapshot interval must be positive");
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	public boolean isSnapshotOnStop() {
+		return snapshotOnStop;
+	}
+
+	/**
+	 * @param snapshotOnStop if true, stop() writes a snapshot so that the next start does not
+	 *                       replay the journal; if false the journal is left as is
+	 */
+	public void setSnapshotOnStop(boolean snapshotOnStop) {
+		this.snapshotOnStop = snapshotOnStop;
+	}
+
+	public Path getTransferDirectory() {
+		return transferDirectory;
+	}
+
+	/**
+	 * @param transferDirectory where the files sent by the users are stored, null to refuse files
+	 */
+	public void setTransferDirectory(Path transferDirectory) {
+		this.transferDirectory = transferDirectory;
+	}
+
+	public long getTransferRetention() {
+		return transferRetention;
+	}
+
+	/**
+	 * @param transferRetention time in milliseconds a file is kept after its last modification
+	 */
+	public void setTransferRetention(long transferRetention) {
+		if (transferRetention < 1) throw new IllegalArgumentException("transfer retention must be positive");
+		this.transferRetention = transferRetention;
+	}
+
+	public int getMaxMessageFrame() {
+		return maxMessageFrame;
+	}
+
+	/**
+	 * @param maxMessageFrame maximum size in bytes of a message sent to a user or a group
+	 */
+	public void setMaxMessageFrame(int maxMessageFrame) {
+		if (maxMessageFrame < 1) throw new IllegalArgumentException("maximum message frame must be positive");
+		this.maxMessageFrame = maxMessageFrame;
+	}
+
+	public int getMaxControlFrame() {
+		return maxControlFrame;
+	}
+
+	/**
+	 * @param maxControlFrame maximum size in bytes of a packet sent to the server (destId 0)
+	 */
+	public void setMaxControlFrame(int maxControlFrame) {
+		if (maxControlFrame < 1) throw new IllegalArgumentException("maximum control frame must be positive");
+		this.maxControlFrame = maxControlFrame;
+	}
+
+	public int getMaxFileFrame() {
+		return maxFileFrame;
+	}
+
+	/**
+	 * @param maxFileFrame maximum size in bytes of a file packet (type 12), at least FrameLimits.MIN_FILE
+	 */
+	public void setMaxFileFrame(int maxFileFrame) {
+		if (maxFileFrame < FrameLimits.MIN_FILE) throw new IllegalArgumentException("maximum file frame must be at least " + FrameLimits.MIN_FILE);
+		this.maxFileFrame = maxFileFrame;
+	}
+
+	/**
+	 * @return the frame limits sent to the clients in the handshake
+	 */
+	public FrameLimits getFrameLimits() {
+		return new FrameLimits(maxMessageFrame, maxControlFrame, maxFileFrame);
+	}
+
+	public int getProcessingStripes() {
+		return processingStripes;
+	}
+
+	/**
+	 * @param processingStripes number of threads processing the packets, chosen by destination id
+	 * so the packets of a conversation keep their order ; 0 to process them on the thread that
+	 * read them (historical behaviour) in the blocking modes, or on one thread per core in NIO
+	 * mode, whose event loops never process packets themselves. The control packets run on their
+	 * own threads (see controlStripes), the commands and messages of each user are still
+	 * applied in the order they were sent
+	 */
+	public void setProcessingStripes(int processingStripes) {
+		if (processingStripes < 0) throw new IllegalArgumentException("number of processing stripes must not be negative");
+		this.processingStripes = processingStripes;
+	}
+
+	public int getProcessingQueueSize() {
+		return processingQueueSize;
+	}
+
+	/**
+	 * @param processingQueueSize maximum number of packets waiting for each processing thread,
+	 * the connections wait for room beyond
+	 */
+	public void setProcessingQueueSize(int processingQueueSize) {
+		if (processingQueueSize < 1) throw new IllegalArgumentException("processing queue size must be greater than 0");
+		this.processingQueueSize = processingQueueSize;
+	}
+
+	public int getControlStripes() {
+		return controlStripes;
+	}
+
+	/**
+	 * @param controlStripes number of threads processing the control packets (destId 0), chosen
+	 * by sender id, when processingStripes is not 0
+	 */
+	public void setControlStripes(int controlStripes) {
+		if (controlStripes < 1) throw new IllegalArgumentException("at least one control stripe is needed");
+		this.controlStripes = controlStripes;
+	}
+
+	public int getControlQueueSize() {
+		return controlQueueSize;
+	}
+
+	/**
+	 * @param controlQueueSize maximum number of control packets waiting for each control thread
+	 */
+	public void setControlQueueSize(int controlQueueSize) {
+		if (controlQueueSize < 1) throw new IllegalArgumentException("control queue size must be greater than 0");
+		this.controlQueueSize = controlQueueSize;
+	}
+
+	public int getParallelFanOutThreshold() {
+		return parallelFanOutThreshold;
+	}
+
+	/**
+	 * @param parallelFanOutThreshold number of members from which a group message is delivered
+	 * by several threads (fan-out pool), Integer.MAX_VALUE (the default) to always deliver
+	 * sequentially. The processing thread waits until every member has the message, so it only
+	 * pays off with many cores : measure it with ParallelFanOutBenchmark before enabling it.
+	 * The NIO event loops always deliver sequentially
+	 */
+	public void setParallelFanOutThreshold(int parallelFanOutThreshold) {
+		if (parallelFanOutThreshold < 1) throw new IllegalArgumentException("parallel fan-out threshold must be positive");
+		this.parallelFanOutThreshold = parallelFanOutThreshold;
+	}
+
+	public int getFanOutPartition() {
+		return fanOutPartition;
+	}
+
+	/**
+	 * @param fanOutPartition number of members delivered by each task of a parallel fan-out
+	 */
+	public void setFanOutPartition(int fanOutPartition) {
+		if (fanOutPartition < 1) throw new IllegalArgumentException("fan-out partition must be positive");
+		this.fanOutPartition = fanOutPartition;
+	}
+
+	public int getFanOutParallelism() {
+		return fanOutParallelism;
+	}
+
+	/**
+	 * @param fanOutParallelism number of threads of the fan-out pool (one per core by default)
+	 */
+	public void setFanOutParallelism(int fanOutParallelism) {
+		if (fanOutParallelism < 1) throw new IllegalArgumentException("fan-out parallelism must be positive");
+		this.fanOutParallelism = fanOutParallelism;
+	}
+
+	public boolean isDirectBuffers() {
+		return directBuffers;
+	}
+
+	/**
+	 * @param directBuffers if true, the frames of the messages are read in buffers allocated
+	 * outside of the heap (BufferPool)
+	 */
+	public void setDirectBuffers(boolean directBuffers) {
+		this.directBuffers = directBuffers;
+	}
+
+	public int getMaxPooledBuffer() {
+		return maxPooledBuffer;
+	}
+
+	/**
+	 * @param maxPooledBuffer size in bytes of the largest buffer kept by the BufferPool,
+	 * larger frames are allocated for each message
+	 */
+	public void setMaxPooledBuffer(int maxPooledBuffer) {
+		if (maxPooledBuffer < BufferPool.MIN_BUFFER) throw new IllegalArgumentException("max pooled buffer must be at least " + BufferPool.MIN_BUFFER);
+		this.maxPooledBuffer = maxPooledBuffer;
+	}
+
+	public int getBufferPoolClassBytes() {
+		return bufferPoolClassBytes;
+	}
+
+	/**
+	 * @param bufferPoolClassBytes number of bytes of free buffers kept by each size class of the BufferPool
+	 */
+	public void setBufferPoolClassBytes(int bufferPoolClassBytes) {
+		if (bufferPoolClassBytes < 0) throw new IllegalArgumentException("buffer pool class bytes must not be negative");
+		this.bufferPoolClassBytes = bufferPoolClassBytes;
+	}
+
+	public boolean isBufferLeakDetection() {
+		return bufferLeakDetection;
+	}
+
+	/**
+	 * @param bufferLeakDetection if true, a frame garbage collected without having been released
+	 * is logged with the stack trace of its allocation (for debug runs, it slows down the allocations)
+	 */
+	public void setBufferLeakDetection(boolean bufferLeakDetection) {
+		this.bufferLeakDetection = bufferLeakDetection;
+	}
+
+	public int getDeliveryWindow() {
+		return deliveryWindow;
+	}
+
+	/**
+	 * @param deliveryWindow maximum number of packets sent to a user and not yet acknowledged
+	 * by its client, kept to be sent again after a reconnection (see DeliveryWindow)
+	 */
+	public void setDeliveryWindow(int deliveryWindow) {
+		if (deliveryWindow < 1) throw new IllegalArgumentException("delivery window must be positive");
+		this.deliveryWindow = deliveryWindow;
+	}
+
+	public Path getHistoryDirectory() {
+		return historyDirectory;
+	}
+
+	/**
+	 * @param historyDirectory where the history of the conversations is stored,
+	 * null to keep no history
+	 */
+	public void setHistoryDirectory(Path historyDirectory) {
+		this.historyDirectory = historyDirectory;
+	}
+
+	public int getHistorySegmentSize() {
+		return historySegmentSize;
+	}
+
+	/**
+	 * @param historySegmentSize size in bytes from which a new segment file of a conversation is started
+	 */
+	public void setHistorySegmentSize(int historySegmentSize) {
+		if (historySegmentSize < 1024) throw new IllegalArgumentException("history segments must be at least 1 KB");
+		this.historySegmentSize = historySegmentSize;
+	}
+
+	public int getHistoryIndexInterval() {
+		return historyIndexInterval;
+	}
+
+	/**
+	 * @param historyIndexInterval number of messages between two entries of the sparse index of a segment :
+	 * a page is found by scanning at most this number of messages more than its size
+	 */
+	public void setHistoryIndexInterval(int historyIndexInterval) {
+		if (historyIndexInterval < 1) throw new IllegalArgumentException("history index interval must be positive");
+		this.historyIndexInterval = historyIndexInterval;
+	}
+
+	public int getHistoryMaxPage() {
+		return historyMaxPage;
+	}
+
+	/**
+	 * @param historyMaxPage maximum number of messages of a history page
+	 */
+	public void setHistoryMaxPage(int historyMaxPage) {
+		if (historyMaxPage < 1) throw new IllegalArgumentException("history pages must hold at least 1 message");
+		this.historyMaxPage = historyMaxPage;
+	}
+
+	public int getHistoryOpenConversations() {
+		return historyOpenConversations;
+	}
+
+	/**
+	 * @param historyOpenConversations number of conversations whose segment files and index are kept open,
+	 * the least recently used one is closed beyond
+	 */
+	public void setHistoryOpenConversations(int historyOpenConversations) {
+		if (historyOpenConversations < 1) throw new IllegalArgumentException("at least one history conversation must be open");
+		this.historyOpenConversations = historyOpenConversations;
+	}
+
+	public Path getSearchDirectory() {
+		return searchDirectory;
+	}
+
+	/**
+	 * @param searchDirectory where the full-text index of the history is stored,
+	 * null to disable the search (always disabled without history)
+	 */
+	public void setSearchDirectory(Path searchDirectory) {
+		this.searchDirectory = searchDirectory;
+	}
+
+	public int getSearchSegmentDocs() {
+		return searchSegmentDocs;
+	}
+
+	/**
+	 * @param searchSegmentDocs number of messages indexed in memory before being written
+	 * to a segment file of the index
+	 */
+	public void setSearchSegmentDocs(int searchSegmentDocs) {
+		if (searchSegmentDocs < 1) throw new IllegalArgumentException("search segments must hold at least 1 message");
+		this.searchSegmentDocs = searchSegmentDocs;
+	}
+
+	public int getSearchMergeFactor() {
+		return searchMergeFactor;
+	}
+
+	/**
+	 * @param searchMergeFactor number of index segments of the same size merged into one
+	 */
+	public void setSearchMergeFactor(int searchMergeFactor) {
+		if (searchMergeFactor < 2) throw new IllegalArgumentException("at least 2 search segments must be merged");
+		this.searchMergeFactor = searchMergeFactor;
+	}
+
+	public int getSearchMaxResults() {
+		return searchMaxResults;
+	}
+
+	/**
+	 * @param searchMaxResults maximum number of messages returned by a search
+	 */
+	public void setSearchMaxResults(int searchMaxResults) {
+		if (searchMaxResults < 1) throw new IllegalArgumentException("a search must return at least 1 message");
+		this.searchMaxResults = searchMaxResults;
+	}
+
+}
@@ -13,11 +13,18 @@ package fr.uga.miashs.dciss.chatservice.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import fr.uga.miashs.dciss.chatservice.common.Delivery;
+import fr.uga.miashs.dciss.chatservice.common.FileTransfer;
+import fr.uga.miashs.dciss.chatservice.common.FrameLimits;
+import fr.uga.miashs.dciss.chatservice.common.History;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.Search;
 
 import java.util.*;
 
@@ -25,15 +32,44 @@ public class ServerMsg {
 	
 	private final static Logger LOG = Logger.getLogger(ServerMsg.class.getName());
 	public final static int SERVER_CLIENTID = 0;
+	// période du rapport des files de traitement, en millisecondes
+	private final static long STATS_PERIOD = 60000;
 
 	private transient ServerSocket serverSock;
+	private transient NioTransport nio;
 	private transient boolean started;
 	private transient ExecutorService executor;
+	private transient ExecutorService handshakes;
+	private transient ScheduledExecutorService monitor;
+	private transient SlowConsumerDetector slowConsumers;
 	private transient ServerPacketProcessor sp;
+	private final ServerConfig config;
+	private final FlushStats flushStats;
+	private final OfflineSpool offlineSpool;
+	// journal des commandes modifiant l'état, null si désactivé
+	private final StateJournal journal;
+	// fichiers envoyés par les utilisateurs, null si désactivé
+	private final TransferStore transfers;
+	// historique des conversations, null si désactivé
+	private final HistoryStore history;
+	// index des messages de l'historique, null si désactivé
+	private final SearchIndex search;
+	// tailles maximales des trames, envoyées aux clients à la connexion
+	private final FrameLimits frameLimits;
+	// traitement des paquets par destination et des commandes de contrôle par expéditeur,
+	// null si les paquets sont traités par le thread qui les lit
+	private final StripedExecutor stripes;
+	private final StripedExecutor controlStage;
+	// distribution parallèle des messages des grands groupes
+	private final ForkJoinPool fanOutPool;
+	// tampons réutilisés pour les trames des messages reçus
+	private final BufferPool bufferPool;
+	// change à chaque démarrage : les numéros des paquets envoyés aux clients repartent de 1
+	private final long epoch;
 	
-	// maps pour associer les id aux users et groupes
-	private Map<Integer, UserMsg> users;
-	private Map<Integer, GroupMsg> groups;
+	// tables pour associer les id aux users et groupes (indexées par -id pour les groupes)
+	private IdRegistry<UserMsg> users;
+	private IdRegistry<GroupMsg> groups;
 
 
 	
@@ -44,31 +80,118 @@ public class ServerMsg {
 	private AtomicInteger nextGroupId;
 
 	public ServerMsg(int port) throws IOException {
-		serverSock = new ServerSocket(port);
+		this(port, new ServerConfig());
+	}
+
+	public ServerMsg(int port, ServerConfig config) throws IOException {
+		this.config = config;
+		frameLimits = config.getFrameLimits();
+		flushStats = new FlushStats();
+		bufferPool = new BufferPool(config);
+		epoch = new Random().nextLong();
+		Path spoolDir = config.getOfflineSpoolDirectory();
+		offlineSpool = spoolDir == null ? null
+				: new OfflineSpool(spoolDir, config.getOfflineSpoolShards(), config.getOfflineSpoolSegmentSize());
+		if (config.getTransportMode() == ServerConfig.TransportMode.NIO) {
+			nio = new NioTransport(this, port, config);
+		} else {
+			// ouverte par un canal : les sockets acceptées en ont un, utilisé pour envoyer les fichiers (transferTo)
+			ServerSocketChannel ssc = ServerSocketChannel.open();
+			ssc.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+			serverSock = ssc.socket();
+		}
+		// pool borné pour l'authentification des clients (les boucles NIO lui confient aussi la leur)
+		handshakes = new ThreadPoolExecutor(config.getHandshakeThreads(), config.getHandshakeThreads(),
+				0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.getHandshakeQueueSize()));
 		started = false;
-		users = new ConcurrentHashMap<>();
-		groups = new ConcurrentHashMap<>(); 
+		users = new IdRegistry<>();
+		groups = new IdRegistry<>();
 		nextUserId = new AtomicInteger(1);
 		nextGroupId = new AtomicInteger(-1);
+		// restaure les utilisateurs et groupes des exécutions précédentes
+		Path stateDir = config.getStateDirectory();
+		journal = stateDir == null ? null
+				: new StateJournal(stateDir, this, config.isWalSync(), config.getSnapshotInterval());
+		Path transferDir = config.getTransferDirectory();
+		transfers = transferDir == null ? null : new TransferStore(transferDir, this, config.getTransferRetention());
 		sp = new ServerPacketProcessor(this);
-		executor = Executors.newCachedThreadPool();
+		if (transfers != null) sp.register(FileTransfer.TYPE, transfers);
+		Path historyDir = config.getHistoryDirectory();
+		history = historyDir == null ? null : new HistoryStore(historyDir, this, config);
+		if (history != null) sp.register(History.TYPE, history);
+		Path searchDir = config.getSearchDirectory();
+		search = history == null || searchDir == null ? null : new SearchIndex(searchDir, this, history, config);
+		if (search != null) sp.register(Search.TYPE, search);
+		fanOutPool = new ForkJoinPool(config.getFanOutParallelism());
+		// les boucles NIO ne traitent jamais elles-mêmes les paquets (historique, spool, fichiers de
+		// débordement, distribution aux groupes, attente du journal) : sans bandes configurées,
+		// une bande par cœur
+		int nbStripes = config.getProcessingStripes();
+		if (nbStripes == 0 && nio != null) nbStripes = Runtime.getRuntime().availableProcessors();
+		stripes = nbStripes == 0 ? null : new StripedExecutor("packets", nbStripes, config.getProcessingQueueSize());
+		controlStage = stripes == null ? null
+				: new StripedExecutor("control", config.getControlStripes(), config.getControlQueueSize());
+		slowConsumers = new SlowConsumerDetector(() -> users.values(), config.getSlowConsumerDepth(), config.getSlowConsumerAge());
+		monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "server-monitor");
+			t.setDaemon(true);
+			return t;
+		});
+		if (config.getTransportMode() == ServerConfig.TransportMode.VIRTUAL_THREADS) {
+			executor = newVirtualThreadExecutor();
+		} else {
+			executor = Executors.newCachedThreadPool();
+		}
+	}
+
+	/*
+	 * Un thread virtuel par tâche (JDK 21+). receiveLoop et sendLoop ne bloquent que dans
+	 * les lectures/écritures de socket, dans PacketQueue.take() (LockSupport.park), dans
+	 * DeliveryWindow.awaitRoom() (Condition d'un ReentrantLock) et dans le ReentrantLock
+	 * sending ; la poignée de main et les commandes de contrôle exécutées sans étages
+	 * attendent le journal dans StateJournal.awaitDurable(), lui aussi sur une Condition.
+	 * Toutes ces attentes libèrent le thread porteur : aucun bloc synchronized ne les
+	 * entoure (vérifiable avec -Djdk.tracePinnedThreads=short). Recherche par réflexion pour
+	 * compiler aussi en Java 11.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			LOG.warning("Virtual threads need a JDK 21+, falling back to a cached thread pool");
+			return Executors.newCachedThreadPool();
+		}
 	}
 
 	public GroupMsg createGroup(int ownerId) {
+		return createGroup(ownerId, Collections.emptyList());
+	}
+
+	/**
+	 * Create a group with its first members. The members are added in one step and the
+	 * group is journaled with them as a single record : one wait for the disk whatever
+	 * their number. Unknown (null) users and duplicates are ignored.
+	 */
+	public GroupMsg createGroup(int ownerId, Collection<UserMsg> members) {
 		UserMsg owner = users.get(ownerId);
 		if (owner==null) throw new ServerException("User with id="+ownerId+" unknown. Group creation failed.");
 		int id = nextGroupId.getAndDecrement();
 		GroupMsg res = new GroupMsg(id,owner);
-		groups.put(id, res);
+		res.addMembers(members);
+		// journalisé avant d'être visible : aucune commande sur le groupe ne peut précéder sa création
+		long lsn = journal == null ? 0 : journal.groupCreated(id, ownerId, res.getMemberSnapshot());
+		groups.put(-id, res);
+		if (journal != null) journal.awaitDurable(lsn);
 		LOG.info("Group "+res.getId()+" created");
 		return res;
 	}
 	
 	public boolean removeGroup(int groupId) {
 		//TODO : implementation de la gestion des droits?
-		GroupMsg g =groups.remove(groupId);
+		GroupMsg g =groups.remove(-groupId);
 		if (g==null) return false;
 		g.beforeDelete();
+		if (journal != null) journal.awaitDurable(journal.groupRemoved(groupId));
 		LOG.info("Le groupe " + groupId + " a été supprimé");
 		return true;
 	}
@@ -77,9 +200,241 @@ public class ServerMsg {
 		UserMsg u =users.remove(userId);
 		if (u==null) return false;
 		u.beforeDelete();
+		if (journal != null) journal.awaitDurable(journal.userRemoved(userId));
 		return true;
 	}
+
+	/*
+	 * Modifications journalisées de l'état. La modification et son enregistrement sont
+	 * faits sous le même verrou pour que le journal garde l'ordre des modifications ;
+	 * l'attente de l'écriture sur disque se fait hors verrou.
+	 */
+
+	public boolean addMember(GroupMsg g, UserMsg u) {
+		long lsn;
+		synchronized (g) {
+			if (!g.addMember(u)) return false;
+			lsn = journal == null ? 0 : journal.memberAdded(g.getId(), u.getId());
+		}
+		if (journal != null) journal.awaitDurable(lsn);
+		return true;
+	}
+
+	public boolean removeMember(GroupMsg g, UserMsg u) {
+		long lsn;
+		synchronized (g) {
+			if (!g.removeMember(u)) return false;
+			lsn = journal == null ? 0 : journal.memberRemoved(g.getId(), u.getId());
+		}
+		if (journal != null) journal.awaitDurable(lsn);
+		return true;
+	}
+
+	public void updateUsername(UserMsg u, String username) {
+		long lsn;
+		synchronized (u) {
+			u.setUsername(username);
+			lsn = journal == null ? 0 : journal.usernameChanged(u.getId(), username);
+		}
+		if (journal != null) journal.awaitDurable(lsn);
+	}
+
+	public void updatePassword(UserMsg u, String password) {
+		long lsn;
+		synchronized (u) {
+			u.setPassword(password);
+			lsn = journal == null ? 0 : journal.passwordChanged(u.getId(), password);
+		}
+		if (journal != null) journal.awaitDurable(lsn);
+	}
+
+	public void addContact(UserMsg u, String contactName) {
+		long lsn;
+		synchronized (u) {
+			u.addContact(contactName);
+			lsn = journal == null ? 0 : journal.contactAdded(u.getId(), contactName);
+		}
+		if (journal != null) journal.awaitDurable(lsn);
+	}
+
+	/*
+	 * RESTAURATION DE L'ETAT, utilisée par StateJournal au démarrage (sans journalisation)
+	 */
+
+	UserMsg restoreUser(int userId, String username, String password) {
+		UserMsg u = users.get(userId);
+		if (u == null) {
+			u = new UserMsg(userId, this, username, password);
+			users.put(userId, u);
+		}
+		nextUserId.accumulateAndGet(userId + 1, Math::max);
+		return u;
+	}
+
+	GroupMsg restoreGroup(int groupId, int ownerId) {
+		nextGroupId.accumulateAndGet(groupId - 1, Math::min);
+		GroupMsg g = groups.get(-groupId);
+		UserMsg owner = users.get(ownerId);
+		if (g == null && owner != null) {
+			g = new GroupMsg(groupId, owner);
+			groups.put(-groupId, g);
+		}
+		return g;
+	}
+
+	void restoreUserRemoval(int userId) {
+		UserMsg u = users.remove(userId);
+		if (u != null) u.beforeDelete();
+	}
+
+	void restoreGroupRemoval(int groupId) {
+		GroupMsg g = groups.remove(-groupId);
+		if (g != null) g.beforeDelete();
+	}
+
+	void restoreSequences(int userId, int groupId) {
+		nextUserId.accumulateAndGet(userId, Math::max);
+		nextGroupId.accumulateAndGet(groupId, Math::min);
+	}
+
+	int getNextUserId() {
+		return nextUserId.get();
+	}
+
+	int getNextGroupId() {
+		return nextGroupId.get();
+	}
+
+	List<UserMsg> getAllUsers() {
+		return users.values();
+	}
+
+	List<GroupMsg> getAllGroups() {
+		return groups.values();
+	}
+
+	/**
+	 * @return the store of the files sent by the users, null if disabled
+	 */
+	public TransferStore getTransfers() {
+		return transfers;
+	}
+
+	/**
+	 * @return the history of the conversations, null if disabled
+	 */
+	public HistoryStore getHistory() {
+		return history;
+	}
+
+	/**
+	 * @return the full-text index of the history, null if disabled
+	 */
+	public SearchIndex getSearchIndex() {
+		return search;
+	}
+
+	/**
+	 * @return the journal of the state changes, null if disabled
+	 */
+	public StateJournal getJournal() {
+		return journal;
+	}
 	
+	public ServerConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * @return the maximum frame sizes accepted from the clients
+	 */
+	public FrameLimits getFrameLimits() {
+		return frameLimits;
+	}
+
+	/**
+	 * @return the handler of the control packets, to register new types
+	 */
+	public ServerPacketProcessor getPacketProcessor() {
+		return sp;
+	}
+
+	/**
+	 * @return the number of control packets handled and the time spent by type
+	 */
+	public ControlStats getControlStats() {
+		return sp.getStats();
+	}
+
+	/**
+	 * @return the threads processing the packets by destination, null if the packets are
+	 * processed by the threads reading them (blocking transports without processing stripes)
+	 */
+	public StripedExecutor getProcessingStripes() {
+		return stripes;
+	}
+
+	/**
+	 * @return the threads processing the control packets, null if the packets are
+	 * processed by the threads reading them (blocking transports without processing stripes)
+	 */
+	public StripedExecutor getControlStage() {
+		return controlStage;
+	}
+
+	// pool des authentifications, utilisé aussi par NioConnection
+	ExecutorService getHandshakes() {
+		return handshakes;
+	}
+
+	// threads des sessions, qui relisent aussi l'OfflineSpool par pages (UserMsg)
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return the pool delivering the messages of the groups with many members
+	 */
+	public ForkJoinPool getFanOutPool() {
+		return fanOutPool;
+	}
+
+	/**
+	 * @return the epoch of this run of the server, sent to the clients with the sequence numbers
+	 * of their packets (see common.Delivery)
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return the pool of the buffers in which the frames of the messages are read
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * @return the counters of the batches written by the send loops
+	 */
+	public FlushStats getFlushStats() {
+		return flushStats;
+	}
+
+	/**
+	 * @return the store of the packets sent to offline users, null if disabled
+	 */
+	public OfflineSpool getOfflineSpool() {
+		return offlineSpool;
+	}
+
+	/**
+	 * @return the users whose send queue was too deep or too old at the last check
+	 */
+	public List<UserMsg> getSlowConsumers() {
+		return slowConsumers.getLastReport();
+	}
+
 	public UserMsg getUser(int userId) {
 		return users.get(userId);
 	}
@@ -98,7 +453,7 @@ public class ServerMsg {
 	}
 
 	public GroupMsg getGroup(int groupId) {
-		return groups.get(groupId);
+		return groups.get(-groupId);
 	}
 
 //	public int authenticateUser(String username, String password) {
@@ -115,16 +470,133 @@ public class ServerMsg {
 	// Methode utilisée pour savoir quoi faire d'un paquet
 	// reçu par le serveur
 	public void processPacket(Packet p) throws IOException {
+		if (stripes == null) {
+			route(p);
+		} else if (p.destId == 0) {
+			// commandes dans l'ordre d'envoi de chaque utilisateur, sans bloquer les messages
+			controlStage.execute(p.srcId, () -> routeQuietly(p));
+		} else {
+			// même destination, même thread : l'ordre de chaque conversation est conservé
+			try {
+				stripes.execute(p.destId, () -> routeQuietly(p));
+			} catch (IOException e) {
+				SharedFrame.release(p);
+				throw e;
+			}
+		}
+	}
+
+	/*
+	 * Comme processPacket, pour un paquet lu sur la connexion de son expéditeur : ses commandes
+	 * et ses messages sont appliqués dans l'ordre d'envoi (un message après la création du groupe
+	 * ou l'ajout du membre qui le précèdent, une commande après les messages envoyés avant elle).
+	 * Tant que des commandes de l'expéditeur attendent dans controlStage, ses messages les y
+	 * suivent ; une commande attend que les messages déjà confiés aux bandes soient traités,
+	 * mise de côté sans bloquer son thread (voir UserMsg.runInOrder).
+	 */
+	void processIncoming(UserMsg sender, Packet p) throws IOException {
+		if (stripes == null) {
+			route(p);
+		} else if (p.destId == 0 || sender.hasQueuedControl()) {
+			sender.controlQueued();
+			try {
+				controlStage.execute(p.srcId, controlTask(sender, p));
+			} catch (IOException e) {
+				sender.controlDone();
+				SharedFrame.release(p);
+				throw e;
+			}
+		} else {
+			sender.dataQueued();
+			try {
+				stripes.execute(p.destId, dataTask(sender, p));
+			} catch (IOException e) {
+				sender.dataDone();
+				SharedFrame.release(p);
+				throw e;
+			}
+		}
+	}
+
+	/*
+	 * Comme processIncoming, pour les boucles NIO qui ne doivent jamais bloquer : tous les paquets
+	 * passent par un étage (il y en a toujours en mode NIO) et une file pleine est signalée au
+	 * lieu d'être attendue. Retourne false si la file est pleine, le paquet n'est alors pas pris.
+	 */
+	boolean offerPacket(UserMsg sender, Packet p) throws IOException {
+		boolean control = p.destId == 0 || sender.hasQueuedControl();
+		if (control) sender.controlQueued();
+		else sender.dataQueued();
+		boolean queued = false;
+		try {
+			queued = control ? controlStage.offer(p.srcId, controlTask(sender, p))
+					: stripes.offer(p.destId, dataTask(sender, p));
+			return queued;
+		} catch (IOException e) {
+			SharedFrame.release(p);
+			throw e;
+		} finally {
+			if (!queued) {
+				if (control) sender.controlDone();
+				else sender.dataDone();
+			}
+		}
+	}
+
+	private Runnable controlTask(UserMsg sender, Packet p) {
+		Runnable task = () -> {
+			try {
+				routeQuietly(p);
+			} finally {
+				sender.controlDone();
+			}
+		};
+		return () -> sender.runInOrder(p.destId == 0, task);
+	}
+
+	/*
+	 * Les messages de l'utilisateur sont traités : ses tâches mises de côté reprennent dans
+	 * controlStage, ou sur le thread appelant si sa file est pleine (une bande ne doit pas
+	 * attendre controlStage, dont les tâches peuvent attendre les bandes).
+	 */
+	void resumeControl(UserMsg sender) {
+		boolean queued;
+		try {
+			queued = controlStage.offer(sender.getId(), sender::runHeld);
+		} catch (IOException e) {
+			queued = false;
+		}
+		if (!queued) sender.runHeld();
+	}
+
+	private Runnable dataTask(UserMsg sender, Packet p) {
+		return () -> {
+			try {
+				routeQuietly(p);
+			} finally {
+				sender.dataDone();
+			}
+		};
+	}
+
+	private void routeQuietly(Packet p) {
+		try {
+			route(p);
+		} catch (IOException e) {
+			LOG.warning("Packet from " + p.srcId + " to " + p.destId + " failed : " + e.getMessage());
+		}
+	}
+
+	private void route(Packet p) throws IOException {
 		PacketProcessor pp = null;
 		if (p.destId < 0) { //message de groupe
 			// can be send only if sender is member
-			UserMsg sender = users.get(p.srcId);
-			GroupMsg g = groups.get(p.destId);
+			GroupMsg g = groups.get(-p.destId);
 			//TODO : il faut informer l'expéditeur si le destinataire n'existe pas
 			//if (g == null) {
 			//	LOG.info("ce destinataire n'existe pas");
 			//}
-			if (g.getMembers().contains(sender)) pp=g;
+			if (g != null && g.isMember(p.srcId)) pp=g;
 		}
 		else if (p.destId > 0) { // message entre utilisateurs
 			 pp = users.get(p.destId);
@@ -134,49 +606,78 @@ public class ServerMsg {
 		}
 		
 		if (pp != null) {
+			// enregistré avant l'envoi, qui peut libérer la trame (les messages de groupe le sont par GroupMsg)
+			if (history != null && p.destId > 0) history.append(p);
 			pp.process(p);
+		} else {
+			// destinataire inconnu : le tampon de la trame retourne au pool
+			SharedFrame.release(p);
+		}
+	}
+
+	/**
+	 * Create a new user if userId is 0.
+	 * @return the id of the user to be used for this connection
+	 */
+	public int registerIfNew(int userId, String password) {
+		if (userId == 0) {
+			userId = nextUserId.getAndIncrement();
+			//j'ajoute un username par défaut, du type user3. le constructeur de UserMsg prend mtn une string en paramètre.
+			users.put(userId, new UserMsg(userId, this, "user"+userId, password));
+			// l'identifiant n'est envoyé au client qu'une fois l'utilisateur enregistré sur disque
+			if (journal != null) journal.awaitDurable(journal.userCreated(userId, "user"+userId, password));
 		}
+		return userId;
+	}
+
+	/**
+	 * @return the user if it exists and the password matches, null otherwise
+	 */
+	public UserMsg authenticate(int userId, String password) {
+		LOG.info("Connection request from " + userId + " with password " + password);
+		UserMsg x = users.get(userId);
+		if (x != null && x.getPassword().equals(password)) return x;
+		return null;
 	}
 
 	public void start() {
+		long period = config.getSlowConsumerPeriod();
+		monitor.scheduleAtFixedRate(slowConsumers, period, period, TimeUnit.MILLISECONDS);
+		if (transfers != null) {
+			long purge = Math.min(config.getTransferRetention(), TimeUnit.HOURS.toMillis(1));
+			monitor.scheduleAtFixedRate(transfers::purge, purge, purge, TimeUnit.MILLISECONDS);
+		}
+		if (stripes != null) {
+			// attente dans les files de chaque bande
+			monitor.scheduleAtFixedRate(() -> LOG.info(stripes + System.lineSeparator() + controlStage),
+					STATS_PERIOD, STATS_PERIOD, TimeUnit.MILLISECONDS);
+		} else if (controlStage != null) {
+			monitor.scheduleAtFixedRate(() -> LOG.info(controlStage.toString()), STATS_PERIOD, STATS_PERIOD, TimeUnit.MILLISECONDS);
+		}
+		monitor.scheduleAtFixedRate(() -> LOG.info(bufferPool.toString()), STATS_PERIOD, STATS_PERIOD, TimeUnit.MILLISECONDS);
+		// nombre et durée des commandes de contrôle, par type (cumulés depuis le démarrage)
+		monitor.scheduleAtFixedRate(() -> {
+			String control = sp.getStats().toString();
+			if (!control.isEmpty()) LOG.info("Control packets : " + control);
+		}, STATS_PERIOD, STATS_PERIOD, TimeUnit.MILLISECONDS);
+		if (nio != null) {
+			started = true;
+			nio.acceptLoop();
+			return;
+		}
 		started = true;
+		// la boucle d'acceptation ne fait qu'accepter : l'authentification
+		// est faite par le pool dédié (handshakes)
 		while (started) {
 			try {
 				// le serveur attend une connexion d'un client
 				Socket s = serverSock.accept();
-
-				DataInputStream dis = new DataInputStream(s.getInputStream());
-				DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-
-				// lit l'identifiant du client
-				int userId = dis.readInt();
-				String password = dis.readUTF();
-				LOG.info("Connection request from " + userId + " with password " + password);
-				//si 0 alors il faut créer un nouvel utilisateur et
-				// envoyer l'identifiant au client
-				if (userId == 0) {
-					userId = nextUserId.getAndIncrement();
-					dos.writeInt(userId);
-					dos.flush();
-					//j'ajoute un username par défaut, du type user3. le constructeur de UserMsg prend mtn une string en paramètre.
-					users.put(userId, new UserMsg(userId, this, "user"+userId, password));
-				}
-				// si l'identifiant existe ou est nouveau alors 
-				// deux "taches"/boucles  sont lancées en parralèle
-				// une pour recevoir les messages du client, 
-				// une pour envoyer des messages au client
-				// les deux boucles sont gérées au niveau de la classe UserMsg
-				UserMsg x = users.get(userId);
-				if (x!= null && x.open(s, x.getUsername()) && x.getPassword().equals(password)) {
-					LOG.info(userId + " connected");
-					// lancement boucle de reception
-					executor.submit(() -> x.receiveLoop());
-					// lancement boucle d'envoi
-					executor.submit(() -> x.sendLoop());
-				} else { // si l'idenfiant est inconnu, on ferme la connexion
+				try {
+					handshakes.execute(() -> handshake(s));
+				} catch (RejectedExecutionException e) {
+					LOG.warning("Too many pending logins, connection refused");
 					s.close();
 				}
-
 			} catch (IOException e) {
 				LOG.info("Close server");
 				e.printStackTrace();
@@ -184,16 +685,93 @@ public class ServerMsg {
 		}
 	}
 
+	/*
+	 * Authentification d'un client qui vient de se connecter,
+	 * exécutée dans le pool handshakes.
+	 */
+	private void handshake(Socket s) {
+		try {
+			// un client silencieux ne bloque pas un thread du pool indéfiniment
+			s.setSoTimeout(config.getHandshakeTimeout());
+			DataInputStream dis = new DataInputStream(s.getInputStream());
+			DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+
+			// lit l'identifiant du client
+			int userId = dis.readInt();
+			String password = dis.readUTF();
+			//si 0 alors il faut créer un nouvel utilisateur et
+			// envoyer l'identifiant au client
+			if (userId == 0) {
+				userId = registerIfNew(userId, password);
+				dos.writeInt(userId);
+				dos.flush();
+			}
+			s.setSoTimeout(0);
+			// si l'identifiant existe ou est nouveau alors
+			// deux "taches"/boucles  sont lancées en parralèle
+			// une pour recevoir les messages du client,
+			// une pour envoyer des messages au client
+			// les deux boucles sont gérées au niveau de la classe UserMsg
+			UserMsg x = authenticate(userId, password);
+			if (x!= null && x.open(s, x.getUsername())) {
+				// limites des trames et état de la livraison, avant tout paquet de la boucle d'envoi
+				dos.write(frameLimits.encode().array());
+				dos.write(new Delivery(epoch, x.getDeliveryWindow().getAcked()).encode().array());
+				dos.flush();
+				LOG.info(userId + " connected");
+				// lancement boucle de reception
+				executor.submit(() -> x.receiveLoop());
+				// lancement boucle d'envoi
+				executor.submit(() -> x.sendLoop());
+			} else { // si l'idenfiant est inconnu, on ferme la connexion
+				s.close();
+			}
+		} catch (SocketTimeoutException e) {
+			LOG.warning("Handshake timeout for " + s.getRemoteSocketAddress());
+			closeQuietly(s);
+		} catch (IOException | UncheckedIOException e) {
+			// UncheckedIOException : l'utilisateur créé n'a pas pu être écrit dans le journal
+			LOG.warning("Handshake failed for " + s.getRemoteSocketAddress() + " : " + e.getMessage());
+			closeQuietly(s);
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch (IOException ignored) {
+		}
+	}
+
 
 	public void stop() {
 		started = false;
 		try {
-			serverSock.close();
-			users.values().forEach(s -> s.close());
+			if (nio != null) nio.stop();
+			else serverSock.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		handshakes.shutdownNow();
+		monitor.shutdownNow();
+		fanOutPool.shutdown();
+		if (stripes != null) stripes.shutdown();
+		if (controlStage != null) controlStage.shutdown();
+		users.values().forEach(s -> s.close());
+		// chaque stockage est fermé même si le précédent a échoué
+		if (journal != null) {
+			try {
+				// un snapshot à l'arrêt évite de rejouer le journal au prochain démarrage
+				if (config.isSnapshotOnStop()) journal.snapshot();
+			} catch (IOException e) {
+				LOG.warning("No snapshot at shutdown : " + e.getMessage());
+			}
+			journal.close();
+		}
+		if (search != null) search.close();
+		if (history != null) history.close();
+		if (offlineSpool != null) offlineSpool.close();
 	}
 
 
@@ -207,7 +785,7 @@ public class ServerMsg {
 			}
 		}
 	public static void main(String[] args) throws IOException {
-		ServerMsg s = new ServerMsg(1666);
+		ServerMsg s = new ServerMsg(1666, ServerConfig.fromSystemProperties());
 		s.start();
 	}
 	}
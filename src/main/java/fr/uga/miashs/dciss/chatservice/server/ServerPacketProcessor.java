@@ -14,69 +14,96 @@ package fr.uga.miashs.dciss.chatservice.server;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import fr.uga.miashs.dciss.chatservice.common.ControlResponse;
+import fr.uga.miashs.dciss.chatservice.common.Delivery;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 
+/**
+ * Handles the control packets (destId 0) : the first byte of the data is the type of the
+ * packet, dispatched to the handler registered for it. Other modules register their own
+ * types with register(), e.g. the TransferStore for the file transfers (type 12).
+ */
 public class ServerPacketProcessor implements PacketProcessor {
 	private final static Logger LOG = Logger.getLogger(ServerPacketProcessor.class.getName());
 	private ServerMsg server;
+	// gestionnaire de chaque type de paquet de contrôle (premier octet), null si non géré ;
+	// tableau recopié à chaque enregistrement, lu sans verrou
+	private volatile PacketProcessor[] handlers;
+	private final ControlStats stats;
 
 	public ServerPacketProcessor(ServerMsg s) {
 		this.server = s;
-	}
-
-	@Override
-	public void process(Packet p) throws IOException {
-
-		LOG.info("PACKET RECU DANS process() de ServerPacketProcessor");
-
-
+		handlers = new PacketProcessor[256];
+		stats = new ControlStats();
 		// ByteBufferVersion. On aurait pu utiliser un ByteArrayInputStream + DataInputStream à la place
-		ByteBuffer buf = ByteBuffer.wrap(p.data);
-		byte type = buf.get();
-
-		//PAQUET BIEN ENVOYE dans setUsername de ClientMsg mais PAS RECU ICI
-		if (type == 1) { // cas creation de groupe
-			createGroup(p.srcId, buf);
-		}
-		else if (type == 2) { //cas suppression de groupe
-			removeGroup(p);
-		}
-		else if (type == 3) { // cas ajout de membre dans un groupe
+		register(1, p -> createGroup(p.srcId, body(p))); // création de groupe
+		register(2, this::removeGroup); // suppression de groupe
+		register(3, p -> { // ajout de membre dans un groupe
+			ByteBuffer buf = body(p);
 			int groupId = buf.getInt(); // ID du groupe
 			int userId = buf.getInt(); // ID de l'utilisateur
 			addMember(p.srcId, groupId, userId);
-		}
-		else if (type == 4) { // cas suppression de membre dans un groupe
-			removeMember(p.srcId, buf);
-		}
-		else if (type == 5) { //cas mettre a jour le username
-			updateUsername(p, buf);
-		}
-
-		else if (type == 7) { //update password
-			updatePassword(p, buf);
-		}
+		});
+		register(4, p -> removeMember(p.srcId, body(p))); // suppression de membre dans un groupe
+		register(5, p -> updateUsername(p, body(p))); // mettre a jour le username
+		register(7, p -> updatePassword(p, body(p))); // update password
+		register(8, p -> addContact(p, body(p))); // addContact
+		register(9, p -> sendContactsList(p.srcId)); // demande de liste de contacts
+		register(11, p -> sendInfos(p, body(p))); // information retrieval
+		register(Delivery.ACK, p -> acknowledge(p.srcId, body(p))); // acquittement des paquets reçus
+	}
 
-		else if (type == 8) { //addContact
-			addContact(p, buf);
+	/**
+	 * Register the handler of a type of control packet (first byte of the data).
+	 * @throws IllegalStateException if the type already has a handler
+	 */
+	public synchronized void register(int type, PacketProcessor handler) {
+		if (type < 0 || type > 255) throw new IllegalArgumentException("invalid packet type " + type);
+		if (handlers[type] != null) throw new IllegalStateException("packet type " + type + " already handled");
+		PacketProcessor[] h = handlers.clone();
+		h[type] = handler;
+		handlers = h;
+	}
 
-		} else if (type == 9) { //cas demande de liste de contacts
-			sendContactsList(p.srcId);
-		}
-		//dans le cas où le type n'est pas déterminé
+	/**
+	 * @return the number of packets and the time spent by type
+	 */
+	public ControlStats getStats() {
+		return stats;
+	}
 
-		else if (type == 11) { //CASE INFORMATION RETRIEVAL
-			sendInfos(p, buf);
-		}
+	// données du paquet après le type
+	private static ByteBuffer body(Packet p) {
+		ByteBuffer buf = ByteBuffer.wrap(p.data);
+		buf.get();
+		return buf;
+	}
 
-			//dans le cas où le type n'est pas déterminé
-		else {
+	@Override
+	public void process(Packet p) throws IOException {
+		int type = p.data.length > 0 ? p.data[0] & 0xFF : 0;
+		PacketProcessor h = handlers[type];
+		if (h == null) {
 			LOG.warning("Server message of type=" + type + " not handled by procesor");
+			return;
 		}
+		long start = System.nanoTime();
+		try {
+			h.process(p);
+		} finally {
+			stats.record(type, System.nanoTime() - start);
+		}
+	}
+
+	private void acknowledge(int userId, ByteBuffer buf) {
+		UserMsg user = server.getUser(userId);
+		if (user == null || buf.remaining() < 8) return;
+		user.acknowledge(buf.getLong());
 	}
 
     private void addContact(Packet p, ByteBuffer buf) {
@@ -87,7 +114,7 @@ public class ServerPacketProcessor implements PacketProcessor {
         String contactName = new String(contactNameBytes, StandardCharsets.UTF_8);
         UserMsg user = server.getUser(userId);
         if (user != null) {
-            user.addContact(contactName);
+            server.addContact(user, contactName);
             LOG.info("Contact added successfully for user with ID: " + userId +  ", contact Name: " + contactName);
         } else {
             LOG.warning("User with ID " + userId + " not found. Contact not added.");
@@ -136,26 +163,10 @@ public class ServerPacketProcessor implements PacketProcessor {
 	 */
 	private void sendInfos(Packet p, ByteBuffer buf) {
 		int userId = p.srcId; //id du user
-		String username = server.getUser(userId).getUsername(); //on récupère le username
-		byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
-		int lengthU = username.getBytes().length; //longueur du username
-
-		String password = server.getUser(userId).getPassword(); //on récupère le password
-		byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
-		int lengthP = password.getBytes().length; //longueur du password
-
-		// Create a byte buffer with 4 extra bytes for the length
-		ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + lengthU + 4 + lengthP);
-		buffer.put((byte) 9);
-		buffer.putInt(lengthU);
-		buffer.put(usernameBytes);
-		buffer.putInt(lengthP);
-		buffer.put(passwordBytes);
-
-		// nv tableau qui concatène la longueur du msg et le msg lui-même
-		byte[] data = buffer.array();
-		Packet reponse = new Packet(0, userId, data); //on forme le packet
-		server.getUser(userId).process(reponse); //on l'envoie
+		UserMsg user = server.getUser(userId);
+		// username déjà encodé en UTF-8 par le UserMsg
+		byte[] data = ControlEncoder.infos(user.getUsernameBytes(), user.getPassword().getBytes(StandardCharsets.UTF_8));
+		user.process(new Packet(0, userId, data)); //on l'envoie
 	}
 
 	/**
@@ -171,7 +182,7 @@ public class ServerPacketProcessor implements PacketProcessor {
 		String password = new String(passwordBytes, StandardCharsets.UTF_8);
 
 		//on met à jour le password côté serveur (setPassword() de la classe UserMsg)
-		server.getUser(userId).setPassword(password);
+		server.updatePassword(server.getUser(userId), password);
 		LOG.info("userId " + userId + " updated their password to : " + password);
 	}
 
@@ -188,7 +199,7 @@ public class ServerPacketProcessor implements PacketProcessor {
 		String username = new String(usernameBytes, StandardCharsets.UTF_8);
 
 		//on met à jour le username côté serveur (setUsername() de la classe UserMsg)
-		server.getUser(userId).setUsername(username);
+		server.updateUsername(server.getUser(userId), username);
 		LOG.info("userId " + userId + " a mis à jour son username en " + username);
 		//TRACE : print every userid and their username
 		LOG.info(server.getUsers());
@@ -225,54 +236,31 @@ public class ServerPacketProcessor implements PacketProcessor {
 
 	public void createGroup(int ownerId, ByteBuffer data) throws IOException {
 		int nb = data.getInt();
-		GroupMsg g = server.createGroup(ownerId);
+		// nb vient du client : la liste ne dépasse pas ce que la trame peut contenir
+		List<UserMsg> users = new ArrayList<>(Math.max(0, Math.min(nb, data.remaining() / 4)));
 		for (int i = 0; i < nb; i++) {
-			g.addMember(server.getUser(data.getInt()));
+			UserMsg u = server.getUser(data.getInt());
+			if (u != null) users.add(u);
 		}
-		//Packet qui informe le owner que le groupe a été créé
-		String msgOwner = "Vous avez créé le groupe " + g.getId() ;
-		byte[] msgOwnerBytes = msgOwner.getBytes(StandardCharsets.UTF_8);//msg à envoyer, converti en bytes
-		int length = msgOwner.getBytes().length;
-		// bytebuffer
-		ByteBuffer buffer = ByteBuffer.allocate(1+ 4 + 4 + length);
-		buffer.put((byte) 1);
-		buffer.putInt(g.getId());
-		buffer.putInt(length);
-		buffer.put(msgOwnerBytes);
-		// nv tableau qui concatène la longueur du msg et le msg lui-même
-		byte[] dataMsg = buffer.array();
-
-		Packet reponse = new Packet(0, ownerId, dataMsg);
-		server.getUser(ownerId).process(reponse);
-
-		// packet qui informe les autres membres du groupe de la création du groupe
-		String msg = "Le groupe " + g.getId() + " a été créé par le user " + ownerId + ". Les membres sont : ";
-		for (UserMsg u : g.getMembers()) { //ajouter à la string le userid de chaque membre.
-			msg += u.getId() + ", ";
-		}
-		//remove last ","
-		msg = msg.substring(0, msg.length() - 2);
-
-		byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8); //msg à envoyer, converti en bytes
-		int length2 = msg.getBytes().length; //longueur du msg à envoyer
-
-// bytebuffer
-		ByteBuffer buffer2 = ByteBuffer.allocate(1+ 4 + 4 + length2);
-		buffer2.put((byte) 1);
-		buffer2.putInt(g.getId()); //on envoie l'id du groupe (pour que les membres puissent l'identifier
-		buffer2.putInt(length2);
-		buffer2.put(msgBytes);
-// nv tableau qui concatène la longueur du msg et le msg lui-même
-		byte[] dataMsg2 = buffer2.array();
-
-		//send to everyone, except to the owner
-		for (UserMsg u : g.getMembers()) {
-			if (u.getId() != ownerId) {
-				Packet reponse2 = new Packet(0, u.getId(), dataMsg2);
-				u.process(reponse2);
-			}
+		// un seul instantané des membres et un seul enregistrement du journal pour tout le groupe
+		GroupMsg g = server.createGroup(ownerId, users);
+		// une seule réponse pour tous les membres, owner compris : le client affiche
+		// le message du owner ou la liste des membres selon son id
+		MemberSnapshot members = g.getMemberSnapshot();
+		byte[] dataMsg = ControlEncoder.groupCreated(g.getId(), ownerId, members);
+		sendToMembers(members, dataMsg);
+	}
+
+	// envoie la même réponse (tableau partagé) à chaque membre
+	private static void sendToMembers(MemberSnapshot members, byte[] data) {
+		for (int i = 0; i < members.size(); i++) {
+			members.get(i).process(new Packet(0, members.getId(i), data));
 		}
+	}
 
+	private void reply(int userId, byte[] data) {
+		UserMsg u = server.getUser(userId);
+		if (u != null) u.process(new Packet(0, userId, data));
 	}
 
 	/**
@@ -290,71 +278,17 @@ public class ServerPacketProcessor implements PacketProcessor {
 
 		if (groupe == null) {
 			// informer le sender par un packet que le groupe n'existe pas
-			String msg = "Le groupe " + groupId + " n'existe pas";
-			byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8); //msg à envoyer, converti en bytes
-			int length = msg.getBytes().length; //longueur du msg à envoyer
-
-			// créer un buffer avec 4 extra bytes pour la longueur
-			ByteBuffer buffer = ByteBuffer.allocate(1+4 + length);
-			buffer.put((byte) 2);
-			buffer.putInt(length);
-			buffer.put(msgBytes);
-			// nv tableau qui concatène la longueur du msg et le msg lui-même
-			byte[] data = buffer.array();
-
-			Packet reponse = new Packet(0, src, data); //on forme le packet
-			server.getUser(src).process(reponse); //on l'envoie
-
+			reply(src, ControlEncoder.status(ControlResponse.REMOVE_GROUP, ControlResponse.NO_GROUP, groupId, 0));
 			LOG.info("userId " + src + " a essayé de supprimer le groupe " + groupId + " qui n'existe pas"); //Trace pour le serveur
 
-		} else { //le groupe existe
-			// vérifier que le sender est le owner
-			if (src != groupe.getOwner().getId()) {
-				LOG.info("le sender " + src + " n'est pas le propriétaire du groupe " + groupId);
-				//informer le sender par un packet qu'il n'a pas les droits pour supprimer les groupes
-				String msg = "Vous n'avez pas les droits pour supprimer le groupe " + groupId;
-				byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
-				int length = msg.getBytes().length; //longueur du msg à envoyer
-
-				// Create a byte buffer with 4 extra bytes for the length
-				ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + length);
-				// Put the length and the text bytes into the buffer
-				buffer.put((byte) 2);
-				buffer.putInt(length);
-				buffer.put(msgBytes);
-				// nv tableau qui concatène la longueur du msg et le msg lui-même
-				byte[] data = buffer.array();
-
-				Packet reponse = new Packet(0, src, data);
-				server.getUser(src).process(reponse);
-
-			}
-			else { //le sender est le owner
-				//msg à envoyer, converti en bytes
-				String msg = "Le groupe " + groupId + " a été supprimé";
-				byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
-
-				//longueur du msg à envoyer
-				int length = msg.getBytes().length;
-
-				// Create a byte buffer with 4 extra bytes for the length
-				ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + length);
-
-				// Put the length and the text bytes into the buffer
-				buffer.put((byte) 2);
-				buffer.putInt(length);
-				buffer.put(msgBytes);
-
-				// nv tableau qui concatène la longueur du msg et le msg lui-même
-				byte[] data = buffer.array();
-
-				for (UserMsg u : groupe.getMembers()) {
-					Packet reponse = new Packet(0, u.getId(), data);
-
-					u.process(reponse);
-				}
-				server.removeGroup(groupId);
-			}
+		} else if (src != groupe.getOwner().getId()) { // vérifier que le sender est le owner
+			LOG.info("le sender " + src + " n'est pas le propriétaire du groupe " + groupId);
+			//informer le sender par un packet qu'il n'a pas les droits pour supprimer les groupes
+			reply(src, ControlEncoder.status(ControlResponse.REMOVE_GROUP, ControlResponse.NOT_OWNER, groupId, 0));
+		} else { //le sender est le owner
+			sendToMembers(groupe.getMemberSnapshot(),
+					ControlEncoder.status(ControlResponse.REMOVE_GROUP, ControlResponse.OK, groupId, 0));
+			server.removeGroup(groupId);
 		}
 	}
 
@@ -367,57 +301,21 @@ public class ServerPacketProcessor implements PacketProcessor {
 	 */
 	private void addMember(int srcId, int groupId, int userId) {
 		GroupMsg group = server.getGroup(groupId);
-		if (group != null) {
-			UserMsg user = server.getUser(userId);
-			if (user != null) {
-				group.addMember(user);
-				// Envoyer une notification ou une confirmation si nécessaire
-				//msg à envoyer, converti en bytes
-				String msg = "User " + userId + " has been added to group " + groupId;
-				byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
-				int length = msg.getBytes().length;
-
-				// Create a byte buffer with 4 extra bytes for the length
-				ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + length);
-
-				// Put the length and the text bytes into the buffer
-				buffer.put((byte) 3);
-				buffer.putInt(length);
-				buffer.put(msgBytes);
-
-				// nv tableau qui concatène la longueur du msg et le msg lui-même
-				byte[] data = buffer.array();
-
-				for (UserMsg u : group.getMembers()) {
-					Packet reponse = new Packet(0, u.getId(), data);
-					u.process(reponse);
-				}
-			} else {
-				LOG.warning("Attempt to add non-existent user " + userId + " to group " + groupId);
-				String msgNoUser = "User " + userId + " does not exist";
-				byte[] msgNoUserBytes = msgNoUser.getBytes(StandardCharsets.UTF_8);
-				int length = msgNoUser.getBytes().length;
-				ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + length);
-				buffer.put((byte) 3);
-				buffer.putInt(length);
-				buffer.put(msgNoUserBytes);
-				byte[] data = buffer.array();
-				Packet reponse = new Packet(0, srcId, data);
-				server.getUser(srcId).process(reponse);
-			}
-		} else {
+		if (group == null) {
 			LOG.warning("Group " + groupId + " not found");
-			String msgNoGroup = "Group " + groupId + " does not exist";
-			byte[] msgNoGroupBytes = msgNoGroup.getBytes(StandardCharsets.UTF_8);
-			int length = msgNoGroup.getBytes().length;
-			ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + length);
-			buffer.put((byte) 3);
-			buffer.putInt(length);
-			buffer.put(msgNoGroupBytes);
-			byte[] data = buffer.array();
-			Packet reponse = new Packet(0, srcId, data);
-			server.getUser(srcId).process(reponse);
+			reply(srcId, ControlEncoder.status(ControlResponse.ADD_MEMBER, ControlResponse.NO_GROUP, groupId, userId));
+			return;
 		}
+		UserMsg user = server.getUser(userId);
+		if (user == null) {
+			LOG.warning("Attempt to add non-existent user " + userId + " to group " + groupId);
+			reply(srcId, ControlEncoder.status(ControlResponse.ADD_MEMBER, ControlResponse.NO_USER, groupId, userId));
+			return;
+		}
+		server.addMember(group, user);
+		// notification à tous les membres, le nouveau compris
+		sendToMembers(group.getMemberSnapshot(),
+				ControlEncoder.status(ControlResponse.ADD_MEMBER, ControlResponse.OK, groupId, userId));
 	}
 
 	/**
@@ -430,40 +328,16 @@ public class ServerPacketProcessor implements PacketProcessor {
 		int groupId = data.getInt();
 		int userId = data.getInt();
 		GroupMsg group = server.getGroup(groupId);
-		String msg = null;
 		UserMsg user = server.getUser(userId);
 		if (group != null && user != null) {
-			group.removeMember(user);
+			server.removeMember(group, user);
 			// Envoyer une notification aux autres membres du groupe
-			msg = "User " + userId + " has been removed from group " + groupId;
-			byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8); //msg à envoyer, converti en bytes
-			int length = msg.getBytes().length; //longueur du msg à envoyer
-
-			ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + length);
-			buffer.put((byte) 4);
-			buffer.putInt(length);
-			buffer.put(msgBytes);
-			byte[] dataArray = buffer.array(); // nv tableau qui concatène la longueur du msg et le msg lui-même
-
-			for (UserMsg u : group.getMembers()) {
-				Packet reponse = new Packet(0, u.getId(), dataArray);
-				u.process(reponse);
-			}
+			sendToMembers(group.getMemberSnapshot(),
+					ControlEncoder.status(ControlResponse.REMOVE_MEMBER, ControlResponse.OK, groupId, userId));
 			return;
 		}
-		if (group != null) { //user doesn't exist
-			msg = "User " + userId + " does not exist or isn't in this group";
-		} else { //group == null
-			msg = "Group " + groupId + " does not exist"; }
-		byte[] msgBytes2 = msg.getBytes(StandardCharsets.UTF_8); //msg à envoyer, converti en bytes
-		int length2 = msg.getBytes().length; //longueur du msg à envoyer
-		ByteBuffer buffer2 = ByteBuffer.allocate(1 + 4 + length2);
-		buffer2.put((byte) 4);
-		buffer2.putInt(length2);
-		buffer2.put(msgBytes2);
-		byte[] dataArray2 = buffer2.array();
-		Packet reponse = new Packet(0, ownerId, dataArray2);
-		server.getUser(ownerId).process(reponse);
+		byte code = group != null ? ControlResponse.NO_USER : ControlResponse.NO_GROUP;
+		reply(ownerId, ControlEncoder.status(ControlResponse.REMOVE_MEMBER, code, groupId, userId));
 	}
 
 //	private void login(int userId, ByteBuffer buf) {
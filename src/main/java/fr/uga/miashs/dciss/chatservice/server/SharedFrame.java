@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * A packet already encoded in the wire format sent to the clients
+ * (srcId/destId/length/data), shared by all the connections it is sent to.
+ * The frame is never modified once filled. Each holder must call retain()
+ * before keeping it and release() once it has been written or discarded.
+ * The frame of a message is read directly from the connection of its sender into a
+ * buffer of the BufferPool (allocate()), which goes back to the pool when the last
+ * recipient has written it.
+ */
+public class SharedFrame {
+	private final static int COPY_CHUNK = 8 * 1024;
+	// copie des trames hors tas vers les flux
+	private final static ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[COPY_CHUNK]);
+
+	// la trame occupe [0, limit) du tampon
+	private final ByteBuffer buf;
+	// null si le tampon n'appartient pas à un pool
+	private final BufferPool pool;
+	private final BufferPool.Leak leak;
+	private final AtomicInteger refCnt;
+
+	private SharedFrame(ByteBuffer buf, BufferPool pool) {
+		this.buf = buf;
+		this.pool = pool;
+		leak = pool == null ? null : pool.track(this, buf.limit());
+		refCnt = new AtomicInteger(1);
+	}
+
+	/**
+	 * Encode a packet in a frame allocated for it. The returned frame has a reference count of 1,
+	 * owned by the caller.
+	 */
+	public static SharedFrame encode(Packet p) {
+		ByteBuffer buf = ByteBuffer.allocate(12 + p.data.length);
+		buf.putInt(p.srcId).putInt(p.destId).putInt(p.data.length).put(p.data).flip();
+		return new SharedFrame(buf, null);
+	}
+
+	/**
+	 * Encode a packet in a buffer of the pool. The returned frame has a reference count of 1,
+	 * owned by the caller.
+	 */
+	public static SharedFrame encode(BufferPool pool, Packet p) {
+		SharedFrame f = allocate(pool, p.srcId, p.destId, p.data.length);
+		f.body().put(p.data);
+		return f;
+	}
+
+	/**
+	 * Take a buffer from the pool for a frame of length bytes of data, whose header is written.
+	 * The data must be written in body() before the frame is shared.
+	 * The returned frame has a reference count of 1, owned by the caller.
+	 */
+	public static SharedFrame allocate(BufferPool pool, int srcId, int destId, int length) {
+		ByteBuffer buf = pool.acquire(12 + length);
+		buf.putInt(0, srcId).putInt(4, destId).putInt(8, length);
+		return new SharedFrame(buf, pool);
+	}
+
+	public int length() {
+		return buf.limit();
+	}
+
+	public int srcId() {
+		return buf.getInt(0);
+	}
+
+	public int destId() {
+		return buf.getInt(4);
+	}
+
+	/**
+	 * @return a view of the data of the frame, to fill it, without copying it
+	 */
+	public ByteBuffer body() {
+		return buf.duplicate().position(12).slice();
+	}
+
+	/**
+	 * Fill the data of the frame from a stream, starting at offset from of the data.
+	 */
+	public void readBody(DataInputStream dis, int from) throws IOException {
+		ByteBuffer b = body().position(from);
+		if (b.hasArray()) {
+			dis.readFully(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			return;
+		}
+		byte[] scratch = SCRATCH.get();
+		while (b.hasRemaining()) {
+			int n = Math.min(scratch.length, b.remaining());
+			dis.readFully(scratch, 0, n);
+			b.put(scratch, 0, n);
+		}
+	}
+
+	/**
+	 * @return a copy of the data of the frame
+	 */
+	public byte[] data() {
+		byte[] data = new byte[buf.limit() - 12];
+		body().get(data);
+		return data;
+	}
+
+	/**
+	 * @return a read only view of the frame, with its own position, without copying it
+	 */
+	public ByteBuffer view() {
+		return buf.asReadOnlyBuffer();
+	}
+
+	public SharedFrame retain() {
+		// le compteur d'une trame libérée reste à 0 : son tampon a déjà été rendu
+		int r;
+		do {
+			r = refCnt.get();
+			if (r <= 0) throw new IllegalStateException("frame already released");
+		} while (!refCnt.compareAndSet(r, r + 1));
+		return this;
+	}
+
+	/**
+	 * Give the buffer back to its pool if it was the last reference.
+	 * @return true if it was the last reference
+	 */
+	public boolean release() {
+		int r;
+		do {
+			r = refCnt.get();
+			if (r <= 0) throw new IllegalStateException("frame released too many times");
+		} while (!refCnt.compareAndSet(r, r - 1));
+		if (r > 1) return false;
+		if (leak != null) leak.released();
+		if (pool != null) pool.release(buf);
+		return true;
+	}
+
+	public int refCnt() {
+		return refCnt.get();
+	}
+
+	/**
+	 * Write a packet in the wire format, using its shared frame if it has one.
+	 * @return the number of bytes written
+	 */
+	public static int write(DataOutputStream dos, Packet p) throws IOException {
+		if (p instanceof FramedPacket) {
+			SharedFrame f = ((FramedPacket) p).frame;
+			int length = f.buf.limit();
+			if (f.buf.hasArray()) {
+				dos.write(f.buf.array(), f.buf.arrayOffset(), length);
+				return length;
+			}
+			ByteBuffer b = f.buf.duplicate();
+			byte[] scratch = SCRATCH.get();
+			while (b.hasRemaining()) {
+				int n = Math.min(scratch.length, b.remaining());
+				b.get(scratch, 0, n);
+				dos.write(scratch, 0, n);
+			}
+			return length;
+		}
+		dos.writeInt(p.srcId);
+		dos.writeInt(p.destId);
+		dos.writeInt(p.data.length);
+		dos.write(p.data);
+		return 12 + p.data.length;
+	}
+
+	/**
+	 * Retain the shared frame of the packet, if it has one.
+	 */
+	public static void retain(Packet p) {
+		if (p instanceof FramedPacket) ((FramedPacket) p).frame.retain();
+	}
+
+	/**
+	 * Release the shared frame of the packet, if it has one.
+	 */
+	public static void release(Packet p) {
+		if (p instanceof FramedPacket) ((FramedPacket) p).frame.release();
+	}
+
+	/**
+	 * @return a view of the data of the packet, without copying it
+	 */
+	public static ByteBuffer content(Packet p) {
+		if (p instanceof FramedPacket) return ((FramedPacket) p).frame.body();
+		return ByteBuffer.wrap(p.data);
+	}
+
+	/**
+	 * @return the data of the packet, copied from its frame if it has been read directly into it
+	 */
+	public static byte[] data(Packet p) {
+		if (p.data == null && p instanceof FramedPacket) return ((FramedPacket) p).frame.data();
+		return p.data;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Periodically reports the users whose send queue is too deep or whose
+ * oldest queued packet is too old.
+ */
+public class SlowConsumerDetector implements Runnable {
+	private final static Logger LOG = Logger.getLogger(SlowConsumerDetector.class.getName());
+
+	private final Supplier<Collection<UserMsg>> users;
+	private final int maxDepth;
+	private final long maxAge;
+	private volatile List<UserMsg> lastReport;
+
+	/**
+	 * @param users    gives the users to be checked
+	 * @param maxDepth number of queued packets from which a user is reported
+	 * @param maxAge   age in milliseconds of the oldest queued packet from which a user is reported
+	 */
+	public SlowConsumerDetector(Supplier<Collection<UserMsg>> users, int maxDepth, long maxAge) {
+		this.users = users;
+		this.maxDepth = maxDepth;
+		this.maxAge = maxAge;
+		lastReport = new ArrayList<>();
+	}
+
+	@Override
+	public void run() {
+		List<UserMsg> slow = new ArrayList<>();
+		for (UserMsg u : users.get()) {
+			SendQueue q = u.getSendQueue();
+			int depth = q.size();
+			long age = q.oldestAge();
+			if (depth >= maxDepth || age >= maxAge) {
+				slow.add(u);
+				LOG.warning("Slow consumer : user " + u.getId() + (u.isConnected() ? "" : " (offline)")
+						+ " has " + depth + " queued packets, oldest waiting for " + age + " ms, "
+						+ q.getDropped() + " dropped");
+			}
+		}
+		lastReport = slow;
+	}
+
+	/**
+	 * @return the users reported by the last run
+	 */
+	public List<UserMsg> getLastReport() {
+		return lastReport;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * FIFO of packets stored in a file, used when the send queue of a user is full.
+ * Packets are stored with the frame format srcId/destId/length/data.
+ * Not thread safe : the SendQueue owning it synchronizes the accesses, only size() and hasData()
+ * can be read without its lock.
+ */
+public class SpillFile {
+
+	private final Path path;
+	private DataOutputStream out;
+	private DataInputStream in;
+	// paquet lu puis remis en tête par pushBack
+	private Packet pending;
+	private volatile int count;
+
+	public SpillFile(Path path) {
+		this.path = path;
+	}
+
+	public boolean hasData() {
+		return count > 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public void append(Packet p) throws IOException {
+		if (out == null) {
+			Files.createDirectories(path.getParent());
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile())));
+		}
+		out.writeInt(p.srcId);
+		out.writeInt(p.destId);
+		out.writeInt(p.data.length);
+		out.write(p.data);
+		count++;
+	}
+
+	/**
+	 * @return the oldest packet of the file, or null if it is empty
+	 */
+	public Packet next() throws IOException {
+		if (count == 0) return null;
+		if (pending != null) {
+			Packet p = pending;
+			pending = null;
+			if (--count == 0) clear();
+			return p;
+		}
+		out.flush();
+		if (in == null) {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())));
+		}
+		int srcId = in.readInt();
+		int destId = in.readInt();
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		if (--count == 0) clear();
+		return new Packet(srcId, destId, data);
+	}
+
+	/**
+	 * Put back at the head of the file the packet returned by the last call to next().
+	 */
+	public void pushBack(Packet p) {
+		pending = p;
+		count++;
+	}
+
+	/**
+	 * Close and delete the file.
+	 */
+	public void clear() throws IOException {
+		count = 0;
+		pending = null;
+		if (in != null) in.close();
+		if (out != null) out.close();
+		in = null;
+		out = null;
+		Files.deleteIfExists(path);
+	}
+}
@@ -0,0 +1,605 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable state of a ServerMsg : users, passwords, contacts, groups and id sequences.
+ *
+ * Every state changing command is appended to a write-ahead log (wal-N.log). Records
+ * are written by a single flusher thread which forces the file once per batch
+ * (group commit) : concurrent commands share the same fsync.
+ * Every snapshotInterval records, the log is rolled to a new file and the whole state
+ * is written to snapshot-N.bin; older files are then deleted. At startup the latest
+ * snapshot is loaded and only the log files written after it are replayed.
+ *
+ * The snapshot is taken without stopping the server, so it can already contain some
+ * commands of the following log file : replaying a command is therefore idempotent.
+ *
+ * If a write or a force of the log fails, the journal is broken : the records not yet on disk
+ * are never acknowledged, awaitDurable() and the following commands throw an
+ * UncheckedIOException and no snapshot can be taken any more.
+ */
+public class StateJournal {
+	private final static Logger LOG = Logger.getLogger(StateJournal.class.getName());
+	private final static int SNAPSHOT_MAGIC = 0xD0C155A7;
+
+	// types d'enregistrement
+	private final static byte USER_CREATED = 1;
+	private final static byte USERNAME = 2;
+	private final static byte PASSWORD = 3;
+	private final static byte CONTACT_ADDED = 4;
+	private final static byte USER_REMOVED = 5;
+	private final static byte GROUP_CREATED = 6;
+	private final static byte MEMBER_ADDED = 7;
+	private final static byte MEMBER_REMOVED = 8;
+	private final static byte GROUP_REMOVED = 9;
+	// groupe créé avec ses membres (owner compris) : groupId, ownerId, nombre, ids
+	private final static byte GROUP_CREATED_WITH_MEMBERS = 10;
+
+	private final Path dir;
+	private final ServerMsg server;
+	private final boolean sync;
+	private final long snapshotInterval;
+
+	// protégés par lock
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final ByteArrayOutputStream pending;
+	private final ByteArrayOutputStream record;
+	private final DataOutputStream recordOut;
+	private final CRC32 crc;
+	private long nextLsn;
+	private long durableLsn;
+	private int rollTo;
+	private boolean running;
+	private boolean snapshotting;
+	// échec d'écriture du journal, plus rien n'est accepté ensuite
+	private IOException failure;
+
+	// utilisés par le thread d'écriture
+	private FileChannel wal;
+	private int walSeq;
+	private long sinceSnapshot;
+	private final Thread flusher;
+
+	/**
+	 * Open the journal, restore the state of the server from it and start logging.
+	 * @param sync if true, commands wait until their record is on disk
+	 */
+	public StateJournal(Path dir, ServerMsg server, boolean sync, long snapshotInterval) throws IOException {
+		this.dir = dir;
+		this.server = server;
+		this.sync = sync;
+		this.snapshotInterval = snapshotInterval;
+		pending = new ByteArrayOutputStream();
+		record = new ByteArrayOutputStream();
+		recordOut = new DataOutputStream(record);
+		crc = new CRC32();
+		Files.createDirectories(dir);
+
+		long start = System.nanoTime();
+		int snapshot = recover();
+		LOG.info("State restored in " + (System.nanoTime() - start) / 1000000 + " ms (snapshot " + snapshot + ")");
+
+		walSeq = Math.max(snapshot, lastSeq("wal-", ".log") + 1);
+		wal = openWal(walSeq);
+		nextLsn = 1;
+		running = true;
+		flusher = new Thread(this::flushLoop, "state-journal");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/*
+	 * COMMANDES JOURNALISEES : chaque méthode retourne le numéro de l'enregistrement,
+	 * à passer à awaitDurable() une fois les verrous éventuels relâchés.
+	 */
+
+	public long userCreated(int userId, String username, String password) {
+		lock.lock();
+		try {
+			try {
+				recordOut.writeByte(USER_CREATED);
+				recordOut.writeInt(userId);
+				recordOut.writeUTF(username);
+				recordOut.writeUTF(password);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long usernameChanged(int userId, String username) {
+		return userString(USERNAME, userId, username);
+	}
+
+	public long passwordChanged(int userId, String password) {
+		return userString(PASSWORD, userId, password);
+	}
+
+	public long contactAdded(int userId, String contact) {
+		return userString(CONTACT_ADDED, userId, contact);
+	}
+
+	public long userRemoved(int userId) {
+		return ids(USER_REMOVED, userId, 0);
+	}
+
+	public long groupCreated(int groupId, int ownerId) {
+		return ids(GROUP_CREATED, groupId, ownerId);
+	}
+
+	/**
+	 * A group created with its first members, in a single record.
+	 */
+	public long groupCreated(int groupId, int ownerId, MemberSnapshot members) {
+		lock.lock();
+		try {
+			try {
+				recordOut.writeByte(GROUP_CREATED_WITH_MEMBERS);
+				recordOut.writeInt(groupId);
+				recordOut.writeInt(ownerId);
+				recordOut.writeInt(members.size());
+				for (int i = 0; i < members.size(); i++) recordOut.writeInt(members.getId(i));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long memberAdded(int groupId, int userId) {
+		return ids(MEMBER_ADDED, groupId, userId);
+	}
+
+	public long memberRemoved(int groupId, int userId) {
+		return ids(MEMBER_REMOVED, groupId, userId);
+	}
+
+	public long groupRemoved(int groupId) {
+		return ids(GROUP_REMOVED, groupId, 0);
+	}
+
+	private long userString(byte type, int userId, String value) {
+		lock.lock();
+		try {
+			try {
+				recordOut.writeByte(type);
+				recordOut.writeInt(userId);
+				recordOut.writeUTF(value);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long ids(byte type, int a, int b) {
+		lock.lock();
+		try {
+			try {
+				recordOut.writeByte(type);
+				recordOut.writeInt(a);
+				recordOut.writeInt(b);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// encadre l'enregistrement en cours (longueur + crc) et le confie au thread d'écriture
+	private long commit() {
+		byte[] r = record.toByteArray();
+		record.reset();
+		if (failure != null) throw new UncheckedIOException("state journal is broken", failure);
+		crc.reset();
+		crc.update(r, 0, r.length);
+		ByteBuffer header = ByteBuffer.allocate(8).putInt(r.length).putInt((int) crc.getValue());
+		pending.write(header.array(), 0, 8);
+		pending.write(r, 0, r.length);
+		changed.signalAll();
+		return nextLsn++;
+	}
+
+	/**
+	 * Wait until the record is on disk (only if the journal is synchronous).
+	 * @throws UncheckedIOException if the journal failed before writing the record, or with an
+	 * InterruptedIOException as cause if the thread is interrupted while waiting (the record may
+	 * still be written, but is not acknowledged; the interrupt status is kept)
+	 */
+	public void awaitDurable(long lsn) {
+		if (!sync) return;
+		lock.lock();
+		try {
+			while (durableLsn < lsn && running && failure == null) {
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UncheckedIOException(new InterruptedIOException("interrupted while waiting for record " + lsn + " of the state journal"));
+				}
+			}
+			if (durableLsn < lsn && failure != null) {
+				throw new UncheckedIOException("record " + lsn + " of the state journal is not durable", failure);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			byte[] batch;
+			long upTo;
+			int roll;
+			lock.lock();
+			try {
+				while (running && pending.size() == 0 && rollTo == 0) {
+					try {
+						changed.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!running && pending.size() == 0) return;
+				batch = pending.toByteArray();
+				pending.reset();
+				upTo = nextLsn - 1;
+				roll = rollTo;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(batch);
+				while (buf.hasRemaining()) wal.write(buf);
+				// un seul fsync pour tout le lot
+				if (sync) wal.force(false);
+				if (roll != 0) {
+					wal.close();
+					wal = openWal(roll);
+				}
+			} catch (IOException e) {
+				LOG.severe("Unable to write the state journal, it no longer accepts commands : " + e.getMessage());
+				// le lot n'est pas sur disque : durableLsn n'avance pas, les attentes échouent
+				lock.lock();
+				try {
+					failure = e;
+					pending.reset();
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+			lock.lock();
+			try {
+				durableLsn = upTo;
+				if (roll != 0) {
+					walSeq = roll;
+					rollTo = 0;
+				}
+				sinceSnapshot += batch.length == 0 ? 0 : countRecords(batch);
+				if (sinceSnapshot >= snapshotInterval && !snapshotting) {
+					snapshotting = true;
+					sinceSnapshot = 0;
+					Thread t = new Thread(this::snapshotQuietly, "state-snapshot");
+					t.setDaemon(true);
+					t.start();
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static int countRecords(byte[] batch) {
+		ByteBuffer b = ByteBuffer.wrap(batch);
+		int n = 0;
+		while (b.remaining() >= 8) {
+			int len = b.getInt();
+			b.position(b.position() + 4 + len);
+			n++;
+		}
+		return n;
+	}
+
+	private void snapshotQuietly() {
+		try {
+			snapshot();
+		} catch (IOException e) {
+			LOG.warning("Snapshot failed : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Roll the log and write a snapshot of the whole state, then delete the files it replaces.
+	 */
+	public void snapshot() throws IOException {
+		int seq;
+		lock.lock();
+		try {
+			if (failure != null) throw new IOException("state journal is broken", failure);
+			snapshotting = true;
+			while (rollTo != 0 && running && failure == null) {
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("snapshot interrupted");
+				}
+			}
+			// les enregistrements suivants iront dans un nouveau fichier
+			seq = walSeq + 1;
+			rollTo = seq;
+			changed.signalAll();
+			while (rollTo != 0 && running && failure == null) {
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("snapshot interrupted");
+				}
+			}
+			if (failure != null) {
+				snapshotting = false;
+				throw new IOException("state journal is broken", failure);
+			}
+		} finally {
+			lock.unlock();
+		}
+		try {
+			long start = System.nanoTime();
+			Path tmp = dir.resolve("snapshot-" + seq + ".tmp");
+			try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+				writeState(out);
+				out.flush();
+				fos.getChannel().force(true);
+			}
+			Files.move(tmp, dir.resolve("snapshot-" + seq + ".bin"), StandardCopyOption.ATOMIC_MOVE);
+			deleteBefore(seq);
+			LOG.info("Snapshot " + seq + " written in " + (System.nanoTime() - start) / 1000000 + " ms");
+		} finally {
+			lock.lock();
+			try {
+				snapshotting = false;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void writeState(DataOutputStream out) throws IOException {
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(server.getNextUserId());
+		out.writeInt(server.getNextGroupId());
+		List<UserMsg> users = server.getAllUsers();
+		out.writeInt(users.size());
+		for (UserMsg u : users) {
+			out.writeInt(u.getId());
+			out.writeUTF(u.getUsername());
+			out.writeUTF(u.getPassword());
+			List<String> contacts = new ArrayList<>(u.getContacts());
+			out.writeInt(contacts.size());
+			for (String c : contacts) out.writeUTF(c);
+		}
+		List<GroupMsg> groups = server.getAllGroups();
+		out.writeInt(groups.size());
+		for (GroupMsg g : groups) {
+			out.writeInt(g.getId());
+			out.writeInt(g.getOwner().getId());
+			MemberSnapshot members = g.getMemberSnapshot();
+			out.writeInt(members.size());
+			for (int i = 0; i < members.size(); i++) out.writeInt(members.getId(i));
+		}
+	}
+
+	private void readState(DataInputStream in) throws IOException {
+		if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("not a snapshot file");
+		int nextUserId = in.readInt();
+		int nextGroupId = in.readInt();
+		int nbUsers = in.readInt();
+		for (int i = 0; i < nbUsers; i++) {
+			UserMsg u = server.restoreUser(in.readInt(), in.readUTF(), in.readUTF());
+			int nbContacts = in.readInt();
+			for (int j = 0; j < nbContacts; j++) u.restoreContact(in.readUTF());
+		}
+		int nbGroups = in.readInt();
+		for (int i = 0; i < nbGroups; i++) {
+			GroupMsg g = server.restoreGroup(in.readInt(), in.readInt());
+			List<UserMsg> members = readMembers(in);
+			// groupe dont le propriétaire a été supprimé : ignoré
+			if (g != null) g.addMembers(members);
+		}
+		server.restoreSequences(nextUserId, nextGroupId);
+	}
+
+	// nombre puis ids, les utilisateurs inconnus sont ignorés
+	private List<UserMsg> readMembers(DataInputStream in) throws IOException {
+		int nb = in.readInt();
+		List<UserMsg> members = new ArrayList<>(nb);
+		for (int i = 0; i < nb; i++) {
+			UserMsg u = server.getUser(in.readInt());
+			if (u != null) members.add(u);
+		}
+		return members;
+	}
+
+	/*
+	 * Charge le dernier snapshot puis rejoue les journaux suivants.
+	 * Retourne le numéro du snapshot chargé (0 si aucun).
+	 */
+	private int recover() throws IOException {
+		int snapshot = lastSeq("snapshot-", ".bin");
+		if (snapshot > 0) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Files.newInputStream(dir.resolve("snapshot-" + snapshot + ".bin")), 1 << 16))) {
+				readState(in);
+			}
+		}
+		for (int seq : seqs("wal-", ".log")) {
+			if (seq >= snapshot) replay(dir.resolve("wal-" + seq + ".log"));
+		}
+		return snapshot;
+	}
+
+	private void replay(Path file) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+		CRC32 c = new CRC32();
+		int n = 0;
+		while (buf.remaining() >= 8) {
+			int len = buf.getInt();
+			int expected = buf.getInt();
+			if (len < 0 || len > buf.remaining()) break;
+			c.reset();
+			c.update(buf.array(), buf.position(), len);
+			// enregistrement tronqué par un arrêt brutal : fin du journal
+			if ((int) c.getValue() != expected) break;
+			apply(new DataInputStream(new ByteArrayInputStream(buf.array(), buf.position(), len)));
+			buf.position(buf.position() + len);
+			n++;
+		}
+		LOG.info(n + " records replayed from " + file.getFileName());
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case USER_CREATED:
+				server.restoreUser(in.readInt(), in.readUTF(), in.readUTF());
+				break;
+			case USERNAME: {
+				UserMsg u = server.getUser(in.readInt());
+				String v = in.readUTF();
+				if (u != null) u.setUsername(v);
+				break;
+			}
+			case PASSWORD: {
+				UserMsg u = server.getUser(in.readInt());
+				String v = in.readUTF();
+				if (u != null) u.setPassword(v);
+				break;
+			}
+			case CONTACT_ADDED: {
+				UserMsg u = server.getUser(in.readInt());
+				String v = in.readUTF();
+				if (u != null && !u.getContacts().contains(v)) u.restoreContact(v);
+				break;
+			}
+			case USER_REMOVED:
+				server.restoreUserRemoval(in.readInt());
+				break;
+			case GROUP_CREATED:
+				server.restoreGroup(in.readInt(), in.readInt());
+				break;
+			case MEMBER_ADDED: {
+				GroupMsg g = server.getGroup(in.readInt());
+				UserMsg u = server.getUser(in.readInt());
+				if (g != null && u != null) g.addMember(u);
+				break;
+			}
+			case MEMBER_REMOVED: {
+				GroupMsg g = server.getGroup(in.readInt());
+				UserMsg u = server.getUser(in.readInt());
+				if (g != null && u != null) g.removeMember(u);
+				break;
+			}
+			case GROUP_REMOVED:
+				server.restoreGroupRemoval(in.readInt());
+				break;
+			case GROUP_CREATED_WITH_MEMBERS: {
+				GroupMsg g = server.restoreGroup(in.readInt(), in.readInt());
+				List<UserMsg> members = readMembers(in);
+				if (g != null) g.addMembers(members);
+				break;
+			}
+			default:
+				throw new IOException("unknown journal record type " + type);
+		}
+	}
+
+	private FileChannel openWal(int seq) throws IOException {
+		return FileChannel.open(dir.resolve("wal-" + seq + ".log"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private List<Integer> seqs(String prefix, String suffix) throws IOException {
+		List<Integer> res = new ArrayList<>();
+		try (Stream<Path> files = Files.list(dir)) {
+			files.map(f -> f.getFileName().toString())
+					.filter(n -> n.startsWith(prefix) && n.endsWith(suffix))
+					.forEach(n -> res.add(Integer.parseInt(n.substring(prefix.length(), n.length() - suffix.length()))));
+		}
+		Collections.sort(res);
+		return res;
+	}
+
+	private int lastSeq(String prefix, String suffix) throws IOException {
+		List<Integer> s = seqs(prefix, suffix);
+		return s.isEmpty() ? 0 : s.get(s.size() - 1);
+	}
+
+	private void deleteBefore(int seq) throws IOException {
+		for (int s : seqs("wal-", ".log")) {
+			if (s < seq) Files.deleteIfExists(dir.resolve("wal-" + s + ".log"));
+		}
+		for (int s : seqs("snapshot-", ".bin")) {
+			if (s < seq) Files.deleteIfExists(dir.resolve("snapshot-" + s + ".bin"));
+		}
+	}
+
+	/**
+	 * Write the pending records and stop the flusher thread.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			running = false;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+			wal.force(false);
+			wal.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			LOG.warning("Unable to close the state journal : " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor with one thread per stripe : the tasks submitted with the same key run on
+ * the same thread, in the order they were submitted. Each stripe has a bounded queue,
+ * a full queue blocks the submitting thread (back-pressure on the connection reading
+ * the packets). The time spent by the tasks in the queue is measured for each stripe.
+ */
+public class StripedExecutor {
+	private final static Logger LOG = Logger.getLogger(StripedExecutor.class.getName());
+
+	private final String name;
+	private final Stripe[] stripes;
+	private volatile boolean running;
+
+	private static class Task {
+		final Runnable task;
+		final long enqueued;
+
+		Task(Runnable task) {
+			this.task = task;
+			enqueued = System.nanoTime();
+		}
+	}
+
+	private class Stripe implements Runnable {
+		final BlockingQueue<Task> queue;
+		final Thread thread;
+		// écrits par le seul thread de la bande
+		volatile long tasks;
+		volatile long waitNanos;
+		volatile long maxWaitNanos;
+
+		Stripe(int index, int capacity) {
+			queue = new ArrayBlockingQueue<>(capacity);
+			thread = new Thread(this, name + "-" + index);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				Task t;
+				try {
+					t = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long wait = System.nanoTime() - t.enqueued;
+				tasks++;
+				waitNanos += wait;
+				if (wait > maxWaitNanos) maxWaitNanos = wait;
+				try {
+					t.task.run();
+				} catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "Task failed in " + thread.getName(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param name prefix of the names of the threads
+	 * @param nbStripes number of threads
+	 * @param queueCapacity maximum number of tasks waiting in each stripe
+	 */
+	public StripedExecutor(String name, int nbStripes, int queueCapacity) {
+		this.name = name;
+		stripes = new Stripe[nbStripes];
+		for (int i = 0; i < nbStripes; i++) stripes[i] = new Stripe(i, queueCapacity);
+		running = true;
+		for (Stripe s : stripes) s.thread.start();
+	}
+
+	/**
+	 * @return the stripe running the tasks of the key
+	 */
+	public int stripe(int key) {
+		int h = key * 0x9E3779B9;
+		return Math.floorMod(h ^ (h >>> 16), stripes.length);
+	}
+
+	/**
+	 * Queue a task after the tasks already submitted with the same key, waiting for room
+	 * if the queue of its stripe is full.
+	 */
+	public void execute(int key, Runnable task) throws IOException {
+		if (!running) throw new IOException(name + " is stopped");
+		try {
+			stripes[stripe(key)].queue.put(new Task(task));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for " + name);
+		}
+	}
+
+	/**
+	 * Queue a task after the tasks already submitted with the same key, without waiting.
+	 * @return false if the queue of its stripe is full, the task has then not been queued
+	 */
+	public boolean offer(int key, Runnable task) throws IOException {
+		if (!running) throw new IOException(name + " is stopped");
+		return stripes[stripe(key)].queue.offer(new Task(task));
+	}
+
+	public void shutdown() {
+		running = false;
+		for (Stripe s : stripes) s.thread.interrupt();
+	}
+
+	public int getStripes() {
+		return stripes.length;
+	}
+
+	public long getTasks(int stripe) {
+		return stripes[stripe].tasks;
+	}
+
+	public int getQueueSize(int stripe) {
+		return stripes[stripe].queue.size();
+	}
+
+	/**
+	 * @return the mean time spent in the queue by the tasks of the stripe, in microseconds
+	 */
+	public double getMeanWaitMicros(int stripe) {
+		Stripe s = stripes[stripe];
+		long n = s.tasks;
+		return n == 0 ? 0 : s.waitNanos / 1000.0 / n;
+	}
+
+	/**
+	 * @return the longest time spent in the queue by a task of the stripe, in microseconds
+	 */
+	public double getMaxWaitMicros(int stripe) {
+		return stripes[stripe].maxWaitNanos / 1000.0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(name);
+		for (int i = 0; i < stripes.length; i++) {
+			sb.append(String.format("%n  stripe %d: tasks=%d, queued=%d, wait mean=%.1fus, max=%.1fus",
+					i, getTasks(i), getQueueSize(i), getMeanWaitMicros(i), getMaxWaitMicros(i)));
+		}
+		return sb.toString();
+	}
+}
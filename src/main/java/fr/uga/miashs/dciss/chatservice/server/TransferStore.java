@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.common.FileTransfer;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Server side of the file transfers (see FileTransfer for the protocol).
+ * Each transfer is kept in files named after its key (sender-id) :
+ * .meta (recipient, name, size and hash of the content once complete),
+ * .data (the content, written at the offset of each chunk) and .ranges (offset and
+ * length of every chunk written, appended after the chunk).
+ * The received ranges are rebuilt from the .ranges file, so an upload interrupted by a
+ * disconnection or a restart of the server is resumed where it stopped.
+ * Once complete, the content is moved to the AttachmentStore : the transfers of the same
+ * content (uploaded twice, forwarded, sent to a group) share one file, sent to the
+ * recipients with FileRegionPackets.
+ * Transfers are deleted retention milliseconds after their last modification.
+ */
+public class TransferStore implements PacketProcessor {
+	private final static Logger LOG = Logger.getLogger(TransferStore.class.getName());
+
+	private final Path dir;
+	private final ServerMsg server;
+	private final long retention;
+	// transferts ouverts, par clé (voir FileTransfer.key)
+	private final Map<String, Transfer> transfers;
+	private final AttachmentStore attachments;
+	// numéros des transferts créés par le serveur (FORWARD), pris parmi ceux libres
+	// du demandeur : les autres sont tirés au hasard par les clients
+	private final AtomicLong nextForwardId;
+
+	public TransferStore(Path dir, ServerMsg server, long retention) throws IOException {
+		this.dir = dir;
+		this.server = server;
+		this.retention = retention;
+		transfers = new ConcurrentHashMap<>();
+		nextForwardId = new AtomicLong(1);
+		Files.createDirectories(dir);
+		attachments = new AttachmentStore(dir.resolve("attachments"));
+	}
+
+	/**
+	 * Sorted and merged list of the byte ranges [start, end) received.
+	 */
+	static class Ranges {
+		private long[] bounds = new long[8];
+		private int size;
+
+		void add(long start, long end) {
+			// fusion avec les intervalles qui chevauchent ou touchent [start, end)
+			int i = 0;
+			while (i < size && bounds[i + 1] < start) i += 2;
+			int j = i;
+			while (j < size && bounds[j] <= end) {
+				start = Math.min(start, bounds[j]);
+				end = Math.max(end, bounds[j + 1]);
+				j += 2;
+			}
+			int removed = j - i;
+			if (removed == 0) {
+				if (size + 2 > bounds.length) bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				System.arraycopy(bounds, i, bounds, i + 2, size - i);
+				size += 2;
+			} else if (removed > 2) {
+				System.arraycopy(bounds, j, bounds, i + 2, size - j);
+				size -= removed - 2;
+			}
+			bounds[i] = start;
+			bounds[i + 1] = end;
+		}
+
+		/**
+		 * @return the end of the range starting at 0, i.e. the offset from which to resume
+		 */
+		long prefix() {
+			return size > 0 && bounds[0] == 0 ? bounds[1] : 0;
+		}
+
+		boolean contains(long start, long end) {
+			for (int i = 0; i < size; i += 2) {
+				if (bounds[i] <= start && end <= bounds[i + 1]) return true;
+			}
+			return false;
+		}
+	}
+
+	private class Transfer {
+		final int senderId;
+		final long id;
+		final int destId;
+		final String filename;
+		final String extension;
+		final long size;
+		final Path data;
+		final Ranges ranges;
+		// hash du contenu dans l'AttachmentStore, null tant que le transfert n'est pas terminé
+		volatile String hash;
+		FileChannel ch;
+		FileChannel rangeLog;
+		// morceaux écrits dont le crédit n'a pas encore été rendu
+		int ungranted;
+
+		Transfer(int senderId, long id, int destId, String filename, String extension, long size) {
+			this.senderId = senderId;
+			this.id = id;
+			this.destId = destId;
+			this.filename = filename;
+			this.extension = extension;
+			this.size = size;
+			data = file(senderId, id, ".data");
+			ranges = new Ranges();
+		}
+
+		boolean isComplete() {
+			return hash != null;
+		}
+
+		// mêmes champs START : le transfert peut être repris
+		boolean sameFile(Transfer t) {
+			return destId == t.destId && size == t.size && filename.equals(t.filename) && extension.equals(t.extension);
+		}
+
+		synchronized void open() throws IOException {
+			if (ch != null || hash != null) return;
+			ch = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			rangeLog = FileChannel.open(file(senderId, id, ".ranges"), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			// relecture des morceaux déjà reçus ; un enregistrement incomplet est ignoré
+			ByteBuffer b = ByteBuffer.allocate((int) (rangeLog.size() / 16 * 16));
+			while (b.hasRemaining() && rangeLog.read(b, b.position()) > 0);
+			b.flip();
+			while (b.remaining() >= 16) {
+				long start = b.getLong();
+				ranges.add(start, start + b.getLong());
+			}
+			rangeLog.position(b.limit());
+		}
+
+		synchronized void write(long offset, byte[] content, int off, int len) throws IOException {
+			ByteBuffer b = ByteBuffer.wrap(content, off, len);
+			long pos = offset;
+			while (b.hasRemaining()) pos += ch.write(b, pos);
+			ByteBuffer r = ByteBuffer.allocate(16).putLong(offset).putLong(len);
+			r.flip();
+			while (r.hasRemaining()) rangeLog.write(r);
+			ranges.add(offset, offset + len);
+		}
+
+		synchronized long confirmed() {
+			return hash != null ? size : ranges.prefix();
+		}
+
+		synchronized void close() {
+			try {
+				if (ch != null) ch.close();
+				if (rangeLog != null) rangeLog.close();
+			} catch (IOException ignored) {
+			}
+			ch = null;
+			rangeLog = null;
+		}
+	}
+
+	private Path file(int senderId, long id, String suffix) {
+		return dir.resolve(FileTransfer.key(senderId, id) + suffix);
+	}
+
+	private void writeMeta(Transfer t) throws IOException {
+		Path tmp = file(t.senderId, t.id, ".meta.tmp");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+			out.writeInt(t.destId);
+			out.writeUTF(t.filename);
+			out.writeUTF(t.extension);
+			out.writeLong(t.size);
+			out.writeUTF(t.hash == null ? "" : t.hash);
+		}
+		Files.move(tmp, file(t.senderId, t.id, ".meta"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public void process(Packet p) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(p.data);
+		buf.get();
+		byte kind = buf.get();
+		long id = buf.getLong();
+		try {
+			if (kind == FileTransfer.START) {
+				start(p.srcId, id, p.data, buf);
+			} else if (kind == FileTransfer.CHUNK) {
+				chunk(p.srcId, id, p.data, buf);
+			} else if (kind == FileTransfer.END) {
+				end(p.srcId, id);
+			} else if (kind == FileTransfer.FETCH) {
+				fetch(p.srcId, id, buf.getInt(), buf.getLong(), buf.getLong());
+			} else if (kind == FileTransfer.FORWARD) {
+				forward(p.srcId, id, buf.getInt(), buf.getInt());
+			} else {
+				LOG.warning("File packet of kind " + kind + " not handled");
+			}
+		} catch (IOException e) {
+			LOG.warning("Transfer " + Long.toUnsignedString(id) + " of " + p.srcId + " failed : " + e.getMessage());
+			reply(p.srcId, FileTransfer.header(0, FileTransfer.CANCEL, id));
+		}
+	}
+
+	private void start(int senderId, long id, byte[] data, ByteBuffer buf) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, buf.position(), buf.remaining()));
+		Transfer requested = new Transfer(senderId, id, in.readInt(), in.readUTF(), in.readUTF(), in.readLong());
+		Transfer t = transfers.get(FileTransfer.key(senderId, id));
+		if (t == null && Files.exists(file(senderId, id, ".meta"))) {
+			// transfert commencé avant une déconnexion ou un redémarrage
+			t = load(senderId, id);
+		}
+		// repris seulement s'il s'agit du même fichier : sinon le contenu reçu est abandonné
+		if (t != null && !t.sameFile(requested)) {
+			LOG.warning("Transfer " + Long.toUnsignedString(id) + " of " + senderId + " restarted for another file");
+			t.close();
+			Files.deleteIfExists(file(senderId, id, ".data"));
+			Files.deleteIfExists(file(senderId, id, ".ranges"));
+			t = null;
+		}
+		if (t == null) {
+			t = requested;
+			writeMeta(t);
+		}
+		transfers.put(FileTransfer.key(senderId, id), t);
+		t.open();
+		t.ungranted = 0;
+		LOG.info("Transfer " + Long.toUnsignedString(id) + " of " + senderId + " resumed at " + t.confirmed() + "/" + t.size);
+		reply(senderId, FileTransfer.header(8, FileTransfer.RESUME, id).putLong(t.confirmed()));
+	}
+
+	private Transfer load(int senderId, long id) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file(senderId, id, ".meta")))) {
+			Transfer t = new Transfer(senderId, id, in.readInt(), in.readUTF(), in.readUTF(), in.readLong());
+			// les méta-données écrites avant l'AttachmentStore n'ont pas de hash
+			String hash = in.available() > 0 ? in.readUTF() : "";
+			if (!hash.isEmpty()) t.hash = hash;
+			return t;
+		}
+	}
+
+	// transfert ouvert, ou relu sur disque
+	private Transfer get(int senderId, long id) throws IOException {
+		Transfer t = transfers.get(FileTransfer.key(senderId, id));
+		if (t == null && Files.exists(file(senderId, id, ".meta"))) {
+			t = load(senderId, id);
+			transfers.put(FileTransfer.key(senderId, id), t);
+		}
+		if (t == null) throw new IOException("unknown transfer");
+		return t;
+	}
+
+	private void chunk(int senderId, long id, byte[] data, ByteBuffer buf) throws IOException {
+		Transfer t = transfers.get(FileTransfer.key(senderId, id));
+		if (t == null || t.ch == null) throw new IOException("unknown or complete transfer");
+		long offset = buf.getLong();
+		int len = buf.remaining();
+		if (offset < 0 || offset + len > t.size) throw new IOException("chunk out of the file bounds");
+		t.write(offset, data, buf.position(), len);
+		// crédits rendus par paquets de la moitié de la fenêtre
+		if (++t.ungranted >= FileTransfer.WINDOW / 2) {
+			reply(senderId, FileTransfer.header(4, FileTransfer.CREDIT, id).putInt(t.ungranted));
+			t.ungranted = 0;
+		}
+	}
+
+	private void end(int senderId, long id) throws IOException {
+		Transfer t = get(senderId, id);
+		t.open();
+		if (!t.isComplete() && t.confirmed() == t.size) {
+			// le contenu rejoint l'AttachmentStore, partagé avec les envois identiques
+			t.close();
+			t.hash = attachments.add(t.data);
+			writeMeta(t);
+			Files.deleteIfExists(file(senderId, id, ".ranges"));
+			LOG.info("Transfer " + Long.toUnsignedString(id) + " of " + senderId + " complete, " + t.size + " bytes, " + t.hash);
+		}
+		// confirme l'offset atteint : l'expéditeur renvoie ce qui manque
+		reply(senderId, FileTransfer.header(8, FileTransfer.RESUME, id).putLong(t.confirmed()));
+		if (t.isComplete()) offer(t);
+	}
+
+	/*
+	 * Envoie un fichier déjà reçu à un autre destinataire, sans nouvelle copie du contenu.
+	 */
+	private void forward(int requester, long id, int senderId, int destId) throws IOException {
+		Transfer src = get(senderId, id);
+		if (!src.isComplete() || !canRead(requester, src)) throw new IOException("user " + requester + " cannot forward this file");
+		Transfer t;
+		do {
+			t = new Transfer(requester, nextForwardId.getAndIncrement(), destId, src.filename, src.extension, src.size);
+			t.hash = src.hash;
+			// numéro déjà pris par un transfert du demandeur, ouvert ou sur disque
+		} while (Files.exists(file(requester, t.id, ".meta")) || transfers.putIfAbsent(FileTransfer.key(requester, t.id), t) != null);
+		writeMeta(t);
+		LOG.info("Transfer " + Long.toUnsignedString(id) + " of " + senderId + " forwarded by " + requester
+				+ " to " + destId + " as " + Long.toUnsignedString(t.id));
+		offer(t);
+	}
+
+	// annonce le fichier au destinataire (ou aux membres du groupe, via GroupMsg)
+	private void offer(Transfer t) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(FileTransfer.TYPE);
+		out.writeByte(FileTransfer.OFFER);
+		out.writeLong(t.id);
+		out.writeInt(t.senderId);
+		out.writeUTF(t.filename);
+		out.writeUTF(t.extension);
+		out.writeLong(t.size);
+		out.flush();
+		server.processPacket(new Packet(t.senderId, t.destId, bos.toByteArray()));
+	}
+
+	/*
+	 * Envoie au demandeur la zone [offset, offset+length) d'un transfert terminé,
+	 * au plus FETCH_SIZE octets par demande. Le contenu va du fichier à la socket
+	 * sans passer par le tas (FileRegionPacket).
+	 */
+	private void fetch(int requester, long id, int senderId, long offset, long length) throws IOException {
+		Transfer t = get(senderId, id);
+		if (!t.isComplete()) throw new IOException("transfer not complete");
+		if (!canRead(requester, t)) throw new IOException("user " + requester + " is not a recipient");
+		long end = Math.min(t.size, offset + Math.min(length, FileTransfer.FETCH_SIZE));
+		if (offset < 0 || offset > end) throw new IOException("invalid range");
+		byte[] header = FileTransfer.header(4 + 8, FileTransfer.DATA, id).putInt(senderId).putLong(offset).array();
+		UserMsg u = server.getUser(requester);
+		if (u != null) u.process(new FileRegionPacket(0, requester, header, attachments.path(t.hash), offset, (int) (end - offset)));
+	}
+
+	private boolean canRead(int userId, Transfer t) {
+		if (userId == t.senderId || userId == t.destId) return true;
+		GroupMsg g = t.destId < 0 ? server.getGroup(t.destId) : null;
+		return g != null && g.isMember(userId);
+	}
+
+	private void reply(int userId, ByteBuffer data) {
+		UserMsg u = server.getUser(userId);
+		if (u != null) u.process(new Packet(0, userId, data.array()));
+	}
+
+	/**
+	 * Delete the transfers not modified for more than the retention delay,
+	 * then the contents no transfer refers to.
+	 */
+	public void purge() {
+		long limit = System.currentTimeMillis() - retention;
+		Set<String> referenced = new HashSet<>();
+		try (Stream<Path> files = Files.list(dir)) {
+			files.filter(f -> f.getFileName().toString().endsWith(".meta")).forEach(meta -> {
+				String name = meta.getFileName().toString();
+				String base = name.substring(0, name.length() - 5);
+				try {
+					int dash = base.indexOf('-');
+					int senderId = Integer.parseInt(base.substring(0, dash));
+					long id = Long.parseUnsignedLong(base.substring(dash + 1));
+					Path data = dir.resolve(base + ".data");
+					long modified = Files.exists(data) ? Files.getLastModifiedTime(data).toMillis()
+							: Files.getLastModifiedTime(meta).toMillis();
+					if (modified >= limit) {
+						Transfer t = load(senderId, id);
+						if (t.hash != null) referenced.add(t.hash);
+						return;
+					}
+					Transfer t = transfers.remove(FileTransfer.key(senderId, id));
+					if (t != null) t.close();
+					Files.deleteIfExists(data);
+					Files.deleteIfExists(dir.resolve(base + ".ranges"));
+					Files.deleteIfExists(meta);
+					LOG.info("Transfer " + base + " expired");
+				} catch (IOException | RuntimeException e) {
+					LOG.warning("Unable to purge transfer " + base + " : " + e.getMessage());
+				}
+			});
+		} catch (IOException e) {
+			LOG.warning("Unable to purge transfers : " + e.getMessage());
+			return;
+		}
+		attachments.purge(referenced, limit);
+	}
+}
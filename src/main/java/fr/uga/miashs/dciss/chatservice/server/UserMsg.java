@@ -12,18 +12,29 @@
 package fr.uga.miashs.dciss.chatservice.server;
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
+import fr.uga.miashs.dciss.chatservice.common.FrameLimits;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 import java.util.*;
 
 public class UserMsg implements PacketProcessor{
 	private final static Logger LOG = Logger.getLogger(UserMsg.class.getName());
+	private final static int WRITE_BUFFER_SIZE = 64 * 1024;
+	// paquets relus de l'OfflineSpool à la fois
+	private final static int SPOOL_PAGE = 256;
 
 	private int userId;
 	private String username;
+	// forme UTF-8 du username, pour les réponses du serveur (ControlEncoder)
+	private byte[] usernameBytes;
 	private String password;
 
 	private List<String> contacts;
@@ -31,9 +42,41 @@ public class UserMsg implements PacketProcessor{
 
 	private ServerMsg server;
 	private transient Socket s;
+	// connexion non bloquante (mode NIO), null en mode bloquant
+	private transient volatile NioConnection channel;
 	private transient boolean active;
+	// vrai quand les paquets peuvent aller dans sendQueue, sinon ils vont dans l'OfflineSpool
+	private transient volatile boolean online;
+	private final Object spoolLock = new Object();
+	// vrai tant que des paquets reçus hors connexion restent dans l'OfflineSpool : ils sont remis
+	// en file par pages quand la file se vide, les suivants vont dans le spool derrière eux
+	private transient volatile boolean spoolBacklog;
+	private final AtomicBoolean paging = new AtomicBoolean();
+	// place libre dans la file à partir de laquelle la page suivante est relue
+	private final int pageThreshold;
+	// groupes dont le journal reste à rejouer, par pages comme le spool : numéro du dernier
+	// message mis en file. Leurs nouveaux messages seront relus du journal. Modifiée sous spoolLock
+	private final Map<Integer, Long> replaying = new ConcurrentHashMap<>();
+	// groupes rejoués depuis leur journal : numéro du dernier message rejoué,
+	// les messages suivants arrivés pendant le rejeu ne sont pas envoyés deux fois
+	private final Map<Integer, Long> replayed = new ConcurrentHashMap<>();
 
-	private BlockingQueue<Packet> sendQueue;
+	private SendQueue sendQueue;
+	// paquets envoyés et non encore acquittés par le client (cf. common.Delivery)
+	private final DeliveryWindow window;
+	// une seule boucle d'envoi à la fois (mode bloquant), interrompue par close()
+	private final ReentrantLock sending = new ReentrantLock();
+	private final Object senderLock = new Object();
+	private transient Thread sender;
+	// paquets reçus de l'utilisateur en attente de traitement, dans controlStage (commandes, et
+	// messages qui les suivent) et dans les bandes de traitement (cf. ServerMsg.processIncoming)
+	private final AtomicInteger queuedControl = new AtomicInteger();
+	private final AtomicInteger queuedData = new AtomicInteger();
+	// tâches de controlStage mises de côté jusqu'au traitement de ces messages (cf. runInOrder),
+	// protégées par queuedDataLock
+	private final Object queuedDataLock = new Object();
+	private final ArrayDeque<Runnable> held = new ArrayDeque<>();
+	private boolean resuming;
 
 	/**
 	 *
@@ -46,10 +89,15 @@ public class UserMsg implements PacketProcessor{
 		this.server=server;
 		this.userId=clientId;
 		active=false;
-		sendQueue = new LinkedBlockingQueue<>();
+		ServerConfig config = server.getConfig();
+		sendQueue = new SendQueue(this, config.getSendQueueCapacity(), config.getOverflowPolicy(), config.getSpillDirectory(),
+				config.isLockFreeSendQueue());
+		window = new DeliveryWindow(config.getDeliveryWindow());
+		pageThreshold = Math.max(1, Math.min(SPOOL_PAGE, config.getSendQueueCapacity()) / 2);
 		groups = Collections.synchronizedSet(new HashSet<>());
-		contacts = new ArrayList<>();
-		this.username = username;
+		// copié par les snapshots de StateJournal pendant que le client en ajoute
+		contacts = new CopyOnWriteArrayList<>();
+		setUsername(username);
 		this.password = password;
 	}
 
@@ -58,7 +106,92 @@ public class UserMsg implements PacketProcessor{
 	}
 	public String getUsername() { return username; }
 
-	public void setUsername(String username) { this.username = username; }
+	ServerMsg getServer() {
+		return server;
+	}
+
+	public SendQueue getSendQueue() {
+		return sendQueue;
+	}
+
+	public DeliveryWindow getDeliveryWindow() {
+		return window;
+	}
+
+	/**
+	 * Cumulative acknowledgement by the client of the packets up to seq.
+	 */
+	void acknowledge(long seq) {
+		window.ack(seq);
+		// de la place dans la fenêtre : la connexion NIO peut reprendre ses envois
+		NioConnection c = channel;
+		if (c != null) c.requestWrite();
+	}
+
+	boolean hasQueuedControl() {
+		return queuedControl.get() > 0;
+	}
+
+	void controlQueued() {
+		queuedControl.incrementAndGet();
+	}
+
+	void controlDone() {
+		queuedControl.decrementAndGet();
+	}
+
+	void dataQueued() {
+		queuedData.incrementAndGet();
+	}
+
+	void dataDone() {
+		if (queuedData.decrementAndGet() == 0) {
+			synchronized (queuedDataLock) {
+				if (held.isEmpty() || resuming) return;
+				resuming = true;
+			}
+			server.resumeControl(this);
+		}
+	}
+
+	/*
+	 * Exécute une tâche de controlStage dans l'ordre d'envoi. Une commande ne passe pas avant
+	 * les messages de l'utilisateur encore dans les bandes : elle est mise de côté, sans bloquer
+	 * le thread, avec les tâches qui la suivent, et reprise par le dernier de ces messages.
+	 * Tant qu'une tâche est de côté, les messages suivants vont dans controlStage : le nombre
+	 * de messages dans les bandes ne fait que baisser.
+	 */
+	void runInOrder(boolean command, Runnable task) {
+		synchronized (queuedDataLock) {
+			if (resuming || !held.isEmpty() || (command && queuedData.get() > 0)) {
+				held.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	// reprise des tâches mises de côté, dans l'ordre, y compris celles ajoutées entre-temps
+	void runHeld() {
+		while (true) {
+			Runnable task;
+			synchronized (queuedDataLock) {
+				task = held.poll();
+				if (task == null) {
+					resuming = false;
+					return;
+				}
+			}
+			task.run();
+		}
+	}
+
+	public void setUsername(String username) {
+		this.usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+		this.username = username;
+	}
+
+	public byte[] getUsernameBytes() { return usernameBytes; }
 
 	public String getPassword() { return password; }
 
@@ -82,7 +215,7 @@ public class UserMsg implements PacketProcessor{
 	 * This method has to be called before removing a group in order to clean membership.
 	 */
 	public void beforeDelete() {
-		groups.forEach(g->g.getMembers().remove(this));
+		groups.forEach(g->g.dropMember(this));
 		
 	}
 	
@@ -90,16 +223,137 @@ public class UserMsg implements PacketProcessor{
 	/*
 	 * METHODS FOR MANAING THE CONNECTION
 	 */
-	public boolean open(Socket s, String username) {
+	public synchronized boolean open(Socket s, String username) {
 		if (active) return false;
 		this.s=s;
-		this.username = username;
+		if (!username.equals(this.username)) setUsername(username);
 		active=true;
+		goOnline();
+		return true;
+	}
+
+	/*
+	 * Remet en file la première page des paquets reçus hors connexion, puis des messages des
+	 * groupes depuis la position de l'utilisateur dans leur journal (les pages suivantes quand
+	 * la file se vide, cf. pageSpool).
+	 */
+	private void goOnline() {
+		OfflineSpool spool = server.getOfflineSpool();
+		synchronized (spoolLock) {
+			if (spool != null) {
+				int pending = spool.pending(userId);
+				if (pending > 0) {
+					spool.drain(userId, spoolPage(), sendQueue::offer);
+					LOG.info(pending + " offline packets to deliver to " + userId);
+				}
+				spoolBacklog = spool.pending(userId) > 0;
+			}
+			HistoryStore history = server.getHistory();
+			if (history != null) {
+				for (Map.Entry<Integer, Long> e : history.getCursors(userId).entrySet()) {
+					GroupMsg g = server.getGroup(e.getKey());
+					// un groupe quitté entre-temps n'est pas rejoué
+					if (g != null && g.isMember(userId)) replaying.merge(e.getKey(), e.getValue(), Math::min);
+					history.clearCursor(userId, e.getKey());
+				}
+				if (!replaying.isEmpty()) LOG.info(replaying.size() + " groups to replay to " + userId);
+				replayGroups(history);
+			}
+			online = true;
+		}
+	}
+
+	private int spoolPage() {
+		return Math.min(SPOOL_PAGE, sendQueue.remainingCapacity());
+	}
+
+	/*
+	 * Appelée par le consommateur de la file : relit la page suivante du spool sur un thread
+	 * de session (jamais sur une boucle NIO) quand la file est à moitié vide.
+	 */
+	private void pageSpoolIfNeeded() {
+		if ((spoolBacklog || !replaying.isEmpty()) && sendQueue.remainingCapacity() >= pageThreshold
+				&& paging.compareAndSet(false, true)) {
+			try {
+				server.getExecutor().execute(this::pageSpool);
+			} catch (RejectedExecutionException e) {
+				// serveur arrêté
+				paging.set(false);
+			}
+		}
+	}
+
+	private void pageSpool() {
+		OfflineSpool spool = server.getOfflineSpool();
+		synchronized (spoolLock) {
+			if (online && spoolBacklog) {
+				spool.drain(userId, spoolPage(), sendQueue::offer);
+				spoolBacklog = spool.pending(userId) > 0;
+			}
+			HistoryStore history = server.getHistory();
+			if (online && history != null) replayGroups(history);
+		}
+		paging.set(false);
+		NioConnection c = channel;
+		if (c != null) c.requestWrite();
+		// la file a pu se vider avant la remise à faux de paging
+		pageSpoolIfNeeded();
+	}
+
+	// appelée sous spoolLock : met en file les messages des groupes à rejouer, dans la place d'une page
+	private void replayGroups(HistoryStore history) {
+		Iterator<Map.Entry<Integer, Long>> it = replaying.entrySet().iterator();
+		int room;
+		while (it.hasNext() && (room = spoolPage()) > 0) {
+			Map.Entry<Integer, Long> e = it.next();
+			int groupId = e.getKey();
+			long from = e.getValue() + 1;
+			try {
+				long last = history.replay(groupId, from, userId, room, sendQueue::offer);
+				if (last < from + room - 1) {
+					// fin du journal atteinte
+					it.remove();
+					replayed.put(groupId, last);
+				} else {
+					e.setValue(last);
+				}
+			} catch (IOException ex) {
+				it.remove();
+				LOG.warning("Unable to replay group " + groupId + " to " + userId + " : " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Open the user session on a non blocking connection. In this case receiveLoop()
+	 * and sendLoop() must not be used, the NioConnection reads and writes the packets.
+	 */
+	public boolean open(NioConnection c, String username) {
+		if (!open(c.socket(), username)) return false;
+		// les paquets non acquittés sont renvoyés en premier
+		window.rewind();
+		channel = c;
 		return true;
 	}
+
+	boolean isAttachedTo(NioConnection c) {
+		return channel == c;
+	}
 	
 	public void close() {
+		synchronized (spoolLock) {
+			online=false;
+			// les groupes pas encore rejoués le seront à la prochaine connexion
+			HistoryStore history = server.getHistory();
+			if (history != null) replaying.forEach((groupId, seq) -> history.markBehind(userId, groupId, seq));
+			replaying.clear();
+		}
 		active=false;
+		channel=null;
+		// la boucle d'envoi s'arrête, ses paquets restent dans la fenêtre
+		synchronized (senderLock) {
+			if (sender != null && sender != Thread.currentThread()) sender.interrupt();
+		}
 		try {
 			if (s!=null) s.close();
 		} catch (IOException e) {
@@ -118,15 +372,42 @@ public boolean isConnected() {
 	public void receiveLoop() {
 		try {
 			DataInputStream dis = new DataInputStream(s.getInputStream());
+			FrameLimits limits = server.getFrameLimits();
 			// tant que la connexion n'est pas terminée
 			while (active && ! s.isInputShutdown()) {
 				// on lit les paquets envoyé par le client
 				int destId = dis.readInt();
 				int length = dis.readInt();
-				byte[] content = new byte[length];
-				dis.readFully(content);
+				// taille vérifiée selon le type (premier octet) avant d'allouer le contenu
+				if (length < 0 || length > limits.max()) throw new IOException("frame of " + length + " bytes refused");
+				byte type = length > 0 ? dis.readByte() : 0;
+				if (length > limits.limit(destId, type)) {
+					throw new IOException("frame of " + length + " bytes (type " + type + ") refused");
+				}
+				Packet p;
+				if (destId != 0) {
+					// message : lu directement dans la trame envoyée aux destinataires (tampon du pool)
+					SharedFrame frame = SharedFrame.allocate(server.getBufferPool(), userId, destId, length);
+					try {
+						if (length > 0) {
+							frame.body().put(type);
+							frame.readBody(dis, 1);
+						}
+					} catch (IOException e) {
+						frame.release();
+						throw e;
+					}
+					p = new FramedPacket(frame);
+				} else {
+					byte[] content = new byte[length];
+					if (length > 0) {
+						content[0] = type;
+						dis.readFully(content, 1, length - 1);
+					}
+					p = new Packet(userId, destId, content);
+				}
 				// on envoie le paquet à ServerMsg pour qu'il le gère
-				server.processPacket(new Packet(userId,destId,content));
+				server.processIncoming(this, p);
 			}
 			
 		} catch (IOException e) {
@@ -137,32 +418,102 @@ public boolean isConnected() {
 	}
 	
 	// boucle d'envoi
+	// les paquets en attente passent dans la fenêtre de livraison, qui les numérote, puis sont
+	// écrits par lots dans un flux bufferisé, avec un seul flush par lot (cf. ServerConfig.FlushPolicy).
+	// Ceux de la fenêtre non acquittés sont d'abord réécrits, dans l'ordre
 	public void sendLoop() {
-		Packet p = null;
 		try {
-			DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-			// tant que la connexion n'est pas terminée
-			while (active && s.isConnected()) {
-				// on récupère un message à envoyer dans la file
-				// sinon on attend, car la méthode take est "bloquante" tant que la file est vide
-				p = sendQueue.take();
-				// on envoie le paquet au client
-				dos.writeInt(p.srcId);
-				dos.writeInt(p.destId);
-				dos.writeInt(p.data.length);
-				dos.write(p.data);
+			// la boucle de la connexion précédente doit avoir fini avant de reprendre la fenêtre
+			sending.lockInterruptibly();
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			synchronized (senderLock) {
+				sender = Thread.currentThread();
+			}
+			Socket sock = s;
+			if (active && sock != null) sendLoop(sock);
+		} finally {
+			synchronized (senderLock) {
+				sender = null;
+				// une interruption de close() arrivée après la fin de la boucle
+				Thread.interrupted();
+			}
+			sending.unlock();
+		}
+	}
+
+	private void sendLoop(Socket sock) {
+		ServerConfig config = server.getConfig();
+		int maxBatch = config.getMaxBatchPackets();
+		List<Packet> batch = new ArrayList<>();
+		// paquets écrits, libérés après le flush
+		List<Packet> written = new ArrayList<>();
+		try {
+			window.rewind();
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), WRITE_BUFFER_SIZE));
+			// canal de la socket pour envoyer les fichiers sans copie (transferTo)
+			WritableByteChannel out = sock.getChannel() != null ? sock.getChannel() : Channels.newChannel(sock.getOutputStream());
+			// tant que la connexion n'est pas terminée (ni remplacée par une autre)
+			while (active && s == sock && sock.isConnected()) {
+				long seq = window.next();
+				if (seq == 0) {
+					// on attend de la place dans la fenêtre (acquittements du client),
+					// puis un message à envoyer dans la file, et tous ceux déjà en attente
+					int room = Math.min(maxBatch, window.awaitRoom());
+					batch.add(sendQueue.take());
+					sendQueue.drainTo(batch, room - batch.size());
+					if (config.getFlushPolicy() == ServerConfig.FlushPolicy.THROUGHPUT) {
+						lingerForMore(batch, room, config.getFlushLinger());
+					}
+					batch.forEach(window::push);
+					batch.clear();
+					pageSpoolIfNeeded();
+					seq = window.next();
+				}
+				// on envoie les paquets au client, précédés de leur numéro
+				long bytes = 0;
+				while (seq != 0) {
+					Packet p = window.get(seq);
+					if (p != null) {
+						written.add(p);
+						dos.writeLong(seq);
+						if (p instanceof FileRegionPacket) bytes += 8 + ((FileRegionPacket) p).write(dos, out);
+						else bytes += 8 + SharedFrame.write(dos, p);
+					}
+					seq = written.size() < maxBatch ? window.next() : 0;
+				}
 				dos.flush();
-				
+				server.getFlushStats().record(written.size(), bytes);
+				written.forEach(SharedFrame::release);
+				written.clear();
 			}
 		} catch (IOException e) {
-			// remet le paquet dans la file si pb de transmission (connexion terminée)
-			if (p!=null) sendQueue.offer(p);
 			LOG.warning("Connection with client "+userId+" is broken...close it.");
 			//e.printStackTrace();
 		} catch (InterruptedException e) {
-			throw new ServerException("Sending loop thread of "+userId+" has been interrupted.",e);
+			// connexion fermée (close) pendant l'attente
+		} finally {
+			// écrits ou non, les paquets restent dans la fenêtre jusqu'à leur acquittement
+			written.forEach(SharedFrame::release);
+			batch.forEach(window::push);
+		}
+	}
+
+	/*
+	 * Attend au plus lingerMicros d'autres paquets pour compléter le lot.
+	 */
+	private void lingerForMore(List<Packet> batch, int maxBatch, int lingerMicros) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		while (batch.size() < maxBatch) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) return;
+			Packet p = sendQueue.poll(left, TimeUnit.NANOSECONDS);
+			if (p == null) return;
+			batch.add(p);
+			sendQueue.drainTo(batch, maxBatch - batch.size());
 		}
-		//close();
 	}
 	
 	/**
@@ -170,7 +521,85 @@ public boolean isConnected() {
 	 */
 	// cette méthode est généralement appelée par ServerMsg
 	public void process(Packet p) {
+		if ((!online || spoolBacklog) && spoolOffline(p)) return;
 		sendQueue.offer(p);
+		NioConnection c = channel;
+		if (c != null) c.requestWrite();
+	}
+
+	/**
+	 * Method for adding a message of a group to the sending queue. seq is its number in the log
+	 * of the group (HistoryStore), 0 if it has not been logged : if the user is not connected,
+	 * only its position in the group is stored, the message will be replayed from the log.
+	 */
+	void processGroup(Packet p, long seq) {
+		HistoryStore history = server.getHistory();
+		if (seq > 0) {
+			if (!online || replaying.containsKey(p.destId)) {
+				synchronized (spoolLock) {
+					if (!online) {
+						history.markBehind(userId, p.destId, seq - 1);
+						SharedFrame.release(p);
+						return;
+					}
+					if (replaying.containsKey(p.destId)) {
+						// relu du journal avec les messages qui le précèdent
+						SharedFrame.release(p);
+						return;
+					}
+				}
+			}
+			if (!replayed.isEmpty()) {
+				Long last = replayed.get(p.destId);
+				if (last != null) {
+					if (seq <= last) {
+						// déjà rejoué depuis le journal
+						SharedFrame.release(p);
+						return;
+					}
+					replayed.remove(p.destId);
+				}
+			}
+		}
+		process(p);
+	}
+
+	/*
+	 * Stocke le paquet sur disque si l'utilisateur n'est pas connecté, ou derrière les paquets
+	 * reçus hors connexion qui restent à remettre.
+	 */
+	private boolean spoolOffline(Packet p) {
+		OfflineSpool spool = server.getOfflineSpool();
+		if (spool == null) return false;
+		synchronized (spoolLock) {
+			try {
+				if ((online && !spoolBacklog) || !spool.append(userId, FileRegionPacket.inline(p))) return false;
+			} catch (IOException e) {
+				LOG.warning("Unable to read file region for user " + userId + " : " + e.getMessage());
+				return false;
+			}
+		}
+		SharedFrame.release(p);
+		return true;
+	}
+
+	// utilisées par NioConnection pour vider la file d'envoi :
+	// numéro du prochain paquet à écrire (cf. DeliveryWindow.get), 0 s'il n'y en a pas
+	long nextOutgoing() {
+		long seq = window.next();
+		if (seq == 0 && window.room() > 0) {
+			Packet p = sendQueue.poll();
+			if (p != null) {
+				window.push(p);
+				pageSpoolIfNeeded();
+				seq = window.next();
+			}
+		}
+		return seq;
+	}
+
+	boolean hasOutgoing() {
+		return window.hasUnsent() || (window.room() > 0 && !sendQueue.isEmpty());
 	}
 
 	public void setPassword(String password) {
@@ -184,6 +613,11 @@ public boolean isConnected() {
 	}
 
 
+	// utilisé au démarrage par StateJournal, sans trace
+	void restoreContact(String contactName) {
+		contacts.add(contactName);
+	}
+
 	public List<String> getContacts() {
 
 			return contacts;
@@ -191,29 +625,19 @@ public boolean isConnected() {
 
 	public void sendPacket(byte[] array) {
 		if (s != null && s.isConnected()) {
-			try {
-				// Construire le tableau de bytes avec les contacts
-				String contactListStr = Arrays.toString(contacts.toArray());
-				byte[] contactListBytes = contactListStr.getBytes();
-
-				//ByteArrayOutputStream contactBytesStream = new ByteArrayOutputStream();
-
-                // Concaténer le tableau de bytes des contacts avec le tableau de bytes du paquet
-				byte[] combinedArray = new byte[array.length + contactListBytes.length];
-				System.arraycopy(array, 0, combinedArray, 0, array.length);
-				System.arraycopy(contactListBytes, 0, combinedArray, array.length, contactListBytes.length);
-
-				// Envoi du paquet avec la liste des contacts
-				DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-				dos.writeInt(userId); // Envoi l'identifiant de l'utilisateur
-				dos.writeInt(0); // Envoi l'identifiant du serveur
-				dos.writeInt(combinedArray.length); // Envoi la taille des données
-				dos.write(combinedArray); // Envoi les données
-				dos.flush(); // Vide le tampon de sortie
-				LOG.info("Packet sent to user " + userId);
-			} catch (IOException e) {
-				LOG.warning("Failed to send packet to user " + userId + ": " + e.getMessage());
-			}
+			// Construire le tableau de bytes avec les contacts
+			String contactListStr = Arrays.toString(contacts.toArray());
+			byte[] contactListBytes = contactListStr.getBytes();
+
+			// Concaténer le tableau de bytes des contacts avec le tableau de bytes du paquet
+			byte[] combinedArray = new byte[array.length + contactListBytes.length];
+			System.arraycopy(array, 0, combinedArray, 0, array.length);
+			System.arraycopy(contactListBytes, 0, combinedArray, array.length, contactListBytes.length);
+
+			// Envoi du paquet avec la liste des contacts, via la file d'envoi pour ne pas
+			// entrelacer les écritures avec celles de sendLoop (ou de la connexion NIO)
+			process(new Packet(userId, 0, combinedArray));
+			LOG.info("Packet sent to user " + userId);
 		} else {
 			LOG.warning("User with ID " + userId + " is not connected. Unable to send packet.");
 		}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.gui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ContactDAOTest {
+
+	@TempDir
+	Path dir;
+
+	private ContactDAO dao() {
+		ContactDAO dao = new ContactDAO("jdbc:sqlite:" + dir.resolve("contacts.db"));
+		dao.createContactsTable();
+		return dao;
+	}
+
+	private static List<String> names(ContactDAO dao) {
+		return dao.getAllContacts().stream().map(ContactListGUI.Contact::getName).collect(Collectors.toList());
+	}
+
+	@Test
+	public void contactsAreKeptAcrossConnections() {
+		try (ContactDAO dao = dao()) {
+			assertTrue(dao.insertContact(new ContactListGUI.Contact(1, "alice")));
+			assertTrue(dao.insertContact(new ContactListGUI.Contact(2, "bob")));
+			// même identifiant : refusé, la requête préparée reste utilisable
+			assertFalse(dao.insertContact(new ContactListGUI.Contact(2, "bob bis")));
+			assertEquals(Arrays.asList("alice", "bob"), names(dao));
+			assertTrue(Files.exists(dir.resolve("contacts.db-wal")));
+
+			// la connexion est rouverte au besoin après close()
+			dao.close();
+			assertTrue(dao.insertContact(new ContactListGUI.Contact(3, "carol")));
+			assertEquals(Arrays.asList("alice", "bob", "carol"), names(dao));
+		}
+		try (ContactDAO dao = dao()) {
+			assertEquals(3, dao.getAllContacts().size());
+		}
+	}
+
+	@Test
+	public void batchIsInsertedAllOrNothing() {
+		try (ContactDAO dao = dao()) {
+			List<ContactListGUI.Contact> contacts = new ArrayList<>();
+			for (int i = 1; i <= 100; i++) contacts.add(new ContactListGUI.Contact(i, "contact " + i));
+			assertEquals(100, dao.insertContacts(contacts));
+			assertEquals(0, dao.insertContacts(new ArrayList<>()));
+
+			// le dernier existe déjà : aucun n'est inséré
+			List<ContactListGUI.Contact> more = Arrays.asList(new ContactListGUI.Contact(101, "contact 101"),
+					new ContactListGUI.Contact(102, "contact 102"), new ContactListGUI.Contact(1, "contact 1 bis"));
+			assertEquals(0, dao.insertContacts(more));
+			assertEquals(100, dao.getAllContacts().size());
+			// la connexion est revenue en validation automatique
+			assertTrue(dao.insertContact(new ContactListGUI.Contact(101, "contact 101")));
+		}
+		try (ContactDAO dao = dao()) {
+			assertEquals(101, dao.getAllContacts().size());
+		}
+	}
+}
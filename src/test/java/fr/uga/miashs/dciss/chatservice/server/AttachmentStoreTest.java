@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class AttachmentStoreTest {
+	// SHA-256 de "bonjour"
+	private final static String BONJOUR = "2cb4b1431b84ec15d35ed83bb927e27e8967d75f4bcd9cc4b25c8d879ae23e18";
+
+	@TempDir
+	Path dir;
+
+	private Path upload(String name, String content) throws IOException {
+		return Files.write(dir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void sameContentIsStoredOnce() throws IOException {
+		AttachmentStore store = new AttachmentStore(dir.resolve("attachments"));
+		Path first = upload("a.part", "bonjour");
+		Path second = upload("b.part", "bonjour");
+		assertEquals(BONJOUR, store.add(first));
+		assertEquals(BONJOUR, store.add(second));
+		// les fichiers reçus sont déplacés ou supprimés
+		assertFalse(Files.exists(first));
+		assertFalse(Files.exists(second));
+		assertEquals(1, files(dir.resolve("attachments"), "", "").size());
+		assertEquals("bonjour", new String(Files.readAllBytes(store.path(BONJOUR)), StandardCharsets.UTF_8));
+
+		String other = store.add(upload("c.part", "au revoir"));
+		assertNotEquals(BONJOUR, other);
+		assertEquals(2, files(dir.resolve("attachments"), "", "").size());
+	}
+
+	@Test
+	public void purgeKeepsReferencedAndRecentContents() throws IOException {
+		AttachmentStore store = new AttachmentStore(dir.resolve("attachments"));
+		String referenced = store.add(upload("a.part", "référencé"));
+		String old = store.add(upload("b.part", "ancien"));
+		String recent = store.add(upload("c.part", "récent"));
+		long limit = System.currentTimeMillis() - 60_000;
+		for (String h : new String[] { referenced, old }) {
+			Files.setLastModifiedTime(store.path(h), FileTime.fromMillis(limit - 60_000));
+		}
+		store.purge(Collections.singleton(referenced), limit);
+		assertTrue(Files.exists(store.path(referenced)));
+		assertFalse(Files.exists(store.path(old)));
+		assertTrue(Files.exists(store.path(recent)));
+
+		// un contenu ancien envoyé de nouveau est rafraîchi
+		Files.setLastModifiedTime(store.path(recent), FileTime.fromMillis(limit - 60_000));
+		store.add(upload("d.part", "récent"));
+		store.purge(Collections.emptySet(), limit);
+		assertTrue(Files.exists(store.path(recent)));
+	}
+
+	@Test
+	public void fileRegionIsSentAfterItsHeader() throws IOException {
+		AttachmentStore store = new AttachmentStore(dir.resolve("attachments"));
+		Path file = store.path(store.add(upload("a.part", "0123456789")));
+		byte[] header = { 7, 8 };
+		FileRegionPacket p = new FileRegionPacket(1, 2, header, file, 3, 4);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		assertEquals(12 + 2 + 4, p.write(dos, Channels.newChannel(bos)));
+		ByteBuffer frame = ByteBuffer.wrap(bos.toByteArray());
+		assertEquals(1, frame.getInt());
+		assertEquals(2, frame.getInt());
+		assertEquals(6, frame.getInt());
+		byte[] data = new byte[6];
+		frame.get(data);
+		assertFalse(frame.hasRemaining());
+		assertArrayEquals(new byte[] { 7, 8, '3', '4', '5', '6' }, data);
+
+		// copie complète pour les files stockées sur disque
+		Packet inline = FileRegionPacket.inline(p);
+		assertFalse(inline instanceof FileRegionPacket);
+		assertArrayEquals(data, inline.data);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class DeliveryWindowTest {
+
+	@Test
+	public void numbersPacketsInPushOrder() {
+		DeliveryWindow w = new DeliveryWindow(4);
+		assertEquals(1, w.push(packet(10, 1)));
+		assertEquals(2, w.push(packet(20, 1)));
+		assertTrue(w.hasUnsent());
+		assertEquals(1, w.next());
+		assertEquals(2, w.next());
+		assertEquals(0, w.next());
+		assertFalse(w.hasUnsent());
+		assertEquals(10, w.get(1).srcId);
+		assertEquals(20, w.get(2).srcId);
+		assertNull(w.get(3));
+	}
+
+	@Test
+	public void refusesPushWhenFull() {
+		DeliveryWindow w = new DeliveryWindow(2);
+		w.push(packet(1, 1));
+		w.push(packet(2, 1));
+		assertEquals(0, w.room());
+		assertThrows(IllegalStateException.class, () -> w.push(packet(3, 1)));
+	}
+
+	@Test
+	public void ackIsCumulativeAndFreesRoom() {
+		DeliveryWindow w = new DeliveryWindow(3);
+		for (int i = 1; i <= 3; i++) w.push(packet(i, 1));
+		w.ack(2);
+		assertEquals(2, w.getAcked());
+		assertEquals(1, w.size());
+		assertEquals(2, w.room());
+		assertNull(w.get(2));
+		assertEquals(3, w.get(3).srcId);
+		// acquittement ancien ou au-delà du dernier numéro
+		w.ack(1);
+		assertEquals(2, w.getAcked());
+		w.ack(100);
+		assertEquals(3, w.getAcked());
+		assertEquals(0, w.size());
+		// les numéros continuent, dans des cases réutilisées
+		assertEquals(4, w.push(packet(4, 1)));
+		assertEquals(4, w.get(4).srcId);
+	}
+
+	@Test
+	public void slotsGrowWithTheUnacknowledgedPackets() {
+		DeliveryWindow w = new DeliveryWindow(1000);
+		assertEquals(0, w.slots());
+		assertEquals(1000, w.room());
+		// des acquittements au fil de l'eau : les premières cases suffisent
+		for (int i = 1; i <= 100; i++) {
+			w.push(packet(i, 1));
+			w.ack(i - 1);
+		}
+		assertEquals(DeliveryWindow.INITIAL_SLOTS, w.slots());
+		// les numéros non acquittés ont fait le tour des cases avant l'agrandissement
+		for (int i = 101; i <= 150; i++) w.push(packet(i, 1));
+		assertEquals(4 * DeliveryWindow.INITIAL_SLOTS, w.slots());
+		for (int i = 100; i <= 150; i++) assertEquals(i, w.get(i).srcId);
+		assertEquals(949, w.room());
+		for (int i = 151; i <= 1099; i++) w.push(packet(i, 1));
+		assertEquals(1000, w.slots());
+		assertEquals(0, w.room());
+		w.ack(1099);
+		assertNull(w.get(1099));
+	}
+
+	@Test
+	public void rewindResendsWhatIsNotAcknowledged() {
+		DeliveryWindow w = new DeliveryWindow(8);
+		for (int i = 1; i <= 5; i++) w.push(packet(i, 1));
+		while (w.next() != 0) {
+			// écrits sur une connexion qui se coupe
+		}
+		w.ack(2);
+		w.rewind();
+		assertEquals(3, w.next());
+		assertEquals(4, w.next());
+		assertEquals(5, w.next());
+		assertEquals(0, w.next());
+	}
+
+	@Test
+	public void ackOfUnsentPacketsSkipsThem() {
+		DeliveryWindow w = new DeliveryWindow(8);
+		for (int i = 1; i <= 4; i++) w.push(packet(i, 1));
+		assertEquals(1, w.next());
+		w.ack(3);
+		assertEquals(4, w.next());
+	}
+
+	@Test
+	@Timeout(5)
+	public void awaitRoomWaitsForAnAck() throws InterruptedException {
+		DeliveryWindow w = new DeliveryWindow(2);
+		w.push(packet(1, 1));
+		w.push(packet(2, 1));
+		AtomicInteger room = new AtomicInteger(-1);
+		CountDownLatch waiting = new CountDownLatch(1);
+		Thread writer = new Thread(() -> {
+			waiting.countDown();
+			try {
+				room.set(w.awaitRoom());
+			} catch (InterruptedException e) {
+				room.set(-2);
+			}
+		});
+		writer.start();
+		waiting.await();
+		Thread.sleep(50);
+		assertEquals(-1, room.get());
+		w.ack(1);
+		writer.join();
+		assertEquals(1, room.get());
+	}
+
+	@Test
+	@Timeout(5)
+	public void awaitRoomIsInterruptible() throws InterruptedException {
+		DeliveryWindow w = new DeliveryWindow(1);
+		w.push(packet(1, 1));
+		AtomicInteger room = new AtomicInteger(-1);
+		Thread writer = new Thread(() -> {
+			try {
+				room.set(w.awaitRoom());
+			} catch (InterruptedException e) {
+				room.set(-2);
+			}
+		});
+		writer.start();
+		Thread.sleep(50);
+		writer.interrupt();
+		writer.join();
+		assertEquals(-2, room.get());
+	}
+
+	@Test
+	public void rejectsAnEmptyWindow() {
+		assertThrows(IllegalArgumentException.class, () -> new DeliveryWindow(0));
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Packets, configuration and file listings shared by the tests of the server.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	// paquet sans données : srcId et destId servent de numéros
+	static Packet packet(int srcId, int destId) {
+		return new Packet(srcId, destId, new byte[0]);
+	}
+
+	static Packet text(int srcId, int destId, String text) {
+		return new Packet(srcId, destId, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static String text(Packet p) {
+		return new String(p.data, StandardCharsets.UTF_8);
+	}
+
+	// petits segments et index serré : une conversation s'étend vite sur plusieurs fichiers ;
+	// segments de recherche de 10 messages fusionnés par 4
+	static ServerConfig smallStores() {
+		ServerConfig config = new ServerConfig();
+		config.setHistorySegmentSize(1024);
+		config.setHistoryIndexInterval(4);
+		config.setHistoryOpenConversations(1);
+		config.setSearchSegmentDocs(10);
+		config.setSearchMergeFactor(4);
+		config.setSearchMaxResults(1000);
+		return config;
+	}
+
+	// serveur simulé : seule sa configuration (par défaut) est réelle
+	static ServerMsg mockServer() {
+		ServerMsg server = mock(ServerMsg.class);
+		when(server.getConfig()).thenReturn(new ServerConfig());
+		return server;
+	}
+
+	static UserMsg user(ServerMsg server, int id) {
+		return new UserMsg(id, server, "user" + id, "pw" + id);
+	}
+
+	/**
+	 * @return the files of dir and its sub-directories whose name starts with prefix
+	 * and ends with suffix, sorted by path
+	 */
+	static List<Path> files(Path dir, String prefix, String suffix) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			return files.filter(f -> {
+				String name = f.getFileName().toString();
+				return Files.isRegularFile(f) && name.startsWith(prefix) && name.endsWith(suffix);
+			}).sorted().collect(Collectors.toList());
+		}
+	}
+}
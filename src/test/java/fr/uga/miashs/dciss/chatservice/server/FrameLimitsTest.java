@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.common.FileTransfer;
+import fr.uga.miashs.dciss.chatservice.common.FrameLimits;
+
+public class FrameLimitsTest {
+	private final static FrameLimits LIMITS = new FrameLimits(100, 50, FrameLimits.MIN_FILE);
+
+	@Test
+	public void limitDependsOnTheKindOfPacket() {
+		assertEquals(100, LIMITS.limit(2, (byte) 1));
+		assertEquals(100, LIMITS.limit(-3, (byte) 1));
+		assertEquals(50, LIMITS.limit(0, (byte) 1));
+		assertEquals(FrameLimits.MIN_FILE, LIMITS.limit(0, FileTransfer.TYPE));
+		assertEquals(FrameLimits.MIN_FILE, LIMITS.limit(2, FileTransfer.TYPE));
+		assertEquals(FrameLimits.MIN_FILE, LIMITS.max());
+	}
+
+	@Test
+	public void invalidLimitsAreRejected() throws IOException {
+		assertThrows(IllegalArgumentException.class, () -> new FrameLimits(0, 50, FrameLimits.MIN_FILE));
+		assertThrows(IllegalArgumentException.class, () -> new FrameLimits(100, 50, FrameLimits.MIN_FILE - 1));
+
+		FrameLimits read = FrameLimits.read(new DataInputStream(new ByteArrayInputStream(LIMITS.encode().array())));
+		assertEquals(LIMITS.toString(), read.toString());
+		// limites reçues d'un serveur invalide : la connexion échoue
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeInt(-1);
+		bytes.write(LIMITS.encode().array(), 4, 8);
+		assertThrows(IOException.class, () -> FrameLimits.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+	}
+
+	// connexion simulée d'un client qui envoie une seule trame de length octets
+	private static ByteArrayInputStream frame(int destId, int length, byte type) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(destId);
+		out.writeInt(length);
+		out.writeByte(type);
+		out.write(new byte[length - 1]);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	// nombre d'octets de la trame lus avant la fermeture de la connexion
+	private static int readBeforeClose(ByteArrayInputStream in) throws IOException {
+		int size = in.available();
+		ServerMsg server = mock(ServerMsg.class);
+		when(server.getConfig()).thenReturn(new ServerConfig());
+		when(server.getFrameLimits()).thenReturn(LIMITS);
+		Socket s = mock(Socket.class);
+		when(s.getInputStream()).thenReturn(in);
+		UserMsg u = new UserMsg(1, server, "user1", "pw1");
+		assertTrue(u.open(s, "user1"));
+		u.receiveLoop();
+		verify(s).close();
+		assertFalse(u.isConnected());
+		return size - in.available();
+	}
+
+	@Test
+	public void largerFramesCloseTheConnectionBeforeTheirData() throws IOException {
+		// au-delà de toutes les limites : refusée sur sa longueur
+		assertEquals(8, readBeforeClose(frame(2, FrameLimits.MIN_FILE + 1, (byte) 1)));
+		// message et paquet de contrôle : refusés sur leur type
+		assertEquals(9, readBeforeClose(frame(2, 101, (byte) 1)));
+		assertEquals(9, readBeforeClose(frame(0, 51, (byte) 1)));
+	}
+}
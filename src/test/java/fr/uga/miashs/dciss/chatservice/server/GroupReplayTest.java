@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class GroupReplayTest {
+	private final static int CAPACITY = 100;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	@Timeout(20)
+	public void backlogIsReplayedPageByPage() throws IOException, InterruptedException {
+		ServerConfig config = new ServerConfig();
+		// une file pleine perdrait des messages
+		config.setOverflowPolicy(SendQueue.OverflowPolicy.DROP_OLDEST);
+		config.setSendQueueCapacity(CAPACITY);
+		config.setOfflineSpoolDirectory(null);
+		config.setStateDirectory(null);
+		config.setTransferDirectory(null);
+		config.setSearchDirectory(null);
+		config.setHistoryDirectory(dir);
+		ServerMsg server = new ServerMsg(0, config);
+		try {
+			int owner = server.registerIfNew(0, "pw");
+			int member = server.registerIfNew(0, "pw");
+			UserMsg sender = server.getUser(owner);
+			ByteBuffer create = ByteBuffer.allocate(9).put((byte) 1).putInt(1).putInt(member);
+			server.processIncoming(sender, new Packet(owner, 0, create.array()));
+			int nb = 1000;
+			for (int i = 1; i <= nb; i++) server.processIncoming(sender, text(owner, -1, "message " + i));
+			HistoryStore history = server.getHistory();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (history.size(owner, -1) < nb && System.currentTimeMillis() < deadline) Thread.sleep(10);
+			assertEquals(nb, history.size(owner, -1));
+
+			// à la connexion, une page seulement est mise en file, puis une autre à chaque fois
+			// que la file se vide à moitié
+			UserMsg u = server.getUser(member);
+			u.open(new Socket(), "user" + member);
+			assertTrue(u.getSendQueue().size() <= CAPACITY);
+			DeliveryWindow window = u.getDeliveryWindow();
+			List<String> received = new ArrayList<>();
+			while (received.size() < nb && System.currentTimeMillis() < deadline) {
+				long seq = u.nextOutgoing();
+				if (seq == 0) {
+					Thread.sleep(1);
+					continue;
+				}
+				Packet p = window.get(seq);
+				// sans la notification de création du groupe
+				if (p.destId == -1) received.add(text(p));
+				SharedFrame.release(p);
+				window.ack(seq);
+			}
+			assertEquals(nb, received.size());
+			for (int i = 1; i <= nb; i++) assertEquals("message " + i, received.get(i - 1));
+			assertTrue(history.getCursors(member).isEmpty());
+
+			// les messages suivants sont envoyés directement
+			server.processIncoming(sender, text(owner, -1, "message " + (nb + 1)));
+			while (u.getSendQueue().size() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+			assertEquals(1, u.getSendQueue().size());
+			u.close();
+		} finally {
+			server.stop();
+		}
+	}
+}
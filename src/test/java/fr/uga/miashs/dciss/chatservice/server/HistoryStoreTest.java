@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.History;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class HistoryStoreTest {
+
+	@TempDir
+	Path dir;
+
+	private HistoryStore open() throws IOException {
+		return new HistoryStore(dir, null, smallStores());
+	}
+
+	private static Packet message(int srcId, int destId, int n) {
+		return text(srcId, destId, "message " + n);
+	}
+
+	private static History page(HistoryStore store, int userId, int conversation, long before, long beforeTime, int max)
+			throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(store.page(userId, conversation, before, beforeTime, max));
+		assertEquals(History.TYPE, b.get());
+		return History.read(b);
+	}
+
+	private List<Path> segments(String conversation) throws IOException {
+		return files(dir.resolve(conversation), "", ".seg");
+	}
+
+	@Test
+	public void pagesWalkBackThroughEverySegment() throws IOException {
+		HistoryStore store = open();
+		for (int i = 1; i <= 200; i++) {
+			store.append(message(i % 2 == 0 ? 1 : 2, i % 2 == 0 ? 2 : 1, i));
+			assertEquals(i, store.size(1, 2));
+		}
+		assertTrue(segments("u1-2").size() > 3);
+		assertEquals(200, store.size(2, 1));
+
+		// lu par l'utilisateur 2, du plus récent au plus ancien
+		List<Long> seqs = new ArrayList<>();
+		long before = 0;
+		do {
+			History h = page(store, 2, 1, before, 0, 30);
+			assertEquals(1, h.conversation);
+			assertFalse(h.messages.isEmpty());
+			// chaque page est dans l'ordre et précède la précédente sans trou
+			for (int i = h.messages.size() - 1; i >= 0; i--) seqs.add(h.messages.get(i).seq);
+			for (History.Message m : h.messages) assertEquals("message " + m.seq, text(m.packet));
+			before = h.next;
+			if (before != 0) assertEquals(h.messages.get(0).seq, before);
+		} while (before != 0);
+		assertEquals(200, seqs.size());
+		for (int i = 0; i < 200; i++) assertEquals(200 - i, (long) seqs.get(i));
+		store.close();
+	}
+
+	@Test
+	public void beforeTimeEndsThePageAtTheDate() throws IOException, InterruptedException {
+		HistoryStore store = open();
+		for (int i = 1; i <= 10; i++) store.append(message(1, 2, i));
+		Thread.sleep(20);
+		long time = System.currentTimeMillis();
+		for (int i = 11; i <= 20; i++) store.append(message(1, 2, i));
+
+		History h = page(store, 1, 2, 0, time, 50);
+		assertEquals(10, h.messages.size());
+		assertEquals(1, h.messages.get(0).seq);
+		assertEquals(10, h.messages.get(9).seq);
+		assertEquals(0, h.next);
+		for (History.Message m : h.messages) assertTrue(m.time < time);
+		// les deux limites : la plus restrictive l'emporte
+		h = page(store, 1, 2, 5, time, 50);
+		assertEquals(4, h.messages.size());
+		store.close();
+	}
+
+	@Test
+	public void conversationsAreKeptApartAcrossReopening() throws IOException {
+		HistoryStore store = open();
+		// une seule conversation ouverte : chaque envoi ferme la précédente
+		for (int i = 1; i <= 30; i++) {
+			store.append(message(1, 2, i));
+			store.append(message(3, 1, i));
+			store.append(message(2, -5, i));
+		}
+		store.close();
+
+		store = open();
+		assertEquals(30, store.size(1, 2));
+		assertEquals(30, store.size(1, 3));
+		assertEquals(30, store.size(2, -5));
+		store.append(message(1, 3, 31));
+		assertEquals(31, store.size(3, 1));
+		History h = page(store, 1, 3, 0, 0, 5);
+		assertEquals(5, h.messages.size());
+		assertEquals(27, h.next);
+		History.Message last = h.messages.get(4);
+		assertEquals(31, last.seq);
+		assertEquals(1, last.packet.srcId);
+		assertEquals(3, last.packet.destId);
+		assertEquals(3, h.messages.get(0).packet.srcId);
+		assertEquals("message 17", text(page(store, 4, -5, 18, 0, 1).messages.get(0).packet));
+		store.close();
+	}
+
+	@Test
+	public void tornTailIsDroppedOnReopening() throws IOException {
+		HistoryStore store = open();
+		for (int i = 1; i <= 50; i++) store.append(message(1, 2, i));
+		store.close();
+		// arrêt brutal pendant l'écriture : entête complet, données manquantes
+		List<Path> segments = segments("u1-2");
+		Path last = segments.get(segments.size() - 1);
+		long size = Files.size(last);
+		ByteBuffer torn = ByteBuffer.allocate(History.MESSAGE_HEADER + 3);
+		torn.putLong(51).putLong(System.currentTimeMillis()).putInt(1).putInt(2).putInt(100);
+		Files.write(last, torn.array(), StandardOpenOption.APPEND);
+
+		store = open();
+		assertEquals(50, store.size(1, 2));
+		assertEquals(size, Files.size(last));
+		store.append(message(2, 1, 51));
+		assertEquals(51, store.size(1, 2));
+		History h = page(store, 1, 2, 0, 0, 2);
+		assertEquals(50, h.messages.get(0).seq);
+		assertEquals("message 51", text(h.messages.get(1).packet));
+		assertEquals(2, h.messages.get(1).packet.srcId);
+		store.close();
+	}
+
+	@Test
+	public void replayReadsEveryMessageOnce() throws IOException {
+		HistoryStore store = open();
+		byte[] big = new byte[100 * 1024];
+		Arrays.fill(big, (byte) 'x');
+		for (int i = 1; i <= 60; i++) {
+			// un message plus grand que les blocs de lecture, seul dans son segment
+			store.append(i == 30 ? new Packet(1, -5, big) : message(1 + i % 3, -5, i));
+		}
+		List<Packet> replayed = new ArrayList<>();
+		assertEquals(60, store.replay(-5, 10, 2, Integer.MAX_VALUE, replayed::add));
+		// les messages de l'utilisateur 2 (i % 3 == 1) sont sautés
+		assertEquals(34, replayed.size());
+		int k = 0;
+		for (int i = 10; i <= 60; i++) {
+			if (i % 3 == 1) continue;
+			Packet p = replayed.get(k++);
+			assertEquals(-5, p.destId);
+			if (i == 30) assertArrayEquals(big, p.data);
+			else assertEquals("message " + i, text(p));
+		}
+		assertArrayEquals(big, store.message(1, -5, 30).packet.data);
+		History.Message m = store.message(3, -5, 59);
+		assertEquals(59, m.seq);
+		assertEquals(3, m.packet.srcId);
+		assertEquals("message 59", text(m.packet));
+		assertNull(store.message(1, -5, 61));
+		// rejeu par pages : les messages sautés comptent dans la page
+		replayed.clear();
+		assertEquals(14, store.replay(-5, 10, 2, 5, replayed::add));
+		assertEquals(3, replayed.size());
+		assertEquals("message 11", text(replayed.get(0)));
+		assertEquals(60, store.replay(-5, 55, 2, 10, replayed::add));
+		assertEquals(60, store.replay(-5, 61, 2, 10, replayed::add));
+		store.close();
+	}
+
+	@Test
+	@Timeout(20)
+	public void conversationsOpenedConcurrently() throws IOException, InterruptedException {
+		HistoryStore store = open();
+		// une seule conversation ouverte : les threads se ferment mutuellement leurs conversations
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			int user = 10 + t;
+			writers[t] = new Thread(() -> {
+				for (int i = 1; i <= 100; i++) assertTrue(store.append(message(user, 1, i)) > 0);
+			});
+			writers[t].start();
+		}
+		for (Thread w : writers) w.join();
+		for (int t = 0; t < writers.length; t++) {
+			assertEquals(100, store.size(1, 10 + t));
+			History h = page(store, 1, 10 + t, 0, 0, 100);
+			for (int i = 0; i < 100; i++) assertEquals("message " + (i + 1), text(h.messages.get(i).packet));
+		}
+		store.close();
+	}
+
+	@Test
+	@Timeout(20)
+	public void markBehindKeepsTheOldestPosition() throws IOException, InterruptedException {
+		HistoryStore store = open();
+		// les messages d'un groupe arrivent dans le désordre, depuis plusieurs threads
+		List<Long> seqs = new ArrayList<>();
+		for (long seq = 100; seq < 500; seq++) seqs.add(seq);
+		Collections.shuffle(seqs);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			List<Long> part = seqs.subList(t * 100, (t + 1) * 100);
+			threads[t] = new Thread(() -> part.forEach(seq -> store.markBehind(1, -5, seq)));
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		assertEquals(100, store.getCursors(1).get(-5));
+		store.close();
+
+		HistoryStore reopened = open();
+		assertEquals(100, reopened.getCursors(1).get(-5));
+		reopened.markBehind(1, -5, 99);
+		reopened.markBehind(1, -5, 300);
+		reopened.close();
+		reopened = open();
+		assertEquals(99, reopened.getCursors(1).get(-5));
+		reopened.close();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class IdRegistryTest {
+
+	@Test
+	public void segmentsAreAllocatedForTheIdsUsed() {
+		IdRegistry<String> r = new IdRegistry<>();
+		assertNull(r.get(0));
+		// ids éloignés : segments alloués au fur et à mesure, sans les intermédiaires
+		assertNull(r.put(100_000, "c"));
+		assertNull(r.put(1, "a"));
+		assertNull(r.put(5000, "b"));
+		assertEquals(3, r.size());
+		assertEquals("a", r.get(1));
+		assertEquals("b", r.get(5000));
+		assertEquals("c", r.get(100_000));
+		assertNull(r.get(4999));
+		assertNull(r.get(50_000));
+		assertNull(r.get(1_000_000));
+		assertNull(r.get(-1));
+		assertEquals(Arrays.asList("a", "b", "c"), r.values());
+
+		assertEquals("b", r.put(5000, "b2"));
+		assertEquals(3, r.size());
+		assertEquals("a", r.remove(1));
+		assertNull(r.remove(1));
+		assertNull(r.remove(1_000_000));
+		assertEquals(2, r.size());
+		assertEquals(Arrays.asList("b2", "c"), r.values());
+		assertThrows(IllegalArgumentException.class, () -> r.put(-1, "x"));
+		assertThrows(IllegalArgumentException.class, () -> r.put(2, null));
+	}
+
+	@Test
+	@Timeout(20)
+	public void concurrentPutsDoNotLoseSegments() throws InterruptedException {
+		IdRegistry<Integer> r = new IdRegistry<>();
+		int threads = 4;
+		int max = 200_000;
+		// chaque thread remplit un id sur quatre : tous allouent les mêmes segments en même temps
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			int first = t;
+			writers[t] = new Thread(() -> {
+				for (int id = first; id < max; id += threads) r.put(id, id);
+			});
+			writers[t].start();
+		}
+		for (Thread w : writers) w.join();
+		assertEquals(max, r.size());
+		for (int id = 0; id < max; id++) assertEquals(id, r.get(id));
+		int[] expected = { 0 };
+		r.forEach(v -> assertEquals(expected[0]++, v));
+	}
+}
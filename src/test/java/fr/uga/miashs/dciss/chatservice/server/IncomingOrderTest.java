@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class IncomingOrderTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void commandWaitsForTheMessagesSentBeforeIt() {
+		ServerMsg server = mockServer();
+		UserMsg u = user(server, 1);
+		// la reprise passe directement par le thread qui termine le dernier message
+		doAnswer(inv -> {
+			((UserMsg) inv.getArgument(0)).runHeld();
+			return null;
+		}).when(server).resumeControl(any());
+		List<String> done = new ArrayList<>();
+
+		// deux messages encore dans les bandes
+		u.dataQueued();
+		u.dataQueued();
+		u.runInOrder(true, () -> done.add("command 1"));
+		// le message qui suit la commande la suit dans controlStage, et reste derrière elle
+		u.runInOrder(false, () -> done.add("message 2"));
+		u.runInOrder(true, () -> done.add("command 3"));
+		assertTrue(done.isEmpty());
+		u.dataDone();
+		assertTrue(done.isEmpty());
+		u.dataDone();
+		assertEquals(Arrays.asList("command 1", "message 2", "command 3"), done);
+		verify(server, times(1)).resumeControl(u);
+
+		// plus rien dans les bandes : exécutée tout de suite
+		u.runInOrder(true, () -> done.add("command 4"));
+		assertEquals(4, done.size());
+	}
+
+	@Test
+	@Timeout(20)
+	public void groupMessagesFollowTheirGroupCreation() throws IOException, InterruptedException {
+		ServerConfig config = new ServerConfig();
+		config.setOverflowPolicy(SendQueue.OverflowPolicy.DROP_OLDEST);
+		config.setOfflineSpoolDirectory(null);
+		config.setStateDirectory(null);
+		config.setTransferDirectory(null);
+		config.setSearchDirectory(null);
+		config.setHistoryDirectory(dir);
+		config.setProcessingStripes(4);
+		config.setControlStripes(2);
+		ServerMsg server = new ServerMsg(0, config);
+		try {
+			int owner = server.registerIfNew(0, "pw");
+			int member = server.registerIfNew(0, "pw");
+			UserMsg sender = server.getUser(owner);
+			int nb = 50;
+			for (int i = 1; i <= nb; i++) {
+				// création du groupe -i avec un membre, puis tout de suite un message au groupe
+				ByteBuffer create = ByteBuffer.allocate(9).put((byte) 1).putInt(1).putInt(member);
+				server.processIncoming(sender, new Packet(owner, 0, create.array()));
+				server.processIncoming(sender, text(owner, -i, "message " + i));
+				// et un message direct, traité par une bande pendant la commande suivante
+				server.processIncoming(sender, text(owner, member, "direct " + i));
+			}
+			// chaque message a trouvé son groupe déjà créé
+			HistoryStore history = server.getHistory();
+			long deadline = System.currentTimeMillis() + 10000;
+			for (int i = 1; i <= nb; i++) {
+				while (history.size(member, -i) == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+				assertEquals(1, history.size(member, -i), "group " + -i);
+			}
+			while (history.size(member, owner) < nb && System.currentTimeMillis() < deadline) Thread.sleep(10);
+			assertEquals(nb, history.size(member, owner));
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class MemberSnapshotTest {
+
+	private final ServerMsg server = mockServer();
+
+	private List<UserMsg> users(int from, int to) {
+		List<UserMsg> res = new ArrayList<>();
+		for (int i = from; i <= to; i++) res.add(user(server, i));
+		return res;
+	}
+
+	private static void assertMembers(MemberSnapshot s, int... ids) {
+		assertEquals(ids.length, s.size());
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals(ids[i], s.getId(i));
+			assertEquals(ids[i], s.get(i).getId());
+			assertTrue(s.contains(ids[i]));
+		}
+	}
+
+	@Test
+	public void addsAndRemovesOneMember() {
+		List<UserMsg> u = users(1, 3);
+		MemberSnapshot s = MemberSnapshot.EMPTY.with(u.get(0)).with(u.get(1)).with(u.get(2));
+		assertMembers(s, 1, 2, 3);
+		assertSame(s, s.with(u.get(1)));
+		assertFalse(s.contains(4));
+		assertFalse(s.contains(0));
+
+		MemberSnapshot without = s.without(u.get(1));
+		assertMembers(without, 1, 3);
+		assertFalse(without.contains(2));
+		assertSame(without, without.without(u.get(1)));
+		// l'instantané précédent n'est pas modifié
+		assertMembers(s, 1, 2, 3);
+		assertMembers(without.without(u.get(0)).without(u.get(2)));
+	}
+
+	@Test
+	public void bulkAddSkipsMembersAndDuplicates() {
+		List<UserMsg> u = users(1, 1000);
+		MemberSnapshot s = MemberSnapshot.EMPTY.with(u.get(4));
+		List<UserMsg> added = new ArrayList<>(u);
+		// déjà membre, en double et inconnu
+		added.add(u.get(10));
+		added.add(null);
+		MemberSnapshot all = s.withAll(added);
+		assertEquals(1000, all.size());
+		assertEquals(5, all.getId(0));
+		for (int i = 1; i <= 1000; i++) assertTrue(all.contains(i));
+		assertFalse(all.contains(1001));
+		// ordre d'ajout conservé après les membres existants
+		assertEquals(1, all.getId(1));
+		assertEquals(1000, all.getId(999));
+
+		assertSame(all, all.withAll(u.subList(0, 10)));
+		assertSame(all, all.withAll(Collections.emptyList()));
+		assertMembers(MemberSnapshot.EMPTY.withAll(Arrays.asList(u.get(2), u.get(2), u.get(0))), 3, 1);
+	}
+
+	@Test
+	public void groupAddsItselfToTheNewMembers() {
+		List<UserMsg> u = users(1, 4);
+		GroupMsg g = new GroupMsg(-1, u.get(0));
+		List<UserMsg> added = g.addMembers(Arrays.asList(u.get(0), u.get(1), u.get(2), u.get(1)));
+		assertEquals(Arrays.asList(u.get(1), u.get(2)), added);
+		assertMembers(g.getMemberSnapshot(), 1, 2, 3);
+		for (int i = 0; i < 3; i++) assertTrue(u.get(i).getGroups().contains(g));
+		assertFalse(u.get(3).getGroups().contains(g));
+		assertFalse(g.isMember(4));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+
+public class NioTransportTest {
+	private final static String[] DIRECTORIES = { "spillDirectory", "offlineSpoolDirectory", "stateDirectory",
+			"transferDirectory", "historyDirectory", "searchDirectory" };
+
+	@TempDir
+	Path dir;
+
+	// les fichiers du serveur restent dans le répertoire temporaire
+	private ServerConfig config() {
+		for (String d : DIRECTORIES) System.setProperty("chatservice." + d, dir.resolve(d).toString());
+		ServerConfig config = ServerConfig.fromSystemProperties();
+		config.setTransportMode(ServerConfig.TransportMode.NIO);
+		config.setEventLoops(2);
+		return config;
+	}
+
+	@AfterEach
+	public void clearProperties() {
+		for (String d : DIRECTORIES) System.clearProperty("chatservice." + d);
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket s = new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+
+	// messages reçus d'un expéditeur, dans l'ordre
+	private static List<String> receive(ClientMsg c, int srcId, CountDownLatch received) {
+		List<String> texts = Collections.synchronizedList(new ArrayList<>());
+		c.addMessageListener(p -> {
+			if (p.srcId != srcId) return;
+			texts.add(new String(p.data, StandardCharsets.UTF_8));
+			received.countDown();
+		});
+		return texts;
+	}
+
+	@Test
+	@Timeout(30)
+	public void messagesCrossTheEventLoopsInOrder() throws IOException, InterruptedException {
+		int port = freePort();
+		ServerMsg server = new ServerMsg(port, config());
+		Thread acceptor = new Thread(server::start);
+		acceptor.start();
+		ClientMsg alice = new ClientMsg("localhost", port);
+		ClientMsg bob = new ClientMsg("localhost", port);
+		try {
+			// connexions réparties sur les deux boucles
+			alice.startSession("pw1");
+			bob.startSession("pw2");
+			assertTrue(alice.getIdentifier() > 0);
+			assertNotEquals(alice.getIdentifier(), bob.getIdentifier());
+
+			int nb = 200;
+			CountDownLatch toBob = new CountDownLatch(nb);
+			List<String> bobReceived = receive(bob, alice.getIdentifier(), toBob);
+			CountDownLatch toAlice = new CountDownLatch(1);
+			List<String> aliceReceived = receive(alice, bob.getIdentifier(), toAlice);
+
+			List<String> sent = new ArrayList<>();
+			for (int i = 1; i <= nb; i++) {
+				sent.add("message " + i);
+				alice.sendPacket(bob.getIdentifier(), ("message " + i).getBytes(StandardCharsets.UTF_8));
+			}
+			bob.sendPacket(alice.getIdentifier(), "réponse".getBytes(StandardCharsets.UTF_8));
+			assertTrue(toBob.await(20, TimeUnit.SECONDS), bobReceived.size() + " received");
+			assertTrue(toAlice.await(20, TimeUnit.SECONDS));
+			assertEquals(sent, bobReceived);
+			assertEquals(Collections.singletonList("réponse"), aliceReceived);
+		} finally {
+			alice.closeSession();
+			bob.closeSession();
+			server.stop();
+			acceptor.join(5000);
+		}
+	}
+}
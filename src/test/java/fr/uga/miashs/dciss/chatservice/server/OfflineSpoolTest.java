@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class OfflineSpoolTest {
+
+	@TempDir
+	Path dir;
+
+	// destId : numéro du paquet dans l'ordre d'envoi
+	private static Packet numbered(int srcId, int n) {
+		return text(srcId, n, "p" + n);
+	}
+
+	private static List<Packet> drain(OfflineSpool spool, int userId, int max) {
+		List<Packet> packets = new ArrayList<>();
+		assertEquals(spool.drain(userId, max, packets::add), packets.size());
+		return packets;
+	}
+
+	private int segmentFiles() throws IOException {
+		return files(dir, "", ".seg").size();
+	}
+
+	@Test
+	public void drainsEachUserInAppendOrder() throws IOException {
+		OfflineSpool spool = new OfflineSpool(dir, 2, 4096);
+		for (int i = 1; i <= 30; i++) {
+			assertTrue(spool.append(1 + i % 3, numbered(i % 3, i)));
+		}
+		assertEquals(10, spool.pending(1));
+		List<Packet> packets = drain(spool, 2, Integer.MAX_VALUE);
+		assertEquals(10, packets.size());
+		for (int k = 0; k < 10; k++) {
+			Packet p = packets.get(k);
+			assertEquals(1, p.srcId);
+			assertEquals(1 + 3 * k, p.destId);
+			assertEquals("p" + p.destId, text(p));
+		}
+		assertEquals(0, spool.pending(2));
+		assertEquals(10, spool.pending(3));
+		assertEquals(0, drain(spool, 2, 10).size());
+		spool.close();
+	}
+
+	@Test
+	public void pagedDrainsSurviveReopening() throws IOException {
+		OfflineSpool spool = new OfflineSpool(dir, 1, 4096);
+		for (int i = 1; i <= 10; i++) spool.append(7, numbered(0, i));
+		List<Packet> first = drain(spool, 7, 4);
+		assertEquals(4, first.size());
+		assertEquals(4, first.get(3).destId);
+		assertEquals(6, spool.pending(7));
+		spool.close();
+
+		// la marque de remise partielle est relue : les quatre premiers ne reviennent pas
+		spool = new OfflineSpool(dir, 1, 4096);
+		assertEquals(6, spool.pending(7));
+		spool.append(7, numbered(0, 11));
+		List<Packet> rest = drain(spool, 7, 100);
+		assertEquals(7, rest.size());
+		for (int k = 0; k < 7; k++) assertEquals(5 + k, rest.get(k).destId);
+		spool.close();
+
+		spool = new OfflineSpool(dir, 1, 4096);
+		assertEquals(0, spool.pending(7));
+		spool.close();
+	}
+
+	@Test
+	public void deliveredSegmentsAreDeleted() throws IOException {
+		// 18 à 20 octets par paquet : une dizaine par segment
+		OfflineSpool spool = new OfflineSpool(dir, 1, 256);
+		for (int i = 1; i <= 100; i++) spool.append(1 + i % 2, numbered(0, i));
+		assertTrue(segmentFiles() >= 8);
+		drain(spool, 1, Integer.MAX_VALUE);
+		// les paquets de l'utilisateur 2 retiennent encore chaque segment
+		assertTrue(segmentFiles() >= 8);
+		drain(spool, 2, 25);
+		assertEquals(25, spool.pending(2));
+		assertTrue(segmentFiles() < 8);
+		drain(spool, 2, Integer.MAX_VALUE);
+		assertEquals(1, segmentFiles());
+		spool.close();
+
+		spool = new OfflineSpool(dir, 1, 256);
+		assertEquals(0, spool.pending(1));
+		assertEquals(0, spool.pending(2));
+		spool.close();
+	}
+
+	@Test
+	public void closedSpoolRefusesPackets() throws IOException {
+		OfflineSpool spool = new OfflineSpool(dir, 1, 4096);
+		spool.append(1, numbered(0, 1));
+		spool.close();
+		assertFalse(spool.append(1, numbered(0, 2)));
+		assertEquals(0, drain(spool, 1, 10).size());
+		// fermer deux fois est sans effet
+		spool.close();
+
+		spool = new OfflineSpool(dir, 1, 4096);
+		List<Packet> packets = drain(spool, 1, 10);
+		assertEquals(1, packets.size());
+		assertEquals(1, packets.get(0).destId);
+		spool.close();
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class PacketQueueTest {
+
+	@Test
+	public void emptyUntilFirstOffer() {
+		PacketQueue q = new PacketQueue(100);
+		assertTrue(q.isEmpty());
+		assertEquals(0, q.size());
+		assertEquals(100, q.remainingCapacity());
+		assertEquals(0, q.oldestQueuedAt());
+		assertNull(q.poll());
+	}
+
+	@Test
+	public void keepsOrderWhileGrowing() {
+		// plusieurs anneaux chaînés : 16, 32, 64 puis la capacité
+		int capacity = 1000;
+		PacketQueue q = new PacketQueue(capacity);
+		for (int i = 0; i < capacity; i++) assertTrue(q.offer(packet(i, 1)));
+		assertEquals(capacity, q.size());
+		assertEquals(0, q.remainingCapacity());
+		for (int i = 0; i < capacity; i++) assertEquals(i, q.poll().srcId);
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void refusesPacketsOnceFull() {
+		PacketQueue q = new PacketQueue(PacketQueue.INITIAL_CAPACITY + 3);
+		for (int i = 0; i < PacketQueue.INITIAL_CAPACITY + 3; i++) assertTrue(q.offer(packet(i, 1)));
+		assertFalse(q.offer(packet(-1, 1)));
+		assertEquals(0, q.poll().srcId);
+		assertTrue(q.offer(packet(-2, 1)));
+		assertFalse(q.offer(packet(-3, 1)));
+	}
+
+	@Test
+	public void wrapsAroundTheLastRing() {
+		PacketQueue q = new PacketQueue(50);
+		int next = 0;
+		int expected = 0;
+		// la file reste entre 20 et 50 paquets pendant de nombreux tours d'anneau
+		for (int round = 0; round < 100; round++) {
+			while (q.offer(packet(next, 1))) next++;
+			for (int i = 0; i < 30; i++) assertEquals(expected++, q.poll().srcId);
+		}
+		while (!q.isEmpty()) assertEquals(expected++, q.poll().srcId);
+		assertEquals(next, expected);
+	}
+
+	@Test
+	public void drainToMovesAtMostMaxElements() {
+		PacketQueue q = new PacketQueue(100);
+		for (int i = 0; i < 40; i++) q.offer(packet(i, 1));
+		List<Packet> batch = new ArrayList<>();
+		assertEquals(25, q.drainTo(batch, 25));
+		assertEquals(15, q.size());
+		assertEquals(15, q.drainTo(batch, 25));
+		for (int i = 0; i < 40; i++) assertEquals(i, batch.get(i).srcId);
+	}
+
+	@Test
+	public void oldestQueuedAtIsTheDateOfTheHead() {
+		PacketQueue q = new PacketQueue(10);
+		long before = System.currentTimeMillis();
+		q.offer(packet(1, 1));
+		long queuedAt = q.oldestQueuedAt();
+		assertTrue(queuedAt >= before && queuedAt <= System.currentTimeMillis());
+		q.poll();
+		assertEquals(0, q.oldestQueuedAt());
+	}
+
+	@Test
+	@Timeout(5)
+	public void pollWaitsForAProducer() throws InterruptedException {
+		PacketQueue q = new PacketQueue(10);
+		assertNull(q.poll(10, TimeUnit.MILLISECONDS));
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				return;
+			}
+			q.offer(packet(7, 1));
+		});
+		producer.start();
+		assertEquals(7, q.take().srcId);
+		producer.join();
+	}
+
+	@Test
+	@Timeout(5)
+	public void takeIsInterruptible() throws InterruptedException {
+		PacketQueue q = new PacketQueue(10);
+		Thread.currentThread().interrupt();
+		assertThrows(InterruptedException.class, q::take);
+	}
+
+	@Test
+	@Timeout(30)
+	public void concurrentProducersLoseNothing() throws InterruptedException {
+		int producers = 4;
+		int perProducer = 50_000;
+		PacketQueue q = new PacketQueue(256);
+		Thread[] threads = new Thread[producers];
+		for (int t = 0; t < producers; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < perProducer; i++) {
+					// srcId : producteur, destId : numéro dans l'ordre du producteur
+					Packet p = packet(id, i);
+					while (!q.offer(p)) Thread.yield();
+				}
+			});
+			threads[t].start();
+		}
+		int[] nextOf = new int[producers];
+		for (int n = 0; n < producers * perProducer; n++) {
+			Packet p = q.take();
+			// chaque producteur garde son ordre
+			assertEquals(nextOf[p.srcId]++, p.destId);
+		}
+		for (Thread t : threads) t.join();
+		assertTrue(q.isEmpty());
+		for (int c : nextOf) assertEquals(perProducer, c);
+	}
+}
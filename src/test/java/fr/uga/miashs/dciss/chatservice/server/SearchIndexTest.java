@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.Search;
+
+public class SearchIndexTest {
+
+	@TempDir
+	Path dir;
+
+	private HistoryStore history;
+	private SearchIndex index;
+
+	// segments de 10 messages fusionnés par 4 : 40, puis 160 messages
+	private void open() throws IOException {
+		ServerConfig config = smallStores();
+		ServerMsg server = mock(ServerMsg.class);
+		history = new HistoryStore(dir.resolve("history"), server, config);
+		index = new SearchIndex(dir.resolve("search"), server, history, config);
+	}
+
+	private void close() {
+		if (index != null) index.close();
+		if (history != null) history.close();
+		index = null;
+		history = null;
+	}
+
+	@AfterEach
+	public void closeAll() {
+		close();
+	}
+
+	// un message sur trois contient le mot cherché
+	private void append(int srcId, int destId, int from, int to) {
+		for (int i = from; i <= to; i++) {
+			history.append(text(srcId, destId, "Message n°" + i + (i % 3 == 0 ? " : Fizz !" : "")));
+		}
+	}
+
+	private void awaitSegments(int n) throws InterruptedException {
+		// tous les segments écrits, puis fusionnés
+		while (index.getFrozenCount() > 0 || index.getSegmentCount() != n) Thread.sleep(10);
+	}
+
+	private int segmentFiles() throws IOException {
+		return files(dir.resolve("search"), "", ".seg").size();
+	}
+
+	// les messages trouvés sont les multiples de 3 de to à from, du plus récent au plus ancien
+	private static void assertFizz(List<Search.Hit> hits, int from, int to) {
+		int expected = to - to % 3;
+		for (Search.Hit h : hits) {
+			assertEquals(expected, h.seq);
+			assertTrue(h.snippet.contains("Fizz"));
+			expected -= 3;
+		}
+		assertTrue(expected < from);
+	}
+
+	@Test
+	@Timeout(10)
+	public void mergesSegmentsOfTheSameLevel() throws IOException, InterruptedException {
+		open();
+		append(1, 2, 1, 160);
+		assertEquals(160, index.size());
+		awaitSegments(1);
+		close();
+		// les segments fusionnés sont supprimés
+		assertEquals(1, segmentFiles());
+
+		open();
+		assertEquals(160, index.size());
+		List<Search.Hit> hits = index.search(1, 2, "fizz", 100);
+		assertEquals(53, hits.size());
+		assertFizz(hits, 1, 160);
+		for (Search.Hit h : hits) {
+			assertEquals(2, h.conversation);
+			assertEquals(1, h.srcId);
+		}
+		assertEquals(1, index.search(2, 1, "message 100", 100).size());
+	}
+
+	@Test
+	@Timeout(10)
+	public void searchReadsMemoryAndDiskSegments() throws IOException, InterruptedException {
+		open();
+		append(1, 2, 1, 25);
+		// deux segments sur disque, cinq messages en mémoire
+		awaitSegments(2);
+		assertFizz(index.search(1, 2, "FIZZ", 100), 1, 25);
+		// les plus récents d'abord, limités à max
+		List<Search.Hit> hits = index.search(1, 2, "fizz", 3);
+		assertEquals(3, hits.size());
+		assertFizz(hits, 16, 24);
+		// tous les mots de la requête
+		assertEquals(9, index.search(1, 2, "message fizz", 100).get(5).seq);
+		assertTrue(index.search(1, 2, "fizz buzz", 100).isEmpty());
+	}
+
+	@Test
+	@Timeout(10)
+	public void mergingResumesAfterReopening() throws IOException, InterruptedException {
+		open();
+		append(1, 2, 1, 30);
+		close();
+		assertEquals(3, segmentFiles());
+
+		open();
+		assertEquals(30, index.size());
+		append(2, 1, 31, 40);
+		awaitSegments(1);
+		assertFizz(index.search(2, 1, "fizz", 100), 1, 40);
+	}
+
+	@Test
+	@Timeout(10)
+	public void usersOnlyFindTheirConversations() throws IOException, InterruptedException {
+		open();
+		append(1, 2, 1, 20);
+		append(3, 1, 1, 20);
+		append(2, 3, 1, 20);
+		// 40 messages fusionnés, puis deux segments de 10
+		awaitSegments(3);
+		// conversation 0 : toutes celles de l'utilisateur, sans groupe (utilisateur inconnu du serveur)
+		List<Search.Hit> hits = index.search(1, 0, "fizz", 100);
+		assertEquals(12, hits.size());
+		for (Search.Hit h : hits) assertTrue(h.conversation == 2 || h.conversation == 3);
+		assertEquals(6, index.search(3, 2, "fizz", 100).size());
+		assertTrue(index.search(4, 0, "fizz", 100).isEmpty());
+	}
+
+	@Test
+	@Timeout(10)
+	public void historyTailIsIndexedAgainAfterACrash() throws IOException, InterruptedException {
+		open();
+		append(1, 2, 1, 15);
+		append(3, -7, 1, 10);
+		// deux segments sur disque, cinq messages en mémoire
+		awaitSegments(2);
+		// arrêt brutal : l'index n'est pas fermé
+		history.close();
+		index = null;
+		history = null;
+
+		open();
+		assertEquals(25, index.size());
+		assertFizz(index.search(1, 2, "fizz", 100), 1, 15);
+		append(1, 2, 16, 20);
+		close();
+
+		// arrêt propre : rien n'est relu, ni indexé deux fois
+		open();
+		assertEquals(30, index.size());
+		assertFizz(index.search(2, 1, "fizz", 100), 1, 20);
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class SendQueueTest {
+	private final static int CAPACITY = 3;
+
+	@TempDir
+	Path dir;
+
+	// file d'envoi d'un utilisateur non connecté
+	private SendQueue queue(SendQueue.OverflowPolicy policy) {
+		return user(policy).getSendQueue();
+	}
+
+	private UserMsg user(SendQueue.OverflowPolicy policy) {
+		ServerConfig config = new ServerConfig();
+		config.setSendQueueCapacity(CAPACITY);
+		config.setOverflowPolicy(policy);
+		config.setSpillDirectory(dir);
+		ServerMsg server = mock(ServerMsg.class);
+		when(server.getConfig()).thenReturn(config);
+		return new UserMsg(1, server, "user1", "pw1");
+	}
+
+	// destId : numéro du paquet dans l'ordre d'envoi
+	private static Packet numbered(int n) {
+		return new Packet(2, n, new byte[] { (byte) n });
+	}
+
+	@Test
+	public void dropOldestKeepsTheLastPackets() {
+		SendQueue q = queue(SendQueue.OverflowPolicy.DROP_OLDEST);
+		for (int i = 1; i <= 5; i++) assertTrue(q.offer(numbered(i)));
+		assertEquals(CAPACITY, q.size());
+		assertEquals(2, q.getDropped());
+		for (int i = 3; i <= 5; i++) assertEquals(i, q.poll().destId);
+		assertNull(q.poll());
+	}
+
+	@Test
+	public void spillToDiskKeepsEveryPacketInOrder() throws InterruptedException {
+		SendQueue q = queue(SendQueue.OverflowPolicy.SPILL_TO_DISK);
+		for (int i = 1; i <= 10; i++) assertTrue(q.offer(numbered(i)));
+		assertEquals(10, q.size());
+		// les paquets remontent du disque à mesure que la file se vide
+		for (int i = 1; i <= 8; i++) {
+			Packet p = q.take();
+			assertEquals(i, p.destId);
+			assertArrayEquals(new byte[] { (byte) i }, p.data);
+		}
+		assertTrue(q.offer(numbered(11)));
+		for (int i = 9; i <= 11; i++) assertEquals(i, q.poll().destId);
+		assertTrue(q.isEmpty());
+		assertEquals(0, q.getDropped());
+	}
+
+	@Test
+	public void disconnectRefusesPacketsOnceFull() {
+		SendQueue q = queue(SendQueue.OverflowPolicy.DISCONNECT);
+		for (int i = 1; i <= CAPACITY; i++) assertTrue(q.offer(numbered(i)));
+		assertFalse(q.offer(numbered(4)));
+		assertEquals(1, q.getDropped());
+		assertEquals(CAPACITY, q.size());
+		assertEquals(1, q.poll().destId);
+	}
+
+	@Test
+	public void detectorReportsDeepAndOldQueues() throws InterruptedException {
+		UserMsg idle = user(SendQueue.OverflowPolicy.DROP_OLDEST);
+		UserMsg deep = user(SendQueue.OverflowPolicy.DROP_OLDEST);
+		for (int i = 1; i <= CAPACITY; i++) deep.getSendQueue().offer(numbered(i));
+		UserMsg old = user(SendQueue.OverflowPolicy.DROP_OLDEST);
+		old.getSendQueue().offer(numbered(1));
+
+		SlowConsumerDetector byDepth = new SlowConsumerDetector(() -> Arrays.asList(idle, deep, old), CAPACITY, 60000);
+		byDepth.run();
+		assertEquals(Arrays.asList(deep), byDepth.getLastReport());
+
+		Thread.sleep(20);
+		SlowConsumerDetector byAge = new SlowConsumerDetector(() -> Arrays.asList(idle, deep, old), 100, 10);
+		byAge.run();
+		assertEquals(Arrays.asList(deep, old), byAge.getLastReport());
+		// la file vidée, l'utilisateur n'est plus signalé
+		while (deep.getSendQueue().poll() != null) {
+			// lu par le client
+		}
+		byAge.run();
+		assertEquals(Arrays.asList(old), byAge.getLastReport());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class SharedFrameTest {
+
+	@Test
+	public void bufferGoesBackToThePoolWithTheLastReference() {
+		BufferPool pool = new BufferPool(false, 4096, 64 * 1024, false);
+		SharedFrame f = SharedFrame.encode(pool, text(1, 2, "bonjour"));
+		// deux destinataires en plus de l'émetteur
+		f.retain();
+		f.retain();
+		assertEquals(3, f.refCnt());
+		assertFalse(f.release());
+		assertFalse(f.release());
+		assertTrue(f.release());
+		assertThrows(IllegalStateException.class, f::retain);
+		assertThrows(IllegalStateException.class, f::release);
+
+		// la trame suivante de la même classe reprend le tampon rendu
+		SharedFrame.allocate(pool, 1, 2, 100).release();
+		assertTrue(pool.toString().contains(" 256=1/2 "), pool.toString());
+		// une trame plus grande que les classes n'est pas gardée
+		SharedFrame.allocate(pool, 1, 2, 5000).release();
+		assertTrue(pool.toString().endsWith("unpooled=1"), pool.toString());
+	}
+
+	@Test
+	public void buffersAreReusedWithinTheirSizeClass() {
+		BufferPool pool = new BufferPool(true, 4096, 64 * 1024, false);
+		ByteBuffer b = pool.acquire(300);
+		assertTrue(b.isDirect());
+		assertEquals(512, b.capacity());
+		assertEquals(300, b.limit());
+		pool.release(b);
+		ByteBuffer again = pool.acquire(400);
+		assertSame(b, again);
+		assertEquals(0, again.position());
+		assertEquals(400, again.limit());
+		// tampon d'une autre origine : pas remis dans le pool
+		pool.release(ByteBuffer.allocate(512));
+		assertNotSame(b, pool.acquire(512));
+	}
+
+	@Test
+	public void framedPacketIsWrittenLikeItsPacket() throws IOException {
+		BufferPool pool = new BufferPool(true, 4096, 64 * 1024, false);
+		Packet p = text(1, -3, "bonjour");
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		assertEquals(12 + 7, SharedFrame.write(new DataOutputStream(expected), p));
+
+		SharedFrame f = SharedFrame.encode(pool, p);
+		FramedPacket framed = new FramedPacket(f);
+		assertEquals(1, framed.srcId);
+		assertEquals(-3, framed.destId);
+		assertEquals("bonjour", new String(SharedFrame.data(framed), "UTF-8"));
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		assertEquals(12 + 7, SharedFrame.write(new DataOutputStream(written), framed));
+		assertArrayEquals(expected.toByteArray(), written.toByteArray());
+		SharedFrame.release(framed);
+		assertEquals(0, f.refCnt());
+	}
+
+	@Test
+	@Timeout(20)
+	public void framesNeverReleasedAreReportedAsLeaks() throws InterruptedException {
+		BufferPool pool = new BufferPool(false, 4096, 64 * 1024, true);
+		SharedFrame.encode(pool, text(1, 2, "rendue")).release();
+		// trame oubliée : signalée quand le GC la récupère
+		SharedFrame.encode(pool, text(1, 2, "oubliée"));
+		while (pool.getLeaks() == 0) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertEquals(1, pool.getLeaks());
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+
+public class StateJournalTest {
+
+	@TempDir
+	Path dir;
+
+	// serveur vide : le journal n'y restaure rien et ses snapshots sont vides
+	private static ServerMsg emptyServer() {
+		ServerMsg server = mock(ServerMsg.class);
+		when(server.getAllUsers()).thenReturn(Collections.emptyList());
+		when(server.getAllGroups()).thenReturn(Collections.emptyList());
+		return server;
+	}
+
+	private void writeRecords() throws IOException {
+		StateJournal journal = new StateJournal(dir, emptyServer(), true, Long.MAX_VALUE);
+		journal.awaitDurable(journal.userCreated(1, "alice", "pw1"));
+		journal.awaitDurable(journal.userCreated(2, "bob", "pw2"));
+		journal.awaitDurable(journal.groupCreated(-1, 1));
+		journal.awaitDurable(journal.userRemoved(2));
+		journal.close();
+	}
+
+	private void verifyRecords(ServerMsg server) {
+		InOrder order = inOrder(server);
+		order.verify(server).restoreUser(1, "alice", "pw1");
+		order.verify(server).restoreUser(2, "bob", "pw2");
+		order.verify(server).restoreGroup(-1, 1);
+		order.verify(server).restoreUserRemoval(2);
+	}
+
+	@Test
+	public void replaysTheLogInOrder() throws IOException {
+		writeRecords();
+		ServerMsg server = emptyServer();
+		new StateJournal(dir, server, true, Long.MAX_VALUE).close();
+		verifyRecords(server);
+		verify(server, never()).restoreSequences(anyInt(), anyInt());
+	}
+
+	@Test
+	public void stopsAtATruncatedRecord() throws IOException {
+		writeRecords();
+		Path wal = files(dir, "wal-", "").get(0);
+		// arrêt brutal au milieu d'un enregistrement : longueur annoncée, données manquantes
+		Files.write(wal, ByteBuffer.allocate(10).putInt(100).putInt(0).array(), StandardOpenOption.APPEND);
+		ServerMsg server = emptyServer();
+		new StateJournal(dir, server, true, Long.MAX_VALUE).close();
+		verifyRecords(server);
+		verifyNoMoreInteractions(ignoreStubs(server));
+	}
+
+	@Test
+	public void stopsAtARecordWithABadChecksum() throws IOException {
+		writeRecords();
+		Path wal = files(dir, "wal-", "").get(0);
+		// enregistrement complet mais dont le contenu n'a pas été écrit (crc faux)
+		Files.write(wal, ByteBuffer.allocate(8 + 9).putInt(9).putInt(12345).put((byte) 5).array(), StandardOpenOption.APPEND);
+		ServerMsg server = emptyServer();
+		new StateJournal(dir, server, true, Long.MAX_VALUE).close();
+		verifyRecords(server);
+		verifyNoMoreInteractions(ignoreStubs(server));
+	}
+
+	@Test
+	public void recordsAfterATornTailAreKept() throws IOException {
+		writeRecords();
+		Files.write(files(dir, "wal-", "").get(0), new byte[] { 0, 0, 0, 50, 1, 2, 3 }, StandardOpenOption.APPEND);
+		// le redémarrage écrit dans un nouveau fichier, après la fin tronquée
+		StateJournal journal = new StateJournal(dir, emptyServer(), true, Long.MAX_VALUE);
+		journal.awaitDurable(journal.groupRemoved(-1));
+		journal.close();
+		assertEquals(2, files(dir, "wal-", "").size());
+
+		ServerMsg server = emptyServer();
+		new StateJournal(dir, server, true, Long.MAX_VALUE).close();
+		verifyRecords(server);
+		verify(server).restoreGroupRemoval(-1);
+	}
+
+	@Test
+	public void groupCreatedWithItsMembersIsOneRecord() throws IOException {
+		ServerMsg state = mockServer();
+		UserMsg owner = user(state, 1);
+		GroupMsg g = new GroupMsg(-1, owner);
+		g.addMembers(Arrays.asList(user(state, 2), user(state, 3)));
+		StateJournal journal = new StateJournal(dir, emptyServer(), true, Long.MAX_VALUE);
+		assertEquals(1, journal.groupCreated(-1, 1, g.getMemberSnapshot()));
+		journal.close();
+
+		// rejoué en un seul ajout de tous les membres connus
+		ServerMsg server = emptyServer();
+		GroupMsg restored = mock(GroupMsg.class);
+		UserMsg u3 = user(state, 3);
+		when(server.restoreGroup(-1, 1)).thenReturn(restored);
+		when(server.getUser(1)).thenReturn(owner);
+		when(server.getUser(3)).thenReturn(u3);
+		new StateJournal(dir, server, true, Long.MAX_VALUE).close();
+		verify(restored).addMembers(Arrays.asList(owner, u3));
+		verify(restored, never()).addMember(any());
+	}
+
+	@Test
+	public void interruptedWaitFails() throws IOException {
+		StateJournal journal = new StateJournal(dir, emptyServer(), true, Long.MAX_VALUE);
+		long lsn = journal.userCreated(1, "alice", "pw1");
+		Thread.currentThread().interrupt();
+		// enregistrement jamais écrit : l'attente ne peut se terminer que par l'interruption
+		UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> journal.awaitDurable(lsn + 1));
+		assertTrue(e.getCause() instanceof InterruptedIOException);
+		assertTrue(Thread.interrupted());
+		journal.awaitDurable(lsn);
+		journal.close();
+	}
+
+	@Test
+	public void snapshotReplacesThePreviousLogs() throws IOException {
+		writeRecords();
+		ServerMsg state = emptyServer();
+		when(state.getNextUserId()).thenReturn(3);
+		when(state.getNextGroupId()).thenReturn(-2);
+		StateJournal journal = new StateJournal(dir, state, true, Long.MAX_VALUE);
+		journal.snapshot();
+		journal.awaitDurable(journal.userCreated(3, "carol", "pw3"));
+		journal.close();
+		assertEquals(1, files(dir, "snapshot-", "").size());
+
+		ServerMsg server = emptyServer();
+		new StateJournal(dir, server, true, Long.MAX_VALUE).close();
+		// état du snapshot, puis seulement les commandes suivantes
+		verify(server).restoreSequences(3, -2);
+		verify(server).restoreUser(3, "carol", "pw3");
+		verify(server, never()).restoreUser(eq(1), anyString(), anyString());
+		verify(server, never()).restoreUserRemoval(anyInt());
+	}
+}
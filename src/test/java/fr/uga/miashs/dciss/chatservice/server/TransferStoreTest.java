@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static fr.uga.miashs.dciss.chatservice.server.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import fr.uga.miashs.dciss.chatservice.common.FileTransfer;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+public class TransferStoreTest {
+	private final static int SENDER = 1;
+	private final static int RECIPIENT = 2;
+	private final static long ID = 0x8000_0000_1234_5678L;
+
+	@TempDir
+	Path dir;
+
+	private ServerMsg server;
+	private UserMsg sender;
+	private final byte[] content = new byte[250];
+
+	@BeforeEach
+	public void setUp() {
+		server = mockServer();
+		sender = mock(UserMsg.class);
+		when(server.getUser(SENDER)).thenReturn(sender);
+		for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+	}
+
+	private TransferStore open() throws IOException {
+		return new TransferStore(dir, server, Long.MAX_VALUE);
+	}
+
+	private static Packet start(String filename, long size) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(FileTransfer.TYPE);
+		out.writeByte(FileTransfer.START);
+		out.writeLong(ID);
+		out.writeInt(RECIPIENT);
+		out.writeUTF(filename);
+		out.writeUTF("bin");
+		out.writeLong(size);
+		return new Packet(SENDER, 0, bos.toByteArray());
+	}
+
+	private Packet chunk(int offset, int length) {
+		return new Packet(SENDER, 0, FileTransfer.header(8 + length, FileTransfer.CHUNK, ID)
+				.putLong(offset).put(content, offset, length).array());
+	}
+
+	private static Packet end(long size) {
+		return new Packet(SENDER, 0, FileTransfer.header(8, FileTransfer.END, ID).putLong(size).array());
+	}
+
+	// dernier offset confirmé à l'expéditeur (RESUME)
+	private long resumedAt() {
+		ArgumentCaptor<Packet> replies = ArgumentCaptor.forClass(Packet.class);
+		verify(sender, atLeastOnce()).process(replies.capture());
+		List<Packet> all = replies.getAllValues();
+		ByteBuffer b = ByteBuffer.wrap(all.get(all.size() - 1).data);
+		assertEquals(FileTransfer.TYPE, b.get());
+		assertEquals(FileTransfer.RESUME, b.get());
+		assertEquals(ID, b.getLong());
+		return b.getLong();
+	}
+
+	@Test
+	public void uploadResumesAfterARestart() throws IOException {
+		TransferStore store = open();
+		store.process(start("a.bin", 250));
+		assertEquals(0, resumedAt());
+		store.process(chunk(0, 100));
+		// morceau reçu hors ordre : il ne fait pas avancer la reprise
+		store.process(chunk(150, 50));
+
+		store = open();
+		store.process(start("a.bin", 250));
+		assertEquals(100, resumedAt());
+		store.process(chunk(100, 50));
+		store.process(chunk(200, 50));
+		store.process(end(250));
+		assertEquals(250, resumedAt());
+
+		// le destinataire se voit proposer le fichier
+		ArgumentCaptor<Packet> offer = ArgumentCaptor.forClass(Packet.class);
+		verify(server).processPacket(offer.capture());
+		assertEquals(RECIPIENT, offer.getValue().destId);
+		assertEquals(FileTransfer.OFFER, offer.getValue().data[1]);
+		List<Path> blobs = files(dir.resolve("attachments"), "", "");
+		assertEquals(1, blobs.size());
+		assertArrayEquals(content, Files.readAllBytes(blobs.get(0)));
+	}
+
+	@Test
+	public void anotherFileWithTheSameIdStartsAfresh() throws IOException {
+		TransferStore store = open();
+		store.process(start("a.bin", 250));
+		store.process(chunk(0, 100));
+		// même id, autre fichier : rien n'est repris
+		store.process(start("b.bin", 250));
+		assertEquals(0, resumedAt());
+		store.process(chunk(0, 50));
+
+		store = open();
+		store.process(start("b.bin", 300));
+		assertEquals(0, resumedAt());
+		assertEquals(0, Files.size(files(dir, "", ".data").get(0)));
+		store.process(start("b.bin", 300));
+		assertEquals(0, resumedAt());
+		verify(server, never()).processPacket(any());
+	}
+}